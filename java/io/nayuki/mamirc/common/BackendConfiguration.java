@@ -10,6 +10,10 @@ package io.nayuki.mamirc.common;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import io.nayuki.json.Json;
 
 
@@ -27,9 +31,67 @@ public final class BackendConfiguration {
 	// In the range [0, 65535].
 	public final int connectorServerPort;
 	
+	// Can be null. If set, the Connector listens for the Processor on a Unix domain socket at this path
+	// instead of the TCP port, and access is controlled by file permissions.
+	public final File connectorSocketPath;
+	
 	// Not null, and at least 0 bytes long.
 	private final byte[] connectorPassword;
 	
+	// Can be null, which disables the pre-commit event journal.
+	public final File connectorJournalFile;
+	
+	// Maximum sustained rate of lines sent to each IRC server, in lines per second.
+	// Non-negative, where 0 disables the outbound rate limit.
+	public final double connectorSendRate;
+	
+	// Maximum number of lines sent to each IRC server in a burst. Positive.
+	public final double connectorSendBurst;
+	
+	// Maximum sustained rates of data read from each IRC server, in lines per second and bytes per second.
+	// Non-negative, where 0 disables the respective inbound limit.
+	public final double connectorReceiveLineRate;
+	public final double connectorReceiveByteRate;
+	
+	// Minimum length in bytes of an event payload to be stored once in the payloads table
+	// and referenced by hash. Non-negative, where 0 disables payload deduplication.
+	public final int connectorDedupMinLength;
+	
+	// The Connector keeps the full data of one in this many protocol chatter events, and blanks
+	// the data of the others. Positive, where 1 keeps all chatter at full fidelity.
+	public final int connectorChatterSampleInterval;
+	
+	// Number of days after which the data of protocol chatter events is blanked.
+	// Non-negative, where 0 keeps chatter indefinitely.
+	public final int connectorChatterRetainDays;
+	
+	// Can be null. If set, the Connector also appends messages to plain-text log files in this directory,
+	// one file per profile, channel, and day.
+	public final File connectorTextLogDirectory;
+	
+	// Not null, possibly empty, and unmodifiable. Each item is "dir:<path>" or "tcp:<hostname>:<port>",
+	// and the Connector ships every committed event to each of these replicas.
+	public final List<String> connectorReplicas;
+	
+	// Whether the Processor asks the Connector to compress the data sent over their link.
+	public final boolean processorLinkDeflate;
+	
+	// Whether the Processor asks the Connector to send the offsets of the parts of each IRC line along with the line.
+	public final boolean processorLinkParsed;
+	
+	// Can be null. If set, the Connector passes events to the Processor through a shared memory ring in this file,
+	// instead of over the socket. Only works when both run on the same host.
+	public final File processorLinkRingFile;
+	
+	// Not null, possibly empty, and unmodifiable. If not empty, the Processor attaches to the Connectors described by these
+	// backend configuration files instead of the one in this file, and each Connector owns a subset of the IRC profiles.
+	// The position of each file in the list is its shard number, which must not change while its connections exist.
+	public final List<File> processorConnectorShards;
+	
+	// Can be null. If set, the Processor periodically saves its state to this file, and at start-up it loads the file
+	// and only replays the events after it. Not used together with processorConnectorShards.
+	public final File processorSnapshotFile;
+	
 	// In the range [0, 65535].
 	public final int webServerPort;
 	
@@ -49,7 +111,52 @@ public final class BackendConfiguration {
 		// Retrieve each field
 		connectorDatabaseFile = new File(Json.getString(data, "connector-database-file"));
 		connectorServerPort = Utils.checkPortNumber(Json.getInt(data, "connector-server-port"));
+		String socketPath = getOptionalString(data, "connector-socket-path");
+		connectorSocketPath = socketPath != null ? new File(socketPath) : null;
 		connectorPassword = Utils.toUtf8(Json.getString(data, "connector-password"));
+		String journal = getOptionalString(data, "connector-journal-file");
+		connectorJournalFile = journal != null ? new File(journal) : null;
+		connectorSendRate = getOptionalNumber(data, "connector-send-rate", 0);
+		connectorSendBurst = getOptionalNumber(data, "connector-send-burst", 5);
+		if (!(connectorSendRate >= 0) || !(connectorSendBurst > 0) || Double.isInfinite(connectorSendRate) || Double.isInfinite(connectorSendBurst))
+			throw new IllegalArgumentException("Invalid send rate limit");
+		connectorReceiveLineRate = getOptionalNumber(data, "connector-receive-line-rate", 0);
+		connectorReceiveByteRate = getOptionalNumber(data, "connector-receive-byte-rate", 0);
+		if (!(connectorReceiveLineRate >= 0) || !(connectorReceiveByteRate >= 0) || Double.isInfinite(connectorReceiveLineRate) || Double.isInfinite(connectorReceiveByteRate))
+			throw new IllegalArgumentException("Invalid receive rate limit");
+		connectorDedupMinLength = (int)getOptionalNumber(data, "connector-dedup-min-length", 0);
+		if (connectorDedupMinLength < 0)
+			throw new IllegalArgumentException("Invalid deduplication length");
+		connectorChatterSampleInterval = (int)getOptionalNumber(data, "connector-chatter-sample-interval", 1);
+		connectorChatterRetainDays = (int)getOptionalNumber(data, "connector-chatter-retain-days", 0);
+		if (connectorChatterSampleInterval < 1 || connectorChatterRetainDays < 0)
+			throw new IllegalArgumentException("Invalid chatter policy");
+		String textLog = getOptionalString(data, "connector-text-log-directory");
+		connectorTextLogDirectory = textLog != null ? new File(textLog) : null;
+		List<String> replicas = new ArrayList<>();
+		if (Json.getMap(data).get("connector-replicas") != null) {
+			for (Object item : Json.getList(data, "connector-replicas")) {
+				if (!(item instanceof String))
+					throw new IllegalArgumentException("Expected a list of strings for key: connector-replicas");
+				replicas.add((String)item);
+			}
+		}
+		connectorReplicas = Collections.unmodifiableList(replicas);
+		processorLinkDeflate = getOptionalBoolean(data, "processor-link-deflate", false);
+		processorLinkParsed = getOptionalBoolean(data, "processor-link-parsed", false);
+		String ringFile = getOptionalString(data, "processor-link-ring-file");
+		processorLinkRingFile = ringFile != null ? new File(ringFile) : null;
+		List<File> shards = new ArrayList<>();
+		if (Json.getMap(data).get("processor-connector-shards") != null) {
+			for (Object item : Json.getList(data, "processor-connector-shards")) {
+				if (!(item instanceof String))
+					throw new IllegalArgumentException("Expected a list of strings for key: processor-connector-shards");
+				shards.add(new File((String)item));
+			}
+		}
+		processorConnectorShards = Collections.unmodifiableList(shards);
+		String snapshot = getOptionalString(data, "processor-snapshot-file");
+		processorSnapshotFile = snapshot != null ? new File(snapshot) : null;
 		webServerPort = Utils.checkPortNumber(Json.getInt(data, "web-server-port"));
 		webUiPassword = Json.getString(data, "web-ui-password");
 	}
@@ -61,4 +168,39 @@ public final class BackendConfiguration {
 		return connectorPassword.clone();  // Defensive copy
 	}
 	
+	
+	/*---- Helper functions ----*/
+	
+	// Returns the string value at the given key, or null if the key is absent or its value is null.
+	private static String getOptionalString(Object data, String key) {
+		Map<String,Object> map = Json.getMap(data);
+		if (!map.containsKey(key) || map.get(key) == null)
+			return null;
+		return Json.getString(map, key);
+	}
+	
+	
+	// Returns the numeric value at the given key, or the default if the key is absent or its value is null.
+	private static double getOptionalNumber(Object data, String key, double def) {
+		Map<String,Object> map = Json.getMap(data);
+		if (!map.containsKey(key) || map.get(key) == null)
+			return def;
+		Object val = map.get(key);
+		if (!(val instanceof Number))
+			throw new IllegalArgumentException("Expected a number for key: " + key);
+		return ((Number)val).doubleValue();
+	}
+	
+	
+	// Returns the boolean value at the given key, or the default if the key is absent or its value is null.
+	private static boolean getOptionalBoolean(Object data, String key, boolean def) {
+		Map<String,Object> map = Json.getMap(data);
+		if (!map.containsKey(key) || map.get(key) == null)
+			return def;
+		Object val = map.get(key);
+		if (!(val instanceof Boolean))
+			throw new IllegalArgumentException("Expected a boolean for key: " + key);
+		return (Boolean)val;
+	}
+	
 }
@@ -0,0 +1,97 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/* 
+ * The input and output streams of a connected socket, which is either a TCP socket or a blocking socket channel
+ * (e.g. a Unix domain socket). One thread can read while another thread writes. Unlike the streams from
+ * java.nio.channels.Channels, these don't hold the channel's blocking lock during a read, which would stall writes.
+ * Closing this object closes the socket, which makes any blocked read or write throw an exception.
+ */
+public final class ChannelStreams implements Closeable {
+	
+	/*---- Fields ----*/
+	
+	public final InputStream input;
+	public final OutputStream output;
+	private final Closeable socket;
+	
+	
+	/*---- Constructors ----*/
+	
+	public ChannelStreams(Socket sock) throws IOException {
+		input = sock.getInputStream();
+		output = sock.getOutputStream();
+		socket = sock;
+	}
+	
+	
+	// The channel must be connected and in blocking mode.
+	public ChannelStreams(final SocketChannel channel) {
+		if (!channel.isBlocking())
+			throw new IllegalArgumentException("Channel must be blocking");
+		socket = channel;
+		
+		input = new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int n = read(b, 0, 1);
+				return n == -1 ? -1 : b[0] & 0xFF;
+			}
+			
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				int n;
+				do n = channel.read(buf);
+				while (n == 0);  // Not expected in blocking mode
+				return n;
+			}
+			
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+		
+		output = new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte)b}, 0, 1);
+			}
+			
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+				while (buf.hasRemaining())
+					channel.write(buf);
+			}
+			
+			public void close() throws IOException {
+				channel.close();
+			}
+		};
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Closes the underlying socket. Can be called from any thread, and is idempotent.
+	public void close() throws IOException {
+		socket.close();
+	}
+	
+}
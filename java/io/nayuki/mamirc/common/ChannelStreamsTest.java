@@ -0,0 +1,69 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import org.junit.Test;
+
+
+public final class ChannelStreamsTest {
+	
+	// One thread is blocked reading from a channel while another thread writes to the same channel,
+	// and the peer echoes the data back. This would stall if the read held the channel's blocking lock.
+	@Test public void testReadWhileWriting() throws IOException, InterruptedException {
+		File path = File.createTempFile("mamirc-socket", ".sock");
+		path.delete();
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(UnixDomainSocketAddress.of(path.toPath()));
+			final ChannelStreams client = new ChannelStreams(SocketChannel.open(UnixDomainSocketAddress.of(path.toPath())));
+			ChannelStreams peer = new ChannelStreams(server.accept());
+			
+			final byte[] message = Utils.toUtf8("Hello world\r\n");
+			final byte[] received = new byte[message.length];
+			Thread th = new Thread() {
+				public void run() {
+					try {
+						for (int off = 0; off < received.length; ) {
+							int n = client.input.read(received, off, received.length - off);
+							if (n == -1)
+								break;
+							off += n;
+						}
+					} catch (IOException e) {}
+				}
+			};
+			th.start();
+			Thread.sleep(100);  // Let the reader block first
+			client.output.write(message);
+			
+			byte[] buf = new byte[message.length];
+			for (int off = 0; off < buf.length; )
+				off += peer.input.read(buf, off, buf.length - off);
+			peer.output.write(buf);
+			th.join(5000);
+			assertArrayEquals(message, received);
+			
+			peer.close();
+			assertEquals(-1, client.input.read());
+			client.close();
+		} finally {
+			server.close();
+			path.delete();
+		}
+	}
+	
+}
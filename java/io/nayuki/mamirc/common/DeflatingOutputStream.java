@@ -0,0 +1,113 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+
+/* 
+ * An output stream that compresses data with one persistent zlib (RFC 1950) context, so later data benefits
+ * from the history of earlier data. flush() performs a sync flush, after which the receiver can decompress
+ * everything written so far, so it should be called at batch boundaries rather than after every write.
+ * Also counts the bytes in and out and the time spent compressing. Not thread-safe.
+ */
+public final class DeflatingOutputStream extends FilterOutputStream {
+	
+	/*---- Fields ----*/
+	
+	private Deflater deflater;  // Null after closing
+	private final byte[] buffer;
+	private long bytesIn;
+	private long bytesOut;
+	private long compressTime;  // In nanoseconds
+	
+	
+	/*---- Constructor ----*/
+	
+	public DeflatingOutputStream(OutputStream out) {
+		super(out);
+		if (out == null)
+			throw new NullPointerException();
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		buffer = new byte[8192];
+		bytesIn = 0;
+		bytesOut = 0;
+		compressTime = 0;
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+	
+	
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (deflater == null)
+			throw new IOException("Stream closed");
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return;
+		deflater.setInput(b, off, len);
+		bytesIn += len;
+		while (!deflater.needsInput())
+			deflate(Deflater.NO_FLUSH);
+	}
+	
+	
+	// Compresses all pending data with a sync flush, and flushes the underlying stream.
+	public void flush() throws IOException {
+		if (deflater == null)
+			throw new IOException("Stream closed");
+		while (deflate(Deflater.SYNC_FLUSH) == buffer.length);
+		out.flush();
+	}
+	
+	
+	// Finishes the compressed stream and closes the underlying stream. Idempotent.
+	public void close() throws IOException {
+		if (deflater == null)
+			return;
+		try {
+			deflater.finish();
+			while (!deflater.finished())
+				deflate(Deflater.NO_FLUSH);
+		} finally {
+			deflater.end();
+			deflater = null;
+			out.close();
+		}
+	}
+	
+	
+	// Returns a human-readable summary of the bytes written and the compression cost.
+	public String getStatistics() {
+		return String.format("%d bytes in, %d bytes out (%.1f%%), %d ms compressing",
+			bytesIn, bytesOut, bytesIn > 0 ? bytesOut * 100.0 / bytesIn : 0.0, compressTime / 1000000);
+	}
+	
+	
+	// Runs the deflater once with the given flush mode, writes its output, and returns the number of bytes produced.
+	private int deflate(int flushMode) throws IOException {
+		long start = System.nanoTime();
+		int n = deflater.deflate(buffer, 0, buffer.length, flushMode);
+		compressTime += System.nanoTime() - start;
+		if (n > 0) {
+			out.write(buffer, 0, n);
+			bytesOut += n;
+		}
+		return n;
+	}
+	
+}
@@ -0,0 +1,54 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+
+
+public final class DeflatingOutputStreamTest {
+	
+	// After each flush, everything written so far must be decodable without the rest of the stream.
+	@Test public void testSyncFlush() throws IOException {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		DeflatingOutputStream out = new DeflatingOutputStream(wire);
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		for (int i = 0; i < 50; i++) {
+			byte[] line = Utils.toUtf8("3 " + (100 + i) + " 1449104543985 1 :Alice!alice@example.com PRIVMSG #London :Hello " + i + "\r\n");
+			out.write(line);
+			plain.write(line);
+			out.flush();
+			assertArrayEquals(plain.toByteArray(), readAvailable(wire.toByteArray(), plain.size()));
+		}
+		out.close();
+		assertTrue(wire.size() < plain.size() / 3);
+		assertArrayEquals(plain.toByteArray(), readAvailable(wire.toByteArray(), plain.size()));
+	}
+	
+	
+	// Decompresses the given possibly incomplete zlib stream, expecting exactly the given number of bytes.
+	private static byte[] readAvailable(byte[] compressed, int length) throws IOException {
+		InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed));
+		byte[] result = new byte[length];
+		for (int off = 0; off < length; ) {
+			int n = in.read(result, off, length - off);
+			if (n == -1)
+				throw new IOException("Unexpected end of stream");
+			off += n;
+		}
+		return result;
+	}
+	
+}
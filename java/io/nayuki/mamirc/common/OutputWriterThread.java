@@ -10,14 +10,25 @@ package io.nayuki.mamirc.common;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /* 
  * A worker thread that receives line objects from other threads, and writes bytes to an output stream until terminated.
  * This class exists because write operations might block with large and varying delay (especially in low-bandwidth or
  * high-loss environments), but the thread that requested the write operation wants to continue processing more data.
+ * Each posted line has a priority class, and a queued line of a higher class is always written before one of a lower class;
+ * within a class, lines are written in FIFO order. A line can be posted to keep its order, in which case it never overtakes
+ * a line of a lower class (except control) that was posted earlier, and no later line overtakes it either. Optionally, a token
+ * bucket limits the rate of written lines, where control lines are never delayed and bulk lines leave some tokens unused
+ * so that control lines don't cause a flood. An optional listener is told about each line after it is written.
+ * The output stream is flushed whenever the queues become empty, so a buffering or compressing stream sends each batch promptly.
  */
 public final class OutputWriterThread extends Thread {
 	
@@ -25,18 +36,46 @@ public final class OutputWriterThread extends Thread {
 	
 	private final OutputStream output;
 	private final byte[] newline;
-	private BlockingQueue<CleanLine> queue;
+	private final TokenBucket limiter;  // Can be null
+	private final Listener listener;    // Can be null
 	
+	private final Lock lock;
+	private final Condition condChanged;  // Signaled when a queue changes or termination is requested
+	private final List<Queue<QueuedLine>> queues;  // Indexed by Priority.ordinal()
+	private int numQueuedBarriers;  // Number of queued lines that were demoted to keep their order
+	private boolean terminateRequested;
 	
-	/*---- Constructor ----*/
+	
+	/*---- Constructors ----*/
 	
 	// Can customize the newline sequence as "\n", "\r\n", etc.
 	public OutputWriterThread(OutputStream out, byte[] newline) {
+		this(out, newline, null);
+	}
+	
+	
+	// The limiter can be null, which disables rate limiting. The limiter
+	// is used exclusively by this writer, in units of one token per line.
+	public OutputWriterThread(OutputStream out, byte[] newline, TokenBucket limiter) {
+		this(out, newline, limiter, null);
+	}
+	
+	
+	// The limiter and listener can each be null. The listener is called on this writer thread.
+	public OutputWriterThread(OutputStream out, byte[] newline, TokenBucket limiter, Listener listener) {
 		if (out == null || newline == null)
 			throw new NullPointerException();
 		output = out;
 		this.newline = newline.clone();
-		queue = new ArrayBlockingQueue<>(1000);
+		this.limiter = limiter;
+		this.listener = listener;
+		lock = new ReentrantLock();
+		condChanged = lock.newCondition();
+		queues = new ArrayList<>();
+		for (int i = 0; i < Priority.values().length; i++)
+			queues.add(new ArrayDeque<QueuedLine>());
+		numQueuedBarriers = 0;
+		terminateRequested = false;
 	}
 	
 	
@@ -46,8 +85,8 @@ public final class OutputWriterThread extends Thread {
 		try {
 			byte[] buf = new byte[1024];  // Allocate buffer outside of loop for efficiency
 			while (true) {
-				CleanLine line = queue.take();
-				if (line == TERMINATOR)
+				CleanLine line = takeNextLine();
+				if (line == null)
 					break;
 				
 				// Ugly logic for merely: output.write(line + newline)
@@ -58,6 +97,10 @@ public final class OutputWriterThread extends Thread {
 				System.arraycopy(b, 0, buf, 0, b.length);
 				System.arraycopy(newline, 0, buf, b.length, newline.length);
 				output.write(buf, 0, totalLen);
+				if (isIdle())
+					output.flush();  // End of a batch
+				if (listener != null)
+					listener.lineWritten(line);
 			}
 		} catch (IOException e) {}
 		catch (InterruptedException e) {}
@@ -69,14 +112,120 @@ public final class OutputWriterThread extends Thread {
 	}
 	
 	
-	// Can be called from any thread. Must not be called after terminate().
-	// Caller must never change the values inside the array after it is passed into this method.
+	// Blocks until a line can be written, and returns it, or returns null if termination is requested and all queues are empty.
+	private CleanLine takeNextLine() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				Priority pri = null;
+				for (Priority p : Priority.values()) {
+					if (!queues.get(p.ordinal()).isEmpty()) {
+						pri = p;
+						break;
+					}
+				}
+				if (pri == null) {
+					if (terminateRequested)
+						return null;
+					condChanged.await();
+					continue;
+				}
+				
+				if (limiter != null) {
+					if (pri != Priority.CONTROL) {
+						double needed = pri == Priority.BULK ? Math.min(1 + BULK_HEADROOM, limiter.getCapacity()) : 1;
+						long wait = limiter.nanosUntilAvailable(needed);
+						if (wait > 0) {
+							condChanged.awaitNanos(wait);  // Wakes up early if a higher priority line arrives
+							continue;
+						}
+					}
+					limiter.consume(1);
+				}
+				QueuedLine item = queues.get(pri.ordinal()).remove();
+				if (item.isBarrier)
+					numQueuedBarriers--;
+				condChanged.signalAll();  // Wake up any poster blocked on a full queue
+				return item.line;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Tests whether all queues are empty.
+	private boolean isIdle() {
+		lock.lock();
+		try {
+			for (Queue<QueuedLine> queue : queues) {
+				if (!queue.isEmpty())
+					return false;
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Posts the line with interactive priority, blocking while that queue is full. Can be called from any thread. Must not be
+	// called after terminate(). Caller must never change the values inside the array after it is passed into this method.
 	public void postWrite(CleanLine line) {
 		if (line == null)
 			throw new NullPointerException();
+		lock.lock();
+		try {
+			Queue<QueuedLine> queue = queues.get(Priority.INTERACTIVE.ordinal());
+			try {
+				while (queue.size() >= QUEUE_CAPACITY)
+					condChanged.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();  // Still post the line, going over the capacity by one
+			}
+			enqueue(line, Priority.INTERACTIVE, false);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Posts the line with the given priority without ever blocking, and returns whether it was queued (false if the
+	// queue is full). If keepOrder is true, the line is queued behind every earlier line of a lower class (except control),
+	// so that it doesn't overtake them. Can be called from any thread. Must not be called after terminate().
+	// Caller must never change the values inside the array after it is passed into this method.
+	public boolean offerWrite(CleanLine line, Priority pri, boolean keepOrder) {
+		if (line == null || pri == null)
+			throw new NullPointerException();
+		lock.lock();
 		try {
-			queue.put(line);
-		} catch (InterruptedException e) {}
+			boolean isBarrier = false;
+			if (pri != Priority.CONTROL && (keepOrder || numQueuedBarriers > 0)) {
+				// Demote to the lowest class that has queued lines, if any
+				for (int i = queues.size() - 1; i > pri.ordinal(); i--) {
+					if (!queues.get(i).isEmpty()) {
+						pri = Priority.values()[i];
+						isBarrier = keepOrder;
+						break;
+					}
+				}
+			}
+			if (queues.get(pri.ordinal()).size() >= QUEUE_CAPACITY)
+				return false;
+			enqueue(line, pri, isBarrier);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Must be called while holding the lock.
+	private void enqueue(CleanLine line, Priority pri, boolean isBarrier) {
+		queues.get(pri.ordinal()).add(new QueuedLine(line, isBarrier));
+		if (isBarrier)
+			numQueuedBarriers++;
+		condChanged.signalAll();
 	}
 	
 	
@@ -89,16 +238,48 @@ public final class OutputWriterThread extends Thread {
 	}
 	
 	
-	// Can be called safely from any thread.
+	// Can be called safely from any thread. Lines that were posted beforehand are still written.
 	public void terminate() {
+		lock.lock();
 		try {
-			queue.put(TERMINATOR);
-		} catch (InterruptedException e) {}
+			terminateRequested = true;
+			condChanged.signalAll();
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	
 	/*---- Helper definitions ----*/
 	
-	private static final CleanLine TERMINATOR = new CleanLine("");
+	// Classes of outgoing lines, from highest to lowest priority.
+	public enum Priority {
+		CONTROL,      // Protocol upkeep that must not be delayed, e.g. PONG, QUIT
+		INTERACTIVE,  // The default
+		BULK,         // Voluminous traffic, e.g. pasted messages
+	}
+	
+	
+	// Receives each line after it has been written to the output stream.
+	public interface Listener {
+		public void lineWritten(CleanLine line);
+	}
+	
+	
+	private static final class QueuedLine {
+		public final CleanLine line;
+		public final boolean isBarrier;  // Whether the line was demoted to a lower class to keep its order
+		
+		public QueuedLine(CleanLine line, boolean isBarrier) {
+			this.line = line;
+			this.isBarrier = isBarrier;
+		}
+	}
+	
+	
+	static final int QUEUE_CAPACITY = 1000;  // Per priority class
+	
+	// Number of tokens that bulk lines leave in the limiter for higher priority lines
+	private static final double BULK_HEADROOM = 1;
 	
 }
@@ -0,0 +1,122 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import io.nayuki.mamirc.common.OutputWriterThread.Priority;
+
+
+public final class OutputWriterThreadTest {
+	
+	// Lines are queued before the thread starts, so the write order depends only on the queueing rules.
+	@Test public void testPriorityOrder() throws InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\n'});
+		assertTrue(writer.offerWrite(new CleanLine("PRIVMSG #c :paste 1"), Priority.BULK, false));
+		assertTrue(writer.offerWrite(new CleanLine("PRIVMSG #c :paste 2"), Priority.BULK, false));
+		assertTrue(writer.offerWrite(new CleanLine("PRIVMSG #c :typed 1"), Priority.INTERACTIVE, false));
+		assertTrue(writer.offerWrite(new CleanLine("PART #c"), Priority.INTERACTIVE, true));
+		assertTrue(writer.offerWrite(new CleanLine("PRIVMSG #d :typed 2"), Priority.INTERACTIVE, false));
+		assertTrue(writer.offerWrite(new CleanLine("PONG :x"), Priority.CONTROL, false));
+		writer.start();
+		writer.terminate();
+		writer.join();
+		assertEquals("PONG :x\nPRIVMSG #c :typed 1\nPRIVMSG #c :paste 1\nPRIVMSG #c :paste 2\nPART #c\nPRIVMSG #d :typed 2\n",
+			Utils.fromUtf8(out.toByteArray()));
+	}
+	
+	
+	// Without queued bulk lines, a line that keeps its order is not delayed.
+	@Test public void testKeepOrderWithoutBulk() throws InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputWriterThread writer = new OutputWriterThread(out, new byte[]{'\n'});
+		writer.offerWrite(new CleanLine("JOIN #c"), Priority.INTERACTIVE, true);
+		writer.offerWrite(new CleanLine("PRIVMSG #c :paste"), Priority.BULK, false);
+		writer.offerWrite(new CleanLine("PRIVMSG #c :typed"), Priority.INTERACTIVE, false);
+		writer.start();
+		writer.terminate();
+		writer.join();
+		assertEquals("JOIN #c\nPRIVMSG #c :typed\nPRIVMSG #c :paste\n", Utils.fromUtf8(out.toByteArray()));
+	}
+	
+	
+	// A connection whose server doesn't read fills up its bulk queue. Posting to it while holding a lock shared
+	// by all connections (like the connector's) must fail fast instead of blocking, so other connections go on.
+	@Test public void testFullQueueDoesNotBlock() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final OutputWriterThread stuck = new OutputWriterThread(new OutputStream() {
+			public void write(int b) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}, new byte[]{'\n'});
+		stuck.start();
+		final Object globalLock = new Object();
+		final boolean[] results = new boolean[OutputWriterThread.QUEUE_CAPACITY + 10];
+		Thread paster = new Thread() {
+			public void run() {
+				synchronized(globalLock) {
+					for (int i = 0; i < results.length; i++)
+						results[i] = stuck.offerWrite(new CleanLine("PRIVMSG #c :line " + i), Priority.BULK, false);
+				}
+			}
+		};
+		paster.start();
+		paster.join(10000);
+		assertFalse(paster.isAlive());
+		assertFalse(results[results.length - 1]);  // Dropped instead of blocking
+		assertTrue(stuck.offerWrite(new CleanLine("PRIVMSG #c :typed"), Priority.INTERACTIVE, false));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		OutputWriterThread other = new OutputWriterThread(out, new byte[]{'\n'});
+		other.start();
+		synchronized(globalLock) {
+			assertTrue(other.offerWrite(new CleanLine("PONG :y"), Priority.CONTROL, false));
+		}
+		other.terminate();
+		other.join();
+		assertEquals("PONG :y\n", Utils.fromUtf8(out.toByteArray()));
+		
+		stuck.terminate();
+		release.countDown();
+		stuck.join();
+	}
+	
+	
+	@Test public void testListener() throws InterruptedException {
+		final List<String> written = new ArrayList<>();
+		OutputWriterThread writer = new OutputWriterThread(new ByteArrayOutputStream(), new byte[]{'\n'}, null,
+			new OutputWriterThread.Listener() {
+				public void lineWritten(CleanLine line) {
+					written.add(line.getString());
+				}
+			});
+		writer.postWrite("A");
+		writer.offerWrite(new CleanLine("B"), Priority.BULK, false);
+		writer.offerWrite(new CleanLine("C"), Priority.CONTROL, false);
+		writer.start();
+		writer.terminate();
+		writer.join();
+		assertEquals(Arrays.asList("C", "A", "B"), written);
+	}
+	
+}
@@ -0,0 +1,121 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+
+/* 
+ * Helper functions for content-addressed event payloads. When deduplication is enabled, the Connector stores
+ * a long payload once in the 'payloads' table, keyed by its SHA-256 hash, and the 'data' column of the event
+ * holds a reference instead: a NUL byte followed by the 32-byte hash. This is unambiguous because a
+ * clean line never contains NUL. Readers of the database must resolve references before using the data.
+ */
+public final class PayloadStore {
+	
+	public static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS payloads(hash BLOB PRIMARY KEY, data BLOB NOT NULL)";
+	
+	
+	// Returns the SHA-256 hash of the given payload.
+	public static byte[] hash(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {  // Every Java platform must support SHA-256
+			throw new AssertionError(e);
+		}
+	}
+	
+	
+	// Returns a new reference value for the given hash.
+	public static byte[] makeReference(byte[] hash) {
+		if (hash.length != HASH_LENGTH)
+			throw new IllegalArgumentException();
+		byte[] result = new byte[REFERENCE_LENGTH];
+		System.arraycopy(hash, 0, result, 1, HASH_LENGTH);
+		return result;
+	}
+	
+	
+	// Tests whether the given value from the 'data' column is a reference rather than a literal payload.
+	public static boolean isReference(byte[] data) {
+		return data.length == REFERENCE_LENGTH && data[0] == 0;
+	}
+	
+	
+	// Replaces every reference in the given list with the payload it refers to, modifying the list in place.
+	// Looks up the hashes in a few batched queries rather than one query per reference. Throws an exception
+	// if a referenced payload is missing. The 'payloads' table is only accessed if a reference is present.
+	public static void resolveAll(SQLiteConnection database, List<byte[]> datas) throws SQLiteException {
+		Map<ByteBuffer,byte[]> payloads = new HashMap<>();
+		List<ByteBuffer> pending = new ArrayList<>();
+		for (byte[] data : datas) {
+			if (isReference(data)) {
+				ByteBuffer hash = ByteBuffer.wrap(data, 1, HASH_LENGTH).slice();
+				if (!payloads.containsKey(hash)) {
+					payloads.put(hash, null);
+					pending.add(hash);
+				}
+			}
+		}
+		
+		for (int off = 0; off < pending.size(); off += LOOKUP_BATCH_SIZE) {
+			int n = Math.min(pending.size() - off, LOOKUP_BATCH_SIZE);
+			StringBuilder sb = new StringBuilder("SELECT hash, data FROM payloads WHERE hash IN (");
+			for (int i = 0; i < n; i++)
+				sb.append(i == 0 ? "?" : ",?");
+			SQLiteStatement query = database.prepare(sb.append(")").toString());
+			try {
+				for (int i = 0; i < n; i++) {
+					ByteBuffer hash = pending.get(off + i);
+					byte[] b = new byte[HASH_LENGTH];
+					hash.duplicate().get(b);
+					query.bind(i + 1, b);
+				}
+				while (query.step())
+					payloads.put(ByteBuffer.wrap(query.columnBlob(0)), Utils.columnBytes(query, 1));
+			} finally {
+				query.dispose();
+			}
+		}
+		
+		for (int i = 0; i < datas.size(); i++) {
+			byte[] data = datas.get(i);
+			if (isReference(data)) {
+				byte[] payload = payloads.get(ByteBuffer.wrap(data, 1, HASH_LENGTH).slice());
+				if (payload == null)
+					throw new IllegalStateException("Missing payload for reference");
+				datas.set(i, payload);
+			}
+		}
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	public static final int HASH_LENGTH = 32;
+	
+	public static final int REFERENCE_LENGTH = 1 + HASH_LENGTH;
+	
+	// Number of hashes per query, well within SQLite's limit of 999 parameters
+	private static final int LOOKUP_BATCH_SIZE = 256;
+	
+	
+	// Not instantiable.
+	private PayloadStore() {}
+	
+}
@@ -0,0 +1,181 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.util.Arrays;
+
+
+/* 
+ * Locates the parts of a raw IRC line as byte offsets, without decoding any text or copying the data.
+ * This is cheap enough to run on every line that passes through the Connector. The syntax is:
+ *   [":" prefix " "+] command (" "+ param)* [" "+ ":" trailing] " "*
+ * where the prefix has no spaces, and the command is non-empty and has no spaces or colons.
+ * The parts are accessed by index, where the trailing parameter (if any) is the last parameter.
+ */
+public final class RawIrcLine {
+	
+	/*---- Fields ----*/
+	
+	private final byte[] data;     // Not copied; must not be modified by anyone
+	public final int prefixStart;  // Index after the colon, or -1 if there is no prefix
+	public final int prefixEnd;    // Exclusive end index, or -1 if there is no prefix
+	public final int commandStart;
+	public final int commandEnd;
+	private final int[] paramBounds;  // Pairs of start and end indexes
+	private final int paramCount;
+	
+	
+	/*---- Constructor ----*/
+	
+	// Parses the given line, which is not copied. Throws IllegalArgumentException on syntax error.
+	public RawIrcLine(byte[] line) {
+		if (line == null)
+			throw new NullPointerException();
+		data = line;
+		int n = line.length;
+		int i = 0;
+		
+		// Parse the prefix
+		if (n >= 1 && line[0] == ':') {
+			i = 1;
+			while (i < n && line[i] != ' ')
+				i++;
+			if (i == 1 || i == n)
+				throw new IllegalArgumentException("Syntax error in prefix");
+			prefixStart = 1;
+			prefixEnd = i;
+			while (i < n && line[i] == ' ')
+				i++;
+		} else {
+			prefixStart = -1;
+			prefixEnd = -1;
+		}
+		
+		// Parse the command
+		commandStart = i;
+		while (i < n && line[i] != ' ') {
+			if (line[i] == ':')
+				throw new IllegalArgumentException("Syntax error in command");
+			i++;
+		}
+		commandEnd = i;
+		if (commandStart == commandEnd)
+			throw new IllegalArgumentException("Empty command");
+		
+		// Parse the parameters
+		int[] bounds = new int[8];
+		int count = 0;
+		while (true) {
+			while (i < n && line[i] == ' ')
+				i++;
+			if (i == n)
+				break;
+			if (count * 2 == bounds.length)
+				bounds = Arrays.copyOf(bounds, bounds.length * 2);
+			if (line[i] == ':') {
+				bounds[count * 2 + 0] = i + 1;
+				bounds[count * 2 + 1] = n;
+				count++;
+				break;
+			}
+			bounds[count * 2 + 0] = i;
+			while (i < n && line[i] != ' ')
+				i++;
+			bounds[count * 2 + 1] = i;
+			count++;
+		}
+		paramBounds = bounds;
+		paramCount = count;
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the underlying line data, without copying.
+	public byte[] getDataNoCopy() {
+		return data;
+	}
+	
+	
+	public boolean hasPrefix() {
+		return prefixStart != -1;
+	}
+	
+	
+	// Returns the command converted to uppercase, e.g. "PRIVMSG" or "001".
+	public String getCommand() {
+		char[] result = new char[commandEnd - commandStart];
+		for (int i = 0; i < result.length; i++) {
+			int c = data[commandStart + i] & 0xFF;
+			if ('a' <= c && c <= 'z')
+				c -= 'a' - 'A';
+			result[i] = (char)c;
+		}
+		return new String(result);
+	}
+	
+	
+	// Tests whether the command equals the given string case-insensitively, which must be ASCII uppercase.
+	public boolean commandEquals(String s) {
+		if (commandEnd - commandStart != s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			int c = data[commandStart + i] & 0xFF;
+			if ('a' <= c && c <= 'z')
+				c -= 'a' - 'A';
+			if (c != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	
+	// Tests whether the command consists of exactly 3 decimal digits.
+	public boolean isNumericReply() {
+		if (commandEnd - commandStart != 3)
+			return false;
+		for (int i = commandStart; i < commandEnd; i++) {
+			if (data[i] < '0' || data[i] > '9')
+				return false;
+		}
+		return true;
+	}
+	
+	
+	public int getParameterCount() {
+		return paramCount;
+	}
+	
+	
+	public int getParameterStart(int index) {
+		checkParameterIndex(index);
+		return paramBounds[index * 2 + 0];
+	}
+	
+	
+	public int getParameterEnd(int index) {
+		checkParameterIndex(index);
+		return paramBounds[index * 2 + 1];
+	}
+	
+	
+	// Returns the parameter at the given index decoded as UTF-8.
+	public String getParameterString(int index) {
+		checkParameterIndex(index);
+		int start = paramBounds[index * 2 + 0];
+		return Utils.fromUtf8(Arrays.copyOfRange(data, start, paramBounds[index * 2 + 1]));
+	}
+	
+	
+	private void checkParameterIndex(int index) {
+		if (index < 0 || index >= paramCount)
+			throw new IndexOutOfBoundsException();
+	}
+	
+}
@@ -0,0 +1,76 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class RawIrcLineTest {
+	
+	@Test public void testZeroParam() {
+		RawIrcLine l = parse("quit");
+		assertFalse(l.hasPrefix());
+		assertEquals("QUIT", l.getCommand());
+		assertTrue(l.commandEquals("QUIT"));
+		assertEquals(0, l.getParameterCount());
+	}
+	
+	@Test public void testParams() {
+		RawIrcLine l = parse("FOO  bar baz  :alpha beta ");
+		assertEquals("FOO", l.getCommand());
+		assertEquals(3, l.getParameterCount());
+		assertEquals("bar", l.getParameterString(0));
+		assertEquals("baz", l.getParameterString(1));
+		assertEquals("alpha beta ", l.getParameterString(2));
+	}
+	
+	@Test public void testPrefix() {
+		RawIrcLine l = parse(":nick!user@host PRIVMSG #chan :Hello!");
+		assertTrue(l.hasPrefix());
+		assertEquals(1, l.prefixStart);
+		assertEquals(15, l.prefixEnd);
+		assertTrue(l.commandEquals("PRIVMSG"));
+		assertFalse(l.commandEquals("PRIVMS"));
+		assertEquals("#chan", l.getParameterString(0));
+		assertEquals("Hello!", l.getParameterString(1));
+	}
+	
+	@Test public void testNumeric() {
+		assertTrue(parse(":server 372 me :- MOTD").isNumericReply());
+		assertFalse(parse("PING").isNumericReply());
+		assertFalse(parse("3720").isNumericReply());
+	}
+	
+	@Test public void testSyntaxErrors() {
+		String[] cases = {
+			"",
+			":prefixonly",
+			":prefixonly  ",
+			" :prefix PING",
+			": PING",
+			"PING:abc",
+		};
+		for (String line : cases) {
+			try {
+				parse(line);
+				Assert.fail(line);
+			} catch (IllegalArgumentException e) {}  // Pass
+		}
+	}
+	
+	
+	private static RawIrcLine parse(String s) {
+		return new RawIrcLine(Utils.toUtf8(s));
+	}
+	
+}
@@ -0,0 +1,222 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/* 
+ * A single-producer single-consumer queue of byte frames in a memory-mapped file, for passing data between two
+ * processes on the same host without system calls. The producer creates the file and the consumer opens it.
+ * Both sides busy-wait briefly and then park with increasing delays when there is nothing to do.
+ * 
+ * File layout (native byte order): the magic number at offset 0, the capacity at 8, the write position at 64,
+ * the read position at 128, and the closed flag at 192, so that the fields written by different sides are on
+ * different cache lines. The positions are total byte counts that only increase. The data region starts at
+ * offset 256. Each frame is a 4-byte length followed by the bytes, padded to a multiple of 8 bytes; a length
+ * of -1 means that the rest of the region is skipped and the next frame is at the start. Positions are
+ * published with release stores and read with acquire loads.
+ */
+public final class SharedMemoryRing {
+	
+	/*---- Fields ----*/
+	
+	private final MappedByteBuffer buffer;
+	private final int capacity;  // Size of the data region, a power of 2
+	private final boolean isProducer;
+	private long position;       // This side's own position, mirrored to the file
+	private volatile boolean abandoned;  // Consumer only; set by another thread to stop waiting
+	
+	
+	/*---- Factory functions ----*/
+	
+	// Replaces the given file with an empty ring with the given data capacity, and returns the producer side.
+	// The old file is deleted rather than truncated, so that a consumer still mapping it doesn't crash. The new
+	// file is created readable and writable only by its owner, because the events in it are private.
+	public static SharedMemoryRing create(File file, int capacity) throws IOException {
+		if (capacity < 4096 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of 2 and at least 4096");
+		if (file.exists() && !file.delete())
+			throw new IOException("Cannot delete old ring file");
+		try {  // Fails if another file appeared in the meantime, rather than opening it
+			Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			System.err.println("Cannot restrict the permissions of the ring file on this platform: " + file);
+			Files.createFile(file.toPath());
+		}
+		MappedByteBuffer buf = map(file, DATA_OFFSET + capacity);
+		buf.putInt(CAPACITY_OFFSET, capacity);
+		LONGS.setRelease(buf, MAGIC_OFFSET, MAGIC);  // Written last, so a valid magic number implies a complete header
+		return new SharedMemoryRing(buf, capacity, true);
+	}
+	
+	
+	// Opens the existing ring in the given file, and returns the consumer side.
+	public static SharedMemoryRing open(File file) throws IOException {
+		if (!file.isFile())
+			throw new IOException("Ring file does not exist");
+		MappedByteBuffer header = map(file, DATA_OFFSET);
+		if ((long)LONGS.getAcquire(header, MAGIC_OFFSET) != MAGIC)
+			throw new IOException("Not a ring file");
+		int capacity = header.getInt(CAPACITY_OFFSET);
+		if (capacity < 4096 || Integer.bitCount(capacity) != 1)
+			throw new IOException("Invalid ring capacity");
+		SharedMemoryRing result = new SharedMemoryRing(map(file, DATA_OFFSET + capacity), capacity, false);
+		result.position = (long)LONGS.getAcquire(result.buffer, READ_OFFSET);
+		return result;
+	}
+	
+	
+	// Maps the first 'size' bytes of the given file, extending it with zeros if it is shorter.
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size)
+				raf.setLength(size);
+			MappedByteBuffer result = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			result.order(ByteOrder.nativeOrder());
+			return result;  // The mapping stays valid after the file is closed
+		} finally {
+			raf.close();
+		}
+	}
+	
+	
+	private SharedMemoryRing(MappedByteBuffer buf, int capacity, boolean isProducer) {
+		buffer = buf;
+		this.capacity = capacity;
+		this.isProducer = isProducer;
+		position = 0;
+		abandoned = false;
+	}
+	
+	
+	/*---- Producer methods ----*/
+	
+	// Appends the given frame, waiting while the ring is too full. Throws an exception if the consumer
+	// does not make room within the given timeout (in milliseconds). The frame must fit in half the capacity.
+	public void write(byte[] b, int timeout) throws IOException {
+		if (!isProducer)
+			throw new IllegalStateException();
+		int need = align(4 + b.length);
+		if (need > capacity / 2)
+			throw new IllegalArgumentException("Frame too long");
+		int off = (int)(position & (capacity - 1));
+		int skip = capacity - off < need ? capacity - off : 0;
+		
+		// Wait until the consumer has freed enough space
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (int i = 0; position + skip + need - (long)LONGS.getAcquire(buffer, READ_OFFSET) > capacity; i++) {
+			if (System.nanoTime() - deadline > 0)
+				throw new IOException("Ring consumer is not keeping up");
+			backOff(i);
+		}
+		
+		if (skip > 0) {
+			buffer.putInt(DATA_OFFSET + off, -1);
+			position += skip;
+			off = 0;
+		}
+		buffer.putInt(DATA_OFFSET + off, b.length);
+		buffer.put(DATA_OFFSET + off + 4, b);
+		position += need;
+		LONGS.setRelease(buffer, WRITE_OFFSET, position);  // Publishes the frame
+	}
+	
+	
+	// Marks the ring as finished. The consumer reads the remaining frames and then sees the end of stream.
+	public void close() {
+		if (!isProducer)
+			throw new IllegalStateException();
+		LONGS.setRelease(buffer, CLOSED_OFFSET, 1L);
+	}
+	
+	
+	/*---- Consumer methods ----*/
+	
+	// Returns the next frame, waiting if necessary, or null if the producer closed the ring and all frames
+	// have been read, or if abandon() was called.
+	public byte[] read() {
+		if (isProducer)
+			throw new IllegalStateException();
+		for (int i = 0; ; i++) {
+			if ((long)LONGS.getAcquire(buffer, WRITE_OFFSET) == position) {
+				// Check the flag before the position again, because the producer sets them in the opposite order
+				if (abandoned || (long)LONGS.getAcquire(buffer, CLOSED_OFFSET) != 0 && (long)LONGS.getAcquire(buffer, WRITE_OFFSET) == position)
+					return null;
+				backOff(i);
+				continue;
+			}
+			int off = (int)(position & (capacity - 1));
+			int len = buffer.getInt(DATA_OFFSET + off);
+			if (len == -1) {
+				position += capacity - off;
+				continue;
+			}
+			byte[] result = new byte[len];
+			buffer.get(DATA_OFFSET + off + 4, result);
+			position += align(4 + len);
+			LONGS.setRelease(buffer, READ_OFFSET, position);  // Frees the space
+			return result;
+		}
+	}
+	
+	
+	// Makes a current or future call to read() return null soon. Can be called from any thread.
+	public void abandon() {
+		abandoned = true;
+	}
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// Waits a little on the given iteration of a polling loop: spins at first, then yields, then parks for increasing times.
+	private static void backOff(int iteration) {
+		if (iteration < SPIN_ITERATIONS)
+			Thread.onSpinWait();
+		else if (iteration < SPIN_ITERATIONS + YIELD_ITERATIONS)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << Math.min(iteration - SPIN_ITERATIONS - YIELD_ITERATIONS, 10), MAX_PARK_NANOS));
+	}
+	
+	
+	private static int align(int n) {
+		return (n + 7) & ~7;
+	}
+	
+	
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	
+	private static final long MAGIC = 0x4D616D4952696E67L;  // "MamIRing"
+	
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int WRITE_OFFSET = 64;
+	private static final int READ_OFFSET = 128;
+	private static final int CLOSED_OFFSET = 192;
+	private static final int DATA_OFFSET = 256;
+	
+	private static final int SPIN_ITERATIONS = 1000;
+	private static final int YIELD_ITERATIONS = 100;
+	private static final long MIN_PARK_NANOS = 10000;
+	private static final long MAX_PARK_NANOS = 1000000;
+	
+}
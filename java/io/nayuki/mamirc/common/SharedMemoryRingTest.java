@@ -0,0 +1,89 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import org.junit.Test;
+
+
+public final class SharedMemoryRingTest {
+	
+	// Passes frames of varied lengths through a small ring, so that the writer wraps around and waits for the reader.
+	@Test public void testConcurrent() throws IOException, InterruptedException {
+		File file = File.createTempFile("mamirc-ring", ".bin");
+		try {
+			final SharedMemoryRing producer = SharedMemoryRing.create(file, 4096);
+			SharedMemoryRing consumer = SharedMemoryRing.open(file);
+			final int count = 20000;
+			Thread th = new Thread() {
+				public void run() {
+					try {
+						Random rand = new Random(1);
+						for (int i = 0; i < count; i++)
+							producer.write(makeFrame(rand), 10000);
+						producer.close();
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			th.start();
+			
+			Random rand = new Random(1);
+			for (int i = 0; i < count; i++)
+				assertArrayEquals(makeFrame(rand), consumer.read());
+			assertNull(consumer.read());
+			th.join();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test public void testAbandon() throws IOException {
+		File file = File.createTempFile("mamirc-ring", ".bin");
+		try {
+			SharedMemoryRing.create(file, 4096);
+			SharedMemoryRing consumer = SharedMemoryRing.open(file);
+			consumer.abandon();
+			assertNull(consumer.read());
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test public void testCreatePermissions() throws IOException {
+		File file = File.createTempFile("mamirc-ring", ".bin");
+		try {
+			Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+			SharedMemoryRing.create(file, 4096);
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file.toPath()));
+			SharedMemoryRing.create(file, 4096);  // Replaces the ring
+			assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file.toPath()));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	private static byte[] makeFrame(Random rand) {
+		byte[] result = new byte[rand.nextInt(300)];
+		rand.nextBytes(result);
+		return result;
+	}
+	
+}
@@ -0,0 +1,81 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.common;
+
+
+/* 
+ * A rate limiter that accumulates tokens at a fixed rate up to a maximum burst size. Each unit of work
+ * (e.g. a line or a byte) consumes tokens, and the balance may go negative to represent debt that must be
+ * repaid before further work is allowed. The bucket starts full. Not thread-safe; the caller must synchronize.
+ */
+public final class TokenBucket {
+	
+	/*---- Fields ----*/
+	
+	private final double rate;      // Tokens per nanosecond, positive
+	private final double capacity;  // Maximum balance, positive
+	private double balance;
+	private long lastRefill;        // System.nanoTime() value
+	
+	
+	/*---- Constructor ----*/
+	
+	public TokenBucket(double ratePerSecond, double capacity) {
+		if (!(ratePerSecond > 0) || !(capacity > 0) || Double.isInfinite(ratePerSecond) || Double.isInfinite(capacity))
+			throw new IllegalArgumentException("Rate and capacity must be positive and finite");
+		rate = ratePerSecond / 1e9;
+		this.capacity = capacity;
+		balance = capacity;
+		lastRefill = System.nanoTime();
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the number of nanoseconds until the balance reaches the given amount,
+	// or 0 if it already has. The amount must not exceed the capacity.
+	public long nanosUntilAvailable(double amount) {
+		if (amount > capacity)
+			throw new IllegalArgumentException("Amount exceeds capacity");
+		refill();
+		if (balance >= amount)
+			return 0;
+		return (long)Math.ceil((amount - balance) / rate);
+	}
+	
+	
+	public double getCapacity() {
+		return capacity;
+	}
+	
+	
+	// Subtracts the given amount from the balance unconditionally, possibly making it negative.
+	public void consume(double amount) {
+		refill();
+		balance -= amount;
+	}
+	
+	
+	// Subtracts the given amount and returns true if the balance is sufficient, otherwise changes nothing and returns false.
+	public boolean tryConsume(double amount) {
+		refill();
+		if (balance < amount)
+			return false;
+		balance -= amount;
+		return true;
+	}
+	
+	
+	private void refill() {
+		long now = System.nanoTime();
+		balance = Math.min(balance + (now - lastRefill) * rate, capacity);
+		lastRefill = now;
+	}
+	
+}
@@ -40,6 +40,14 @@ public final class Utils {
 	}
 	
 	
+	// Returns the blob in the given column of the current row, or an empty array for an empty blob
+	// (which sqlite4java returns as null, like an SQL NULL).
+	public static byte[] columnBytes(SQLiteStatement statement, int column) throws SQLiteException {
+		byte[] result = statement.columnBlob(column);
+		return result != null ? result : new byte[0];
+	}
+	
+	
 	// Returns the argument if it is in the range [0, 65535], otherwise throws an exception.
 	public static int checkPortNumber(int port) {
 		if (port >= 0 && port <= 0xFFFF)
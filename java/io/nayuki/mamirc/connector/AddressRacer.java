@@ -0,0 +1,258 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/* 
+ * Opens a TCP connection to a hostname by racing its addresses, in the style of Happy Eyeballs (RFC 8305).
+ * All addresses (IPv4 and IPv6) are resolved, ordered so that the two families alternate, and attempted
+ * one after another with a short stagger, without waiting for earlier attempts to fail. The first socket
+ * to connect is used and the rest are closed. This avoids waiting out the full timeout on an unreachable
+ * route before trying a working one. Resolutions are cached for a fixed time, so that many reconnections
+ * at once (e.g. after a netsplit) do not each query the resolver. Thread-safe.
+ */
+final class AddressRacer {
+	
+	/*---- Fields ----*/
+	
+	private final Resolver resolver;
+	private final long cacheTtl;      // In nanoseconds, non-negative
+	private final long attemptDelay;  // In nanoseconds, non-negative
+	private final Map<String,Object[]> cache;  // Payload is {InetAddress[] addresses, long expiry as System.nanoTime()}; synchronized on itself
+	
+	
+	/*---- Constructors ----*/
+	
+	public AddressRacer() {
+		this(SYSTEM_RESOLVER, DEFAULT_CACHE_TTL, DEFAULT_ATTEMPT_DELAY);
+	}
+	
+	
+	// The TTL and delay are in milliseconds.
+	public AddressRacer(Resolver resolver, int cacheTtl, int attemptDelay) {
+		if (resolver == null)
+			throw new NullPointerException();
+		if (cacheTtl < 0 || attemptDelay < 0)
+			throw new IllegalArgumentException();
+		this.resolver = resolver;
+		this.cacheTtl = TimeUnit.MILLISECONDS.toNanos(cacheTtl);
+		this.attemptDelay = TimeUnit.MILLISECONDS.toNanos(attemptDelay);
+		cache = new HashMap<>();
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns a new socket connected to the given host and port, or throws an exception if every address failed or
+	// the timeout (in milliseconds) expired first. In the latter case the exception is a SocketTimeoutException.
+	public Socket connect(String hostname, int port, int timeout) throws IOException {
+		if (hostname == null)
+			throw new NullPointerException();
+		if (timeout <= 0)
+			throw new IllegalArgumentException();
+		List<InetAddress> addrs = orderAddresses(resolve(hostname));
+		if (addrs.isEmpty())
+			throw new UnknownHostException(hostname);
+		return new Race(addrs, port, TimeUnit.MILLISECONDS.toNanos(timeout)).run();
+	}
+	
+	
+	// Returns the addresses of the given hostname, from the cache if an unexpired entry exists.
+	InetAddress[] resolve(String hostname) throws UnknownHostException {
+		long now = System.nanoTime();
+		synchronized(cache) {
+			Object[] entry = cache.get(hostname);
+			if (entry != null && now - (Long)entry[1] < 0)
+				return (InetAddress[])entry[0];
+		}
+		InetAddress[] result = resolver.resolve(hostname);  // Blocking, so done without holding the lock
+		if (cacheTtl > 0) {
+			synchronized(cache) {
+				cache.put(hostname, new Object[]{result, now + cacheTtl});
+			}
+		}
+		return result;
+	}
+	
+	
+	// Returns the given addresses reordered so that the families alternate, starting with the family
+	// of the first address (which reflects the system's preference), otherwise keeping the given order.
+	static List<InetAddress> orderAddresses(InetAddress[] addrs) {
+		List<InetAddress> first = new ArrayList<>();
+		List<InetAddress> second = new ArrayList<>();
+		for (InetAddress addr : addrs) {
+			if ((addr instanceof Inet6Address) == (addrs[0] instanceof Inet6Address))
+				first.add(addr);
+			else
+				second.add(addr);
+		}
+		List<InetAddress> result = new ArrayList<>();
+		for (int i = 0; i < first.size() || i < second.size(); i++) {
+			if (i < first.size())
+				result.add(first.get(i));
+			if (i < second.size())
+				result.add(second.get(i));
+		}
+		return result;
+	}
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// Looks up all the addresses of a hostname.
+	public interface Resolver {
+		public InetAddress[] resolve(String hostname) throws UnknownHostException;
+	}
+	
+	
+	public static final Resolver SYSTEM_RESOLVER = new Resolver() {
+		public InetAddress[] resolve(String hostname) throws UnknownHostException {
+			return InetAddress.getAllByName(hostname);
+		}
+	};
+	
+	
+	// The state of one connect() call. Each attempt runs on its own short-lived thread, and reports back under the lock.
+	private final class Race {
+		
+		private final List<InetAddress> addresses;
+		private final int port;
+		private final long deadline;  // System.nanoTime() value
+		
+		// Guarded by the lock
+		private final List<Socket> attempts;
+		private int failed;
+		private IOException lastError;
+		private Socket winner;
+		private boolean finished;
+		
+		private final Lock lock;
+		private final Condition condChanged;
+		
+		
+		public Race(List<InetAddress> addrs, int port, long timeout) {
+			addresses = addrs;
+			this.port = port;
+			deadline = System.nanoTime() + timeout;
+			attempts = new ArrayList<>();
+			failed = 0;
+			lastError = null;
+			winner = null;
+			finished = false;
+			lock = new ReentrantLock();
+			condChanged = lock.newCondition();
+		}
+		
+		
+		public Socket run() throws IOException {
+			lock.lock();
+			try {
+				while (true) {
+					// Start the next attempt
+					if (attempts.size() < addresses.size())
+						startAttempt(addresses.get(attempts.size()));
+					
+					// Wait until an attempt succeeds, all started attempts have failed, the stagger delay passes, or the deadline passes
+					long now = System.nanoTime();
+					long waitUntil = deadline;
+					if (attempts.size() < addresses.size() && now + attemptDelay - deadline < 0)
+						waitUntil = now + attemptDelay;
+					while (winner == null && failed < attempts.size() && waitUntil - now > 0) {
+						condChanged.awaitNanos(waitUntil - now);
+						now = System.nanoTime();
+					}
+					
+					if (winner != null)
+						return winner;
+					if (failed == addresses.size())
+						throw lastError;
+					if (deadline - now <= 0)
+						throw new SocketTimeoutException("Connect timed out");
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while connecting", e);
+			} finally {
+				// Abort every other attempt, including ones still in progress
+				finished = true;
+				for (Socket sock : attempts) {
+					if (sock != winner) {
+						try {
+							sock.close();
+						} catch (IOException e) {}
+					}
+				}
+				lock.unlock();
+			}
+		}
+		
+		
+		// Must be called while holding the lock.
+		private void startAttempt(final InetAddress addr) {
+			final Socket sock = new Socket();
+			attempts.add(sock);
+			final long timeout = Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 1);
+			Thread th = new Thread("AddressRacer " + addr.getHostAddress()) {
+				public void run() {
+					IOException error = null;
+					try {
+						sock.connect(new InetSocketAddress(addr, port), (int)Math.min(timeout, Integer.MAX_VALUE));
+					} catch (IOException e) {
+						error = e;
+					}
+					lock.lock();
+					try {
+						if (error == null && winner == null && !finished)
+							winner = sock;
+						else {
+							if (error != null) {
+								failed++;
+								lastError = error;
+							}
+							try {
+								sock.close();  // A late success after another attempt won, or a failure
+							} catch (IOException e) {}
+						}
+						condChanged.signal();
+					} finally {
+						lock.unlock();
+					}
+				}
+			};
+			th.setDaemon(true);
+			th.start();
+		}
+		
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	// How long a resolution is reused, in milliseconds
+	private static final int DEFAULT_CACHE_TTL = 300000;
+	
+	// How long to wait before starting the next attempt, in milliseconds (the value recommended by RFC 8305)
+	private static final int DEFAULT_ATTEMPT_DELAY = 250;
+	
+}
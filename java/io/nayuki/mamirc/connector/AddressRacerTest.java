@@ -0,0 +1,103 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public final class AddressRacerTest {
+	
+	@Test public void testOrderAddresses() throws IOException {
+		InetAddress a4 = InetAddress.getByName("192.0.2.1");
+		InetAddress b4 = InetAddress.getByName("192.0.2.2");
+		InetAddress c4 = InetAddress.getByName("192.0.2.3");
+		InetAddress a6 = InetAddress.getByName("2001:db8::1");
+		InetAddress b6 = InetAddress.getByName("2001:db8::2");
+		assertEquals(Arrays.asList(a6, a4, b6, b4, c4), AddressRacer.orderAddresses(new InetAddress[]{a6, b6, a4, b4, c4}));
+		assertEquals(Arrays.asList(a4, a6, b4, b6, c4), AddressRacer.orderAddresses(new InetAddress[]{a4, b4, c4, a6, b6}));
+	}
+	
+	
+	@Test public void testResolveCache() throws IOException {
+		StubResolver res = new StubResolver(InetAddress.getByName("127.0.0.1"));
+		AddressRacer racer = new AddressRacer(res, 60000, 250);
+		racer.resolve("example.test");
+		racer.resolve("example.test");
+		assertEquals(1, res.calls);
+		racer.resolve("other.test");
+		assertEquals(2, res.calls);
+		
+		res = new StubResolver(InetAddress.getByName("127.0.0.1"));
+		racer = new AddressRacer(res, 0, 250);  // No caching
+		racer.resolve("example.test");
+		racer.resolve("example.test");
+		assertEquals(2, res.calls);
+	}
+	
+	
+	// The first address is in a range reserved for documentation, which is normally unroutable, so a plain
+	// connect to it would hang until the timeout. The race should reach the working loopback address quickly.
+	@Test public void testBlackholedFirstAddress() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			StubResolver res = new StubResolver(InetAddress.getByName("192.0.2.1"), InetAddress.getByName("127.0.0.1"));
+			AddressRacer racer = new AddressRacer(res, 60000, 250);
+			long start = System.nanoTime();
+			Socket sock = racer.connect("example.test", server.getLocalPort(), 30000);
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			try {
+				assertEquals(InetAddress.getByName("127.0.0.1"), sock.getInetAddress());
+				assertTrue("Took " + elapsed + " ms", elapsed < 5000);
+			} finally {
+				sock.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+	
+	
+	@Test public void testAllFail() throws IOException {
+		// Find a local port that is not listening
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		int port = server.getLocalPort();
+		server.close();
+		StubResolver res = new StubResolver(InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.1"));
+		try {
+			new AddressRacer(res, 60000, 250).connect("example.test", port, 30000).close();
+			Assert.fail();
+		} catch (IOException e) {}  // Pass
+	}
+	
+	
+	
+	private static final class StubResolver implements AddressRacer.Resolver {
+		private final InetAddress[] addresses;
+		public int calls = 0;
+		
+		public StubResolver(InetAddress... addrs) {
+			addresses = addrs;
+		}
+		
+		public InetAddress[] resolve(String hostname) throws UnknownHostException {
+			calls++;
+			return addresses.clone();
+		}
+	}
+	
+}
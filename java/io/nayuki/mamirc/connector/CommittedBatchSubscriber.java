@@ -0,0 +1,242 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * A worker thread that consumes the batches of events committed by DatabaseLoggerThread, in order, and falls back
+ * to reading the database whenever it may have missed some. Subclasses define the output (e.g. text files or a replica).
+ * 
+ * Each session opens the output, catches up from the database, and then handles the batches posted meanwhile. Batches
+ * are only kept while a session is running, and collecting starts before the catch-up, so none is missed in between.
+ * If too many batches are queued, they are all discarded and the next step is another catch-up. On an I/O or
+ * database error, the session ends, the output is closed, and a new session starts after a delay, which doubles
+ * on each consecutive failure up to a maximum. The thread is a daemon, because anything not handled yet is read
+ * from the database on the next run.
+ */
+abstract class CommittedBatchSubscriber extends Thread {
+	
+	/*---- Fields ----*/
+	
+	private final String description;  // For messages, e.g. "Text log"
+	private final File databaseFile;
+	private final int minRetryDelay;  // In milliseconds
+	private final int maxRetryDelay;  // In milliseconds
+	private final int idleInterval;  // In milliseconds, or 0 to wait for batches indefinitely
+	
+	// Monitor state, protected by 'lock'
+	private final Lock lock;
+	private final Condition condChanged;
+	private final Queue<List<Event>> queue;
+	private boolean collecting;  // Batches are only kept while a session is running
+	private boolean overflowed;  // Batches were discarded, so catching up from the database is needed
+	private boolean terminateRequested;
+	
+	// Only accessed by this worker
+	private SQLiteConnection database;
+	
+	
+	/*---- Constructor ----*/
+	
+	protected CommittedBatchSubscriber(String name, String description, File databaseFile, int minRetryDelay, int maxRetryDelay, int idleInterval) {
+		super(name);
+		if (description == null || databaseFile == null)
+			throw new NullPointerException();
+		if (minRetryDelay <= 0 || maxRetryDelay < minRetryDelay || idleInterval < 0)
+			throw new IllegalArgumentException();
+		this.description = description;
+		this.databaseFile = databaseFile;
+		this.minRetryDelay = minRetryDelay;
+		this.maxRetryDelay = maxRetryDelay;
+		this.idleInterval = idleInterval;
+		lock = new ReentrantLock();
+		condChanged = lock.newCondition();
+		queue = new ArrayDeque<>();
+		collecting = false;
+		overflowed = false;
+		terminateRequested = false;
+		database = null;
+		setDaemon(true);
+	}
+	
+	
+	/*---- Methods for subclasses ----*/
+	
+	// Opens the output and reads its progress. Called at the start of each session.
+	protected abstract void openSession() throws IOException, SQLiteException;
+	
+	// Handles every event in the database that the output doesn't have yet. Called at the start of each session,
+	// after discarded batches, and by subclasses when a batch doesn't follow on from what the output has.
+	protected abstract void catchUp() throws IOException, SQLiteException;
+	
+	// Handles the given batch, which was committed after everything already handled, unless some were discarded.
+	protected abstract void handleBatch(List<Event> batch) throws IOException, SQLiteException;
+	
+	// Called when no batch has arrived for the idle interval (if it is positive).
+	protected void handleIdle() throws IOException, SQLiteException {}
+	
+	// Closes the output, ignoring errors. Called at the end of each session, even if opening failed.
+	protected abstract void closeSession();
+	
+	
+	// Returns the read-only connection to the connector's database, opening it on the first call.
+	protected SQLiteConnection getDatabase() throws SQLiteException {
+		if (database == null) {
+			database = new SQLiteConnection(databaseFile);
+			database.openReadonly();
+			database.setBusyTimeout(60000);
+		}
+		return database;
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	public final void run() {
+		int delay = minRetryDelay;
+		try {
+			while (true) {
+				try {
+					openSession();
+					delay = minRetryDelay;
+					runSession();
+					break;  // Terminated
+				} catch (IOException e) {
+					System.err.println(description + " failed: " + e);
+				} catch (SQLiteException e) {
+					System.err.println(description + " failed: " + e);
+				} catch (IllegalArgumentException e) {  // E.g. a gap in the database
+					System.err.println(description + " failed: " + e);
+				} finally {
+					lock.lock();
+					try {
+						collecting = false;
+						queue.clear();
+					} finally {
+						lock.unlock();
+					}
+					closeSession();
+				}
+				
+				lock.lock();
+				try {
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+					while (!terminateRequested && deadline - System.nanoTime() > 0)
+						condChanged.awaitNanos(deadline - System.nanoTime());
+					if (terminateRequested)
+						break;
+				} finally {
+					lock.unlock();
+				}
+				delay = Math.min(delay * 2, maxRetryDelay);
+			}
+		} catch (InterruptedException e) {  // Should not happen
+			e.printStackTrace();
+		} finally {
+			if (database != null)
+				database.dispose();
+		}
+	}
+	
+	
+	// Catches up and then handles live batches until termination is requested.
+	private void runSession() throws IOException, SQLiteException, InterruptedException {
+		lock.lock();
+		try {
+			collecting = true;  // Before reading the database, so that no committed batch is missed
+			overflowed = false;
+		} finally {
+			lock.unlock();
+		}
+		catchUp();
+		
+		while (true) {
+			List<Event> batch;
+			boolean resync;
+			lock.lock();
+			try {
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(idleInterval);
+				while (queue.isEmpty() && !overflowed && !terminateRequested) {
+					if (idleInterval == 0)
+						condChanged.await();
+					else if (deadline - System.nanoTime() > 0)
+						condChanged.awaitNanos(deadline - System.nanoTime());
+					else
+						break;
+				}
+				if (terminateRequested)
+					return;
+				resync = overflowed;
+				overflowed = false;
+				if (resync)
+					queue.clear();
+				batch = queue.poll();
+			} finally {
+				lock.unlock();
+			}
+			
+			if (resync)
+				catchUp();
+			else if (batch == null)
+				handleIdle();
+			else
+				handleBatch(batch);
+		}
+	}
+	
+	
+	// Queues a batch of events that was just committed to the database. The list must not be modified afterward.
+	// Called by DatabaseLoggerThread, and never blocks for long.
+	public void postBatch(List<Event> batch) {
+		lock.lock();
+		try {
+			if (!collecting || batch.isEmpty())
+				return;
+			if (queue.size() >= MAX_QUEUED_BATCHES) {
+				queue.clear();
+				overflowed = true;
+			} else if (!overflowed)
+				queue.add(batch);
+			condChanged.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Asynchronously requests this worker thread to stop. Can be called from any thread.
+	public void terminate() {
+		lock.lock();
+		try {
+			terminateRequested = true;
+			condChanged.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	static final int MAX_QUEUED_BATCHES = 100;
+	
+}
@@ -9,16 +9,32 @@
 package io.nayuki.mamirc.connector;
 
 import java.io.File;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+import com.almworks.sqlite4java.SQLiteBackup;
+import com.almworks.sqlite4java.SQLiteBusyException;
 import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteException;
 import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.RawIrcLine;
 import io.nayuki.mamirc.common.Utils;
 
 
@@ -26,7 +42,15 @@ import io.nayuki.mamirc.common.Utils;
  * A worker thread that receives event objects from the master and writes them to an SQLite database.
  * Additional functionality provided:
  * - Implements delays to cluster writes together and avoid writing too frequently
+ * - Bounds the number of queued events in memory, spilling the excess to a file while the database is slow
  * - Can synchronously flush queued events so that other readers can see the data
+ * - Optionally journals each queued event to a memory-mapped file, which is replayed at start-up after a crash
+ * - Optionally stores each distinct long payload only once, referencing it by hash from the events table
+ * - Classifies each event, and keeps only a sample of recent protocol chatter at full fidelity if configured
+ * - Extracts the IRC command and target of each event into indexed columns, and backfills them for old rows
+ * - Copies the database to a backup file on request, a few pages at a time while waiting between commits
+ * - Passes each committed batch of events to the replication threads, if any replicas are configured
+ * - Passes each committed batch of events to the text log thread, if text logging is enabled
  */
 final class DatabaseLoggerThread extends Thread {
 	
@@ -44,7 +68,7 @@ final class DatabaseLoggerThread extends Thread {
 	private final Condition condFlushed;
 	
 	// Monitor state (shared data accessed by various threads)
-	private Queue<Event> queue;
+	private SpillingEventQueue queue;
 	private boolean flushRequested;
 	private boolean terminateRequested;
 	
@@ -53,25 +77,97 @@ final class DatabaseLoggerThread extends Thread {
 	private SQLiteConnection database;
 	private SQLiteStatement beginTransaction;
 	private SQLiteStatement commitTransaction;
-	private SQLiteStatement insertEvent;
+	private SQLiteStatement[] insertEvents;  // Parallel to INSERT_BATCH_SIZES
+	
+	// Journal-related variables
+	private final File journalFile;  // Can be null
+	private EventJournal journal;    // Null if journalFile is null or the journal has failed
+	
+	// Spill-related variables
+	private final File spillFile;
+	private long lastStatusReport;  // In milliseconds
+	
+	// Deduplication-related variables, only accessed by the thread doing database I/O
+	private final int dedupMinLength;       // 0 if deduplication is disabled
+	private SQLiteStatement insertPayload;  // Null if deduplication is disabled
+	private final Map<ByteBuffer,Boolean> recentHashes;  // LRU set of hashes known to be in the payloads table
+	
+	// Chatter-related variables, only accessed by the thread doing database I/O
+	private final int chatterSampleInterval;  // Positive
+	private long chatterCount;
+	private final int chatterRetainDays;      // 0 if chatter is kept indefinitely
+	private long lastChatterPrune;            // In milliseconds
+	private long chatterPrunedUntil;          // Timestamp before which all chatter has been pruned, or 0 if unknown
+	
+	// Whether some rows might not have their command and target columns filled in yet
+	private boolean backfillPending;
+	
+	// Backup-related variables. The flags and settings are protected by 'lock'; the rest is only accessed by this worker.
+	private boolean backupPending;   // True from a backup request until the database has been copied
+	private boolean backupBusy;      // Additionally true while the copy is being compressed
+	private File backupTarget;       // Not null if backupPending
+	private boolean backupCompress;
+	private SQLiteBackup backup;     // Null if no copy is in progress
+	private int backupStepPages;     // Pages per step, for BACKUP_STEP_BYTES with the database's page size
+	private long lastBackupReport;   // In milliseconds
+	private long backupLongestStep;    // In nanoseconds, for the progress reports
+	private long backupLongestCommit;  // In nanoseconds, of the transactions committed while copying
+	
+	// The replication threads and the text log thread (if enabled), started and terminated by this worker
+	private final List<CommittedBatchSubscriber> subscribers;
+	
+	// Null if text logging is disabled; otherwise also in the subscribers
+	private final TextLogThread textLog;
+	
+	// Called on this worker thread if it stops because of an error, rather than a termination request
+	private final Runnable failureHandler;
 	
 	
 	/*---- Constructor ----*/
 	
-	// 'file' must be an existing file or a non-existent path, but not a directory.
-	// This constructor initializes variables and objects but performs no I/O.
-	public DatabaseLoggerThread(File file) {
+	// The database file (and the journal file, if enabled) must each be an existing file or a non-existent
+	// path, but not a directory. This constructor initializes variables and objects but performs no I/O.
+	// If the worker fails (e.g. the database can't be written), it stops and runs the given handler, which
+	// should shut down the connector that owns this logger (and only that one).
+	public DatabaseLoggerThread(BackendConfiguration config, Runnable failureHandler) {
 		super("DatabaseLoggerThread");
-		if (file == null)
+		if (failureHandler == null)
 			throw new NullPointerException();
-		databaseFile = file;
+		this.failureHandler = failureHandler;
+		databaseFile = config.connectorDatabaseFile;
+		journalFile = config.connectorJournalFile;
+		journal = null;
+		spillFile = new File(databaseFile.getPath() + "-spill");
+		lastStatusReport = 0;
+		dedupMinLength = config.connectorDedupMinLength;
+		insertPayload = null;
+		recentHashes = new LinkedHashMap<ByteBuffer,Boolean>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer,Boolean> eldest) {
+				return size() > MAX_RECENT_HASHES;
+			}
+		};
+		chatterSampleInterval = config.connectorChatterSampleInterval;
+		chatterCount = 0;
+		chatterRetainDays = config.connectorChatterRetainDays;
+		lastChatterPrune = 0;
+		chatterPrunedUntil = 0;
+		backfillPending = true;
+		backupPending = false;
+		backupBusy = false;
+		backup = null;
+		subscribers = new ArrayList<>();
+		for (String spec : config.connectorReplicas)
+			subscribers.add(new ReplicationThread(spec, databaseFile, config.getConnectorPassword()));
+		textLog = config.connectorTextLogDirectory != null ? new TextLogThread(config.connectorTextLogDirectory, databaseFile) : null;
+		if (textLog != null)
+			subscribers.add(textLog);
 		
 		lock = new ReentrantLock();
 		condAll     = lock.newCondition();
 		condUrgent  = lock.newCondition();
 		condFlushed = lock.newCondition();
 		
-		queue = new ArrayDeque<>();
+		queue = new SpillingEventQueue(MAX_QUEUED_EVENTS_IN_MEMORY, spillFile);
 		flushRequested = false;
 		terminateRequested = false;
 	}
@@ -79,9 +175,9 @@ final class DatabaseLoggerThread extends Thread {
 	
 	/*---- Methods ----*/
 	
-	// Initializes a database file if nonexistent, or reads from an existing one;
-	// then this method returns the first suitable connection ID for the connector to use.
-	public int initAndGetNextConnectionId() throws SQLiteException {
+	// Initializes a database file if nonexistent, or reads from an existing one; replays and clears
+	// the journal (if enabled); then this method returns the first suitable connection ID for the connector to use.
+	public int initAndGetNextConnectionId() throws IOException, SQLiteException {
 		if (database != null)
 			throw new IllegalStateException();
 		
@@ -90,26 +186,68 @@ final class DatabaseLoggerThread extends Thread {
 		try {
 			database.open(true);
 			database.exec("PRAGMA journal_mode = PERSIST");
-			database.exec("CREATE TABLE IF NOT EXISTS " +
-				"events(connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, type INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY(connectionId, sequence))");
+			database.exec("CREATE TABLE IF NOT EXISTS events" + EVENTS_TABLE_DEFINITION);
+			// Upgrade a database from an older version
+			if (!hasColumn("events", "class"))
+				database.exec("ALTER TABLE events ADD COLUMN class INTEGER");
+			if (!hasColumn("events", "command")) {
+				database.exec("ALTER TABLE events ADD COLUMN command TEXT");
+				database.exec("ALTER TABLE events ADD COLUMN target TEXT");
+			}
+			// Catch-up filters on the command within a primary key range, so an index on the command only slowed down inserts
+			database.exec("DROP INDEX IF EXISTS events_command");
+			database.exec("CREATE INDEX IF NOT EXISTS events_unparsed ON events(connectionId) WHERE command IS NULL");
+			database.exec("CREATE INDEX IF NOT EXISTS events_timestamp ON events(timestamp)");  // For reading history by time
+			database.exec("CREATE INDEX IF NOT EXISTS events_target ON events(target COLLATE NOCASE, timestamp)");
+			// The SQLite bundled with sqlite4java (3.8.7) forbids functions in this condition and ignores a partial index
+			// whose condition has an inequality, so pruned events stay in the index; pruneChatter() skips over them
+			database.exec("CREATE INDEX IF NOT EXISTS events_chatter ON events(timestamp) WHERE class=" + EventClass.CHATTER.ordinal());
+			if (dedupMinLength > 0) {
+				database.exec(PayloadStore.CREATE_TABLE_SQL);
+				insertPayload = database.prepare("INSERT OR IGNORE INTO payloads VALUES(?,?)");
+			}
+			
+			// Recover events that were queued but not committed when the previous connector instance died.
+			// Some of these events may have been committed just before the crash, hence they are inserted leniently.
+			List<Event> recovered = EventJournal.readAll(spillFile);
+			if (journalFile != null)
+				recovered.addAll(EventJournal.readAll(journalFile));
+			if (!recovered.isEmpty()) {
+				SQLiteStatement[] insertIgnore = prepareInserts("INSERT OR IGNORE");
+				database.exec("BEGIN TRANSACTION");
+				insertEventsIntoDb(insertIgnore, recovered);
+				database.exec("COMMIT TRANSACTION");
+				System.err.println("Recovered " + recovered.size() + " events from journal and spill files");
+			}
+			if (spillFile.exists() && !spillFile.delete())
+				throw new IOException("Cannot delete spill file");
+			if (journalFile != null)
+				journal = new EventJournal(journalFile);  // Truncates the old records
 			
 			// Get current highest connection ID
 			SQLiteStatement getMaxConId = database.prepare("SELECT max(connectionId) FROM events");
 			Utils.stepStatement(getMaxConId, true);
-			if (getMaxConId.columnNull(0))
-				return 0;
-			else
-				return getMaxConId.columnInt(0) + 1;
+			int result = getMaxConId.columnNull(0) ? 0 : getMaxConId.columnInt(0) + 1;
+			if (textLog != null)
+				textLog.setFirstConnectionId(result);
+			return result;
 		} finally {
 			database.dispose();  // Automatically disposes its associated statements
 		}
 	}
 	
 	
+	// New databases cluster the events by their key. Older databases have a rowid table, which works
+	// the same but keeps a separate primary key index; MigrateEventsTable converts such a table.
+	static final String EVENTS_TABLE_DEFINITION = "(connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, type INTEGER NOT NULL, "
+		+ "data BLOB NOT NULL, class INTEGER, command TEXT, target TEXT, PRIMARY KEY(connectionId, sequence)) WITHOUT ROWID";
+	
+	
 	public void run() {
 		if (database == null)
 			throw new IllegalStateException();
 		database = new SQLiteConnection(databaseFile);
+		boolean failed = true;
 		
 		try {
 			// Initialize database statements
@@ -117,97 +255,573 @@ final class DatabaseLoggerThread extends Thread {
 			database.setBusyTimeout(60000);
 			beginTransaction  = database.prepare("BEGIN TRANSACTION");
 			commitTransaction = database.prepare("COMMIT TRANSACTION");
-			insertEvent       = database.prepare("INSERT INTO events VALUES(?,?,?,?,?)");
+			insertEvents      = prepareInserts("INSERT");
+			if (dedupMinLength > 0)
+				insertPayload = database.prepare("INSERT OR IGNORE INTO payloads VALUES(?,?)");
+			for (CommittedBatchSubscriber th : subscribers)
+				th.start();
 			
 			// Process incoming event objects
 			lock.lock();
 			try {
 				while (processBatchOfEvents());
+				failed = false;
 			} catch (SQLiteException e) {
 				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
 			} finally {
-				queue = null;
 				lock.unlock();
 			}
+			if (journal != null)
+				journal.close();
+			if (backup != null)
+				abortBackup();
 			
 		// Clean up
 		} catch (SQLiteException e) {
 			e.printStackTrace();
-			System.exit(1);
+			failed = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed = true;
 		} catch (InterruptedException e) {  // Should not happen
 			e.printStackTrace();
+			failed = true;
 		}
 		finally {
+			lock.lock();
+			try {
+				try {
+					queue.close();  // Any spilled events remain for replay
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				queue = null;
+				flushRequested = false;
+				condFlushed.signalAll();  // Release a caller of flushQueue() if this worker failed
+			} finally {
+				lock.unlock();
+			}
 			database.dispose();  // Automatically disposes its associated statements
+			for (CommittedBatchSubscriber th : subscribers)
+				th.terminate();
+		}
+		if (failed) {
+			System.err.println("Database logger stopped due to an error: " + databaseFile);
+			failureHandler.run();  // Events posted from now on are discarded
 		}
 	}
 	
 	
 	private static final int WRITE_DELAY = 10000;  // In milliseconds
 	
+	private static final int JOURNAL_SYNC_INTERVAL = 1000;  // In milliseconds
+	
+	private static final int MAX_QUEUED_EVENTS_IN_MEMORY = 10000;
+	
+	private static final int STATUS_REPORT_INTERVAL = 60000;  // In milliseconds
+	
 	// Must hold 'lock' before and after the method call.
-	private boolean processBatchOfEvents() throws SQLiteException, InterruptedException {
-		// Wait for something to do
-		while (queue.isEmpty() && !flushRequested && !terminateRequested)
-			condAll.await();
+	private boolean processBatchOfEvents() throws IOException, SQLiteException, InterruptedException {
+		// Wait for something to do, copying backup pages meanwhile if requested
+		while (queue.isEmpty() && !flushRequested && !terminateRequested) {
+			if (backupPending) {
+				stepBackup();
+				condAll.await(BACKUP_STEP_PAUSE, TimeUnit.MILLISECONDS);
+			} else
+				condAll.await();
+		}
 		
 		if (flushRequested || terminateRequested) {
 			// Drain the queue straightforwardly
+			long commitStart = System.nanoTime();
 			Utils.stepStatement(beginTransaction, false);
-			while (!queue.isEmpty())
-				insertEventIntoDb(queue.remove());
+			List<Event> committed = new ArrayList<>();
+			while (!queue.isEmpty()) {
+				List<Event> events = new ArrayList<>(queue.memorySize());
+				for (Event ev = queue.poll(); ev != null; ev = queue.poll())
+					events.add(ev);
+				insertEventsIntoDb(insertEvents, events);
+				committed.addAll(events);
+				refillQueue();
+			}
 			Utils.stepStatement(commitTransaction, false);
+			if (backup != null)
+				backupLongestCommit = Math.max(System.nanoTime() - commitStart, backupLongestCommit);
+			for (CommittedBatchSubscriber th : subscribers)
+				th.postBatch(committed);
+			resetJournal();
 			flushRequested = false;
 			condFlushed.signal();
 			return !terminateRequested;
 			
 		} else {
-			// Wait to gather a burst of messages
-			condUrgent.await(WRITE_DELAY, TimeUnit.MILLISECONDS);
+			// Wait to gather a burst of messages, periodically forcing the journal to disk.
+			// But don't wait if there is a backlog of spilled events to catch up on.
+			// Each backup step is short, so it delays the deadline (and the journal sync) only slightly.
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITE_DELAY);
+			long nextSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOURNAL_SYNC_INTERVAL);
+			while (!flushRequested && !terminateRequested && !queue.isSpilling()) {
+				long remain = deadline - System.nanoTime();
+				if (remain <= 0)
+					break;
+				if (backupPending) {
+					stepBackup();
+					condUrgent.await(Math.min(remain, TimeUnit.MILLISECONDS.toNanos(BACKUP_STEP_PAUSE)), TimeUnit.NANOSECONDS);
+				} else
+					condUrgent.await(Math.min(remain, nextSync - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (journal != null && System.nanoTime() - nextSync >= 0) {
+					// A disk flush can take a while, so let other threads post events meanwhile
+					EventJournal j = journal;
+					lock.unlock();
+					try {
+						j.force();
+					} finally {
+						lock.lock();
+					}
+					nextSync = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOURNAL_SYNC_INTERVAL);
+				}
+			}
 			
-			// Drain the queue without blocking on I/O
-			Event[] events = new Event[queue.size()];
-			for (int i = 0; i < events.length; i++)
-				events[i] = queue.remove();
-			if (!queue.isEmpty())
-				throw new AssertionError();
+			// Drain the in-memory part of the queue without blocking on I/O
+			List<Event> events = new ArrayList<>(queue.memorySize());
+			for (Event ev = queue.poll(); ev != null; ev = queue.poll())
+				events.add(ev);
 			
 			// Do all database I/O while allowing other threads to post events.
-			// Note: Queue is empty and lock is dropped, but the data is not committed yet!
+			// Note: Queue may be empty and lock is dropped, but the data is not committed yet!
 			// Thus flushQueue() cannot simply check for an empty queue and
 			// return without explicit acknowledgement from this worker thread.
 			lock.unlock();
 			try {
+				long commitStart = System.nanoTime();
 				Utils.stepStatement(beginTransaction, false);
-				for (Event ev : events)
-					insertEventIntoDb(ev);
+				insertEventsIntoDb(insertEvents, events);
 				Utils.stepStatement(commitTransaction, false);
+				if (backup != null)
+					backupLongestCommit = Math.max(System.nanoTime() - commitStart, backupLongestCommit);
+				for (CommittedBatchSubscriber th : subscribers)
+					th.postBatch(events);
+				if (chatterRetainDays > 0 && System.currentTimeMillis() - lastChatterPrune >= PRUNE_INTERVAL) {
+					pruneChatter();
+					lastChatterPrune = System.currentTimeMillis();
+				}
+				if (backfillPending)
+					backfillPending = backfillCommands();
 			} finally {
 				lock.lock();
 			}
+			refillQueue();
+			resetJournal();  // Keeps only the events that are now in memory
+			if (queue.isSpilling() && System.currentTimeMillis() - lastStatusReport >= STATUS_REPORT_INTERVAL) {
+				System.err.println(queue.getStatus());
+				lastStatusReport = System.currentTimeMillis();
+			}
 			// At this point, the queue may be non-empty and the flags may have changed
 			return true;  // Re-evaluate the full situation even if termination is requested
 		}
 	}
 	
 	
-	private void insertEventIntoDb(Event ev) throws SQLiteException {
-		insertEvent.bind(1, ev.connectionId);
-		insertEvent.bind(2, ev.sequence);
-		insertEvent.bind(3, ev.timestamp);
-		insertEvent.bind(4, ev.type.ordinal());
-		insertEvent.bind(5, ev.line.getDataNoCopy());
-		Utils.stepStatement(insertEvent, false);
+	// Tests whether the given table in the current database has a column with the given name.
+	private boolean hasColumn(String table, String column) throws SQLiteException {
+		SQLiteStatement query = database.prepare("PRAGMA table_info(" + table + ")");
+		try {
+			while (query.step()) {
+				if (query.columnString(1).equals(column))
+					return true;
+			}
+			return false;
+		} finally {
+			query.dispose();
+		}
+	}
+	
+	
+	// Returns new statements that insert INSERT_BATCH_SIZES[i] events in one step, for each i.
+	// The verb is "INSERT" or a variant like "INSERT OR IGNORE".
+	private SQLiteStatement[] prepareInserts(String verb) throws SQLiteException {
+		SQLiteStatement[] result = new SQLiteStatement[INSERT_BATCH_SIZES.length];
+		for (int i = 0; i < result.length; i++) {
+			StringBuilder sb = new StringBuilder(verb).append(" INTO events(connectionId, sequence, timestamp, type, data, class, command, target) VALUES");
+			for (int j = 0; j < INSERT_BATCH_SIZES[i]; j++)
+				sb.append(j == 0 ? "" : ",").append("(?,?,?,?,?,?,?,?)");
+			result[i] = database.prepare(sb.toString());
+		}
+		return result;
+	}
+	
+	
+	// Inserts the given events in order, in chunks that each use the largest multi-row statement that fits.
+	// This saves a statement execution (and its overhead in the native library) for most events, though the time is
+	// dominated by index updates and commits, so the gain is small (measure with InsertBenchmark).
+	private void insertEventsIntoDb(SQLiteStatement[] inserts, List<Event> events) throws SQLiteException {
+		int off = 0;
+		while (off < events.size()) {
+			int i = 0;
+			while (INSERT_BATCH_SIZES[i] > events.size() - off)
+				i++;
+			SQLiteStatement insert = inserts[i];
+			for (int j = 0; j < INSERT_BATCH_SIZES[i]; j++, off++) {
+				Event ev = events.get(off);
+				RawIrcLine line = EventClass.parseLine(ev);
+				EventClass cls = EventClass.classify(line);
+				int k = j * 8;
+				insert.bind(k + 1, ev.connectionId);
+				insert.bind(k + 2, ev.sequence);
+				insert.bind(k + 3, ev.timestamp);
+				insert.bind(k + 4, ev.type.ordinal());
+				if (cls == EventClass.CHATTER && chatterCount++ % chatterSampleInterval != 0)
+					insert.bind(k + 5, new byte[0]);  // Keep the row so that sequences have no gaps
+				else
+					insert.bind(k + 5, getStoredData(ev));
+				insert.bind(k + 6, cls.ordinal());
+				bindCommandAndTarget(insert, k + 7, line);
+			}
+			Utils.stepStatement(insert, false);
+		}
+	}
+	
+	// Binds the command (uppercase, or empty if none) and target (first parameter, or null if none)
+	// of the given parsed line, which is null for connection events and lines with syntax errors.
+	private static void bindCommandAndTarget(SQLiteStatement st, int index, RawIrcLine line) throws SQLiteException {
+		if (line == null) {
+			st.bind(index, "");
+			st.bindNull(index + 1);
+		} else {
+			st.bind(index, line.getCommand());
+			if (line.getParameterCount() > 0)
+				st.bind(index + 1, line.getParameterString(0));
+			else
+				st.bindNull(index + 1);
+		}
 	}
 	
 	
+	// Fills in the command and target columns of rows that were logged by an older version of the Connector,
+	// in small transactions, until none remain or a time slice is used up. Returns whether rows might remain.
+	// Must not hold 'lock'.
+	private boolean backfillCommands() throws SQLiteException {
+		// Rows are identified by their key rather than rowid, which a WITHOUT ROWID table lacks
+		SQLiteStatement select = database.prepare("SELECT connectionId, sequence, type, data FROM events WHERE command IS NULL LIMIT " + BACKFILL_BATCH_SIZE);
+		SQLiteStatement update = database.prepare("UPDATE events SET command=?, target=? WHERE connectionId=? AND sequence=?");
+		try {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BACKFILL_TIME_SLICE);
+			while (System.nanoTime() < deadline) {
+				List<int[]> keys = new ArrayList<>();  // Each is {connectionId, sequence}
+				List<Integer> types = new ArrayList<>();
+				List<byte[]> datas = new ArrayList<>();
+				while (select.step()) {
+					keys.add(new int[]{select.columnInt(0), select.columnInt(1)});
+					types.add(select.columnInt(2));
+					datas.add(Utils.columnBytes(select, 3));
+				}
+				select.reset();
+				if (keys.isEmpty())
+					return false;
+				PayloadStore.resolveAll(database, datas);
+				
+				Utils.stepStatement(beginTransaction, false);
+				for (int i = 0; i < keys.size(); i++) {
+					RawIrcLine line = null;
+					if (types.get(i) != Event.Type.CONNECTION.ordinal()) {
+						try {
+							line = new RawIrcLine(datas.get(i));
+						} catch (IllegalArgumentException e) {}  // Leave as null
+					}
+					bindCommandAndTarget(update, 1, line);
+					update.bind(3, keys.get(i)[0]);
+					update.bind(4, keys.get(i)[1]);
+					Utils.stepStatement(update, false);
+				}
+				Utils.stepStatement(commitTransaction, false);
+			}
+			return true;
+		} finally {
+			select.dispose();
+			update.dispose();
+		}
+	}
+	
+	private static final int BACKFILL_BATCH_SIZE = 1000;
+	
+	private static final int BACKFILL_TIME_SLICE = 1000;  // In milliseconds
+	
+	
+	// Returns the value for the data column of the given event, which is either the payload itself or a reference
+	// to it. In the latter case, this also inserts the payload into its table unless it is known to be there already.
+	private byte[] getStoredData(Event ev) throws SQLiteException {
+		byte[] data = ev.line.getDataNoCopy();
+		if (insertPayload == null || data.length < dedupMinLength || data.length <= PayloadStore.REFERENCE_LENGTH)
+			return data;
+		byte[] hash = PayloadStore.hash(data);
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		if (recentHashes.get(key) == null) {  // Using get() also refreshes the entry's recency
+			insertPayload.bind(1, hash);
+			insertPayload.bind(2, data);
+			Utils.stepStatement(insertPayload, false);
+			recentHashes.put(key, Boolean.TRUE);
+		}
+		return PayloadStore.makeReference(hash);
+	}
+	
+	private static final int MAX_RECENT_HASHES = 10000;
+	
+	
+	// Blanks the data of chatter events older than the retention period, in small transactions
+	// so that other database users aren't blocked for long. Must not hold 'lock'.
+	private void pruneChatter() throws SQLiteException {
+		long cutoff = System.currentTimeMillis() - chatterRetainDays * 86400000L;
+		// The class condition is a literal, so that the partial index applies. Each batch starts at the timestamp
+		// where the previous one ended, and each run where the previous run ended, so that the events that are
+		// already pruned (which remain in the index) are not scanned again and again.
+		SQLiteStatement select = database.prepare("SELECT connectionId, sequence, timestamp FROM events WHERE class=" + EventClass.CHATTER.ordinal()
+			+ " AND timestamp>=? AND timestamp<? AND data<>X'' ORDER BY timestamp LIMIT " + PRUNE_BATCH_SIZE);
+		SQLiteStatement prune = database.prepare("UPDATE events SET data=X'' WHERE connectionId=? AND sequence=?");
+		try {
+			select.bind(2, cutoff);
+			long start = chatterPrunedUntil;
+			long total = 0;
+			while (true) {
+				select.bind(1, start);
+				Utils.stepStatement(beginTransaction, false);
+				int count = 0;
+				while (select.step()) {
+					prune.bind(1, select.columnInt(0));
+					prune.bind(2, select.columnInt(1));
+					start = select.columnLong(2);
+					Utils.stepStatement(prune, false);
+					count++;
+				}
+				select.reset(false);  // Keep the cutoff binding
+				Utils.stepStatement(commitTransaction, false);
+				total += count;
+				if (count < PRUNE_BATCH_SIZE)
+					break;
+			}
+			chatterPrunedUntil = cutoff;
+			if (total > 0)
+				System.err.println("Pruned data of " + total + " old chatter events");
+		} finally {
+			select.dispose();
+			prune.dispose();
+		}
+	}
+	
+	private static final int PRUNE_BATCH_SIZE = 1000;
+	
+	private static final int PRUNE_INTERVAL = 3600000;  // In milliseconds
+	
+	
+	// Number of rows per prepared insert statement, in descending order and ending with 1.
+	// The largest one must keep the number of parameters within SQLite's limit of 999.
+	private static final int[] INSERT_BATCH_SIZES = {64, 16, 4, 1};
+	
+	
+	// Must hold 'lock'. Moves spilled events back into memory after the in-memory part has been drained.
+	private void refillQueue() throws IOException {
+		boolean wasSpilling = queue.isSpilling();
+		queue.refill();
+		if (wasSpilling && !queue.isSpilling())
+			System.err.println("Spill file drained. " + queue.getStatus());
+	}
+	
+	
+	// Must hold 'lock'. Called after each commit and refill, so the journal holds exactly the events
+	// that the queue holds in memory (the spilled events are already safe in the spill file).
+	private void resetJournal() {
+		if (journal == null)
+			return;
+		try {
+			journal.reset(queue.inMemory());
+		} catch (IOException e) {
+			e.printStackTrace();
+			disableJournal();
+		}
+	}
+	
+	
+	// Must hold 'lock'. Logging to the database continues without crash protection.
+	private void disableJournal() {
+		System.err.println("Warning: Event journal disabled due to I/O error");
+		try {
+			journal.close();
+		} catch (IOException e) {}
+		journal = null;
+	}
+	
+	
+	// Asynchronously requests a consistent copy of the database to be written to the given file, optionally
+	// compressed with gzip. Returns false if a backup is already in progress. Can be called from any thread.
+	public boolean requestBackup(File target, boolean compress) {
+		if (target == null)
+			throw new NullPointerException();
+		lock.lock();
+		try {
+			if (backupBusy || terminateRequested)
+				return false;
+			backupPending = true;
+			backupBusy = true;
+			backupTarget = target;
+			backupCompress = compress;
+			condAll.signal();
+			condUrgent.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Must hold 'lock' before and after the method call. Copies a bounded number of pages to the backup file,
+	// releasing the lock meanwhile so that posting events is not blocked. Commits by this worker (on the same
+	// connection) are applied to the backup as they happen, but a write by another process makes SQLite restart it.
+	private void stepBackup() {
+		boolean copied = false;
+		lock.unlock();
+		try {
+			if (backup == null) {
+				System.err.println("Backup started: " + backupTarget);
+				SQLiteStatement st = database.prepare("PRAGMA page_size");
+				try {
+					Utils.stepStatement(st, true);
+					backupStepPages = Math.max(BACKUP_STEP_BYTES / st.columnInt(0), 1);
+				} finally {
+					st.dispose();
+				}
+				backup = database.initializeBackup(new File(backupTarget.getPath() + ".part"));
+				lastBackupReport = System.currentTimeMillis();
+				backupLongestStep = 0;
+				backupLongestCommit = 0;
+			}
+			long stepStart = System.nanoTime();
+			backup.backupStep(backupStepPages);
+			backupLongestStep = Math.max(System.nanoTime() - stepStart, backupLongestStep);
+			if (backup.isFinished()) {
+				copied = true;
+				finishBackup();
+			} else if (System.currentTimeMillis() - lastBackupReport >= BACKUP_REPORT_INTERVAL) {
+				int total = backup.getPageCount();
+				System.err.println("Backup: " + (total - backup.getRemaining()) + " of " + total + " pages copied; " + getBackupDelays());
+				lastBackupReport = System.currentTimeMillis();
+			}
+		} catch (SQLiteBusyException e) {
+			// Another process holds a lock on the database; retry after the pause
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+			copied = true;
+			abortBackup();
+		} catch (IOException e) {
+			e.printStackTrace();
+			copied = true;  // finishBackup() already cleaned up
+		} finally {
+			lock.lock();
+		}
+		if (copied) {
+			backupPending = false;
+			if (!backupCompress)
+				backupBusy = false;
+		}
+	}
+	
+	
+	// Moves the finished copy into place, or compresses it on a separate thread so that logging is not delayed.
+	private void finishBackup() throws SQLiteException, IOException {
+		int pages = backup.getPageCount();
+		final String delays = getBackupDelays();
+		backup.dispose();  // Also closes the destination database
+		backup = null;
+		final File part = new File(backupTarget.getPath() + ".part");
+		final File target = backupTarget;
+		if (!backupCompress) {
+			moveFile(part, target);
+			System.err.println("Backup finished: " + target + " (" + pages + " pages; " + delays + ")");
+			return;
+		}
+		
+		Thread compressor = new Thread("BackupCompressorThread") {
+			public void run() {
+				File gzPart = new File(target.getPath() + ".part.gz");
+				try {
+					try (InputStream in = new FileInputStream(part); OutputStream out = new GZIPOutputStream(new FileOutputStream(gzPart), 65536)) {
+						byte[] buf = new byte[65536];
+						for (int n = in.read(buf); n != -1; n = in.read(buf))
+							out.write(buf, 0, n);
+					}
+					moveFile(gzPart, target);
+					System.err.println("Backup finished: " + target + " (" + part.length() + " bytes before compression, " + target.length() + " after; " + delays + ")");
+				} catch (IOException e) {
+					e.printStackTrace();
+					gzPart.delete();
+				} finally {
+					part.delete();
+					lock.lock();
+					try {
+						backupBusy = false;
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		};
+		compressor.start();  // Not a daemon, so that a backup finishes even if the connector terminates
+	}
+	
+	
+	// Describes how long the backup has held up logging: a commit waits for at most one step, then takes its own time.
+	private String getBackupDelays() {
+		return String.format("longest step %d ms, longest commit %d ms", TimeUnit.NANOSECONDS.toMillis(backupLongestStep), TimeUnit.NANOSECONDS.toMillis(backupLongestCommit));
+	}
+	
+	
+	// Discards the partial copy. Only called by this worker.
+	private void abortBackup() {
+		backup.dispose();
+		backup = null;
+		new File(backupTarget.getPath() + ".part").delete();
+		System.err.println("Backup aborted: " + backupTarget);
+	}
+	
+	
+	private static void moveFile(File src, File dest) throws IOException {
+		try {
+			Files.move(src.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			src.delete();
+			throw e;
+		}
+	}
+	
+	
+	// Bounds the time of each step. This is 256 pages with the default page size of the bundled SQLite (3.8.7), which is 1 KiB.
+	private static final int BACKUP_STEP_BYTES = 256 * 1024;
+	
+	private static final int BACKUP_STEP_PAUSE = 5;  // In milliseconds
+	
+	private static final int BACKUP_REPORT_INTERVAL = 10000;  // In milliseconds
+	
+	
 	// Should only be called from a thread currently executing in the MamircConnector object's context.
 	public void postEvent(Event event) {
 		if (event == null)
 			throw new NullPointerException();
 		lock.lock();
 		try {
-			queue.add(event);
+			if (queue == null)
+				return;  // This worker has stopped
+			if (journal != null) {
+				try {
+					journal.append(event);
+				} catch (IOException e) {
+					e.printStackTrace();
+					disableJournal();
+				}
+			}
+			if (queue.add(event)) {
+				System.err.println("Database queue full; spilling events to " + spillFile);
+				lastStatusReport = System.currentTimeMillis();
+			}
 			condAll.signal();
 		} finally {
 			lock.unlock();
@@ -220,6 +834,8 @@ final class DatabaseLoggerThread extends Thread {
 	public void flushQueue() {
 		lock.lock();
 		try {
+			if (queue == null)
+				return;  // This worker has stopped
 			if (flushRequested)
 				throw new IllegalStateException();
 			flushRequested = true;
@@ -227,7 +843,7 @@ final class DatabaseLoggerThread extends Thread {
 			condUrgent.signal();
 			do condFlushed.awaitUninterruptibly();
 			while (flushRequested);
-			if (!queue.isEmpty())
+			if (queue != null && !queue.isEmpty())
 				throw new IllegalStateException();
 		} finally {
 			lock.unlock();
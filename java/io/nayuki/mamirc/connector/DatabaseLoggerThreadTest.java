@@ -0,0 +1,409 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class DatabaseLoggerThreadTest {
+	
+	// The schema must be accepted by the SQLite version that sqlite4java bundles.
+	@Test public void testInitNewDatabase() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-logger").toFile();
+		try {
+			BackendConfiguration config = writeConfig(dir, "");
+			assertEquals(0, new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId());
+			assertEquals(0, new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId());  // Reopen
+			
+			SQLiteConnection db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				Set<String> indexes = new TreeSet<>();
+				SQLiteStatement st = db.prepare("SELECT name FROM sqlite_master WHERE type='index' AND sql IS NOT NULL");
+				while (st.step())
+					indexes.add(st.columnString(0));
+				assertEquals(new TreeSet<>(Arrays.asList("events_chatter",
+					"events_target", "events_timestamp", "events_unparsed")), indexes);
+			} finally {
+				db.dispose();
+			}
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// A logger that can't write its database must stop on its own and report it through the handler, not exit the process.
+	@Test public void testFailureRunsHandler() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-logger").toFile();
+		try {
+			BackendConfiguration config = writeConfig(dir, "");
+			final CountDownLatch failed = new CountDownLatch(1);
+			DatabaseLoggerThread logger = new DatabaseLoggerThread(config, new Runnable() {
+				public void run() {
+					failed.countDown();
+				}
+			});
+			logger.initAndGetNextConnectionId();
+			
+			// Replace the database file with something that SQLite can't open
+			assertTrue(config.connectorDatabaseFile.delete());
+			assertTrue(config.connectorDatabaseFile.mkdir());
+			logger.start();
+			assertTrue(failed.await(10, TimeUnit.SECONDS));
+			logger.join(10000);
+			assertFalse(logger.isAlive());
+			
+			// Calls after the failure are ignored instead of blocking or throwing
+			logger.postEvent(new Event(0, 0, 0, Event.Type.CONNECTION, new CleanLine("connect example.com 6667 false nick")));
+			logger.flushQueue();
+			logger.terminate();
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Events left in the journal and the spill file by a crashed connector are inserted at the next start-up, except
+	// those that were already committed, and a torn trailing record is ignored. Then both files are emptied.
+	@Test public void testReplayAfterCrash() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-logger").toFile();
+		try {
+			File journalFile = new File(dir, "journal.bin");
+			BackendConfiguration config = writeConfig(dir, "\"connector-journal-file\": \"" + journalFile.getPath() + "\", ");
+			new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId();
+			
+			// Simulate the state after a crash: event (0,0) was committed, the others were only journaled or spilled
+			List<Event> events = EventJournalTest.makeEvents(12);  // Connection IDs 0 to 2
+			SQLiteConnection db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				SQLiteStatement st = db.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES(0, 0, 1, 0, X'636F6D6D6974746564')");
+				st.step();
+			} finally {
+				db.dispose();
+			}
+			EventJournal journal = new EventJournal(journalFile);
+			for (Event ev : events.subList(0, 8))
+				journal.append(ev);
+			// Not closed, like a crashed process
+			File spillFile = new File(config.connectorDatabaseFile.getPath() + "-spill");
+			try (OutputStream out = new FileOutputStream(spillFile)) {
+				for (Event ev : events.subList(8, 12))
+					out.write(EventJournal.toRecord(ev));
+				out.write(Arrays.copyOf(EventJournal.toRecord(events.get(0)), 10));  // Torn record
+			}
+			
+			assertEquals(3, new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId());
+			assertEquals(0, EventJournal.readAll(journalFile).size());
+			assertFalse(spillFile.exists());
+			
+			db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				SQLiteStatement st = db.prepare("SELECT connectionId, sequence, timestamp, type, data FROM events ORDER BY connectionId, sequence");
+				List<Event> actual = new ArrayList<>();
+				while (st.step()) {
+					byte[] data = st.columnBlob(4);
+					if (data == null)  // Empty blob
+						data = new byte[0];
+					actual.add(new Event(st.columnInt(0), st.columnInt(1), st.columnLong(2), Event.Type.fromOrdinal(st.columnInt(3)), new CleanLine(data, false)));
+				}
+				assertEquals(12, actual.size());
+				assertEquals("committed", actual.get(0).line.getString());  // Not overwritten by the journal
+				assertEquals(1, actual.get(0).timestamp);
+				EventJournalTest.assertEventsEqual(events.subList(1, 12), actual.subList(1, 12));
+			} finally {
+				db.dispose();
+			}
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Each flushed batch is inserted in chunks of 64, 16, 4, and 1 rows. Sizes that aren't multiples of 64 need every
+	// smaller statement, and each row must be written exactly once with its own values.
+	@Test public void testChunkedInsert() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-logger").toFile();
+		try {
+			BackendConfiguration config = writeConfig(dir, "");
+			DatabaseLoggerThread logger = new DatabaseLoggerThread(config, NO_HANDLER);
+			logger.initAndGetNextConnectionId();
+			logger.start();
+			int[] sizes = {1, 3, 5, 21, 63, 65, 85, 127, 211, 1000};
+			int total = 0;
+			for (int i = 0; i < sizes.length; i++) {
+				// Each batch is one connection, so all its events are drained by the flush at once
+				for (int j = 0; j < sizes[i]; j++)
+					logger.postEvent(new Event(i, j, j, Event.Type.RECEIVE, new CleanLine(":a!b@c PRIVMSG #chan" + i + " :message " + j)));
+				logger.flushQueue();
+				total += sizes[i];
+			}
+			logger.terminate();
+			logger.join(10000);
+			assertFalse(logger.isAlive());
+			
+			SQLiteConnection db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				SQLiteStatement st = db.prepare("SELECT connectionId, sequence, timestamp, data, command, target FROM events ORDER BY connectionId, sequence");
+				int count = 0;
+				for (int i = 0; i < sizes.length; i++) {
+					for (int j = 0; j < sizes[i]; j++, count++) {
+						assertTrue(st.step());
+						assertEquals(i, st.columnInt(0));
+						assertEquals(j, st.columnInt(1));
+						assertEquals(j, st.columnLong(2));
+						assertEquals(":a!b@c PRIVMSG #chan" + i + " :message " + j, Utils.fromUtf8(st.columnBlob(3)));
+						assertEquals("PRIVMSG", st.columnString(4));
+						assertEquals("#chan" + i, st.columnString(5));
+					}
+				}
+				assertFalse(st.step());
+				assertEquals(total, count);
+			} finally {
+				db.dispose();
+			}
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Rows from an older Connector get their command and target filled in while the logger runs, including empty lines
+	// (which SQLite returns as a null blob). The unused index that older versions created is dropped.
+	@Test public void testBackfillOldRows() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-logger").toFile();
+		try {
+			BackendConfiguration config = writeConfig(dir, "");
+			new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId();
+			SQLiteConnection db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				db.exec("CREATE INDEX events_command ON events(connectionId, command)");
+				db.exec("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES(0, 0, 1, 0, X'636F6E6E656374')");
+				db.exec("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES(0, 1, 2, 1, X'')");
+				db.exec("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES(0, 2, 3, 1, X'4A4F494E202363')");  // "JOIN #c"
+			} finally {
+				db.dispose();
+			}
+			
+			DatabaseLoggerThread logger = new DatabaseLoggerThread(config, NO_HANDLER);
+			assertEquals(1, logger.initAndGetNextConnectionId());
+			logger.start();
+			// Backfilling follows an ordinary batch, which is committed after the write delay rather than by a flush
+			logger.postEvent(new Event(1, 0, 4, Event.Type.CONNECTION, new CleanLine("connect example.com 6667 false nick")));
+			db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			db.setBusyTimeout(10000);
+			try {
+				SQLiteStatement st = db.prepare("SELECT count(*) FROM events WHERE command IS NULL");
+				for (int i = 0; ; i++) {
+					assertTrue(st.step());
+					if (st.columnInt(0) == 0)
+						break;
+					st.reset();
+					assertTrue(i < 3000);
+					Thread.sleep(10);
+				}
+				st.dispose();
+				assertTrue(logger.isAlive());
+				
+				st = db.prepare("SELECT command || ' ' || ifnull(target, '-') FROM events WHERE connectionId=0 ORDER BY sequence");
+				List<String> actual = new ArrayList<>();
+				while (st.step())
+					actual.add(st.columnString(0));
+				assertEquals(Arrays.asList(" -", " -", "JOIN #c"), actual);
+				st = db.prepare("SELECT count(*) FROM sqlite_master WHERE name='events_command'");
+				assertTrue(st.step());
+				assertEquals(0, st.columnInt(0));
+			} finally {
+				db.dispose();
+			}
+			logger.terminate();
+			logger.join(10000);
+			assertFalse(logger.isAlive());
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// A backup taken while events keep being committed must be a consistent copy: an intact database where each connection's
+	// rows are a prefix of the source's, with everything committed before the request. Commits must not stall meanwhile.
+	@Test public void testBackupWhileLogging() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-logger").toFile();
+		try {
+			BackendConfiguration config = writeConfig(dir, "");
+			DatabaseLoggerThread logger = new DatabaseLoggerThread(config, NO_HANDLER);
+			logger.initAndGetNextConnectionId();
+			
+			// Make the database large enough to need many backup steps
+			int numConnections = 4;
+			int[] nextSeqs = new int[numConnections];
+			SQLiteConnection db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				db.exec("BEGIN TRANSACTION");
+				SQLiteStatement st = db.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data, class, command, target) VALUES(?,?,?,1,?,0,'PRIVMSG','#chan')");
+				for (int i = 0; i < 100000; i++) {
+					int conId = i % numConnections;
+					st.bind(1, conId);
+					st.bind(2, nextSeqs[conId]);
+					st.bind(3, i);
+					st.bind(4, Utils.toUtf8(":alice!a@host PRIVMSG #chan :existing message number " + i + " with some padding text"));
+					st.step();
+					st.reset();
+					nextSeqs[conId]++;
+				}
+				db.exec("COMMIT TRANSACTION");
+			} finally {
+				db.dispose();
+			}
+			int rowsBefore = 100000;
+			
+			logger.start();
+			File target = new File(dir, "backup.sqlite");
+			assertTrue(logger.requestBackup(target, false));
+			List<Long> latencies = new ArrayList<>();  // In nanoseconds
+			int batchesDuringBackup = 0;
+			for (int i = 0; i < 100000 && (!target.exists() || batchesDuringBackup < 5); i++) {
+				for (int j = 0; j < 20; j++) {
+					int conId = j % numConnections;
+					logger.postEvent(new Event(conId, nextSeqs[conId]++, 200000 + i, Event.Type.RECEIVE, new CleanLine(":bob!b@host PRIVMSG #chan :new " + i + " " + j)));
+				}
+				long start = System.nanoTime();
+				logger.flushQueue();
+				latencies.add(System.nanoTime() - start);
+				if (target.exists())
+					batchesDuringBackup++;
+			}
+			logger.terminate();
+			logger.join(10000);
+			assertFalse(logger.isAlive());
+			assertTrue(target.isFile());
+			assertFalse(new File(dir, "backup.sqlite.part").exists());
+			
+			Collections.sort(latencies);
+			System.err.printf("Backup test: %d commits while copying, median %.1f ms, max %.1f ms%n", latencies.size() - batchesDuringBackup,
+				latencies.get(latencies.size() / 2) / 1e6, latencies.get(latencies.size() - 1) / 1e6);
+			assertTrue(latencies.get(latencies.size() - 1) < TimeUnit.SECONDS.toNanos(5));
+			
+			Map<Integer,Integer> sourceCounts = countRows(config.connectorDatabaseFile);
+			Map<Integer,Integer> backupCounts = countRows(target);
+			int backupTotal = 0;
+			for (int conId = 0; conId < numConnections; conId++) {
+				int n = backupCounts.get(conId);
+				assertTrue(n <= sourceCounts.get(conId));
+				backupTotal += n;
+			}
+			assertTrue(backupTotal >= rowsBefore);
+			
+			db = new SQLiteConnection(target);
+			db.open(false);
+			try {
+				SQLiteStatement st = db.prepare("PRAGMA integrity_check");
+				assertTrue(st.step());
+				assertEquals("ok", st.columnString(0));
+				// Each connection's sequences are gapless from 0, so the copy has no torn transaction
+				st = db.prepare("SELECT connectionId, min(sequence), max(sequence), count(*) FROM events GROUP BY connectionId");
+				while (st.step()) {
+					assertEquals(0, st.columnInt(1));
+					assertEquals(st.columnInt(3) - 1, st.columnInt(2));
+				}
+				st = db.prepare("ATTACH DATABASE ? AS source");
+				st.bind(1, config.connectorDatabaseFile.getPath());
+				st.step();
+				st = db.prepare("SELECT count(*) FROM events AS b JOIN source.events AS s USING(connectionId, sequence) "
+					+ "WHERE b.timestamp IS NOT s.timestamp OR b.data IS NOT s.data OR b.command IS NOT s.command");
+				assertTrue(st.step());
+				assertEquals(0, st.columnInt(0));
+			} finally {
+				db.dispose();
+			}
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Returns the number of events of each connection in the given database.
+	private static Map<Integer,Integer> countRows(File file) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.openReadonly();
+		try {
+			SQLiteStatement st = db.prepare("SELECT connectionId, count(*) FROM events GROUP BY connectionId");
+			Map<Integer,Integer> result = new HashMap<>();
+			while (st.step())
+				result.put(st.columnInt(0), st.columnInt(1));
+			return result;
+		} finally {
+			db.dispose();
+		}
+	}
+	
+	
+	private static final Runnable NO_HANDLER = new Runnable() {
+		public void run() {}
+	};
+	
+	
+	/*---- Helper functions ----*/
+	
+	// Writes a backend configuration with a database in the given directory, plus the given extra JSON members
+	// (each followed by a comma), and returns the parsed configuration.
+	static BackendConfiguration writeConfig(File dir, String extra) throws IOException {
+		File file = new File(dir, "config.json");
+		String json = "{\"data-type\": \"mamirc-backend-config\", " + extra
+			+ "\"connector-server-port\": 1, \"connector-password\": \"pw\", "
+			+ "\"connector-database-file\": \"" + new File(dir, "events.sqlite").getPath() + "\", "
+			+ "\"web-server-port\": 1, \"web-ui-password\": \"x\"}";
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(Utils.toUtf8(json));
+		}
+		return new BackendConfiguration(file);
+	}
+	
+	
+	static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+}
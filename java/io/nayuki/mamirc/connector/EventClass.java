@@ -0,0 +1,80 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.RawIrcLine;
+
+
+/* 
+ * A coarse classification of logged events, which determines how long each event is kept at full fidelity.
+ * The ordinal is stored in the 'class' column of the events table, so the order must never change.
+ */
+enum EventClass {
+	
+	/*---- Values ----*/
+	
+	CONVERSATION,  // Messages, connection state changes, and anything not covered below
+	MEMBERSHIP,    // Changes to channel membership and names
+	CHATTER;       // Protocol upkeep and boilerplate server replies
+	
+	
+	/*---- Static functions ----*/
+	
+	// Returns the parsed IRC line of the given event, or null if it is a connection
+	// event or its line has a syntax error. The result can be passed to classify().
+	public static RawIrcLine parseLine(Event ev) {
+		if (ev.type == Event.Type.CONNECTION)
+			return null;
+		try {
+			return new RawIrcLine(ev.line.getDataNoCopy());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+	
+	
+	// Returns the class of an event given its parsed line, which is null for connection events and
+	// lines with IRC syntax errors. These are classified as conversation, so they are kept.
+	public static EventClass classify(RawIrcLine line) {
+		if (line == null)
+			return CONVERSATION;
+		switch (line.getCommand()) {
+			case "JOIN":
+			case "PART":
+			case "QUIT":
+			case "KICK":
+			case "NICK":
+			case "MODE":
+			case "353":  // RPL_NAMREPLY
+			case "366":  // RPL_ENDOFNAMES
+				return MEMBERSHIP;
+			
+			case "PING":
+			case "PONG":
+			case "250":  // Connection statistics
+			case "251":  // RPL_LUSERCLIENT
+			case "252":  // RPL_LUSEROP
+			case "253":  // RPL_LUSERUNKNOWN
+			case "254":  // RPL_LUSERCHANNELS
+			case "255":  // RPL_LUSERME
+			case "265":  // Local user count
+			case "266":  // Global user count
+			case "372":  // RPL_MOTD
+			case "375":  // RPL_MOTDSTART
+			case "376":  // RPL_ENDOFMOTD
+			case "421":  // ERR_UNKNOWNCOMMAND, e.g. in response to keepalives
+				return CHATTER;
+			
+			default:
+				return CONVERSATION;
+		}
+	}
+	
+}
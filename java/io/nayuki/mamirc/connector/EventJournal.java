@@ -0,0 +1,208 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * An append-only file of events that have been queued but not yet committed to the database.
+ * The file is memory-mapped, so appending an event costs little more than copying its bytes.
+ * Written records survive a crash of the Connector process immediately (the operating system
+ * holds the dirty pages), and survive a power loss once force() has been called.
+ * 
+ * Record format (big endian): int bodyLength (positive), int crc32(body), body. The body is:
+ * int connectionId, int sequence, long timestamp, byte type, then the line data bytes.
+ * A bodyLength of 0 marks the end of the journal. Not thread-safe; the caller must synchronize, except that
+ * force() can run concurrently with the other methods.
+ */
+final class EventJournal {
+	
+	/*---- Fields ----*/
+	
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private volatile MappedByteBuffer buffer;  // Position is the offset of the end-of-journal marker
+	
+	
+	/*---- Constructor ----*/
+	
+	// Opens the given file (creating it if nonexistent) and empties it. Any
+	// records that need to be recovered must be read by readAll() beforehand.
+	public EventJournal(File f) throws IOException {
+		if (f == null)
+			throw new NullPointerException();
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		remap(Math.max(file.length(), INITIAL_SIZE));
+		clear();
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Appends the given event to the journal.
+	public void append(Event ev) throws IOException {
+		byte[] record = toRecord(ev);
+		int needed = record.length + 4;  // Including the new end marker
+		if (buffer.remaining() < needed) {
+			long size = buffer.capacity();
+			while (size - buffer.position() < needed)
+				size *= 2;
+			remap(size);
+		}
+		
+		int start = buffer.position();
+		// Write the new end marker first, so that a crash midway never exposes stale records
+		buffer.putInt(start + record.length, 0);
+		buffer.position(start + 4);
+		buffer.put(record, 4, record.length - 4);
+		buffer.putInt(start, record.length - 8);  // Commits the record
+	}
+	
+	
+	// Empties the journal and then appends the given events, which are the ones still not committed.
+	public void reset(Collection<Event> pending) throws IOException {
+		clear();
+		for (Event ev : pending)
+			append(ev);
+	}
+	
+	
+	// Forces the written records to the storage device. Can be called while another thread appends, resets, or closes
+	// the journal: the mapping stays valid after closing, and a record appended meanwhile might not be forced yet.
+	public void force() {
+		buffer.force();
+	}
+	
+	
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+	
+	
+	private void clear() {
+		buffer.putInt(0, 0);
+		buffer.position(0);
+	}
+	
+	
+	private void remap(long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Journal too large");
+		int pos = buffer != null ? buffer.position() : 0;
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		buffer.position(pos);
+	}
+	
+	
+	/*---- Static functions ----*/
+	
+	// Returns all intact records in the given journal (or spill) file, in order. Reading stops at the
+	// end marker or at the first torn/corrupt record. Returns an empty list if the file doesn't exist.
+	public static List<Event> readAll(File f) throws IOException {
+		List<Event> result = new ArrayList<>();
+		if (!f.isFile())
+			return result;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+			while (true) {
+				Event ev = readRecord(in);
+				if (ev == null)
+					break;
+				result.add(ev);
+			}
+		}
+		return result;
+	}
+	
+	
+	// Returns a new array containing the full record (header and body) for the given event.
+	static byte[] toRecord(Event ev) {
+		byte[] data = ev.line.getDataNoCopy();
+		int bodyLen = BODY_HEADER_SIZE + data.length;
+		ByteBuffer bb = ByteBuffer.allocate(8 + bodyLen);
+		bb.putInt(bodyLen);
+		bb.putInt(0);  // Checksum placeholder
+		bb.putInt(ev.connectionId);
+		bb.putInt(ev.sequence);
+		bb.putLong(ev.timestamp);
+		bb.put((byte)ev.type.ordinal());
+		bb.put(data);
+		CRC32 crc = new CRC32();
+		crc.update(bb.array(), 8, bodyLen);
+		bb.putInt(4, (int)crc.getValue());
+		return bb.array();
+	}
+	
+	
+	// Returns the length of the record that toRecord() would produce for the given event.
+	static int recordLength(Event ev) {
+		return 8 + BODY_HEADER_SIZE + ev.line.getDataNoCopy().length;
+	}
+	
+	
+	// Reads one record from the given input, returning the event or null if the
+	// end marker, the end of input, or a torn/corrupt record was encountered.
+	static Event readRecord(DataInput in) throws IOException {
+		try {
+			int bodyLen = in.readInt();
+			int expectCrc = in.readInt();
+			if (bodyLen < BODY_HEADER_SIZE || bodyLen > MAX_BODY_LENGTH)
+				return null;
+			byte[] body = new byte[bodyLen];
+			in.readFully(body);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int)crc.getValue() != expectCrc)
+				return null;
+			
+			ByteBuffer bb = ByteBuffer.wrap(body);
+			int conId = bb.getInt();
+			int seq = bb.getInt();
+			long time = bb.getLong();
+			int type = bb.get();
+			if (type < 0 || type >= Event.Type.values().length)
+				return null;
+			byte[] data = new byte[bodyLen - BODY_HEADER_SIZE];
+			bb.get(data);
+			return new Event(conId, seq, time, Event.Type.fromOrdinal(type), new CleanLine(data, false));
+		} catch (EOFException e) {
+			return null;
+		} catch (IllegalArgumentException e) {  // Invalid characters in line
+			return null;
+		}
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	private static final int BODY_HEADER_SIZE = 4 + 4 + 8 + 1;
+	
+	private static final int MAX_BODY_LENGTH = 1 << 20;
+	
+	private static final long INITIAL_SIZE = 1 << 20;
+	
+}
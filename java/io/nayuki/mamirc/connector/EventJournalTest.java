@@ -0,0 +1,230 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+
+
+public final class EventJournalTest {
+	
+	@Test public void testAppendAndReadAll() throws IOException {
+		File file = File.createTempFile("mamirc-journal", ".bin");
+		try {
+			List<Event> events = makeEvents(50);
+			EventJournal journal = new EventJournal(file);
+			for (Event ev : events)
+				journal.append(ev);
+			assertEventsEqual(events, EventJournal.readAll(file));  // Readable without closing, as after a crash
+			journal.close();
+			assertEventsEqual(events, EventJournal.readAll(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	// Records beyond the initial mapping make the journal grow.
+	@Test public void testGrow() throws IOException {
+		File file = File.createTempFile("mamirc-journal", ".bin");
+		try {
+			EventJournal journal = new EventJournal(file);
+			List<Event> events = new ArrayList<>();
+			byte[] data = new byte[5000];
+			Arrays.fill(data, (byte)'x');
+			for (int i = 0; i < 500; i++) {  // About 2.5 MB
+				Event ev = new Event(1, i, i, Event.Type.RECEIVE, new CleanLine(data, false));
+				events.add(ev);
+				journal.append(ev);
+			}
+			journal.close();
+			assertEventsEqual(events, EventJournal.readAll(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	// The logger forces the journal without holding its lock, so force() must tolerate appends that grow the mapping.
+	@Test public void testForceWhileAppending() throws IOException, InterruptedException {
+		File file = File.createTempFile("mamirc-journal", ".bin");
+		try {
+			final EventJournal journal = new EventJournal(file);
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final AtomicReference<Throwable> error = new AtomicReference<>();
+			Thread forcer = new Thread() {
+				public void run() {
+					try {
+						while (!stop.get())
+							journal.force();
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			forcer.start();
+			List<Event> events = new ArrayList<>();
+			byte[] data = new byte[5000];
+			Arrays.fill(data, (byte)'y');
+			for (int i = 0; i < 500; i++) {
+				Event ev = new Event(2, i, i, Event.Type.SEND, new CleanLine(data, false));
+				events.add(ev);
+				journal.append(ev);
+			}
+			stop.set(true);
+			forcer.join();
+			journal.close();
+			assertNull(error.get());
+			assertEventsEqual(events, EventJournal.readAll(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	// A reset must hide the older records that lie beyond the new ones, and reopening must empty the journal.
+	@Test public void testResetAndReopen() throws IOException {
+		File file = File.createTempFile("mamirc-journal", ".bin");
+		try {
+			List<Event> events = makeEvents(20);
+			EventJournal journal = new EventJournal(file);
+			for (Event ev : events)
+				journal.append(ev);
+			journal.reset(events.subList(15, 18));
+			assertEventsEqual(events.subList(15, 18), EventJournal.readAll(file));
+			journal.reset(new ArrayList<Event>());
+			assertEquals(0, EventJournal.readAll(file).size());
+			journal.append(events.get(0));
+			journal.close();
+			
+			new EventJournal(file).close();
+			assertEquals(0, EventJournal.readAll(file).size());
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	// Simulates a crash in the middle of appending the last record, in each way that the bytes can be left behind.
+	@Test public void testTornTrailingRecord() throws IOException {
+		File file = File.createTempFile("mamirc-journal", ".bin");
+		try {
+			List<Event> events = makeEvents(10);
+			EventJournal journal = new EventJournal(file);
+			for (Event ev : events)
+				journal.append(ev);
+			journal.close();
+			long lastStart = 0;
+			for (Event ev : events.subList(0, 9))
+				lastStart += EventJournal.recordLength(ev);
+			long end = lastStart + EventJournal.recordLength(events.get(9));
+			byte[] original = readBytes(file);
+			
+			// Length not committed yet, so it still reads as the end marker
+			writeInt(file, lastStart, 0);
+			assertEventsEqual(events.subList(0, 9), EventJournal.readAll(file));
+			
+			// Body partly written, so the checksum doesn't match
+			writeBytes(file, original);
+			writeInt(file, end - 4, 0x5A5A5A5A);
+			assertEventsEqual(events.subList(0, 9), EventJournal.readAll(file));
+			
+			// Invalid length
+			writeBytes(file, original);
+			writeInt(file, lastStart, -7);
+			assertEventsEqual(events.subList(0, 9), EventJournal.readAll(file));
+			
+			// File cut short in the body and in the header (e.g. a spill file written with plain appends)
+			for (long len : new long[]{end - 1, lastStart + 6, lastStart}) {
+				writeBytes(file, original);
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(len);
+				}
+				assertEventsEqual(events.subList(0, 9), EventJournal.readAll(file));
+			}
+			
+			// Reading stops at the first bad record, even if intact ones follow
+			writeBytes(file, original);
+			writeInt(file, EventJournal.recordLength(events.get(0)) + 4, 0);  // Checksum of second record
+			assertEventsEqual(events.subList(0, 1), EventJournal.readAll(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test public void testReadNonexistent() throws IOException {
+		assertEquals(0, EventJournal.readAll(new File("/nonexistent/mamirc-journal.bin")).size());
+	}
+	
+	
+	/*---- Helper functions ----*/
+	
+	static List<Event> makeEvents(int count) {
+		List<Event> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Event.Type type = Event.Type.fromOrdinal(i % 3);
+			String line = i % 5 == 0 ? "" : ":nick!user@host PRIVMSG #chan :message \u00E9 " + i;
+			result.add(new Event(i / 4, i % 4, 1500000000000L + i, type, new CleanLine(line)));
+		}
+		return result;
+	}
+	
+	
+	static void assertEventsEqual(List<Event> expect, List<Event> actual) {
+		assertEquals(expect.size(), actual.size());
+		for (int i = 0; i < expect.size(); i++) {
+			Event x = expect.get(i);
+			Event y = actual.get(i);
+			assertEquals(x.connectionId, y.connectionId);
+			assertEquals(x.sequence, y.sequence);
+			assertEquals(x.timestamp, y.timestamp);
+			assertEquals(x.type, y.type);
+			assertArrayEquals(x.line.getDataNoCopy(), y.line.getDataNoCopy());
+		}
+	}
+	
+	
+	private static byte[] readBytes(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte[] result = new byte[(int)raf.length()];
+			raf.readFully(result);
+			return result;
+		}
+	}
+	
+	
+	private static void writeBytes(File file, byte[] b) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(0);
+			raf.write(b);
+		}
+	}
+	
+	
+	private static void writeInt(File file, long offset, int val) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			raf.writeInt(val);
+		}
+	}
+	
+}
@@ -0,0 +1,168 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A stand-alone benchmark of the two layouts of the events table, run by hand when changing the schema: an ordinary
+ * rowid table (as created by older Connectors) and a WITHOUT ROWID table clustered on (connectionId, sequence). Each
+ * round creates a fresh database of each layout with the Connector's indexes, inserts the same events in transactions
+ * of 1000 (with several connections interleaved, like a live Connector), then replays each connection in sequence order
+ * in ranges, like the Processor's catch-up query. Reports the time per event and the file size.
+ * Usage: java io/nayuki/mamirc/connector/EventsTableBenchmark [NumEvents]
+ */
+final class EventsTableBenchmark {
+	
+	public static void main(String[] args) throws IOException, SQLiteException {
+		int numEvents = args.length >= 1 ? Integer.parseInt(args[0]) : 200000;
+		for (int round = 0; round < 3; round++) {
+			File dir = Files.createTempDirectory("mamirc-bench").toFile();
+			try {
+				for (boolean withoutRowid : new boolean[]{false, true}) {
+					File dbFile = makeDatabase(new File(dir, withoutRowid ? "clustered" : "rowid"), withoutRowid);
+					double insert = runInsert(dbFile, numEvents);
+					double replay = runReplay(dbFile);
+					System.err.printf("Round %d, %-15s insert %.2f us/event, replay %.0f ns/event, %d KiB%n", round,
+						withoutRowid ? "WITHOUT ROWID:" : "rowid:", insert, replay, dbFile.length() / 1024);
+				}
+			} finally {
+				deleteAll(dir);
+			}
+		}
+	}
+	
+	
+	// Returns the time per event in microseconds.
+	private static double runInsert(File dbFile, int numEvents) throws SQLiteException {
+		SQLiteConnection database = new SQLiteConnection(dbFile);
+		database.open(false);
+		try {
+			database.exec("PRAGMA journal_mode = PERSIST");  // Like the logger
+			SQLiteStatement insert = database.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data, class, command, target) VALUES(?,?,?,?,?,?,?,?)");
+			Random rand = new Random(1);
+			int[] nextSeqs = new int[NUM_CONNECTIONS];
+			long start = System.nanoTime();
+			for (int i = 0; i < numEvents; i++) {
+				if (i % 1000 == 0)
+					database.exec("BEGIN TRANSACTION");
+				int conId = rand.nextInt(NUM_CONNECTIONS);
+				String target = "#channel" + rand.nextInt(5);
+				insert.bind(1, conId);
+				insert.bind(2, nextSeqs[conId]);
+				insert.bind(3, 1500000000000L + i);
+				insert.bind(4, 1);
+				insert.bind(5, Utils.toUtf8(":user" + rand.nextInt(200) + "!u@example.net PRIVMSG " + target + " :message number " + i));
+				insert.bind(6, 0);
+				insert.bind(7, "PRIVMSG");
+				insert.bind(8, target);
+				Utils.stepStatement(insert, false);
+				nextSeqs[conId]++;
+				if (i % 1000 == 999 || i == numEvents - 1)
+					database.exec("COMMIT TRANSACTION");
+			}
+			return (System.nanoTime() - start) / 1000.0 / numEvents;
+		} finally {
+			database.dispose();
+		}
+	}
+	
+	
+	// Returns the time per event in nanoseconds.
+	private static double runReplay(File dbFile) throws SQLiteException {
+		SQLiteConnection database = new SQLiteConnection(dbFile);
+		database.openReadonly();
+		try {
+			SQLiteStatement query = database.prepare("SELECT sequence, timestamp, type, data FROM events WHERE connectionId=? AND sequence>=? AND sequence<? ORDER BY sequence ASC");
+			long start = System.nanoTime();
+			long count = 0;
+			for (int conId = 0; conId < NUM_CONNECTIONS; conId++) {
+				for (int seq = 0; ; seq += REPLAY_RANGE) {
+					query.bind(1, conId);
+					query.bind(2, seq);
+					query.bind(3, seq + REPLAY_RANGE);
+					int rows = 0;
+					while (query.step()) {
+						query.columnBlob(3);
+						rows++;
+					}
+					query.reset();
+					count += rows;
+					if (rows < REPLAY_RANGE)
+						break;
+				}
+			}
+			return (double)(System.nanoTime() - start) / count;
+		} finally {
+			database.dispose();
+		}
+	}
+	
+	
+	// Creates a database in a new directory with the given table layout and the Connector's indexes, and returns its file.
+	private static File makeDatabase(File dir, boolean withoutRowid) throws IOException, SQLiteException {
+		if (!dir.mkdir())
+			throw new IOException("Cannot create directory " + dir);
+		File dbFile = new File(dir, "events.sqlite");
+		SQLiteConnection database = new SQLiteConnection(dbFile);
+		database.open(true);
+		try {
+			String def = DatabaseLoggerThread.EVENTS_TABLE_DEFINITION;
+			database.exec("CREATE TABLE events" + (withoutRowid ? def : def.replace(" WITHOUT ROWID", "")));
+		} finally {
+			database.dispose();
+		}
+		
+		File file = new File(dir, "config.json");
+		String json = "{\"data-type\": \"mamirc-backend-config\", "
+			+ "\"connector-server-port\": 1, \"connector-password\": \"pw\", "
+			+ "\"connector-database-file\": \"" + dbFile.getPath() + "\", "
+			+ "\"web-server-port\": 1, \"web-ui-password\": \"x\"}";
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(Utils.toUtf8(json));
+		}
+		new DatabaseLoggerThread(new BackendConfiguration(file), NO_HANDLER).initAndGetNextConnectionId();  // Adds the indexes
+		return dbFile;
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+	
+	private static final Runnable NO_HANDLER = new Runnable() {
+		public void run() {}
+	};
+	
+	private static final int NUM_CONNECTIONS = 8;
+	
+	private static final int REPLAY_RANGE = 10000;
+	
+	
+	// Not instantiable.
+	private EventsTableBenchmark() {}
+	
+}
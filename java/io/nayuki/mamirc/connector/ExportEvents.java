@@ -0,0 +1,389 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.RawIrcLine;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A stand-alone program that exports the events table of a Connector database to columnar files for analysis.
+ * The table is split into chunks of whole connections with about a million events each, and the chunks are
+ * exported in parallel by a fork/join pool, each on its own read-only database connection. Each chunk becomes a
+ * directory named chunk-<firstConnectionId>-<lastConnectionId> with one gzip file per column, where line i of every
+ * file belongs to row i. The columns are: timestamp (Unix milliseconds), connection (ID), command (uppercase, or
+ * empty for connection state changes and unparsable lines), nick (the sender; for sent lines, the connection's
+ * own nickname if known), target (first parameter), and text (last parameter if there are at least two; the whole
+ * line for connection state changes and unparsable lines). Events with blank data are skipped.
+ * 
+ * The chunk plan is saved in the output directory as plan.txt, and each finished chunk is appended to done.txt.
+ * Running the program again on the same output directory skips the finished chunks. Connections created after
+ * the plan was made are not exported; delete the output directory to start over.
+ */
+public final class ExportEvents {
+	
+	public static void main(String[] args) throws IOException, SQLiteException, InterruptedException {
+		if (args.length != 2 && args.length != 3) {
+			System.err.println("Usage: java io/nayuki/mamirc/connector/ExportEvents BackendConfig.json OutputDirectory [Threads]");
+			System.exit(1);
+		}
+		Logger.getLogger("com.almworks.sqlite4java").setLevel(Level.OFF);
+		BackendConfiguration config = new BackendConfiguration(new File(args[0]));
+		File outDir = new File(args[1]);
+		int threads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		if (threads < 1)
+			throw new IllegalArgumentException("Invalid number of threads");
+		export(config.connectorDatabaseFile, outDir, threads, CHUNK_ROWS);
+		System.err.println("Export complete");
+	}
+	
+	
+	// Exports the given database into the given directory with the given number of threads, making a plan with
+	// chunks of about the given number of rows if the directory has none, and skipping the chunks already done.
+	static void export(File databaseFile, File outDir, int threads, long chunkRows) throws IOException, SQLiteException, InterruptedException {
+		// Make or load the plan, and skip the chunks already done
+		if (!outDir.isDirectory() && !outDir.mkdirs())
+			throw new IOException("Cannot create output directory");
+		File planFile = new File(outDir, "plan.txt");
+		if (!planFile.isFile())
+			writePlan(makePlan(databaseFile, chunkRows), planFile);
+		List<int[]> chunks = new ArrayList<>();
+		Set<String> done = new HashSet<>(readLines(new File(outDir, "done.txt")));
+		for (String line : readLines(planFile)) {
+			String[] parts = line.split(" ");
+			int[] chunk = {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+			if (!done.contains(chunkName(chunk)))
+				chunks.add(chunk);
+		}
+		System.err.println((done.size() + chunks.size()) + " chunks in plan, " + chunks.size() + " to export, using " + threads + " threads");
+		
+		// Export in parallel, reporting throughput periodically
+		Exporter exporter = new Exporter(databaseFile, outDir);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		ForkJoinTask<Void> task = pool.submit(new ChunkTask(exporter, chunks, 0, chunks.size()));
+		long start = System.nanoTime();
+		while (true) {
+			try {
+				task.get(REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+				break;
+			} catch (TimeoutException e) {
+				exporter.report(start);
+			} catch (ExecutionException e) {
+				pool.shutdownNow();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		pool.shutdown();
+		exporter.report(start);
+	}
+	
+	
+	// Splits the table into chunks of consecutive connection IDs, each with about the given number of events
+	// (but never splitting a connection). Returns a list of {first, last} connection ID pairs.
+	private static List<int[]> makePlan(File databaseFile, long chunkRows) throws SQLiteException {
+		List<int[]> result = new ArrayList<>();
+		SQLiteConnection database = new SQLiteConnection(databaseFile);
+		try {
+			database.openReadonly();
+			database.setBusyTimeout(60000);
+			SQLiteStatement query = database.prepare("SELECT connectionId, count(*) FROM events GROUP BY connectionId ORDER BY connectionId");
+			int first = -1;
+			int last = -1;
+			long rows = 0;
+			while (query.step()) {
+				if (first == -1)
+					first = query.columnInt(0);
+				last = query.columnInt(0);
+				rows += query.columnLong(1);
+				if (rows >= chunkRows) {
+					result.add(new int[]{first, last});
+					first = -1;
+					rows = 0;
+				}
+			}
+			if (first != -1)
+				result.add(new int[]{first, last});
+		} finally {
+			database.dispose();
+		}
+		return result;
+	}
+	
+	
+	private static void writePlan(List<int[]> plan, File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+			for (int[] chunk : plan)
+				out.write(chunk[0] + " " + chunk[1] + "\n");
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Cannot rename plan file");
+	}
+	
+	
+	private static List<String> readLines(File file) throws IOException {
+		if (!file.isFile())
+			return new ArrayList<>();
+		List<String> result = new ArrayList<>();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			if (!line.isEmpty())
+				result.add(line);
+		}
+		return result;
+	}
+	
+	
+	private static String chunkName(int[] chunk) {
+		return "chunk-" + chunk[0] + "-" + chunk[1];
+	}
+	
+	
+	// Returns the column values for the given event, updating the connection's own nickname if it changes.
+	// Events are given in sequence order within each connection, which the nickname tracking relies on.
+	static String[] toRow(int conId, long timestamp, int type, byte[] data, Map<Integer,String> ownNicks) {
+		String[] row = {Long.toString(timestamp), Integer.toString(conId), "", "", "", ""};
+		RawIrcLine line = null;
+		if (type != 0) {
+			try {
+				line = new RawIrcLine(data);
+			} catch (IllegalArgumentException e) {}  // Exported as unparsable
+		}
+		if (line == null) {
+			row[5] = Utils.fromUtf8(data);
+			return row;
+		}
+		
+		row[2] = line.getCommand();
+		int params = line.getParameterCount();
+		String nick = null;
+		if (type == 1 && line.hasPrefix()) {
+			String prefix = Utils.fromUtf8(Arrays.copyOfRange(data, line.prefixStart, line.prefixEnd));
+			int i = prefix.indexOf('!');
+			nick = i != -1 ? prefix.substring(0, i) : prefix;
+		} else if (type == 2)
+			nick = ownNicks.get(conId);
+		if (params >= 1)
+			row[4] = line.getParameterString(0);
+		if (params >= 2)
+			row[5] = line.getParameterString(params - 1);
+		if (nick != null)
+			row[3] = nick;
+		
+		// Track the connection's own nickname
+		if (type == 1 && line.commandEquals("001") && params >= 1)
+			ownNicks.put(conId, row[4]);
+		else if (type == 1 && line.commandEquals("NICK") && params >= 1 && nick != null && nick.equals(ownNicks.get(conId)))
+			ownNicks.put(conId, row[4]);
+		return row;
+	}
+	
+	
+	private static void deleteDirectory(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (!f.delete())
+				throw new IOException("Cannot delete " + f);
+		}
+		if (!dir.delete())
+			throw new IOException("Cannot delete " + dir);
+	}
+	
+	
+	private static final int BLOCK_ROWS = 1000;
+	
+	private static final long CHUNK_ROWS = 1000000;
+	
+	private static final int REPORT_INTERVAL = 10000;  // In milliseconds
+	
+	static final String[] COLUMNS = {"timestamp", "connection", "command", "nick", "target", "text"};
+	
+	
+	// Not instantiable.
+	private ExportEvents() {}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	// Exports the chunks in the given index range, splitting it in halves until one chunk is left.
+	private static final class ChunkTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 0;  // Never serialized; required of a Serializable class
+		
+		private final Exporter exporter;
+		private final List<int[]> chunks;
+		private final int start;
+		private final int end;
+		
+		
+		public ChunkTask(Exporter exporter, List<int[]> chunks, int start, int end) {
+			this.exporter = exporter;
+			this.chunks = chunks;
+			this.start = start;
+			this.end = end;
+		}
+		
+		
+		protected void compute() {
+			if (end - start == 0)
+				return;
+			else if (end - start == 1) {
+				try {
+					exporter.exportChunk(chunks.get(start));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				} catch (SQLiteException e) {
+					throw new RuntimeException(e);
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new ChunkTask(exporter, chunks, start, mid), new ChunkTask(exporter, chunks, mid, end));
+			}
+		}
+		
+	}
+	
+	
+	
+	// The state shared by all the chunk tasks. Thread-safe.
+	private static final class Exporter {
+		
+		private final File databaseFile;
+		private final File outputDirectory;
+		private final AtomicLong rowsExported;
+		private final AtomicLong bytesRead;
+		private final AtomicLong chunksDone;
+		
+		
+		public Exporter(File databaseFile, File outputDirectory) {
+			this.databaseFile = databaseFile;
+			this.outputDirectory = outputDirectory;
+			rowsExported = new AtomicLong();
+			bytesRead = new AtomicLong();
+			chunksDone = new AtomicLong();
+		}
+		
+		
+		// Writes the chunk's columns into a temporary directory, renames it, and then records it as done.
+		public void exportChunk(int[] chunk) throws IOException, SQLiteException {
+			String name = chunkName(chunk);
+			File temp = new File(outputDirectory, name + ".tmp");
+			File dir = new File(outputDirectory, name);
+			deleteDirectory(temp);  // Left over from an interrupted run
+			deleteDirectory(dir);
+			if (!temp.mkdir())
+				throw new IOException("Cannot create directory " + temp);
+			
+			Writer[] columns = new Writer[COLUMNS.length];
+			SQLiteConnection database = new SQLiteConnection(databaseFile);
+			try {
+				for (int i = 0; i < columns.length; i++) {
+					columns[i] = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(
+						new FileOutputStream(new File(temp, COLUMNS[i] + ".gz")), 65536), StandardCharsets.UTF_8), 65536);
+				}
+				database.openReadonly();
+				database.setBusyTimeout(60000);
+				exportRows(database, chunk, columns);
+			} finally {
+				database.dispose();
+				for (Writer w : columns) {
+					if (w != null)
+						w.close();
+				}
+			}
+			
+			if (!temp.renameTo(dir))
+				throw new IOException("Cannot rename directory " + temp);
+			synchronized(this) {
+				try (Writer out = new FileWriter(new File(outputDirectory, "done.txt"), true)) {
+					out.write(name + "\n");
+				}
+			}
+			chunksDone.incrementAndGet();
+		}
+		
+		
+		private void exportRows(SQLiteConnection database, int[] chunk, Writer[] columns) throws IOException, SQLiteException {
+			SQLiteStatement query = database.prepare("SELECT connectionId, timestamp, type, data FROM events "
+				+ "WHERE connectionId>=? AND connectionId<=? AND length(data)>0 ORDER BY connectionId, sequence");
+			query.bind(1, chunk[0]);
+			query.bind(2, chunk[1]);
+			Map<Integer,String> ownNicks = new HashMap<>();
+			List<long[]> keys = new ArrayList<>();  // Each is {connectionId, timestamp, type}
+			List<byte[]> datas = new ArrayList<>();
+			boolean more = true;
+			while (more) {
+				// Read a block of rows, so that payload references can be resolved in batches
+				keys.clear();
+				datas.clear();
+				while (keys.size() < BLOCK_ROWS && (more = query.step())) {
+					keys.add(new long[]{query.columnInt(0), query.columnLong(1), query.columnInt(2)});
+					datas.add(Utils.columnBytes(query, 3));
+				}
+				PayloadStore.resolveAll(database, datas);
+				long bytes = 0;
+				for (int i = 0; i < keys.size(); i++) {
+					long[] key = keys.get(i);
+					byte[] data = datas.get(i);
+					bytes += data.length;
+					String[] row = toRow((int)key[0], key[1], (int)key[2], data, ownNicks);
+					for (int j = 0; j < columns.length; j++) {
+						columns[j].write(row[j]);
+						columns[j].write('\n');
+					}
+				}
+				rowsExported.addAndGet(keys.size());
+				bytesRead.addAndGet(bytes);
+			}
+		}
+		
+		
+		public void report(long startTime) {
+			double secs = (System.nanoTime() - startTime) / 1e9;
+			long rows = rowsExported.get();
+			System.err.printf("%d chunks, %d rows, %.1f MB of line data in %.0f s (%.0f rows/s, %.1f MB/s)%n",
+				chunksDone.get(), rows, bytesRead.get() / 1e6, secs, rows / secs, bytesRead.get() / 1e6 / secs);
+		}
+		
+	}
+	
+}
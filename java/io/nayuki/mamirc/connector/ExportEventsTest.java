@@ -0,0 +1,156 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class ExportEventsTest {
+	
+	@Test public void testToRow() {
+		Map<Integer,String> nicks = new HashMap<>();
+		assertArrayEquals(new String[]{"1000", "5", "", "", "", "connect irc.example.com 6697 ssl Example"},
+			row(5, 1000, 0, "connect irc.example.com 6697 ssl Example", nicks));
+		assertArrayEquals(new String[]{"1001", "5", "001", "irc.example.com", "Bob", "Welcome Bob"},
+			row(5, 1001, 1, ":irc.example.com 001 Bob :Welcome Bob", nicks));
+		assertArrayEquals(new String[]{"1002", "5", "PRIVMSG", "Alice", "#London", "Hello, world!"},
+			row(5, 1002, 1, ":Alice!alice@example.com PRIVMSG #London :Hello, world!", nicks));
+		assertArrayEquals(new String[]{"1003", "5", "PRIVMSG", "Bob", "Alice", "Hi"},
+			row(5, 1003, 2, "privmsg Alice :Hi", nicks));
+		assertArrayEquals(new String[]{"1004", "5", "NICK", "Bob", "Robert", ""},
+			row(5, 1004, 1, ":Bob!bob@example.com NICK Robert", nicks));
+		assertArrayEquals(new String[]{"1005", "5", "JOIN", "Robert", "#Paris", ""},
+			row(5, 1005, 2, "JOIN #Paris", nicks));
+		assertArrayEquals(new String[]{"1006", "6", "PONG", "", "", ""},
+			row(6, 1006, 2, "PONG", nicks));
+		assertArrayEquals(new String[]{"1007", "6", "", "", "", ":"},
+			row(6, 1007, 1, ":", nicks));
+	}
+	
+	
+	// Exports a database written by the logger (with deduplicated payloads) in several chunks on several threads, and checks
+	// every column of every row. Then an unfinished chunk is exported again on the next run, and the finished ones are kept.
+	@Test public void testExport() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-export").toFile();
+		try {
+			BackendConfiguration config = DatabaseLoggerThreadTest.writeConfig(dir, "\"connector-dedup-min-length\": 20, ");
+			DatabaseLoggerThread logger = new DatabaseLoggerThread(config, new Runnable() {
+				public void run() {}
+			});
+			logger.initAndGetNextConnectionId();
+			logger.start();
+			List<Event> events = new ArrayList<>();
+			for (int conId = 0; conId < 12; conId++) {
+				int seq = 0;
+				events.add(new Event(conId, seq++, 1000 * conId, Event.Type.CONNECTION, new CleanLine("connect irc.example.com 6667 false Net" + conId)));
+				events.add(new Event(conId, seq++, 1000 * conId + 1, Event.Type.RECEIVE, new CleanLine(":irc.example.com 001 Me" + conId + " :Welcome")));
+				for (int i = 0; i < conId * 3; i++) {
+					events.add(new Event(conId, seq++, 1000 * conId + seq, Event.Type.RECEIVE, new CleanLine(":alice!a@host PRIVMSG #chat :a line long enough to be deduplicated")));
+					events.add(new Event(conId, seq++, 1000 * conId + seq, Event.Type.SEND, new CleanLine("PRIVMSG #chat :reply " + i)));
+				}
+				events.add(new Event(conId, seq++, 1000 * conId + seq, Event.Type.CONNECTION, new CleanLine("closed")));
+			}
+			for (Event ev : events)
+				logger.postEvent(ev);
+			logger.flushQueue();
+			logger.terminate();
+			logger.join(10000);
+			
+			File outDir = new File(dir, "export");
+			ExportEvents.export(config.connectorDatabaseFile, outDir, 3, 40);
+			List<String> plan = Files.readAllLines(new File(outDir, "plan.txt").toPath());
+			assertTrue(plan.size() >= 4);
+			List<String> done = Files.readAllLines(new File(outDir, "done.txt").toPath());
+			assertEquals(plan.size(), done.size());
+			
+			// Every event in connection order, each in the chunk that covers its connection
+			Map<Integer,String> nicks = new HashMap<>();
+			List<List<String>> expected = new ArrayList<>();
+			for (Event ev : events)
+				expected.add(Arrays.asList(ExportEvents.toRow(ev.connectionId, ev.timestamp, ev.type.ordinal(), ev.line.getDataNoCopy(), nicks)));
+			assertEquals("Me11", expected.get(expected.size() - 2).get(3));  // Own nickname of a sent line
+			List<List<String>> actual = new ArrayList<>();
+			for (String line : plan) {
+				String name = "chunk-" + line.replace(' ', '-');
+				assertTrue(done.contains(name));
+				actual.addAll(readChunk(new File(outDir, name)));
+			}
+			assertEquals(expected, actual);
+			
+			// Forget the last chunk, and mark a finished one, which must not be exported again
+			String last = done.get(done.size() - 1);
+			Files.write(new File(outDir, "done.txt").toPath(), Utils.toUtf8(String.join("\n", done.subList(0, done.size() - 1)) + "\n"));
+			File marker = new File(new File(outDir, done.get(0)), "marker");
+			assertTrue(marker.createNewFile());
+			ExportEvents.export(config.connectorDatabaseFile, outDir, 3, 40);
+			assertTrue(marker.isFile());
+			assertEquals(done.size(), Files.readAllLines(new File(outDir, "done.txt").toPath()).size());
+			assertFalse(new File(outDir, last + ".tmp").exists());
+			actual.clear();
+			for (String line : plan)
+				actual.addAll(readChunk(new File(outDir, "chunk-" + line.replace(' ', '-'))));
+			assertEquals(expected, actual);
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// Returns the rows of the given chunk directory, reading each column file.
+	private static List<List<String>> readChunk(File chunkDir) throws IOException {
+		List<List<String>> columns = new ArrayList<>();
+		for (String name : ExportEvents.COLUMNS) {
+			List<String> lines = new ArrayList<>();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+					new FileInputStream(new File(chunkDir, name + ".gz"))), StandardCharsets.UTF_8))) {
+				for (String line = in.readLine(); line != null; line = in.readLine())
+					lines.add(line);
+			}
+			if (!columns.isEmpty())
+				assertEquals(columns.get(0).size(), lines.size());
+			columns.add(lines);
+		}
+		List<List<String>> result = new ArrayList<>();
+		for (int i = 0; i < columns.get(0).size(); i++) {
+			List<String> row = new ArrayList<>();
+			for (List<String> col : columns)
+				row.add(col.get(i));
+			result.add(row);
+		}
+		return result;
+	}
+	
+	
+	private static String[] row(int conId, long time, int type, String line, Map<Integer,String> nicks) {
+		return ExportEvents.toRow(conId, time, type, Utils.toUtf8(line), nicks);
+	}
+	
+}
@@ -0,0 +1,162 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.RawIrcLine;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A stand-alone benchmark of inserting logged events into a real SQLite database with the Connector's schema, run by hand
+ * when changing DatabaseLoggerThread. Each round writes the same batches two ways into a fresh database: the baseline uses
+ * one single-row INSERT step per event (as the logger did before multi-row statements), and the other posts the events
+ * to a DatabaseLoggerThread and flushes it, which inserts them in chunks of 64, 16, 4, and 1 rows. Both classify each line
+ * and commit one transaction per batch with SQLite's default durability, so the time per event includes the syncs.
+ * Usage: java io/nayuki/mamirc/connector/InsertBenchmark [NumEvents [BatchSize]]
+ */
+final class InsertBenchmark {
+	
+	public static void main(String[] args) throws IOException, SQLiteException, InterruptedException {
+		int numEvents = args.length >= 1 ? Integer.parseInt(args[0]) : 100000;
+		int batchSize = args.length >= 2 ? Integer.parseInt(args[1]) : 1000;
+		List<Event> events = makeEvents(numEvents, new Random(1));
+		
+		for (int round = 0; round < 5; round++) {
+			File dir = Files.createTempDirectory("mamirc-bench").toFile();
+			try {
+				double single = runSingleRow(dir, "single", events, batchSize);
+				double multi = runLogger(dir, "multi", events, batchSize);
+				System.err.printf("Round %d: single-row %.2f us/event, multi-row %.2f us/event%n", round, single, multi);
+			} finally {
+				deleteAll(dir);
+			}
+		}
+	}
+	
+	
+	// Returns the time per event in microseconds.
+	private static double runSingleRow(File dir, String name, List<Event> events, int batchSize) throws IOException, SQLiteException {
+		File dbFile = makeDatabase(dir, name).connectorDatabaseFile;
+		SQLiteConnection database = new SQLiteConnection(dbFile);
+		database.open(false);
+		try {
+			database.exec("PRAGMA journal_mode = PERSIST");  // Like the logger
+			SQLiteStatement insert = database.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data, class, command, target) VALUES(?,?,?,?,?,?,?,?)");
+			long start = System.nanoTime();
+			for (int off = 0; off < events.size(); off += batchSize) {
+				database.exec("BEGIN TRANSACTION");
+				for (Event ev : events.subList(off, Math.min(off + batchSize, events.size()))) {
+					RawIrcLine line = EventClass.parseLine(ev);
+					insert.bind(1, ev.connectionId);
+					insert.bind(2, ev.sequence);
+					insert.bind(3, ev.timestamp);
+					insert.bind(4, ev.type.ordinal());
+					insert.bind(5, ev.line.getDataNoCopy());
+					insert.bind(6, EventClass.classify(line).ordinal());
+					insert.bind(7, line.getCommand());
+					insert.bind(8, line.getParameterString(0));
+					Utils.stepStatement(insert, false);
+				}
+				database.exec("COMMIT TRANSACTION");
+			}
+			return (System.nanoTime() - start) / 1000.0 / events.size();
+		} finally {
+			database.dispose();
+		}
+	}
+	
+	
+	// Returns the time per event in microseconds.
+	private static double runLogger(File dir, String name, List<Event> events, int batchSize) throws IOException, SQLiteException, InterruptedException {
+		DatabaseLoggerThread logger = new DatabaseLoggerThread(makeDatabase(dir, name), NO_HANDLER);
+		logger.initAndGetNextConnectionId();
+		logger.start();
+		long start = System.nanoTime();
+		for (int off = 0; off < events.size(); off += batchSize) {
+			for (Event ev : events.subList(off, Math.min(off + batchSize, events.size())))
+				logger.postEvent(ev);
+			logger.flushQueue();
+		}
+		double result = (System.nanoTime() - start) / 1000.0 / events.size();
+		logger.terminate();
+		logger.join();
+		return result;
+	}
+	
+	
+	// Creates a database with the Connector's current schema and indexes, and returns a configuration that uses it.
+	private static BackendConfiguration makeDatabase(File dir, String name) throws IOException, SQLiteException {
+		File sub = new File(dir, name);
+		if (!sub.mkdir())
+			throw new IOException("Cannot create directory " + sub);
+		File file = new File(sub, "config.json");
+		String json = "{\"data-type\": \"mamirc-backend-config\", "
+			+ "\"connector-server-port\": 1, \"connector-password\": \"pw\", "
+			+ "\"connector-database-file\": \"" + new File(sub, "events.sqlite").getPath() + "\", "
+			+ "\"web-server-port\": 1, \"web-ui-password\": \"x\"}";
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(Utils.toUtf8(json));
+		}
+		BackendConfiguration config = new BackendConfiguration(file);
+		new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId();
+		return config;
+	}
+	
+	
+	// Returns channel messages spread over a few connections, with the lengths of typical chat lines.
+	private static List<Event> makeEvents(int numEvents, Random rand) {
+		String[] words = {"the", "build", "is", "green", "again", "anyone", "seen", "this", "error", "?", "thanks", ":)"};
+		int[] nextSeqs = new int[4];
+		List<Event> result = new ArrayList<>();
+		for (int i = 0; i < numEvents; i++) {
+			int conId = rand.nextInt(nextSeqs.length);
+			StringBuilder sb = new StringBuilder(":user").append(rand.nextInt(200)).append("!u@example.net PRIVMSG #channel")
+				.append(rand.nextInt(5)).append(" :");
+			for (int j = 1 + rand.nextInt(20); j > 0; j--)
+				sb.append(words[rand.nextInt(words.length)]).append(j > 1 ? " " : "");
+			result.add(new Event(conId, nextSeqs[conId], 1500000000000L + i, Event.Type.RECEIVE, new CleanLine(sb.toString())));
+			nextSeqs[conId]++;
+		}
+		return result;
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+	
+	private static final Runnable NO_HANDLER = new Runnable() {
+		public void run() {}
+	};
+	
+	
+	// Not instantiable.
+	private InsertBenchmark() {}
+	
+}
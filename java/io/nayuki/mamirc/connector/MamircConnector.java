@@ -8,7 +8,6 @@
 
 package io.nayuki.mamirc.connector;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -22,6 +21,9 @@ import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
 import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.RawIrcLine;
+import io.nayuki.mamirc.common.SharedMemoryRing;
+import io.nayuki.mamirc.common.TokenBucket;
 import io.nayuki.mamirc.common.Utils;
 
 
@@ -29,6 +31,7 @@ import io.nayuki.mamirc.common.Utils;
  * The MamIRC connector main program class. The main thread creates a new MamircConnector object, launches a handful
  * of worker threads, and returns. Thereafter, the MamircConnector object holds the global state of the application,
  * always accessed with a mutex ('synchronized') from any one of the worker threads.
+ * MamircConnectorHost runs several MamircConnector objects (tenants) in one process, sharing some of these threads.
  */
 public final class MamircConnector {
 	
@@ -60,15 +63,25 @@ public final class MamircConnector {
 	// Connections to remote IRC servers
 	private int nextConnectionId;
 	private final Map<Integer,ConnectionInfo> serverConnections;
+	private final double sendRate;   // Lines per second, or 0 for unlimited
+	private final double sendBurst;  // Lines
+	private final double receiveLineRate;  // Lines per second, or 0 for unlimited
+	private final double receiveByteRate;  // Bytes per second, or 0 for unlimited
+	private final AddressRacer addressRacer;  // Thread-safe, shared by all connections
 	
 	// Ephemeral threads
 	private ProcessorReaderThread processorReader;
 	private OutputWriterThread processorWriter;
+	private RingWriterThread processorRing;  // Non-null only if the current processor attached with a ring
+	private boolean processorParsed;  // Whether the current processor asked for the parts of each line to be located
+	private final File ringFile;  // Can be null
 	
 	// Singleton threads
 	private final DatabaseLoggerThread databaseLogger;
-	private final ProcessorListenerThread processorListener;
+	private final ProcessorListenerThread processorListener;  // Possibly shared with other tenants
+	private final boolean ownsListener;
 	private final Thread connectionPinger;
+	private volatile boolean terminated;  // Can be read without synchronization
 	
 	
 	
@@ -77,29 +90,58 @@ public final class MamircConnector {
 	// This constructor launches a bunch of worker threads and returns immediately.
 	// If initialization failed, the new threads are terminated and an exception is thrown.
 	public MamircConnector(BackendConfiguration config) throws IOException, SQLiteException {
+		this(config, null, new AddressRacer());
+	}
+	
+	
+	// Constructs a connector as a tenant of MamircConnectorHost. If sharedListener is null, then the connector
+	// listens on its own port or socket from the configuration.
+	MamircConnector(BackendConfiguration config, ProcessorListenerThread sharedListener, AddressRacer racer) throws IOException, SQLiteException {
 		// Initialize some fields
 		serverConnections = new HashMap<>();
+		sendRate = config.connectorSendRate;
+		sendBurst = config.connectorSendBurst;
+		receiveLineRate = config.connectorReceiveLineRate;
+		receiveByteRate = config.connectorReceiveByteRate;
+		addressRacer = racer;
+		terminated = false;
 		processorReader = null;
 		processorWriter = null;
+		processorRing = null;
+		processorParsed = false;
+		ringFile = config.processorLinkRingFile;
 		
 		// Initialize database logger and get next connection ID
-		databaseLogger = new DatabaseLoggerThread(config.connectorDatabaseFile);
+		databaseLogger = new DatabaseLoggerThread(config, new Runnable() {
+			public void run() {
+				shutDown("Connector terminating because the database failed");
+			}
+		});
 		nextConnectionId = databaseLogger.initAndGetNextConnectionId();  // Execute on current thread, not new thread
 		System.err.println("Database opened");
 		
 		// Listen for an incoming processor
-		processorListener = new ProcessorListenerThread(this, config.connectorServerPort, config.getConnectorPassword());
-		System.err.println("Listening on port " + config.connectorServerPort);
+		ownsListener = sharedListener == null;
+		if (ownsListener) {
+			processorListener = new ProcessorListenerThread(config.connectorServerPort, config.connectorSocketPath);
+			if (config.connectorSocketPath != null)
+				System.err.println("Listening on socket " + config.connectorSocketPath);
+			else
+				System.err.println("Listening on port " + config.connectorServerPort);
+		} else
+			processorListener = sharedListener;
+		processorListener.addTenant(this, config.getConnectorPassword());
 		
 		// Finish the start-up
 		databaseLogger.start();
-		processorListener.start();
+		if (ownsListener)
+			processorListener.start();
 		connectionPinger = new Thread("connectionPinger") {
 			public void run() {
 				try {
 					while (true) {
 						pingConnections();
-						Thread.sleep(20000);
+						Thread.sleep(PING_INTERVAL);
 					}
 				} catch (InterruptedException e) {}
 			}
@@ -123,13 +165,33 @@ public final class MamircConnector {
 	}
 	
 	
-	// Should only be called from ProcessorReaderThread.
-	public synchronized void attachProcessor(ProcessorReaderThread reader, OutputWriterThread writer) {
+	// Should only be called from ProcessorReaderThread. If useRing is true, the connection list is still sent
+	// through the writer, but the subsequent events are written to a new shared memory ring. If parsed is true,
+	// each event frame also carries the offsets of the parts of its IRC line.
+	public synchronized void attachProcessor(ProcessorReaderThread reader, OutputWriterThread writer, boolean useRing, boolean parsed) {
 		// Kick out existing processor, and set fields
 		if (processorReader != null)
 			processorReader.terminate();  // Asynchronous termination
+		closeProcessorRing();
+		processorReader = null;
+		processorWriter = null;
+		RingWriterThread ring = null;
+		if (useRing) {
+			try {
+				if (ringFile == null)
+					throw new IOException("No ring file configured");
+				ring = new RingWriterThread(SharedMemoryRing.create(ringFile, RING_CAPACITY), RING_MAX_QUEUED_BYTES);
+				ring.start();
+			} catch (IOException e) {
+				System.err.println("Cannot create processor ring: " + e.getMessage());
+				reader.terminate();
+				return;
+			}
+		}
 		processorReader = reader;
 		processorWriter = writer;
+		processorRing = ring;
+		processorParsed = parsed;
 		listConnectionsToProcessor(writer);
 		processorWriter.postWrite("live-events");
 	}
@@ -138,12 +200,26 @@ public final class MamircConnector {
 	// Should only be called from ProcessorReaderThread. Caller is responsible for its own termination.
 	public synchronized void detachProcessor(ProcessorReaderThread reader) {
 		if (reader == processorReader) {
+			closeProcessorRing();
 			processorReader = null;
 			processorWriter = null;
 		}
 	}
 	
 	
+	private void closeProcessorRing() {
+		if (processorRing != null) {
+			processorRing.terminate();
+			processorRing = null;
+		}
+	}
+	
+	private static final int RING_CAPACITY = 1 << 22;  // 4 MiB, several thousand typical events
+	
+	// Frames waiting for ring space while the processor catches up from the database, about half a million typical events
+	private static final long RING_MAX_QUEUED_BYTES = 64L << 20;
+	
+	
 	// Should only be called from ProcessorReaderThread. Hostname and metadata must not contain '\0', '\r', or '\n'.
 	public synchronized void connectServer(String hostname, int port, boolean useSsl, String metadata, ProcessorReaderThread reader) {
 		if (reader != processorReader)
@@ -153,9 +229,15 @@ public final class MamircConnector {
 		String str = "connect " + hostname + " " + port + " " + (useSsl ? "ssl" : "nossl") + " " + metadata;
 		postEvent(info, Event.Type.CONNECTION, new CleanLine(str));
 		serverConnections.put(info.connectionId, info);
-		new ServerReaderThread(this, info.connectionId, hostname, port, useSsl).start();
+		TokenBucket limiter = sendRate > 0 ? new TokenBucket(sendRate, sendBurst) : null;
+		TokenBucket lineLimiter = receiveLineRate > 0 ? new TokenBucket(receiveLineRate, Math.max(receiveLineRate * RECEIVE_BURST_SECONDS, 1)) : null;
+		TokenBucket byteLimiter = receiveByteRate > 0 ? new TokenBucket(receiveByteRate, receiveByteRate * RECEIVE_BURST_SECONDS) : null;
+		new ServerReaderThread(this, info.connectionId, hostname, port, useSsl, limiter, lineLimiter, byteLimiter, addressRacer).start();
 	}
 	
+	// The receive limits allow this many seconds' worth of data in a burst, e.g. the replies after joining channels
+	private static final double RECEIVE_BURST_SECONDS = 10;
+	
 	
 	// Should only be called from ProcessorReaderThread or terminateConnector().
 	public synchronized void disconnectServer(int conId, ProcessorReaderThread reader) {
@@ -166,7 +248,10 @@ public final class MamircConnector {
 			System.err.println("Warning: Connection " + conId + " does not exist");
 		else {
 			postEvent(info, Event.Type.CONNECTION, new CleanLine("disconnect"));
-			info.reader.terminate();
+			if (info.reader != null)
+				info.reader.terminate();
+			else
+				info.disconnectRequested = true;  // The reader is terminated as soon as the connection opens
 		}
 	}
 	
@@ -179,6 +264,8 @@ public final class MamircConnector {
 		postEvent(info, Event.Type.CONNECTION, new CleanLine("opened " + addr.getHostAddress()));
 		info.reader = reader;
 		info.writer = writer;
+		if (info.disconnectRequested)
+			reader.terminate();
 	}
 	
 	
@@ -199,31 +286,68 @@ public final class MamircConnector {
 		postEvent(info, Event.Type.RECEIVE, line);
 		byte[] pong = makePongIfPing(line.getDataNoCopy());
 		if (pong != null)
-			sendMessage(conId, new CleanLine(pong, false), processorReader);
+			sendMessage(conId, new CleanLine(pong, false), false, processorReader);
 	}
 	
 	
-	// Should only be called from ProcessorReaderThread or receiveMessage().
-	public synchronized void sendMessage(int conId, CleanLine line, ProcessorReaderThread reader) {
+	// Should only be called from ProcessorReaderThread or receiveMessage(). Queues the line without blocking; the event
+	// is logged when the line is written to the socket (see lineSent()). The line is dropped if the queue is full.
+	// Bulk lines (e.g. the lines of a paste) are queued behind other messages.
+	public synchronized void sendMessage(int conId, CleanLine line, boolean bulk, ProcessorReaderThread reader) {
 		if (reader != processorReader)
 			return;
 		ConnectionInfo info = serverConnections.get(conId);
 		if (info != null && info.writer != null) {
-			postEvent(info, Event.Type.SEND, line);
-			info.writer.postWrite(line);
+			byte[] data = line.getDataNoCopy();
+			OutputWriterThread.Priority pri = bulk ? OutputWriterThread.Priority.BULK : classifyOutgoing(data);
+			if (!info.writer.offerWrite(line, pri, keepsOrder(data)))
+				System.err.println("Warning: Send queue of connection " + conId + " is full, dropping line");
 		} else
 			System.err.println("Warning: Connection " + conId + " does not exist");
 	}
 	
 	
+	// Should only be called from the OutputWriterThread of a connection, right after it writes the line to the socket.
+	// Thus the database and processor see sent lines in the order that they went to the server.
+	synchronized void lineSent(int conId, CleanLine line) {
+		if (line == BLANK_LINE)
+			return;  // Keepalives are not logged
+		ConnectionInfo info = serverConnections.get(conId);
+		if (info != null)  // Otherwise the connection already closed
+			postEvent(info, Event.Type.SEND, line);
+	}
+	
+	
+	// Should only be called from ProcessorReaderThread. The backup runs in the background on the database logger thread.
+	public synchronized void backupDatabase(File target, boolean compress, ProcessorReaderThread reader) {
+		if (reader != processorReader)
+			return;
+		if (!databaseLogger.requestBackup(target, compress))
+			System.err.println("Warning: A database backup is already in progress");
+	}
+	
+	
 	// Should only be called from ProcessorReaderThread.
 	public void terminateConnector(ProcessorReaderThread reader) {
-		Thread[] toWait;
-		connectionPinger.interrupt();
 		synchronized(this) {
 			if (reader != processorReader)
 				return;
-			System.err.println("Connector terminating");
+		}
+		shutDown("Connector terminating");
+	}
+	
+	
+	// Closes all connections, detaches the processor, stops listening for this connector, and stops the database
+	// logger after it has written the last events. Other tenants of the same process are not affected. Can be called
+	// from any thread except a ServerReaderThread, and does nothing if this connector has already been shut down.
+	void shutDown(String reason) {
+		Thread[] toWait;
+		synchronized(this) {
+			if (terminated)
+				return;
+			System.err.println(reason);
+			connectionPinger.interrupt();
+			terminated = true;
 			
 			toWait = new ServerReaderThread[serverConnections.size()];
 			int i = 0;
@@ -235,15 +359,20 @@ public final class MamircConnector {
 			
 			if (processorReader != null) {
 				processorReader.terminate();
+				closeProcessorRing();
 				processorReader = null;
 				processorWriter = null;
 			}
-			processorListener.terminate();
+			processorListener.removeTenant(this);
+			if (ownsListener)
+				processorListener.terminate();
 		}
 		
 		try {
-			for (Thread th : toWait)
-				th.join();
+			for (Thread th : toWait) {
+				if (th != null)  // Null if the connection was not opened yet
+					th.join();
+			}
 		} catch (InterruptedException e) {}
 		databaseLogger.terminate();
 	}
@@ -254,13 +383,15 @@ public final class MamircConnector {
 	private void postEvent(ConnectionInfo info, Event.Type type, CleanLine line) {
 		Event ev = new Event(info.connectionId, info.nextSequence(), type, line);
 		if (processorWriter != null) {
-			try {
-				ByteArrayOutputStream bout = new ByteArrayOutputStream();
-				bout.write(Utils.toUtf8(String.format("%d %d %d %d ", ev.connectionId, ev.sequence, ev.timestamp, ev.type.ordinal())));
-				bout.write(line.getDataNoCopy());
-				processorWriter.postWrite(new CleanLine(bout.toByteArray(), false));
-			} catch (IOException e) {
-				throw new AssertionError(e);
+			byte[] frame = makeFrame(ev, processorParsed);
+			if (processorRing == null)
+				processorWriter.postWrite(new CleanLine(frame, false));
+			else if (!processorRing.offerFrame(frame)) {  // The processor is stuck; stop feeding it rather than buffering forever
+				System.err.println("Processor ring: consumer is not keeping up");
+				processorReader.terminate();
+				closeProcessorRing();
+				processorReader = null;
+				processorWriter = null;
 			}
 		}
 		databaseLogger.postEvent(ev);
@@ -279,11 +410,101 @@ public final class MamircConnector {
 		// This pseudo-ping is more lightweight than sending a real IRC PING command, and justifies the lack of logging.
 		for (ConnectionInfo info : serverConnections.values()) {
 			if (info.writer != null)
-				info.writer.postWrite(BLANK_LINE);
+				info.writer.offerWrite(BLANK_LINE, OutputWriterThread.Priority.CONTROL, false);  // Skipped if the queue is full
+		}
+	}
+	
+	static final CleanLine BLANK_LINE = new CleanLine("");
+	
+	private static final int PING_INTERVAL = 20000;  // In milliseconds
+	
+	
+	// Tests whether this connector has been shut down, e.g. because a processor requested it. Can be called from any thread.
+	boolean isTerminated() {
+		return terminated;
+	}
+	
+	
+	// Returns the priority class for sending the given line to an IRC server, based on its command name: PING, PONG, QUIT
+	// and NICK are control lines, and everything else is interactive. (Only the processor knows which lines are bulk.)
+	// A control line goes ahead of every queued line, so a QUIT never waits for a paste to drain. A NICK can overtake
+	// queued messages too, which only changes the name that the server shows on them.
+	static OutputWriterThread.Priority classifyOutgoing(byte[] line) {
+		switch (getCommand(line)) {
+			case "PING":
+			case "PONG":
+			case "QUIT":
+			case "NICK":
+				return OutputWriterThread.Priority.CONTROL;
+			default:
+				return OutputWriterThread.Priority.INTERACTIVE;
+		}
+	}
+	
+	
+	// Tests whether the given line must not overtake queued bulk lines when sent to an IRC server. Messages can overtake
+	// other messages, but a command like PART, KICK or MODE changes state and must stay in order. Control lines are
+	// always sent first.
+	static boolean keepsOrder(byte[] line) {
+		if (classifyOutgoing(line) == OutputWriterThread.Priority.CONTROL)
+			return false;
+		switch (getCommand(line)) {
+			case "PRIVMSG":
+			case "NOTICE":
+				return false;
+			default:
+				return true;
 		}
 	}
 	
-	private static final CleanLine BLANK_LINE = new CleanLine("");
+	
+	// Returns the command name of the given IRC line in uppercase, or "" if there is none.
+	private static String getCommand(byte[] line) {
+		// Skip prefix, if any
+		int i = 0;
+		if (line.length >= 1 && line[i] == ':') {
+			i++;
+			while (i < line.length && line[i] != ' ')
+				i++;
+			while (i < line.length && line[i] == ' ')
+				i++;
+		}
+		int start = i;
+		while (i < line.length && line[i] != ' ')
+			i++;
+		return Utils.fromUtf8(Arrays.copyOfRange(line, start, i)).toUpperCase();
+	}
+	
+	
+	// Returns the line that relays the given event to the processor: "connectionId sequence timestamp type data".
+	// If parsed is true, a field is inserted before the data: the comma-separated offsets of the parts of the IRC line
+	// as located by RawIrcLine (prefix start and end or -1,-1; command start and end; then each parameter's start and end),
+	// or "-" for connection events and unparsable lines. Thus the processor doesn't need to scan the line again.
+	static byte[] makeFrame(Event ev, boolean parsed) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(ev.connectionId).append(' ').append(ev.sequence).append(' ').append(ev.timestamp).append(' ').append(ev.type.ordinal()).append(' ');
+		byte[] data = ev.line.getDataNoCopy();
+		if (parsed) {
+			RawIrcLine line = null;
+			if (ev.type != Event.Type.CONNECTION) {
+				try {
+					line = new RawIrcLine(data);
+				} catch (IllegalArgumentException e) {}  // Sent without offsets
+			}
+			if (line == null)
+				sb.append('-');
+			else {
+				sb.append(line.prefixStart).append(',').append(line.prefixEnd).append(',').append(line.commandStart).append(',').append(line.commandEnd);
+				for (int i = 0; i < line.getParameterCount(); i++)
+					sb.append(',').append(line.getParameterStart(i)).append(',').append(line.getParameterEnd(i));
+			}
+			sb.append(' ');
+		}
+		byte[] head = Utils.toUtf8(sb.toString());
+		byte[] result = Arrays.copyOf(head, head.length + data.length);
+		System.arraycopy(data, 0, result, head.length, data.length);
+		return result;
+	}
 	
 	
 	// If the given line is a PING command, then this returns a new byte array containing an appropriate PONG response.
@@ -320,6 +541,7 @@ public final class MamircConnector {
 		public int nextSequence;           // Non-negative
 		public ServerReaderThread reader;  // Initially null, but non-null after connectionOpened() is called
 		public OutputWriterThread writer;  // Initially null, but non-null after connectionOpened() is called
+		public boolean disconnectRequested;  // Whether disconnectServer() was called before connectionOpened()
 		
 		
 		public ConnectionInfo(int conId) {
@@ -329,6 +551,7 @@ public final class MamircConnector {
 			nextSequence = 0;
 			reader = null;
 			writer = null;
+			disconnectRequested = false;
 		}
 		
 		
@@ -0,0 +1,131 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.json.Json;
+import io.nayuki.mamirc.common.BackendConfiguration;
+
+
+/* 
+ * A main program that runs the connectors of several users (tenants) in one process. Each tenant has its own
+ * backend configuration file, and thus its own password, database, connection ID space, and IRC connections.
+ * The tenants share the DNS cache and address racer, the TLS socket factory, and optionally one processor listener
+ * that routes each processor to a tenant by its password. Each tenant pings its own connections, so a stalled tenant
+ * doesn't delay the keepalives of the others. A tenant whose database fails is shut down on its own. If a tenant
+ * fails to start, the tenants that already started are shut down and the program exits. The process exits after
+ * every tenant has been terminated.
+ * 
+ * The host configuration file is a JSON object with these keys:
+ * - "data-type": "mamirc-connector-host-config"
+ * - "tenants": a list of paths to backend configuration files, relative to the host configuration file
+ * - "shared-server-port" (optional): the port of a shared listener on localhost
+ * - "shared-socket-path" (optional): the Unix domain socket of a shared listener, instead of the port
+ * Without a shared listener, each tenant listens on its own port or socket from its configuration.
+ */
+public final class MamircConnectorHost {
+	
+	public static void main(String[] args) throws IOException, SQLiteException, InterruptedException {
+		if (args.length != 1) {
+			System.err.println("Usage: java io/nayuki/mamirc/connector/MamircConnectorHost HostConfig.json");
+			System.exit(1);
+		}
+		Logger.getLogger("com.almworks.sqlite4java").setLevel(Level.OFF);
+		
+		// Read the host configuration
+		File hostFile = new File(args[0]).getAbsoluteFile();
+		Object data = Json.parseFromFile(hostFile);
+		if (!Json.getString(data, "data-type").equals("mamirc-connector-host-config"))
+			throw new IllegalArgumentException("Invalid configuration file type");
+		Map<String,Object> map = Json.getMap(data);
+		ProcessorListenerThread sharedListener = null;
+		if (map.get("shared-socket-path") != null) {
+			File path = new File(Json.getString(data, "shared-socket-path"));
+			sharedListener = new ProcessorListenerThread(0, path);
+			System.err.println("Listening on socket " + path);
+		} else if (map.get("shared-server-port") != null) {
+			int port = Json.getInt(data, "shared-server-port");
+			sharedListener = new ProcessorListenerThread(port, null);
+			System.err.println("Listening on port " + port);
+		}
+		
+		// Start the tenants, making sure that they don't share a database
+		List<File> files = new ArrayList<>();
+		for (Object item : Json.getList(data, "tenants")) {
+			File file = new File((String)item);
+			if (!file.isAbsolute())
+				file = new File(hostFile.getParentFile(), file.getPath());
+			files.add(file);
+		}
+		List<MamircConnector> tenants = startTenants(files, sharedListener);
+		if (sharedListener != null)
+			sharedListener.start();
+		System.err.println("Host ready with " + tenants.size() + " tenants");
+		
+		// Wait until all tenants have terminated
+		while (true) {
+			Thread.sleep(TERMINATION_POLL_INTERVAL);
+			boolean alive = false;
+			for (MamircConnector tenant : tenants)
+				alive |= !tenant.isTerminated();
+			if (!alive)
+				break;
+		}
+		if (sharedListener != null)
+			sharedListener.terminate();
+		System.err.println("Host terminating");
+	}
+	
+	
+	// Starts a connector for each of the given backend configuration files, sharing the given listener (which can be null)
+	// and one address racer. If any tenant fails to start, the ones that already started are shut down, the shared
+	// listener is terminated, and the exception is thrown, so that no threads are left running.
+	static List<MamircConnector> startTenants(List<File> files, ProcessorListenerThread sharedListener) throws IOException, SQLiteException {
+		AddressRacer racer = new AddressRacer();
+		List<MamircConnector> tenants = new ArrayList<>();
+		Set<File> databases = new HashSet<>();
+		boolean ok = false;
+		try {
+			for (File file : files) {
+				BackendConfiguration config = new BackendConfiguration(file);
+				if (!databases.add(config.connectorDatabaseFile.getCanonicalFile()))
+					throw new IllegalArgumentException("Tenants must not share a database: " + file);
+				System.err.println("Starting tenant " + file);
+				tenants.add(new MamircConnector(config, sharedListener, racer));
+			}
+			ok = true;
+			return tenants;
+		} finally {
+			if (!ok) {
+				for (MamircConnector tenant : tenants)
+					tenant.shutDown("Connector terminating because another tenant failed to start");
+				if (sharedListener != null)
+					sharedListener.terminate();
+			}
+		}
+	}
+	
+	
+	private static final int TERMINATION_POLL_INTERVAL = 1000;  // In milliseconds
+	
+	
+	
+	// Not instantiable.
+	private MamircConnectorHost() {}
+	
+}
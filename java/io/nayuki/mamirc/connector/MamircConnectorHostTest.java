@@ -0,0 +1,164 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.ChannelStreams;
+import io.nayuki.mamirc.common.LineReader;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class MamircConnectorHostTest {
+	
+	// Two tenants share a listener. A processor that sends one tenant's password talks to that tenant only,
+	// so its "terminate" command stops that tenant and leaves the other one running.
+	@Test public void testPasswordRouting() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-host").toFile();
+		File socketPath = new File(dir, "host.sock");
+		ProcessorListenerThread listener = new ProcessorListenerThread(0, socketPath);
+		List<MamircConnector> tenants = MamircConnectorHost.startTenants(Arrays.asList(
+			writeConfig(dir, "a", "password A"), writeConfig(dir, "b", "password B")), listener);
+		listener.start();
+		try {
+			assertEquals("", attach(socketPath, "wrong password"));  // Closed without a reply
+			assertEquals("active-connections\nend-list\nlive-events\n", attach(socketPath, "password B"));
+			waitUntilTerminated(tenants.get(1));
+			assertFalse(tenants.get(0).isTerminated());
+			
+			assertEquals("", attach(socketPath, "password B"));  // No longer routed
+			assertEquals("active-connections\nend-list\nlive-events\n", attach(socketPath, "password A"));
+			waitUntilTerminated(tenants.get(0));
+		} finally {
+			for (MamircConnector tenant : tenants)
+				tenant.shutDown("Test finished");
+			listener.terminate();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// A tenant with a duplicate password fails to start, and then the tenants that already started are shut down.
+	@Test public void testDuplicatePassword() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-host").toFile();
+		File socketPath = new File(dir, "host.sock");
+		ProcessorListenerThread listener = new ProcessorListenerThread(0, socketPath);
+		int pingersBefore = countThreads("connectionPinger");
+		try {
+			MamircConnectorHost.startTenants(Arrays.asList(
+				writeConfig(dir, "a", "same"), writeConfig(dir, "b", "other"), writeConfig(dir, "c", "same")), listener);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {  // Pass
+		} finally {
+			listener.terminate();
+		}
+		for (int i = 0; i < 100 && countThreads("connectionPinger") > pingersBefore; i++)
+			Thread.sleep(50);
+		assertEquals(pingersBefore, countThreads("connectionPinger"));
+		assertFalse(socketPath.exists());
+		deleteAll(dir);
+	}
+	
+	
+	// Tenants must not share a database, and the check happens before the second one opens it.
+	@Test public void testDuplicateDatabase() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-host").toFile();
+		ProcessorListenerThread listener = new ProcessorListenerThread(0, new File(dir, "host.sock"));
+		File config = writeConfig(dir, "a", "one");
+		try {
+			MamircConnectorHost.startTenants(Arrays.asList(config, config), listener);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {  // Pass
+		} finally {
+			listener.terminate();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	/*---- Helper functions ----*/
+	
+	private static File writeConfig(File dir, String name, String password) throws IOException {
+		File file = new File(dir, name + ".json");
+		String json = "{\"data-type\": \"mamirc-backend-config\", \"connector-server-port\": 1, "
+			+ "\"connector-password\": \"" + password + "\", "
+			+ "\"connector-database-file\": \"" + new File(dir, name + ".sqlite").getPath() + "\", "
+			+ "\"web-server-port\": 1, \"web-ui-password\": \"x\"}";
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(Utils.toUtf8(json));
+		}
+		return file;
+	}
+	
+	
+	// Connects with the given password, attaches, reads the lines that the connector sends until the end of
+	// the connection list, then sends "terminate", and returns the lines read (each followed by a newline).
+	private static String attach(File socketPath, String password) throws IOException {
+		ChannelStreams sock = new ChannelStreams(SocketChannel.open(UnixDomainSocketAddress.of(socketPath.toPath())));
+		try {
+			sock.output.write(Utils.toUtf8(password + "\nattach\n"));
+			LineReader reader = new LineReader(sock.input);
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				byte[] line = reader.readLine();
+				if (line == null || line == LineReader.BLANK_EOF)
+					break;
+				String s = Utils.fromUtf8(line);
+				sb.append(s).append('\n');
+				if (s.equals("live-events")) {
+					sock.output.write(Utils.toUtf8("terminate\n"));
+					break;
+				}
+			}
+			return sb.toString();
+		} catch (IOException e) {
+			return "";  // The connector closed the socket before reading everything
+		} finally {
+			sock.close();
+		}
+	}
+	
+	
+	private static void waitUntilTerminated(MamircConnector tenant) throws InterruptedException {
+		for (int i = 0; i < 100 && !tenant.isTerminated(); i++)
+			Thread.sleep(50);
+		assertTrue(tenant.isTerminated());
+	}
+	
+	
+	private static int countThreads(String name) {
+		int result = 0;
+		for (Thread th : Thread.getAllStackTraces().keySet()) {
+			if (th.getName().equals(name) && th.isAlive())
+				result++;
+		}
+		return result;
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+	
+}
@@ -9,8 +9,13 @@
 package io.nayuki.mamirc.connector;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.OutputWriterThread.Priority;
 import io.nayuki.mamirc.common.Utils;
 
 
@@ -36,6 +41,45 @@ public final class MamircConnectorTest {
 	}
 	
 	
+	@Test public void testClassifyOutgoing() {
+		assertEquals(Priority.CONTROL, classify("PONG :irc.example.com"));
+		assertEquals(Priority.CONTROL, classify("ping 12345"));
+		assertEquals(Priority.CONTROL, classify("QUIT :Bye"));
+		assertEquals(Priority.CONTROL, classify(":me NICK other"));
+		assertEquals(Priority.CONTROL, classify("quit"));
+		assertEquals(Priority.INTERACTIVE, classify("PRIVMSG #chan :hello"));
+		assertEquals(Priority.INTERACTIVE, classify("JOIN #chan"));
+		assertEquals(Priority.INTERACTIVE, classify("PRIVMSGX #chan"));
+		assertEquals(Priority.INTERACTIVE, classify(""));
+	}
+	
+	
+	@Test public void testKeepsOrder() {
+		assertFalse(keepsOrder("PRIVMSG #chan :hello"));
+		assertFalse(keepsOrder("notice user :hi"));
+		assertFalse(keepsOrder("PONG :irc.example.com"));
+		assertTrue(keepsOrder("PART #chan"));
+		assertTrue(keepsOrder("KICK #chan user :bye"));
+		assertTrue(keepsOrder(":me MODE #chan +o user"));
+		assertFalse(keepsOrder("QUIT :Bye"));  // Control
+		assertFalse(keepsOrder("NICK other"));
+		assertTrue(keepsOrder("PRIVMSGX #chan"));
+	}
+	
+	
+	@Test public void testMakeFrame() {
+		Event ev = new Event(3, 7, 1000, Event.Type.RECEIVE, new CleanLine(":a!b@c PRIVMSG #x :hi there"));
+		assertEquals("3 7 1000 1 :a!b@c PRIVMSG #x :hi there", Utils.fromUtf8(MamircConnector.makeFrame(ev, false)));
+		assertEquals("3 7 1000 1 1,6,7,14,15,17,19,27 :a!b@c PRIVMSG #x :hi there", Utils.fromUtf8(MamircConnector.makeFrame(ev, true)));
+		ev = new Event(3, 8, 1000, Event.Type.SEND, new CleanLine("QUIT"));
+		assertEquals("3 8 1000 2 -1,-1,0,4 QUIT", Utils.fromUtf8(MamircConnector.makeFrame(ev, true)));
+		ev = new Event(3, 9, 1000, Event.Type.CONNECTION, new CleanLine("closed"));
+		assertEquals("3 9 1000 0 - closed", Utils.fromUtf8(MamircConnector.makeFrame(ev, true)));
+		ev = new Event(3, 10, 1000, Event.Type.RECEIVE, new CleanLine(":prefixonly"));
+		assertEquals("3 10 1000 1 - :prefixonly", Utils.fromUtf8(MamircConnector.makeFrame(ev, true)));
+	}
+	
+	
 	private static String makePong(String s) {
 		byte[] b = MamircConnector.makePongIfPing(Utils.toUtf8(s));
 		if (b == null)
@@ -44,4 +88,14 @@ public final class MamircConnectorTest {
 			return Utils.fromUtf8(b);
 	}
 	
+	
+	private static Priority classify(String s) {
+		return MamircConnector.classifyOutgoing(Utils.toUtf8(s));
+	}
+	
+	
+	private static boolean keepsOrder(String s) {
+		return MamircConnector.keepsOrder(Utils.toUtf8(s));
+	}
+	
 }
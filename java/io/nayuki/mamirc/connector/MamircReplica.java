@@ -0,0 +1,110 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A stand-alone program that keeps a replica of a Connector's events in its own database file, receiving them
+ * over TCP from a Connector configured with a "tcp:" entry in connector-replicas. It authenticates the Connector
+ * with the connector password from the given configuration file. It serves one connection at a time; after a
+ * disconnection, the Connector reconnects and resumes from the replica's watermarks. The stream is not encrypted.
+ */
+public final class MamircReplica {
+	
+	public static void main(String[] args) throws IOException, SQLiteException, InterruptedException {
+		if (args.length != 3) {
+			System.err.println("Usage: java io/nayuki/mamirc/connector/MamircReplica BackendConfig.json ReplicaDatabase.sqlite Port");
+			System.exit(1);
+		}
+		Logger.getLogger("com.almworks.sqlite4java").setLevel(Level.OFF);
+		BackendConfiguration config = new BackendConfiguration(new File(args[0]));
+		int port = Utils.checkPortNumber(Integer.parseInt(args[2]));
+		
+		ReplicaStore store = new SqliteReplicaStore(new File(args[1]));
+		System.err.println("Replica has " + store.getWatermarks().size() + " connections");
+		ServerSocket server = new ServerSocket(port);
+		System.err.println("Listening on port " + port);
+		while (true) {
+			Socket sock = server.accept();
+			try {
+				System.err.println("Connection from " + sock.getInetAddress().getHostAddress());
+				serveConnection(sock, config.getConnectorPassword(), store);
+				System.err.println("Connection closed");
+			} catch (IOException e) {
+				System.err.println("Connection failed: " + e.getMessage());
+			} catch (IllegalArgumentException e) {  // Gap in the stream
+				System.err.println("Connection failed: " + e.getMessage());
+			} finally {
+				sock.close();
+			}
+			Thread.sleep(100);  // Safety delay
+		}
+	}
+	
+	
+	// Handles one replication connection on the current thread until the stream ends. Returns silently if the
+	// password is wrong. The store is only accessed by the current thread.
+	static void serveConnection(Socket sock, byte[] password, ReplicaStore store) throws IOException, SQLiteException {
+		sock.setSoTimeout(AUTH_TIMEOUT);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+		int length = in.readInt();
+		if (length < 0 || length > MAX_PASSWORD_LENGTH)
+			return;
+		byte[] received = new byte[length];
+		in.readFully(received);
+		if (!MessageDigest.isEqual(received, password))
+			return;
+		
+		sock.setSoTimeout(IDLE_TIMEOUT);  // The Connector sends a heartbeat more often than this
+		store.getWatermarks().write(out);
+		out.flush();
+		while (true) {
+			List<Event> batch;
+			try {
+				batch = RemoteReplicaStore.readBatch(in);
+			} catch (EOFException e) {
+				break;
+			}
+			store.apply(batch).write(out);
+			out.flush();
+		}
+	}
+	
+	
+	private static final int AUTH_TIMEOUT = 10000;  // In milliseconds
+	
+	private static final int IDLE_TIMEOUT = 600000;  // In milliseconds
+	
+	private static final int MAX_PASSWORD_LENGTH = 10000;
+	
+	
+	
+	// Not instantiable.
+	private MamircReplica() {}
+	
+}
@@ -0,0 +1,123 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class MamircReplicaTest {
+	
+	// Replicates to an in-memory stand-in over a loopback socket, disconnects, and resumes from the watermarks.
+	@Test public void testResume() throws IOException, InterruptedException {
+		MemoryStore memory = new MemoryStore();
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			Thread th = serve(server, memory, 2);
+			
+			RemoteReplicaStore client = connect(server);
+			assertEquals(0, client.getWatermarks().size());
+			Watermarks ack = client.apply(Arrays.asList(WatermarksTest.event(1, 0), WatermarksTest.event(1, 1), WatermarksTest.event(2, 0)));
+			assertEquals(1, ack.get(1));
+			assertEquals(0, ack.get(2));
+			assertEquals(0, client.apply(new ArrayList<Event>()).size());  // Heartbeat
+			client.close();
+			
+			client = connect(server);
+			Watermarks wm = client.getWatermarks();
+			assertEquals(1, wm.get(1));
+			List<Event> fresh = wm.newEvents(Arrays.asList(WatermarksTest.event(1, 1), WatermarksTest.event(1, 2)));
+			assertEquals(1, fresh.size());
+			assertEquals(2, client.apply(fresh).get(1));
+			client.close();
+			th.join();
+			assertEquals(4, memory.events.size());
+		} finally {
+			server.close();
+		}
+	}
+	
+	
+	@Test public void testWrongPassword() throws IOException, InterruptedException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			Thread th = serve(server, new MemoryStore(), 1);
+			try {
+				new RemoteReplicaStore("localhost", server.getLocalPort(), Utils.toUtf8("wrong"));
+				Assert.fail();
+			} catch (IOException e) {}  // Pass
+			th.join();
+		} finally {
+			server.close();
+		}
+	}
+	
+	
+	private static RemoteReplicaStore connect(ServerSocket server) throws IOException {
+		return new RemoteReplicaStore("localhost", server.getLocalPort(), PASSWORD);
+	}
+	
+	
+	// Serves the given number of connections sequentially on a new thread.
+	private static Thread serve(final ServerSocket server, final ReplicaStore store, final int connections) {
+		Thread th = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < connections; i++) {
+						Socket sock = server.accept();
+						try {
+							MamircReplica.serveConnection(sock, PASSWORD, store);
+						} finally {
+							sock.close();
+						}
+					}
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		th.start();
+		return th;
+	}
+	
+	
+	private static final byte[] PASSWORD = Utils.toUtf8("secret");
+	
+	
+	
+	private static final class MemoryStore implements ReplicaStore {
+		
+		public final List<Event> events = new ArrayList<>();
+		private final Watermarks watermarks = new Watermarks();
+		
+		public Watermarks getWatermarks() {
+			return new Watermarks(watermarks);
+		}
+		
+		public Watermarks apply(List<Event> batch) {
+			List<Event> fresh = watermarks.newEvents(batch);
+			events.addAll(fresh);
+			return watermarks.advance(fresh);
+		}
+		
+		public void close() {}
+		
+	}
+	
+}
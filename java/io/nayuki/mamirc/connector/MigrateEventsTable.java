@@ -0,0 +1,215 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A stand-alone program that converts the events table of a Connector database from an ordinary rowid table
+ * to a WITHOUT ROWID table clustered on (connectionId, sequence), while the Connector keeps running. The steps:
+ * 1. Create the new table, and triggers that mirror every change of the old table into it.
+ * 2. Copy the old rows in key order, in small transactions, never overwriting rows that the triggers copied.
+ * 3. Move each secondary index to the new table, one at a time.
+ * 4. In one short transaction, drop the triggers and the old table, and rename the new table.
+ * Each transaction is short, so the Connector's writes are only delayed briefly. If the program is interrupted,
+ * running it again starts over. Use it only while no other program is migrating the same database.
+ * The table must have the columns that the current Connector adds when it starts (class, command, and target);
+ * the program doesn't add them itself, because a running older Connector could not insert into the changed table.
+ */
+public final class MigrateEventsTable {
+	
+	public static void main(String[] args) throws IOException, SQLiteException {
+		if (args.length != 1) {
+			System.err.println("Usage: java io/nayuki/mamirc/connector/MigrateEventsTable BackendConfig.json");
+			System.exit(1);
+		}
+		Logger.getLogger("com.almworks.sqlite4java").setLevel(Level.OFF);
+		BackendConfiguration config = new BackendConfiguration(new File(args[0]));
+		try {
+			if (migrate(config.connectorDatabaseFile))
+				System.err.println("Migration complete");
+			else
+				System.err.println("The events table is already WITHOUT ROWID");
+		} catch (IllegalStateException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	
+	// Converts the events table of the given database, and returns true. Returns false if the table is already converted.
+	// Throws IllegalStateException if the table is missing or lacks columns of the current schema.
+	static boolean migrate(File databaseFile) throws SQLiteException {
+		SQLiteConnection database = new SQLiteConnection(databaseFile);
+		try {
+			database.open(false);
+			database.setBusyTimeout(60000);
+			if (isWithoutRowid(database))
+				return false;
+			checkColumns(database);
+			createShadowTable(database);
+			copyRows(database);
+			moveIndexes(database);
+			swapTables(database);
+			return true;
+		} finally {
+			database.dispose();  // Automatically disposes its associated statements
+		}
+	}
+	
+	
+	static boolean isWithoutRowid(SQLiteConnection database) throws SQLiteException {
+		SQLiteStatement query = database.prepare("SELECT sql FROM sqlite_master WHERE type='table' AND name='events'");
+		try {
+			if (!query.step())
+				throw new IllegalStateException("No events table");
+			return query.columnString(0).toUpperCase().replaceAll("\\s+", " ").contains("WITHOUT ROWID");
+		} finally {
+			query.dispose();
+		}
+	}
+	
+	
+	// Throws an exception if the events table lacks any of the columns that are copied to the new table.
+	private static void checkColumns(SQLiteConnection database) throws SQLiteException {
+		List<String> missing = new ArrayList<>(Arrays.asList(COLUMNS.split(", ")));
+		SQLiteStatement query = database.prepare("PRAGMA table_info(events)");
+		try {
+			while (query.step())
+				missing.remove(query.columnString(1));
+		} finally {
+			query.dispose();
+		}
+		if (!missing.isEmpty()) {
+			throw new IllegalStateException("The events table lacks the columns " + missing
+				+ "; start the current Connector once to add them, then run this program again");
+		}
+	}
+	
+	
+	// Creates the new table and the triggers, discarding the leftovers of any earlier interrupted run.
+	static void createShadowTable(SQLiteConnection database) throws SQLiteException {
+		database.exec("BEGIN IMMEDIATE TRANSACTION");
+		for (String op : TRIGGER_OPS)
+			database.exec("DROP TRIGGER IF EXISTS events_migrate_" + op.toLowerCase());
+		database.exec("DROP TABLE IF EXISTS events_new");
+		database.exec("CREATE TABLE events_new" + DatabaseLoggerThread.EVENTS_TABLE_DEFINITION);
+		String newValues = "(NEW." + COLUMNS.replace(", ", ", NEW.") + ")";
+		database.exec("CREATE TRIGGER events_migrate_insert AFTER INSERT ON events BEGIN "
+			+ "INSERT OR REPLACE INTO events_new(" + COLUMNS + ") VALUES" + newValues + "; END");
+		database.exec("CREATE TRIGGER events_migrate_update AFTER UPDATE ON events BEGIN "
+			+ "DELETE FROM events_new WHERE connectionId=OLD.connectionId AND sequence=OLD.sequence; "
+			+ "INSERT OR REPLACE INTO events_new(" + COLUMNS + ") VALUES" + newValues + "; END");
+		database.exec("CREATE TRIGGER events_migrate_delete AFTER DELETE ON events BEGIN "
+			+ "DELETE FROM events_new WHERE connectionId=OLD.connectionId AND sequence=OLD.sequence; END");
+		database.exec("COMMIT TRANSACTION");
+	}
+	
+	
+	// Copies all rows that existed before the triggers were created. Rows that the triggers have already
+	// copied are newer, so they are left alone. Scans the old table in rowid order, resuming after the last rowid.
+	static void copyRows(SQLiteConnection database) throws SQLiteException {
+		SQLiteStatement lastRowid = database.prepare("SELECT max(rowid) FROM "
+			+ "(SELECT rowid FROM events WHERE rowid>? ORDER BY rowid LIMIT " + COPY_BATCH_SIZE + ")");
+		SQLiteStatement copy = database.prepare("INSERT OR IGNORE INTO events_new(" + COLUMNS + ") "
+			+ "SELECT " + COLUMNS + " FROM events WHERE rowid>? AND rowid<=?");
+		try {
+			long rowid = Long.MIN_VALUE;
+			long total = 0;
+			long lastReport = System.currentTimeMillis();
+			while (true) {
+				database.exec("BEGIN IMMEDIATE TRANSACTION");
+				lastRowid.bind(1, rowid);
+				Utils.stepStatement(lastRowid, true);
+				boolean done = lastRowid.columnNull(0);
+				long next = done ? 0 : lastRowid.columnLong(0);
+				lastRowid.reset();
+				if (!done) {
+					copy.bind(1, rowid);
+					copy.bind(2, next);
+					Utils.stepStatement(copy, false);
+					total += database.getChanges();
+				}
+				database.exec("COMMIT TRANSACTION");
+				if (done)
+					break;
+				rowid = next;
+				if (System.currentTimeMillis() - lastReport >= 10000) {
+					System.err.println("Copied " + total + " rows");
+					lastReport = System.currentTimeMillis();
+				}
+			}
+			System.err.println("Copied " + total + " rows");
+		} finally {
+			lastRowid.dispose();
+			copy.dispose();
+		}
+	}
+	
+	
+	// Re-creates each secondary index of the old table on the new table under the same name. The old index is dropped
+	// first because names are unique per database. Meanwhile, queries on the old table are slower but still correct.
+	static void moveIndexes(SQLiteConnection database) throws SQLiteException {
+		List<String[]> indexes = new ArrayList<>();  // Each is {name, sql}
+		SQLiteStatement query = database.prepare("SELECT name, sql FROM sqlite_master WHERE type='index' AND tbl_name='events' AND sql IS NOT NULL");
+		try {
+			while (query.step())
+				indexes.add(new String[]{query.columnString(0), query.columnString(1)});
+		} finally {
+			query.dispose();
+		}
+		
+		for (String[] index : indexes) {
+			String sql = index[1].replaceFirst("(?i)\\bON\\s+events\\s*\\(", "ON events_new(");
+			if (sql.equals(index[1]))
+				throw new IllegalStateException("Cannot parse index definition: " + sql);
+			System.err.println("Moving index " + index[0]);
+			database.exec("BEGIN IMMEDIATE TRANSACTION");
+			database.exec("DROP INDEX " + index[0]);
+			database.exec(sql);
+			database.exec("COMMIT TRANSACTION");
+		}
+	}
+	
+	
+	// Replaces the old table with the new one. Statements that the Connector has already prepared
+	// are recompiled by SQLite automatically when they next run, because the schema has changed.
+	static void swapTables(SQLiteConnection database) throws SQLiteException {
+		database.exec("BEGIN IMMEDIATE TRANSACTION");
+		for (String op : TRIGGER_OPS)
+			database.exec("DROP TRIGGER events_migrate_" + op.toLowerCase());
+		database.exec("DROP TABLE events");
+		database.exec("ALTER TABLE events_new RENAME TO events");
+		database.exec("COMMIT TRANSACTION");
+	}
+	
+	
+	private static final String COLUMNS = "connectionId, sequence, timestamp, type, data, class, command, target";
+	
+	private static final String[] TRIGGER_OPS = {"INSERT", "UPDATE", "DELETE"};
+	
+	static final int COPY_BATCH_SIZE = 10000;
+	
+	
+	// Not instantiable.
+	private MigrateEventsTable() {}
+	
+}
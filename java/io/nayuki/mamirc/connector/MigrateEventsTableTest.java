@@ -0,0 +1,195 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+
+
+public final class MigrateEventsTableTest {
+	
+	// Migrates a rowid table with more rows than one copy transaction, while rows are inserted, updated, and deleted
+	// between the steps like the Connector would. Then all rows and indexes must be on the new table, and a second run
+	// must change nothing.
+	@Test public void testMigratePopulated() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-migrate").toFile();
+		try {
+			BackendConfiguration config = DatabaseLoggerThreadTest.writeConfig(dir, "");
+			SQLiteConnection db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(true);
+			try {
+				db.exec("CREATE TABLE events" + DatabaseLoggerThread.EVENTS_TABLE_DEFINITION.replace(" WITHOUT ROWID", ""));
+			} finally {
+				db.dispose();
+			}
+			new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId();  // Adds the indexes
+			
+			int numRows = MigrateEventsTable.COPY_BATCH_SIZE * 2 + 123;
+			db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				db.exec("BEGIN TRANSACTION");
+				SQLiteStatement st = db.prepare("INSERT INTO events VALUES(?,?,?,?,?,?,?,?)");
+				for (int i = 0; i < numRows; i++) {
+					st.bind(1, i % 7);  // Interleaved connections, so the rowid order differs from the key order
+					st.bind(2, i / 7);
+					st.bind(3, 1500000000000L + i);
+					st.bind(4, 1);
+					st.bind(5, i % 10 == 0 ? new byte[0] : ("PRIVMSG #chan" + (i % 3) + " :line " + i).getBytes("UTF-8"));
+					st.bind(6, i % 2);
+					if (i % 10 == 0) {
+						st.bindNull(7);
+						st.bindNull(8);
+					} else {
+						st.bind(7, "PRIVMSG");
+						st.bind(8, "#chan" + (i % 3));
+					}
+					st.step();
+					st.reset();
+				}
+				db.exec("COMMIT TRANSACTION");
+				Map<String,String> indexesBefore = readIndexes(db);
+				assertFalse(MigrateEventsTable.isWithoutRowid(db));
+				
+				MigrateEventsTable.createShadowTable(db);
+				// Changes that the triggers must mirror, both to rows that were not copied yet and to new rows
+				db.exec("INSERT INTO events VALUES(100, 0, 1, 0, X'636F6E6E656374', NULL, '', NULL)");
+				db.exec("INSERT INTO events VALUES(100, 1, 2, 1, X'4A4F494E', 0, 'JOIN', NULL)");
+				db.exec("UPDATE events SET command='NOTICE' WHERE connectionId=3 AND sequence=5");
+				db.exec("UPDATE events SET target='#changed' WHERE connectionId=100 AND sequence=1");
+				db.exec("DELETE FROM events WHERE connectionId=6 AND sequence=7");
+				MigrateEventsTable.copyRows(db);
+				db.exec("INSERT INTO events VALUES(100, 2, 3, 1, X'50415254', 0, 'PART', '#x')");
+				MigrateEventsTable.moveIndexes(db);
+				db.exec("DELETE FROM events WHERE connectionId=100 AND sequence=0");
+				List<String> expected = readRows(db);
+				MigrateEventsTable.swapTables(db);
+				
+				assertTrue(MigrateEventsTable.isWithoutRowid(db));
+				assertEquals(numRows + 3 - 2, expected.size());
+				assertEquals(expected, readRows(db));
+				assertEquals(indexesBefore, readIndexes(db));
+				st = db.prepare("SELECT count(*) FROM sqlite_master WHERE name LIKE '%migrate%' OR name='events_new'");
+				assertTrue(st.step());
+				assertEquals(0, st.columnInt(0));
+				assertTrue(expected.contains("3 5 1500000000038 1 " + hex("PRIVMSG #chan2 :line 38") + " 0 NOTICE #chan2"));
+				assertTrue(expected.contains("100 1 2 1 4A4F494E 0 JOIN #changed"));
+				assertFalse(expected.contains("6 7 1500000000055 1 " + hex("PRIVMSG #chan1 :line 55") + " 1 PRIVMSG #chan1"));
+			} finally {
+				db.dispose();
+			}
+			
+			// Running it again is harmless, and the Connector still opens the database
+			assertFalse(MigrateEventsTable.migrate(config.connectorDatabaseFile));
+			new DatabaseLoggerThread(config, NO_HANDLER).initAndGetNextConnectionId();
+			db = new SQLiteConnection(config.connectorDatabaseFile);
+			db.open(false);
+			try {
+				assertEquals(numRows + 1, readRows(db).size());
+			} finally {
+				db.dispose();
+			}
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// A database from before the class, command, and target columns is rejected with a clear message and left unchanged.
+	@Test public void testMissingColumns() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-migrate").toFile();
+		try {
+			File file = new File(dir, "events.sqlite");
+			SQLiteConnection db = new SQLiteConnection(file);
+			db.open(true);
+			try {
+				db.exec("CREATE TABLE events(connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, "
+					+ "type INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY(connectionId, sequence))");
+				db.exec("INSERT INTO events VALUES(0, 0, 1, 0, X'00')");
+			} finally {
+				db.dispose();
+			}
+			try {
+				MigrateEventsTable.migrate(file);
+				fail();
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("[class, command, target]"));
+			}
+			db = new SQLiteConnection(file);
+			db.open(false);
+			try {
+				SQLiteStatement st = db.prepare("SELECT group_concat(name) FROM sqlite_master");
+				assertTrue(st.step());
+				assertEquals("events,sqlite_autoindex_events_1", st.columnString(0));
+			} finally {
+				db.dispose();
+			}
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// Returns every row of the events table as text, in key order.
+	private static List<String> readRows(SQLiteConnection db) throws SQLiteException {
+		SQLiteStatement st = db.prepare("SELECT connectionId || ' ' || sequence || ' ' || timestamp || ' ' || type || ' ' || hex(data) || ' ' "
+			+ "|| ifnull(class, '-') || ' ' || ifnull(command, '-') || ' ' || ifnull(target, '-') FROM events ORDER BY connectionId, sequence");
+		try {
+			List<String> result = new ArrayList<>();
+			while (st.step())
+				result.add(st.columnString(0));
+			return result;
+		} finally {
+			st.dispose();
+		}
+	}
+	
+	
+	// Returns the name and definition of each explicitly created index of the events table. The table name is unquoted,
+	// because renaming the table quotes it in the definitions.
+	private static Map<String,String> readIndexes(SQLiteConnection db) throws SQLiteException {
+		SQLiteStatement st = db.prepare("SELECT name, sql FROM sqlite_master WHERE type='index' AND tbl_name='events' AND sql IS NOT NULL");
+		try {
+			Map<String,String> result = new TreeMap<>();
+			while (st.step())
+				result.put(st.columnString(0), st.columnString(1).replace("\"events\"", "events"));
+			return result;
+		} finally {
+			st.dispose();
+		}
+	}
+	
+	
+	private static String hex(String s) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : s.getBytes("UTF-8"))
+			sb.append(String.format("%02X", b));
+		return sb.toString();
+	}
+	
+	
+	private static final Runnable NO_HANDLER = new Runnable() {
+		public void run() {}
+	};
+	
+}
@@ -8,10 +8,21 @@
 
 package io.nayuki.mamirc.connector;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import io.nayuki.mamirc.common.ChannelStreams;
 import io.nayuki.mamirc.common.Utils;
 
 
@@ -20,29 +31,71 @@ import io.nayuki.mamirc.common.Utils;
  * and launches a new ProcessorReaderThread on each connection received.
  * This class implements rate-limiting to prevent denial-of-service attacks (but because the socket only listens
  * to localhost, the attacker would be another process running by this user, or another user on this machine).
+ * Alternatively it listens on a Unix domain socket, whose file is only accessible to this user, so the delay is skipped.
+ * A listener can serve several connectors (tenants) in one process, each with a distinct password; the password
+ * that a processor sends selects the connector that it talks to.
  */
 final class ProcessorListenerThread extends Thread {
 	
 	/*---- Fields ----*/
 	
-	private final MamircConnector master;
-	private final ServerSocket serverSocket;
-	private final byte[] password;
+	private final Map<MamircConnector,byte[]> tenants;  // Password of each connector; accessed while synchronized
+	private final ServerSocket serverSocket;          // Null if listening on a Unix domain socket
+	private final ServerSocketChannel serverChannel;  // Null if listening on a TCP port
+	private final File socketPath;                    // Null if listening on a TCP port
 	
 	
 	/*---- Constructor ----*/
 	
 	// The server socket is created on the caller's thread, to make the caller deal with an I/O exception immediately.
-	public ProcessorListenerThread(MamircConnector master, int port, byte[] password) throws IOException {
+	// If socketPath is not null, then the port is ignored and a Unix domain socket is created at that path.
+	// Connectors must be added before any processor can be served.
+	public ProcessorListenerThread(int port, File socketPath) throws IOException {
 		super("ProcessorListenerThread");
-		if (master == null || password == null)
-			throw new NullPointerException();
 		Utils.checkPortNumber(port);
 		
-		this.master = master;
-		this.password = password.clone();  // Defensive copy
-		serverSocket = new ServerSocket();
-		serverSocket.bind(new InetSocketAddress("localhost", port), 4);  // Limit the number of waiting connections
+		tenants = new LinkedHashMap<>();
+		this.socketPath = socketPath;
+		if (socketPath == null) {
+			serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress("localhost", port), 4);  // Limit the number of waiting connections
+			serverChannel = null;
+		} else {
+			Files.deleteIfExists(socketPath.toPath());  // Left behind if the previous run was killed
+			serverSocket = null;
+			serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			try {
+				bindPrivately(serverChannel, socketPath.getAbsoluteFile().toPath());
+			} catch (IOException e) {
+				serverChannel.close();
+				throw e;
+			}
+		}
+	}
+	
+	
+	// Binds the given channel at the given path such that other users can never connect, not even before the
+	// permissions are set: the socket is created in a new directory that only this user can enter, made owner-only,
+	// and then renamed into place. The password is still required, but this stops other users from even connecting.
+	// Without POSIX permissions (e.g. on Windows), binds at the path directly and prints a warning.
+	private static void bindPrivately(ServerSocketChannel channel, Path path) throws IOException {
+		Path dir;
+		try {
+			dir = Files.createTempDirectory(path.getParent(), ".mamirc", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (UnsupportedOperationException e) {
+			System.err.println("Warning: File permissions are not supported, so other users might connect to " + path);
+			channel.bind(UnixDomainSocketAddress.of(path), 4);
+			return;
+		}
+		Path temp = dir.resolve("s");  // Short, because socket paths are limited to about 100 bytes
+		try {
+			channel.bind(UnixDomainSocketAddress.of(temp), 4);  // Limit the number of waiting connections
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+			Files.delete(dir);
+		}
 	}
 	
 	
@@ -51,9 +104,12 @@ final class ProcessorListenerThread extends Thread {
 	public void run() {
 		try {
 			while (true) {
-				Socket sock = serverSocket.accept();
-				new ProcessorReaderThread(master, sock, password).start();
-				Thread.sleep(100);  // Safety delay
+				if (serverChannel != null)
+					new ProcessorReaderThread(this, new ChannelStreams(serverChannel.accept())).start();
+				else {
+					new ProcessorReaderThread(this, new ChannelStreams(serverSocket.accept())).start();
+					Thread.sleep(100);  // Safety delay
+				}
 			}
 		} catch (IOException e) {}
 		catch (InterruptedException e) {}
@@ -63,11 +119,60 @@ final class ProcessorListenerThread extends Thread {
 	}
 	
 	
+	// Makes processors that send the given password talk to the given connector. Throws an exception
+	// if another connector has the same password. Can be called from any thread.
+	public synchronized void addTenant(MamircConnector master, byte[] password) {
+		if (master == null || password == null)
+			throw new NullPointerException();
+		for (byte[] pw : tenants.values()) {
+			if (Arrays.equals(pw, password))
+				throw new IllegalArgumentException("Duplicate connector password");
+		}
+		tenants.put(master, password.clone());  // Defensive copy
+	}
+	
+	
+	// Stops routing new processor connections to the given connector. Can be called from any thread.
+	public synchronized void removeTenant(MamircConnector master) {
+		tenants.remove(master);
+	}
+	
+	
+	// Returns the connector whose password equals the given line, or null if none does. Every password is
+	// compared in constant time, so the timing reveals neither the password nor which connector matched.
+	public synchronized MamircConnector authenticate(byte[] passwordLine) {
+		MamircConnector result = null;
+		for (Map.Entry<MamircConnector,byte[]> entry : tenants.entrySet()) {
+			if (equalsTimingSafe(passwordLine, entry.getValue()))
+				result = entry.getKey();
+		}
+		return result;
+	}
+	
+	
 	// Can be called from any thread, and is idempotent.
 	public void terminate() {
 		try {
-			serverSocket.close();
+			if (serverChannel != null) {
+				serverChannel.close();
+				socketPath.delete();
+			} else
+				serverSocket.close();
 		} catch (IOException e) {}
 	}
 	
+	
+	/*---- Helper definitions ----*/
+	
+	// Performs a constant-time equality check, if both arrays are the same length.
+	// This prevents the use of timing attacks to guess passwords.
+	private static boolean equalsTimingSafe(byte[] a, byte[] b) {
+		if (a.length != b.length)
+			return false;
+		int diff = 0;
+		for (int i = 0; i < a.length; i++)
+			diff |= a[i] ^ b[i];
+		return diff == 0;
+	}
+	
 }
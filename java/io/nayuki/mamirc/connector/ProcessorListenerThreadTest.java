@@ -0,0 +1,46 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.Test;
+
+
+public final class ProcessorListenerThreadTest {
+	
+	// The socket replaces a stale file, is owner-only from the start (it is bound in a private directory that is
+	// then removed), accepts connections at the configured path, and is deleted when the listener terminates.
+	@Test public void testUnixSocket() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-listener").toFile();
+		try {
+			File socketPath = new File(dir, "connector.sock");
+			Files.write(socketPath.toPath(), new byte[]{'x'});  // Stale file
+			ProcessorListenerThread listener = new ProcessorListenerThread(0, socketPath);
+			try {
+				assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socketPath.toPath())));
+				assertArrayEquals(new String[]{"connector.sock"}, dir.list());
+				SocketChannel.open(UnixDomainSocketAddress.of(socketPath.toPath())).close();
+			} finally {
+				listener.terminate();
+			}
+			assertFalse(socketPath.exists());
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+}
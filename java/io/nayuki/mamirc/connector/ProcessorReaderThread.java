@@ -8,10 +8,13 @@
 
 package io.nayuki.mamirc.connector;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.OutputStream;
 import java.util.Arrays;
+import io.nayuki.mamirc.common.ChannelStreams;
 import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.DeflatingOutputStream;
 import io.nayuki.mamirc.common.LineReader;
 import io.nayuki.mamirc.common.OutputWriterThread;
 import io.nayuki.mamirc.common.Utils;
@@ -23,6 +26,9 @@ import io.nayuki.mamirc.common.Utils;
  * - Reads and checks the password before doing anything
  * - Explicitly terminates the connection if the correct password is not received within a few seconds
  * - Creates and terminates a writer thread for the socket
+ * - Compresses the data sent to the processor if requested by the action "attach deflate"
+ * - Passes events through a shared memory ring instead if requested by the action "attach ring"
+ * - Locates the parts of each relayed IRC line for the processor if "parsed" is added to the attach action
  * 
  * These and only these line formats are allowed coming from the processor:
  * - "connect <hostname> <port> <useSsl> <metadata>"
@@ -33,6 +39,11 @@ import io.nayuki.mamirc.common.Utils;
  * - "send <connectionId> <payload>"
  *   where connectionId is a non-negative integer,
  *   and payload is a byte sequence (not necessarily UTF-8).
+ * - "send-bulk <connectionId> <payload>"
+ *   which is like "send", but the line is queued behind other messages, e.g. because it is part of a paste.
+ * - "backup <compress> <path>"
+ *   where compress is true/false, and path is in UTF-8 and can contain spaces.
+ *   Requests a consistent copy of the database to be written to the file (gzip-compressed if compress is true).
  * - "terminate"
  *   which requests the connector to shut down cleanly.
  * Notes:
@@ -46,21 +57,21 @@ final class ProcessorReaderThread extends Thread {
 	
 	/*---- Fields ----*/
 	
-	private final MamircConnector master;
-	private final Socket socket;
-	private final byte[] password;
+	private final ProcessorListenerThread listener;
+	private final ChannelStreams socket;
+	private MamircConnector master;  // Set after authentication
 	
 	
 	/*---- Constructor ----*/
 	
 	// This constructor must only be called from ProcessorListenerThread.
-	public ProcessorReaderThread(MamircConnector master, Socket sock, byte[] password) {
+	public ProcessorReaderThread(ProcessorListenerThread listener, ChannelStreams sock) {
 		super("ProcessorReaderThread " + (System.nanoTime() % 997));  // Generate a short, random-ish ID
-		if (master == null || sock == null || password == null)
+		if (listener == null || sock == null)
 			throw new NullPointerException();
-		this.master = master;
+		this.listener = listener;
 		socket = sock;
-		this.password = password;
+		master = null;
 	}
 	
 	
@@ -68,30 +79,56 @@ final class ProcessorReaderThread extends Thread {
 	
 	public void run() {
 		OutputWriterThread writer = null;
+		DeflatingOutputStream deflater = null;
 		try {
 			// Set up the authentication timeout
 			Thread killer = new KillerThread();
 			killer.start();
 			
 			// Read password line
-			LineReader reader = new LineReader(socket.getInputStream());
+			LineReader reader = new LineReader(socket.input);
 			byte[] passwordLine = reader.readLine();  // First line, thus not null
-			if (!equalsTimingSafe(passwordLine, password))
+			master = listener.authenticate(passwordLine);
+			if (master == null)
 				return;  // Authentication failure
 			
+			// Read action line
+			String actionLine = Utils.fromUtf8(reader.readLine());
+			killer.interrupt();  // Killer is no longer needed, now that we have read the lines
+			
+			// Parse the options of an attach action, e.g. "attach deflate parsed"
+			boolean isAttach = actionLine.equals("attach") || actionLine.startsWith("attach ");
+			boolean useDeflate = false;
+			boolean useRing = false;
+			boolean useParsed = false;
+			if (isAttach) {
+				for (String option : actionLine.substring(6).split(" ")) {
+					if (option.equals("deflate"))
+						useDeflate = true;
+					else if (option.equals("ring"))
+						useRing = true;
+					else if (option.equals("parsed"))
+						useParsed = true;
+					else if (!option.isEmpty())
+						isAttach = false;  // Unknown option
+				}
+			}
+			
 			// Launch writer thread
-			writer = new OutputWriterThread(socket.getOutputStream(), new byte[]{'\r','\n'});
+			OutputStream out = socket.output;
+			if (useDeflate) {
+				deflater = new DeflatingOutputStream(out);
+				out = deflater;
+			}
+			writer = new OutputWriterThread(out, new byte[]{'\r','\n'});
 			writer.setName("OutputWriterThread : " + this.getName());
 			writer.start();
 			
-			// Read action line
-			String actionLine = Utils.fromUtf8(reader.readLine());
-			killer.interrupt();  // Killer is no longer needed, now that we have read the lines
 			if (actionLine.equals("list-connections")) {
 				master.listConnectionsToProcessor(writer);
-			} else if (actionLine.equals("attach")) {
+			} else if (isAttach) {
 				try {
-					master.attachProcessor(this, writer);
+					master.attachProcessor(this, writer, useRing, useParsed);
 					while (true) {  // Process input lines
 						byte[] line = reader.readLine();
 						if (line == LineReader.BLANK_EOF || line == null)
@@ -111,6 +148,8 @@ final class ProcessorReaderThread extends Thread {
 				} catch (InterruptedException e) {}
 			}
 			terminate();
+			if (deflater != null)  // Safe to read after the writer has finished
+				System.err.println("Processor link compression: " + deflater.getStatistics());
 		}
 	}
 	
@@ -132,9 +171,15 @@ final class ProcessorReaderThread extends Thread {
 			} else if (cmd.equals("disconnect") && parts.length == 2) {
 				master.disconnectServer(Integer.parseInt(parts[1]), this);
 				
-			} else if (cmd.equals("send") && parts.length >= 3) {
+			} else if ((cmd.equals("send") || cmd.equals("send-bulk")) && parts.length >= 3) {
 				byte[] payload = Arrays.copyOfRange(line, cmd.length() + parts[1].length() + 2, line.length);
-				master.sendMessage(Integer.parseInt(parts[1]), new CleanLine(payload, false), this);
+				master.sendMessage(Integer.parseInt(parts[1]), new CleanLine(payload, false), cmd.equals("send-bulk"), this);
+				
+			} else if (cmd.equals("backup") && parts.length >= 3) {
+				String path = lineStr.substring(cmd.length() + parts[1].length() + 2);
+				if (!(parts[1].equals("true") || parts[1].equals("false")) || path.isEmpty())
+					throw new IllegalArgumentException();
+				master.backupDatabase(new File(path), Boolean.parseBoolean(parts[1]), this);
 				
 			} else {
 				System.err.println("Unknown line from processor: " + lineStr);
@@ -153,18 +198,6 @@ final class ProcessorReaderThread extends Thread {
 	
 	/*---- Helper definitions ----*/
 	
-	// Performs a constant-time equality check, if both arrays are the same length.
-	// This prevents the use of timing attacks to guess passwords.
-	private static boolean equalsTimingSafe(byte[] a, byte[] b) {
-		if (a.length != b.length)
-			return false;
-		int diff = 0;
-		for (int i = 0; i < a.length; i++)
-			diff |= a[i] ^ b[i];
-		return diff == 0;
-	}
-	
-	
 	private static final int AUTHENTICATION_TIMEOUT = 3000;  // In milliseconds
 	
 	private final class KillerThread extends Thread {
@@ -0,0 +1,118 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * The client side of a connection to a replica run by MamircReplica. Each batch is acknowledged
+ * before the next one is sent. The stream protocol (all integers big endian):
+ * - Client sends the password: int length, then the bytes.
+ * - Server sends its watermarks (see Watermarks), or closes the connection if the password is wrong.
+ * - Then repeatedly: client sends a batch: int count (at least 0), then count records in the format of
+ *   EventJournal, each with its own CRC-32; server stores it and replies with the new watermarks
+ *   of the connections in the batch. A batch of 0 events is a heartbeat.
+ */
+final class RemoteReplicaStore implements ReplicaStore {
+	
+	/*---- Fields ----*/
+	
+	private final Socket socket;
+	private final DataInputStream input;
+	private final DataOutputStream output;
+	private final Watermarks initialWatermarks;
+	
+	
+	/*---- Constructor ----*/
+	
+	// Connects to the replica at the given address, authenticates, and reads its watermarks.
+	public RemoteReplicaStore(String hostname, int port, byte[] password) throws IOException {
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(hostname, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(REPLY_TIMEOUT);
+			input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			output.writeInt(password.length);
+			output.write(password);
+			output.flush();
+			initialWatermarks = Watermarks.read(input);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	public Watermarks getWatermarks() {
+		return new Watermarks(initialWatermarks);
+	}
+	
+	
+	public Watermarks apply(List<Event> batch) throws IOException {
+		writeBatch(output, batch);
+		output.flush();
+		return Watermarks.read(input);
+	}
+	
+	
+	public void close() throws IOException {
+		socket.close();
+	}
+	
+	
+	/*---- Static functions ----*/
+	
+	static void writeBatch(DataOutput out, List<Event> batch) throws IOException {
+		out.writeInt(batch.size());
+		for (Event ev : batch)
+			out.write(EventJournal.toRecord(ev));
+	}
+	
+	
+	// Reads a batch in the format written by writeBatch(), throwing an exception if the data is invalid.
+	static List<Event> readBatch(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MAX_BATCH_SIZE)
+			throw new IOException("Invalid batch size");
+		List<Event> result = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Event ev = EventJournal.readRecord(in);
+			if (ev == null)
+				throw new IOException("Corrupt event record");
+			result.add(ev);
+		}
+		return result;
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	static final int MAX_BATCH_SIZE = 100000;
+	
+	private static final int CONNECT_TIMEOUT = 30000;  // In milliseconds
+	
+	// A large batch can take the replica a while to commit
+	private static final int REPLY_TIMEOUT = 300000;  // In milliseconds
+	
+}
@@ -0,0 +1,35 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.util.List;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * A destination that keeps a copy of the Connector's events, either a local database or a remote replica.
+ * An instance must only be used by the thread that created it.
+ */
+interface ReplicaStore {
+	
+	// Returns a copy of what the store has, which is where replication resumes from.
+	public Watermarks getWatermarks() throws IOException, SQLiteException;
+	
+	
+	// Durably stores the given events, which must continue each connection's sequence without gaps
+	// (duplicates are ignored), and returns the new watermarks of the connections in the batch.
+	// An empty batch only checks that the store is still reachable.
+	public Watermarks apply(List<Event> batch) throws IOException, SQLiteException;
+	
+	
+	public void close() throws IOException;
+	
+}
@@ -0,0 +1,182 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A worker thread that ships the events committed by DatabaseLoggerThread to one replica store, in order.
+ * On each (re)connection, it reads the replica's watermarks and first catches up by reading the missing events
+ * from the database on its own connection, then sends the batches that the logger posted meanwhile, skipping
+ * the events that the replica already has. If it falls too far behind or sees a gap, it catches up again from
+ * the database. On any error, it disconnects and retries with an increasing delay.
+ * 
+ * A replica is specified as "dir:<path>" for a database file named replica.sqlite in a local directory,
+ * or "tcp:<hostname>:<port>" for a remote replica run by MamircReplica.
+ */
+final class ReplicationThread extends CommittedBatchSubscriber {
+	
+	/*---- Fields ----*/
+	
+	private final String spec;
+	private final byte[] password;
+	private final File directory;  // Null if the replica is remote
+	private final String hostname;
+	private final int port;
+	
+	// Only accessed by this worker
+	private ReplicaStore store;
+	private Watermarks acknowledged;
+	
+	
+	/*---- Constructor ----*/
+	
+	// Parses the given specification, throwing an exception if it is invalid. Performs no I/O.
+	public ReplicationThread(String spec, File databaseFile, byte[] password) {
+		super("ReplicationThread " + spec, "Replica " + spec, databaseFile, MIN_RETRY_DELAY, MAX_RETRY_DELAY, HEARTBEAT_INTERVAL);
+		if (password == null)
+			throw new NullPointerException();
+		this.spec = spec;
+		this.password = password.clone();
+		if (spec.startsWith("dir:") && spec.length() > 4) {
+			directory = new File(spec.substring(4));
+			hostname = null;
+			port = -1;
+		} else if (spec.startsWith("tcp:") && spec.lastIndexOf(':') > 4) {
+			directory = null;
+			hostname = spec.substring(4, spec.lastIndexOf(':'));
+			port = Utils.checkPortNumber(Integer.parseInt(spec.substring(spec.lastIndexOf(':') + 1)));
+		} else
+			throw new IllegalArgumentException("Invalid replica: " + spec);
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	protected void openSession() throws IOException, SQLiteException {
+		store = directory != null ? new SqliteReplicaStore(new File(directory, "replica.sqlite")) : new RemoteReplicaStore(hostname, port, password);
+		acknowledged = store.getWatermarks();
+		System.err.println("Replica " + spec + " connected");
+	}
+	
+	
+	protected void closeSession() {
+		if (store != null) {
+			try {
+				store.close();
+			} catch (IOException e) {}
+			store = null;
+		}
+	}
+	
+	
+	// Sends the events of the given batch that the replica doesn't have, or catches up if events are missing before it.
+	protected void handleBatch(List<Event> batch) throws IOException, SQLiteException {
+		List<Event> events;
+		try {
+			events = acknowledged.newEvents(batch);
+		} catch (IllegalArgumentException e) {
+			catchUp();  // The missing events are in the database by now
+			return;
+		}
+		send(events);
+	}
+	
+	
+	// Sends an empty batch, so that a broken connection is noticed.
+	protected void handleIdle() throws IOException, SQLiteException {
+		store.apply(new ArrayList<Event>());
+	}
+	
+	
+	// Sends every event in the database that the replica doesn't have, in chunks.
+	protected void catchUp() throws IOException, SQLiteException {
+		SQLiteConnection database = getDatabase();
+		List<int[]> behind = new ArrayList<>();  // Each is {connectionId, sequence}
+		SQLiteStatement query = database.prepare("SELECT connectionId, max(sequence) FROM events GROUP BY connectionId");
+		try {
+			while (query.step()) {
+				int conId = query.columnInt(0);
+				if (query.columnInt(1) > acknowledged.get(conId))
+					behind.add(new int[]{conId, acknowledged.get(conId)});
+			}
+		} finally {
+			query.dispose();
+		}
+		if (behind.isEmpty())
+			return;
+		
+		long total = 0;
+		query = database.prepare("SELECT sequence, timestamp, type, data FROM events WHERE connectionId=? AND sequence>? ORDER BY sequence LIMIT " + SEND_BATCH_SIZE);
+		try {
+			for (int[] item : behind) {
+				while (true) {
+					query.bind(1, item[0]);
+					query.bind(2, acknowledged.get(item[0]));
+					List<Integer> seqs = new ArrayList<>();
+					List<Long> times = new ArrayList<>();
+					List<Integer> types = new ArrayList<>();
+					List<byte[]> datas = new ArrayList<>();
+					while (query.step()) {
+						seqs.add(query.columnInt(0));
+						times.add(query.columnLong(1));
+						types.add(query.columnInt(2));
+						datas.add(Utils.columnBytes(query, 3));
+					}
+					query.reset();
+					if (seqs.isEmpty())
+						break;
+					PayloadStore.resolveAll(database, datas);
+					List<Event> events = new ArrayList<>();
+					for (int i = 0; i < seqs.size(); i++)
+						events.add(new Event(item[0], seqs.get(i), times.get(i), Event.Type.fromOrdinal(types.get(i)), new CleanLine(datas.get(i), false)));
+					int before = acknowledged.get(item[0]);
+					send(acknowledged.newEvents(events));
+					if (acknowledged.get(item[0]) <= before)
+						throw new IOException("Replica did not acknowledge");
+					total += events.size();
+					if (seqs.size() < SEND_BATCH_SIZE)
+						break;
+				}
+			}
+		} finally {
+			query.dispose();
+		}
+		System.err.println("Replica " + spec + " caught up: " + total + " events in " + behind.size() + " connections");
+	}
+	
+	
+	private void send(List<Event> events) throws IOException, SQLiteException {
+		for (int off = 0; off < events.size(); off += SEND_BATCH_SIZE)
+			acknowledged.merge(store.apply(events.subList(off, Math.min(off + SEND_BATCH_SIZE, events.size()))));
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	private static final int SEND_BATCH_SIZE = 1000;
+	
+	private static final int HEARTBEAT_INTERVAL = 60000;  // In milliseconds
+	
+	private static final int MIN_RETRY_DELAY = 10000;  // In milliseconds
+	
+	private static final int MAX_RETRY_DELAY = 600000;  // In milliseconds
+	
+}
@@ -0,0 +1,145 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import io.nayuki.mamirc.common.SharedMemoryRing;
+
+
+/* 
+ * A worker thread that writes event frames into the shared memory ring of the attached processor, so that the
+ * connector never waits for ring space while holding its lock. Frames are queued in memory while the ring is full,
+ * which happens while the processor catches up from the database before it starts reading the ring. The queue is
+ * limited by its total size in bytes; when a frame doesn't fit, offerFrame() returns false and the caller should
+ * detach the processor, which has fallen too far behind. Upon termination, the queued frames are discarded and
+ * the ring is closed.
+ */
+final class RingWriterThread extends Thread {
+	
+	/*---- Fields ----*/
+	
+	private final SharedMemoryRing ring;
+	private final long maxQueuedBytes;
+	
+	private final Lock lock;
+	private final Condition condChanged;  // Signaled when a frame is queued or termination is requested
+	private final Queue<byte[]> queue;
+	private long queuedBytes;  // Sum of the lengths of the frames in the queue
+	private boolean terminateRequested;
+	
+	
+	/*---- Constructor ----*/
+	
+	// The ring must be the producer side, and is used exclusively by this writer.
+	public RingWriterThread(SharedMemoryRing ring, long maxQueuedBytes) {
+		super("RingWriterThread");
+		if (ring == null)
+			throw new NullPointerException();
+		if (maxQueuedBytes <= 0)
+			throw new IllegalArgumentException();
+		this.ring = ring;
+		this.maxQueuedBytes = maxQueuedBytes;
+		lock = new ReentrantLock();
+		condChanged = lock.newCondition();
+		queue = new ArrayDeque<>();
+		queuedBytes = 0;
+		terminateRequested = false;
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	public void run() {
+		try {
+			while (true) {
+				byte[] frame = takeNextFrame();
+				if (frame == null)
+					break;
+				// Wait for space for as long as it takes, but notice a termination request at least once per timeout
+				while (true) {
+					try {
+						ring.write(frame, WRITE_TIMEOUT);
+						break;
+					} catch (IOException e) {
+						lock.lock();
+						try {
+							if (terminateRequested)
+								return;
+						} finally {
+							lock.unlock();
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {}
+		finally {  // Clean up
+			ring.close();
+		}
+	}
+	
+	
+	// Blocks until a frame is queued and returns it, or returns null if termination is requested.
+	private byte[] takeNextFrame() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!terminateRequested && queue.isEmpty())
+				condChanged.await();
+			if (terminateRequested)
+				return null;
+			byte[] result = queue.remove();
+			queuedBytes -= result.length;
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Queues the given frame without ever blocking, and returns whether it was queued (false if the queue would exceed
+	// its size limit, or if termination was requested). Can be called from any thread. Caller must never change the
+	// values inside the array after it is passed into this method.
+	public boolean offerFrame(byte[] frame) {
+		if (frame == null)
+			throw new NullPointerException();
+		lock.lock();
+		try {
+			if (terminateRequested || queuedBytes + frame.length > maxQueuedBytes)
+				return false;
+			queue.add(frame);
+			queuedBytes += frame.length;
+			condChanged.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Discards the queued frames, closes the ring, and stops this thread soon. Can be called from any thread.
+	public void terminate() {
+		lock.lock();
+		try {
+			terminateRequested = true;
+			queue.clear();
+			queuedBytes = 0;
+			condChanged.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	private static final int WRITE_TIMEOUT = 1000;  // In milliseconds
+	
+}
@@ -0,0 +1,74 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Test;
+import io.nayuki.mamirc.common.SharedMemoryRing;
+
+
+public final class RingWriterThreadTest {
+	
+	// The consumer starts reading only after longer than the writer's timeout, like a processor that is catching up
+	// from the database. Meanwhile the offers must not block, and afterwards every frame must arrive in order.
+	@Test public void testSlowConsumer() throws IOException, InterruptedException {
+		File file = File.createTempFile("mamirc-ring", ".bin");
+		try {
+			RingWriterThread writer = new RingWriterThread(SharedMemoryRing.create(file, 4096), 1 << 20);
+			SharedMemoryRing consumer = SharedMemoryRing.open(file);
+			writer.start();
+			int count = 2000;  // Much more than the ring holds
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++)
+				assertTrue(writer.offerFrame(makeFrame(i)));
+			assertTrue(System.nanoTime() - start < 1000000000L);
+			Thread.sleep(1500);
+			for (int i = 0; i < count; i++)
+				assertArrayEquals(makeFrame(i), consumer.read());
+			writer.terminate();
+			assertNull(consumer.read());
+			writer.join();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	@Test public void testQueueLimit() throws IOException, InterruptedException {
+		File file = File.createTempFile("mamirc-ring", ".bin");
+		try {
+			RingWriterThread writer = new RingWriterThread(SharedMemoryRing.create(file, 4096), 10000);
+			writer.start();
+			// Nobody reads the ring, so it fills up and then the queue fills up
+			int accepted = 0;
+			while (writer.offerFrame(new byte[100]))
+				accepted++;
+			assertTrue(accepted >= 100 && accepted <= 100 + 4096 / 104 + 1);
+			writer.terminate();
+			assertFalse(writer.offerFrame(new byte[1]));
+			writer.join();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	
+	private static byte[] makeFrame(int i) {
+		byte[] result = new byte[i % 150];
+		for (int j = 0; j < result.length; j++)
+			result[j] = (byte)(i + j);
+		return result;
+	}
+	
+}
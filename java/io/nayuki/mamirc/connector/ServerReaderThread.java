@@ -9,7 +9,6 @@
 package io.nayuki.mamirc.connector;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -22,6 +21,7 @@ import javax.net.ssl.X509TrustManager;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.LineReader;
 import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.TokenBucket;
 import io.nayuki.mamirc.common.Utils;
 
 
@@ -43,17 +43,24 @@ final class ServerReaderThread extends Thread {
 	private final String hostname;
 	private final int port;
 	private final boolean useSsl;
+	private final TokenBucket sendLimiter;  // Can be null
+	private final TokenBucket receiveLineLimiter;  // Can be null
+	private final TokenBucket receiveByteLimiter;  // Can be null
+	private final AddressRacer addressRacer;
 	// My state
 	private volatile Socket socket;
+	private int throttleCount;  // Number of pauses since the last report
+	private long lastThrottleReport;  // System.nanoTime() value
 	
 	
 	/*---- Constructor ----*/
 	
 	// Note: This constructor only sets fields, and does not perform I/O.
 	// The actual socket is created when the new worker thread executes run().
-	public ServerReaderThread(MamircConnector master, int conId, String hostname, int port, boolean useSsl) {
+	public ServerReaderThread(MamircConnector master, int conId, String hostname, int port, boolean useSsl,
+			TokenBucket sendLimiter, TokenBucket receiveLineLimiter, TokenBucket receiveByteLimiter, AddressRacer racer) {
 		super("ServerReaderThread " + conId);
-		if (master == null || hostname == null)
+		if (master == null || hostname == null || racer == null)
 			throw new NullPointerException();
 		Utils.checkPortNumber(port);
 		
@@ -62,23 +69,33 @@ final class ServerReaderThread extends Thread {
 		this.hostname = hostname;
 		this.port = port;
 		this.useSsl = useSsl;
+		this.sendLimiter = sendLimiter;
+		this.receiveLineLimiter = receiveLineLimiter;
+		this.receiveByteLimiter = receiveByteLimiter;
+		addressRacer = racer;
 		socket = null;
+		throttleCount = 0;
+		lastThrottleReport = System.nanoTime() - THROTTLE_REPORT_INTERVAL;  // Allow an immediate first report
 	}
 	
 	
 	/*---- Methods ----*/
 	
 	public void run() {
-		socket = new Socket();
 		OutputWriterThread writer = null;
 		try {
-			// Create socket
-			socket.connect(new InetSocketAddress(hostname, port), 30000);
+			// Create socket, trying all of the host's addresses
+			socket = addressRacer.connect(hostname, port, 30000);
 			if (useSsl)
 				socket = SsfHolder.SSL_SOCKET_FACTORY.createSocket(socket, hostname, port, true);
 			
 			// Successfully connected; make a writer worker thread
-			writer = new OutputWriterThread(socket.getOutputStream(), new byte[]{'\r','\n'});
+			writer = new OutputWriterThread(socket.getOutputStream(), new byte[]{'\r','\n'}, sendLimiter,
+				new OutputWriterThread.Listener() {
+					public void lineWritten(CleanLine line) {
+						master.lineSent(connectionId, line);
+					}
+				});
 			writer.setName("OutputWriterThread : " + this.getName());
 			writer.start();
 			master.connectionOpened(connectionId, socket.getInetAddress(), this, writer);
@@ -94,8 +111,9 @@ final class ServerReaderThread extends Thread {
 					valid &= b != '\0';
 				if (valid)  // Ignore lines containing NUL character, disallowed by IRC RFC 1459
 					master.receiveMessage(connectionId, new CleanLine(line, false));
+				throttle(line.length);
 			}
-		} catch (IOException e) {}
+		} catch (IOException|InterruptedException e) {}
 		finally {  // Clean up the connection
 			master.connectionClosed(connectionId);
 			terminate();
@@ -106,6 +124,33 @@ final class ServerReaderThread extends Thread {
 	}
 	
 	
+	// Charges the given line against the receive limits, and sleeps if either limit is exceeded. Not reading from
+	// the socket while asleep lets the kernel's receive buffer fill up, so TCP flow control slows down the server.
+	private void throttle(int length) throws InterruptedException {
+		long wait = 0;
+		if (receiveLineLimiter != null) {
+			wait = Math.max(receiveLineLimiter.nanosUntilAvailable(1), wait);
+			receiveLineLimiter.consume(1);
+		}
+		if (receiveByteLimiter != null) {
+			// A line longer than the burst size waits for a full bucket, then leaves it in debt
+			wait = Math.max(receiveByteLimiter.nanosUntilAvailable(Math.min(length, receiveByteLimiter.getCapacity())), wait);
+			receiveByteLimiter.consume(length);
+		}
+		if (wait == 0)
+			return;
+		
+		throttleCount++;
+		long now = System.nanoTime();
+		if (now - lastThrottleReport >= THROTTLE_REPORT_INTERVAL) {
+			System.err.println("Connection " + connectionId + ": Throttling data from " + hostname + " (" + throttleCount + " pauses)");
+			throttleCount = 0;
+			lastThrottleReport = now;
+		}
+		Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+	}
+	
+	
 	// Aborts the current read operation (if any), closes the socket immediately, and causes the ServerReaderThread
 	// and OutputWriterThread to terminate cleanly very soon. Can be called from any thread, and is idempotent.
 	// However, this method must not be called if this worker has not called master.connectionOpened().
@@ -119,6 +164,10 @@ final class ServerReaderThread extends Thread {
 	
 	/*---- Helper definitions ----*/
 	
+	private static final long THROTTLE_REPORT_INTERVAL = 60L * 1000000000;  // In nanoseconds
+	
+	
+	
 	// This class provides a singleton object that is initialized only if needed,
 	// using the initialization-on-demand holder design pattern.
 	private static final class SsfHolder {
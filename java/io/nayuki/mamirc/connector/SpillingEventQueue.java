@@ -0,0 +1,229 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * A first-in-first-out queue of events that holds a bounded number of events in memory. When the memory part
+ * is full, newer events are appended to a spill file instead, and refill() moves them back into memory in order
+ * as the memory part drains. The spill file uses the record format of EventJournal, so it can be replayed
+ * after a crash. If writing to the spill file fails, the file is truncated to its last whole record, and the
+ * event and all later ones are kept in memory behind the spilled events until the file is drained, so that
+ * the order is preserved. Not thread-safe; the caller must synchronize.
+ */
+final class SpillingEventQueue {
+	
+	/*---- Fields ----*/
+	
+	private final int memoryCapacity;
+	private final Queue<Event> memory;  // Head part, before the spilled events
+	private final Queue<Event> unspilled;  // Tail part, after the spilled events; non-empty only if a spill write failed
+	
+	private final File spillFile;
+	private FileOutputStream spillOut;  // Null if and only if no spill episode is ongoing
+	private DataInputStream spillIn;    // Null if and only if no spill episode is ongoing
+	private int spillCount;             // Number of records in the spill file not read back yet
+	private long spillBytes;            // Number of bytes in the spill file not read back yet
+	private long spillFileLength;       // Number of bytes of whole records written to the spill file
+	
+	// Statistics for the current or most recent spill episode
+	private long spillStartTime;  // In milliseconds
+	private long spillEndTime;    // In milliseconds; 0 while the episode is ongoing
+	private long totalSpilledEvents;
+	private long totalSpilledBytes;
+	
+	
+	/*---- Constructor ----*/
+	
+	// The spill file is created when first needed, and is deleted whenever it is fully drained.
+	public SpillingEventQueue(int capacity, File spillFile) {
+		if (spillFile == null)
+			throw new NullPointerException();
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+		memoryCapacity = capacity;
+		memory = new ArrayDeque<>();
+		unspilled = new ArrayDeque<>();
+		this.spillFile = spillFile;
+		spillOut = null;
+		spillIn = null;
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Adds the given event to the tail of the queue. Returns true if this call started a new spill episode.
+	public boolean add(Event ev) {
+		if (ev == null)
+			throw new NullPointerException();
+		if (spillOut == null && memory.size() < memoryCapacity) {
+			memory.add(ev);
+			return false;
+		}
+		if (!unspilled.isEmpty()) {  // Must not overtake the events that failed to spill
+			unspilled.add(ev);
+			return false;
+		}
+		
+		boolean started = spillOut == null;
+		if (started) {
+			try {
+				startSpill();
+			} catch (IOException e) {
+				// Nothing is spilled, so keeping the event in memory preserves the order. Better to
+				// risk running out of memory than to lose the event; the next add() tries again.
+				if (memory.size() == memoryCapacity)  // Report only the first failure of a series
+					e.printStackTrace();
+				memory.add(ev);
+				return false;
+			}
+		}
+		byte[] record = EventJournal.toRecord(ev);
+		try {
+			spillOut.write(record);  // Unbuffered, so the record is visible to spillIn and survives a process crash
+			spillFileLength += record.length;
+			spillCount++;
+			spillBytes += record.length;
+			totalSpilledEvents++;
+			totalSpilledBytes += record.length;
+		} catch (IOException e) {
+			System.err.println("Cannot write to spill file; keeping events in memory until it drains: " + e.getMessage());
+			try {  // Remove any partial record, so that a replay after a crash reads only whole records
+				spillOut.getChannel().truncate(spillFileLength);
+			} catch (IOException ee) {
+				ee.printStackTrace();
+			}
+			unspilled.add(ev);
+		}
+		return started;
+	}
+	
+	
+	// Opens both ends of a new spill file and starts a new spill episode. If an exception
+	// is thrown, then no file is left open or on disk, and the state is unchanged.
+	private void startSpill() throws IOException {
+		FileOutputStream out = new FileOutputStream(spillFile);
+		try {
+			spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+		} catch (IOException e) {
+			out.close();
+			spillFile.delete();
+			throw e;
+		}
+		spillOut = out;
+		spillFileLength = 0;
+		spillStartTime = System.currentTimeMillis();
+		spillEndTime = 0;
+		totalSpilledEvents = 0;
+		totalSpilledBytes = 0;
+	}
+	
+	
+	// Removes and returns the event at the head of the in-memory part, or returns null if that part is empty.
+	public Event poll() {
+		return memory.poll();
+	}
+	
+	
+	// Moves as many spilled events as will fit back into memory, in order. Returns the number of events moved.
+	// When the spill file becomes fully drained, it is deleted, the current spill episode ends, and any events
+	// that failed to spill join the in-memory part. Throws an exception if a spilled event can't be read back.
+	public int refill() throws IOException {
+		int moved = 0;
+		while (spillCount > 0 && memory.size() < memoryCapacity) {
+			Event ev = EventJournal.readRecord(spillIn);
+			if (ev == null)
+				throw new IOException("Corrupt spill file");
+			memory.add(ev);
+			spillCount--;
+			spillBytes -= EventJournal.recordLength(ev);
+			moved++;
+		}
+		if (spillOut != null && spillCount == 0) {
+			spillOut.close();
+			spillIn.close();
+			spillOut = null;
+			spillIn = null;
+			spillBytes = 0;
+			spillEndTime = System.currentTimeMillis();
+			memory.addAll(unspilled);
+			unspilled.clear();
+			if (!spillFile.delete())
+				throw new IOException("Cannot delete spill file");
+		}
+		return moved;
+	}
+	
+	
+	// Returns whether the in-memory parts and the spill file are all empty.
+	public boolean isEmpty() {
+		return memory.isEmpty() && spillCount == 0 && unspilled.isEmpty();
+	}
+	
+	
+	// Returns whether some events are currently in the spill file.
+	public boolean isSpilling() {
+		return spillOut != null;
+	}
+	
+	
+	// Returns the number of events in the in-memory part.
+	public int memorySize() {
+		return memory.size();
+	}
+	
+	
+	// Returns a read-only collection of the events that are held in memory, and thus not safe in the spill file.
+	// These are the events of the in-memory part from head to tail, followed by any events that failed to spill.
+	public Collection<Event> inMemory() {
+		if (unspilled.isEmpty())
+			return Collections.unmodifiableCollection(memory);
+		List<Event> result = new ArrayList<>(memory);
+		result.addAll(unspilled);
+		return Collections.unmodifiableList(result);
+	}
+	
+	
+	// Returns a one-line human-readable summary of the queue depth, the spill volume, and the drain rate.
+	public String getStatus() {
+		String result = String.format("Database queue: %d events in memory, %d events (%d bytes) spilled", memory.size() + unspilled.size(), spillCount, spillBytes);
+		if (totalSpilledEvents > 0) {
+			long drained = totalSpilledEvents - spillCount;
+			long end = spillEndTime != 0 ? spillEndTime : System.currentTimeMillis();
+			double seconds = Math.max(end - spillStartTime, 1) / 1000.0;
+			result += String.format(", %d of %d events (%d bytes total) drained in %.1f s (%.0f events/s)",
+				drained, totalSpilledEvents, totalSpilledBytes, seconds, drained / seconds);
+		}
+		return result;
+	}
+	
+	
+	// Closes the spill file without deleting it, so that the remaining events can be replayed at the next start-up.
+	public void close() throws IOException {
+		if (spillOut != null) {
+			spillOut.close();
+			spillIn.close();
+		}
+	}
+	
+}
@@ -0,0 +1,180 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+
+
+public final class SpillingEventQueueTest {
+	
+	// Adds more events than fit in memory, interleaved with draining, and checks that they come out in order.
+	@Test public void testOverflowAndRefillOrder() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-spill").toFile();
+		try {
+			File spillFile = new File(dir, "spill.bin");
+			SpillingEventQueue queue = new SpillingEventQueue(10, spillFile);
+			for (int i = 0; i < 10; i++)
+				assertFalse(queue.add(makeEvent(i)));
+			assertFalse(queue.isSpilling());
+			assertTrue(queue.add(makeEvent(10)));  // Starts a spill episode
+			for (int i = 11; i < 35; i++)
+				assertFalse(queue.add(makeEvent(i)));
+			assertTrue(queue.isSpilling());
+			assertEquals(10, queue.memorySize());
+			
+			List<Event> out = new ArrayList<>();
+			for (int i = 35; i < 50; i++) {  // Keep adding while draining, so that spilled events must stay ahead of new ones
+				drainMemory(queue, out);
+				queue.refill();
+				queue.add(makeEvent(i));
+			}
+			while (!queue.isEmpty()) {
+				drainMemory(queue, out);
+				queue.refill();
+			}
+			assertFalse(queue.isSpilling());
+			assertFalse(spillFile.exists());
+			assertSequence(out, 50);
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// Closing the queue keeps the spill file, whose whole records can be replayed like a journal.
+	@Test public void testCloseKeepsSpillFile() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-spill").toFile();
+		try {
+			File spillFile = new File(dir, "spill.bin");
+			SpillingEventQueue queue = new SpillingEventQueue(3, spillFile);
+			for (int i = 0; i < 8; i++)
+				queue.add(makeEvent(i));
+			queue.close();
+			List<Event> replayed = EventJournal.readAll(spillFile);
+			assertEquals(5, replayed.size());
+			for (int i = 0; i < 5; i++)
+				assertEquals(i + 3, replayed.get(i).sequence);
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// If the spill file can't be created, events stay in memory beyond the capacity, in order.
+	@Test public void testCannotCreateSpillFile() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-spill").toFile();
+		try {
+			SpillingEventQueue queue = new SpillingEventQueue(4, new File(dir, "missing/spill.bin"));
+			for (int i = 0; i < 10; i++)
+				assertFalse(queue.add(makeEvent(i)));
+			assertFalse(queue.isSpilling());
+			assertEquals(10, queue.memorySize());
+			List<Event> out = new ArrayList<>();
+			drainMemory(queue, out);
+			assertEquals(0, queue.refill());
+			assertTrue(queue.isEmpty());
+			assertSequence(out, 10);
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// If writing to the spill file fails, the failed event and all later ones wait in memory behind
+	// the spilled ones. Here every write fails, because the spill file is a link to a full device.
+	@Test public void testSpillWriteFails() throws IOException {
+		File full = new File("/dev/full");
+		if (!full.exists())
+			return;  // Not available on this platform
+		File dir = Files.createTempDirectory("mamirc-spill").toFile();
+		try {
+			File spillFile = new File(dir, "spill.bin");
+			Files.createSymbolicLink(spillFile.toPath(), full.toPath());
+			SpillingEventQueue queue = new SpillingEventQueue(4, spillFile);
+			for (int i = 0; i < 12; i++)
+				queue.add(makeEvent(i));
+			assertEquals(4, queue.memorySize());
+			assertEquals(12, queue.inMemory().size());  // All of them must be journaled
+			
+			List<Event> out = new ArrayList<>();
+			while (!queue.isEmpty()) {
+				drainMemory(queue, out);
+				queue.refill();
+			}
+			assertFalse(queue.isSpilling());
+			assertSequence(out, 12);
+			assertTrue(full.exists());  // Only the link was deleted
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// A spill file that ends early makes refill() throw instead of losing or reordering events.
+	@Test public void testTruncatedSpillFile() throws IOException {
+		File dir = Files.createTempDirectory("mamirc-spill").toFile();
+		try {
+			File spillFile = new File(dir, "spill.bin");
+			SpillingEventQueue queue = new SpillingEventQueue(2, spillFile);
+			for (int i = 0; i < 6; i++)
+				queue.add(makeEvent(i));
+			try (RandomAccessFile raf = new RandomAccessFile(spillFile, "rw")) {
+				raf.setLength(raf.length() - 3);
+			}
+			List<Event> out = new ArrayList<>();
+			drainMemory(queue, out);
+			queue.refill();
+			drainMemory(queue, out);
+			try {
+				queue.refill();
+				fail();
+			} catch (IOException e) {}  // Pass
+			assertSequence(out, 4);
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	/*---- Helper functions ----*/
+	
+	private static Event makeEvent(int seq) {
+		return new Event(7, seq, 1000 + seq, Event.Type.RECEIVE, new CleanLine("PRIVMSG #test :message " + seq));
+	}
+	
+	
+	private static void drainMemory(SpillingEventQueue queue, List<Event> out) {
+		for (Event ev = queue.poll(); ev != null; ev = queue.poll())
+			out.add(ev);
+		assertNull(queue.poll());
+	}
+	
+	
+	private static void assertSequence(List<Event> events, int count) {
+		assertEquals(count, events.size());
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, events.get(i).sequence);
+			assertEquals("PRIVMSG #test :message " + i, events.get(i).line.getString());
+		}
+	}
+	
+}
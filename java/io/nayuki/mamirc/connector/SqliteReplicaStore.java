@@ -0,0 +1,96 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.File;
+import java.util.List;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A replica store in a local SQLite database with the same events table as the Connector's database,
+ * so that a Connector can be pointed at it if the primary database is lost. Payloads are stored
+ * literally (not deduplicated), and the class, command, and target columns are left null for the
+ * Connector to fill in. The secondary indexes are not created, to keep applying batches cheap.
+ */
+final class SqliteReplicaStore implements ReplicaStore {
+	
+	/*---- Fields ----*/
+	
+	private final SQLiteConnection database;
+	private final SQLiteStatement insertEvent;
+	private final Watermarks watermarks;
+	
+	
+	/*---- Constructor ----*/
+	
+	// Opens the given database file, creating it if it doesn't exist, and reads its watermarks.
+	public SqliteReplicaStore(File file) throws SQLiteException {
+		database = new SQLiteConnection(file);
+		try {
+			database.open(true);
+			database.setBusyTimeout(60000);
+			database.exec("CREATE TABLE IF NOT EXISTS events" + DatabaseLoggerThread.EVENTS_TABLE_DEFINITION);
+			insertEvent = database.prepare("INSERT OR IGNORE INTO events(connectionId, sequence, timestamp, type, data) VALUES(?,?,?,?,?)");
+			
+			// Every batch is applied in order within each connection, so the maximum sequence has no gaps below it
+			watermarks = new Watermarks();
+			SQLiteStatement query = database.prepare("SELECT connectionId, max(sequence) FROM events GROUP BY connectionId");
+			try {
+				while (query.step())
+					watermarks.set(query.columnInt(0), query.columnInt(1));
+			} finally {
+				query.dispose();
+			}
+		} catch (SQLiteException e) {
+			database.dispose();
+			throw e;
+		}
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	public Watermarks getWatermarks() {
+		return new Watermarks(watermarks);
+	}
+	
+	
+	public Watermarks apply(List<Event> batch) throws SQLiteException {
+		List<Event> events = watermarks.newEvents(batch);
+		if (events.isEmpty())
+			return new Watermarks();
+		database.exec("BEGIN TRANSACTION");
+		try {
+			for (Event ev : events) {
+				insertEvent.bind(1, ev.connectionId);
+				insertEvent.bind(2, ev.sequence);
+				insertEvent.bind(3, ev.timestamp);
+				insertEvent.bind(4, ev.type.ordinal());
+				insertEvent.bind(5, ev.line.getDataNoCopy());
+				Utils.stepStatement(insertEvent, false);
+			}
+			database.exec("COMMIT TRANSACTION");
+		} catch (SQLiteException e) {
+			database.exec("ROLLBACK TRANSACTION");
+			throw e;
+		}
+		return watermarks.advance(events);
+	}
+	
+	
+	public void close() {
+		database.dispose();  // Automatically disposes its associated statements
+	}
+	
+}
@@ -0,0 +1,203 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class SqliteReplicaStoreTest {
+	
+	// Applies batches with duplicates, rejects a gap, and resumes from the stored rows after reopening.
+	@Test public void testApplyAndResume() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-replica").toFile();
+		try {
+			File file = new File(dir, "replica.sqlite");
+			SqliteReplicaStore store = new SqliteReplicaStore(file);
+			try {
+				assertEquals(0, store.getWatermarks().size());
+				Watermarks ack = store.apply(Arrays.asList(WatermarksTest.event(1, 0), WatermarksTest.event(1, 1), WatermarksTest.event(2, 0)));
+				assertEquals(1, ack.get(1));
+				assertEquals(0, ack.get(2));
+				ack = store.apply(Arrays.asList(WatermarksTest.event(1, 1), WatermarksTest.event(1, 2)));  // One duplicate
+				assertEquals(1, ack.size());
+				assertEquals(2, ack.get(1));
+				assertEquals(0, store.apply(new ArrayList<Event>()).size());  // Heartbeat
+				try {
+					store.apply(Arrays.asList(WatermarksTest.event(2, 2)));
+					fail();
+				} catch (IllegalArgumentException e) {}  // Pass
+			} finally {
+				store.close();
+			}
+			
+			store = new SqliteReplicaStore(file);
+			try {
+				Watermarks wm = store.getWatermarks();
+				assertEquals(2, wm.size());
+				assertEquals(2, wm.get(1));
+				assertEquals(0, wm.get(2));
+				assertEquals(1, store.apply(Arrays.asList(WatermarksTest.event(2, 0), WatermarksTest.event(2, 1))).get(2));
+			} finally {
+				store.close();
+			}
+			assertEquals(Arrays.asList("1 0 PING :0", "1 1 PING :1", "1 2 PING :2", "2 0 PING :0", "2 1 PING :1"), readRows(file));
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	// Runs a logger with a "dir:" replica: the replica catches up on the existing rows (including an empty line),
+	// receives live batches, and after the logger is restarted with more rows in the meantime, resumes from its watermarks.
+	@Test public void testReplication() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-replica").toFile();
+		try {
+			File replicaDir = new File(dir, "replica");
+			assertTrue(replicaDir.mkdir());
+			BackendConfiguration config = DatabaseLoggerThreadTest.writeConfig(dir,
+				"\"connector-dedup-min-length\": 20, \"connector-replicas\": [\"dir:" + replicaDir.getPath() + "\"], ");
+			File replicaFile = new File(replicaDir, "replica.sqlite");
+			
+			// Rows committed before the logger runs, like those of an existing database
+			DatabaseLoggerThread logger = new DatabaseLoggerThread(config, NO_HANDLER);
+			logger.initAndGetNextConnectionId();
+			List<Event> events = new ArrayList<>();
+			for (int i = 0; i < 300; i++)
+				events.add(makeEvent(i % 3, i / 3));
+			events.add(new Event(5, 0, 1500000000000L, Event.Type.RECEIVE, new CleanLine("")));
+			writeEvents(config.connectorDatabaseFile, events);
+			
+			logger = new DatabaseLoggerThread(config, NO_HANDLER);
+			logger.initAndGetNextConnectionId();
+			logger.start();
+			awaitRows(replicaFile, 301);
+			for (int i = 0; i < 50; i++)
+				logger.postEvent(makeEvent(3, i));
+			logger.flushQueue();
+			awaitRows(replicaFile, 351);
+			logger.terminate();
+			logger.join(10000);
+			assertFalse(logger.isAlive());
+			
+			// Rows committed while the replica was not being updated
+			events.clear();
+			for (int i = 0; i < 40; i++)
+				events.add(makeEvent(i % 2 == 0 ? 0 : 4, i % 2 == 0 ? 100 + i / 2 : i / 2));
+			writeEvents(config.connectorDatabaseFile, events);
+			logger = new DatabaseLoggerThread(config, NO_HANDLER);
+			logger.initAndGetNextConnectionId();
+			logger.start();
+			awaitRows(replicaFile, 391);
+			logger.terminate();
+			logger.join(10000);
+			
+			assertEquals(readRows(config.connectorDatabaseFile), readRows(replicaFile));
+		} finally {
+			DatabaseLoggerThreadTest.deleteAll(dir);
+		}
+	}
+	
+	
+	private static Event makeEvent(int conId, int seq) {
+		return new Event(conId, seq, 1500000000000L + seq, Event.Type.RECEIVE,
+			new CleanLine(":alice!a@host PRIVMSG #chan :message " + seq % 10 + " long enough to be deduplicated"));
+	}
+	
+	
+	// Inserts the given events like the logger would, with each payload of at least 20 bytes deduplicated.
+	private static void writeEvents(File file, List<Event> events) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.open(false);
+		try {
+			db.exec("BEGIN TRANSACTION");
+			SQLiteStatement insertPayload = db.prepare("INSERT OR IGNORE INTO payloads VALUES(?,?)");
+			SQLiteStatement st = db.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES(?,?,?,?,?)");
+			for (Event ev : events) {
+				byte[] data = ev.line.getDataNoCopy();
+				if (data.length >= 20) {
+					byte[] hash = PayloadStore.hash(data);
+					insertPayload.bind(1, hash);
+					insertPayload.bind(2, data);
+					insertPayload.step();
+					insertPayload.reset();
+					data = PayloadStore.makeReference(hash);
+				}
+				st.bind(1, ev.connectionId);
+				st.bind(2, ev.sequence);
+				st.bind(3, ev.timestamp);
+				st.bind(4, ev.type.ordinal());
+				st.bind(5, data);
+				st.step();
+				st.reset();
+			}
+			db.exec("COMMIT TRANSACTION");
+		} finally {
+			db.dispose();
+		}
+	}
+	
+	
+	// Waits until the replica has the given number of rows.
+	private static void awaitRows(File file, int count) throws SQLiteException, InterruptedException {
+		for (int i = 0; i < 1000; i++) {
+			if (file.isFile() && readRows(file).size() >= count)
+				return;
+			Thread.sleep(10);
+		}
+		fail("Replica has fewer than " + count + " rows");
+	}
+	
+	
+	// Returns each row as "connectionId sequence line", with payload references resolved, in key order.
+	private static List<String> readRows(File file) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.openReadonly();
+		db.setBusyTimeout(10000);
+		try {
+			SQLiteStatement st = db.prepare("SELECT connectionId, sequence, data FROM events ORDER BY connectionId, sequence");
+			List<String> keys = new ArrayList<>();
+			List<byte[]> datas = new ArrayList<>();
+			while (st.step()) {
+				keys.add(st.columnInt(0) + " " + st.columnInt(1));
+				datas.add(Utils.columnBytes(st, 2));
+			}
+			PayloadStore.resolveAll(db, datas);
+			List<String> result = new ArrayList<>();
+			for (int i = 0; i < keys.size(); i++)
+				result.add(keys.get(i) + " " + Utils.fromUtf8(datas.get(i)));
+			return result;
+		} finally {
+			db.dispose();
+		}
+	}
+	
+	
+	private static final Runnable NO_HANDLER = new Runnable() {
+		public void run() {}
+	};
+	
+}
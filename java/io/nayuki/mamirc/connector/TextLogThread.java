@@ -0,0 +1,436 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.RawIrcLine;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A worker thread that appends the events committed by DatabaseLoggerThread to plain-text log files, one per
+ * network profile, channel (or private conversation partner), and local day: <directory>/<profile>/<channel>/YYYY-MM-DD.log.
+ * Messages, notices, actions, joins, parts, kicks, topic changes, and channel mode changes are logged, each line starting
+ * with the local time. Quits and nickname changes are not logged, because they don't name a channel.
+ * 
+ * A bounded number of files are kept open, closing the least recently used one. Writes are buffered and flushed after
+ * each batch, and then the file checkpoint.txt records the last sequence number written and the state of each recent
+ * connection, so that on restart only the newer events are read from the database. Without a checkpoint, the whole
+ * database is logged once. After a crash, the lines of the last batch before the crash may be written twice.
+ */
+final class TextLogThread extends CommittedBatchSubscriber {
+	
+	/*---- Fields ----*/
+	
+	private final File directory;
+	private final ZoneId timeZone;
+	private int firstConnectionId;  // Connections below this ID ended before the connector started; set before the thread starts
+	
+	// Only accessed by this worker
+	private TreeMap<Integer,ConnectionState> connections;  // Connections at or above the floor that have been seen
+	private int floor;  // All events of connections below this ID have been written
+	private final Map<File,Writer> openFiles;  // In access order
+	
+	
+	/*---- Constructor ----*/
+	
+	public TextLogThread(File directory, File databaseFile) {
+		super("TextLogThread", "Text log", databaseFile, RETRY_DELAY, RETRY_DELAY, 0);
+		if (directory == null)
+			throw new NullPointerException();
+		this.directory = directory;
+		timeZone = ZoneId.systemDefault();
+		firstConnectionId = 0;
+		openFiles = new LinkedHashMap<>(16, 0.75f, true);
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Must be called before the thread is started.
+	public void setFirstConnectionId(int id) {
+		firstConnectionId = id;
+	}
+	
+	
+	protected void openSession() throws IOException {
+		readCheckpoint();
+	}
+	
+	
+	protected void closeSession() {
+		closeFiles();
+	}
+	
+	
+	// Writes the given batch, or catches up if events are missing before it.
+	protected void handleBatch(List<Event> batch) throws IOException, SQLiteException {
+		for (Event ev : batch) {
+			if (!handleEvent(ev.connectionId, ev.sequence, ev.timestamp, ev.type.ordinal(), ev.line.getDataNoCopy())) {
+				catchUp();  // The missing events are in the database by now
+				return;
+			}
+		}
+		finishBatch();
+	}
+	
+	
+	// Writes every event in the database at or above the floor that has not been written yet.
+	protected void catchUp() throws IOException, SQLiteException {
+		SQLiteConnection database = getDatabase();
+		List<Integer> behind = new ArrayList<>();
+		SQLiteStatement query = database.prepare("SELECT connectionId, max(sequence) FROM events WHERE connectionId>=? GROUP BY connectionId ORDER BY connectionId");
+		try {
+			query.bind(1, floor);
+			while (query.step()) {
+				ConnectionState state = connections.get(query.columnInt(0));
+				if (state == null || query.columnInt(1) > state.lastSequence)
+					behind.add(query.columnInt(0));
+			}
+		} finally {
+			query.dispose();
+		}
+		// Connections from before the connector started won't get a "closed" event if the previous instance died
+		for (Map.Entry<Integer,ConnectionState> entry : connections.entrySet()) {
+			if (entry.getKey() < firstConnectionId && !behind.contains(entry.getKey()))
+				entry.getValue().finished = true;
+		}
+		if (behind.isEmpty())
+			return;
+		
+		long total = 0;
+		query = database.prepare("SELECT sequence, timestamp, type, data FROM events WHERE connectionId=? AND sequence>? ORDER BY sequence LIMIT " + CATCHUP_CHUNK_SIZE);
+		try {
+			for (int conId : behind) {
+				while (true) {
+					ConnectionState state = connections.get(conId);
+					query.bind(1, conId);
+					query.bind(2, state != null ? state.lastSequence : -1);
+					List<long[]> heads = new ArrayList<>();  // Each is {sequence, timestamp, type}
+					List<byte[]> datas = new ArrayList<>();
+					while (query.step()) {
+						heads.add(new long[]{query.columnInt(0), query.columnLong(1), query.columnInt(2)});
+						datas.add(Utils.columnBytes(query, 3));
+					}
+					query.reset();
+					if (heads.isEmpty())
+						break;
+					PayloadStore.resolveAll(database, datas);
+					for (int i = 0; i < heads.size(); i++) {
+						long[] head = heads.get(i);
+						handleEvent(conId, (int)head[0], head[1], (int)head[2], datas.get(i));
+					}
+					total += heads.size();
+					if (heads.size() < CATCHUP_CHUNK_SIZE)
+						break;
+				}
+				if (conId < firstConnectionId)
+					connections.get(conId).finished = true;
+				finishBatch();  // Checkpoint each connection, in case the first catch-up is long
+			}
+		} finally {
+			query.dispose();
+		}
+		System.err.println("Text log caught up: " + total + " events in " + behind.size() + " connections");
+	}
+	
+	
+	// Writes the given event if it is the next one of its connection. Returns false if events are missing before it.
+	private boolean handleEvent(int conId, int seq, long timestamp, int type, byte[] data) throws IOException {
+		if (conId < floor)
+			return true;  // Already written
+		ConnectionState state = connections.get(conId);
+		if (state == null) {
+			state = new ConnectionState();
+			connections.put(conId, state);
+		}
+		if (seq <= state.lastSequence)
+			return true;  // Already written
+		if (seq != state.lastSequence + 1)
+			return false;
+		state.lastSequence = seq;
+		
+		if (type == Event.Type.CONNECTION.ordinal()) {
+			String s = Utils.fromUtf8(data);
+			if (s.startsWith("connect ")) {
+				String[] parts = s.split(" ", 5);
+				if (parts.length == 5)
+					state.profile = parts[4];
+			} else if (s.equals("closed"))
+				state.finished = true;
+			return true;
+		}
+		if (state.profile == null || data.length == 0)
+			return true;  // Not a MamIRC connection, or protocol chatter whose data was dropped
+		RawIrcLine line;
+		try {
+			line = new RawIrcLine(data);
+		} catch (IllegalArgumentException e) {
+			return true;  // Ignore unparsable line
+		}
+		
+		String[] out = formatLine(type, line, state.nickname);
+		if (type == Event.Type.RECEIVE.ordinal() && line.getParameterCount() >= 1) {  // Track own nickname
+			if (line.commandEquals("001") || line.commandEquals("NICK") && getNickname(line).equals(state.nickname))
+				state.nickname = line.getParameterString(0);
+		}
+		if (out != null) {
+			ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(timeZone);
+			File file = new File(new File(new File(directory, toFileName(state.profile)),
+				toFileName(out[0].toLowerCase())), time.toLocalDate() + ".log");
+			Writer w = getWriter(file);
+			w.write(String.format("[%02d:%02d:%02d] ", time.getHour(), time.getMinute(), time.getSecond()));
+			w.write(out[1]);
+			w.write('\n');
+		}
+		return true;
+	}
+	
+	
+	// Returns the writer for appending to the given file, opening it if needed and closing the least recently used one.
+	private Writer getWriter(File file) throws IOException {
+		Writer result = openFiles.get(file);
+		if (result == null) {
+			if (openFiles.size() >= MAX_OPEN_FILES) {
+				Iterator<Writer> iter = openFiles.values().iterator();
+				Writer eldest = iter.next();
+				iter.remove();
+				eldest.close();
+			}
+			File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create directory " + dir);
+			result = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+			openFiles.put(file, result);
+		}
+		return result;
+	}
+	
+	
+	// Flushes all open files, then saves the checkpoint.
+	private void finishBatch() throws IOException {
+		for (Writer w : openFiles.values())
+			w.flush();
+		writeCheckpoint();
+	}
+	
+	
+	private void closeFiles() {
+		for (Writer w : openFiles.values()) {
+			try {
+				w.close();
+			} catch (IOException e) {}
+		}
+		openFiles.clear();
+	}
+	
+	
+	// Sets the floor and connection states from the checkpoint file, or to the beginning if there is no checkpoint.
+	private void readCheckpoint() throws IOException {
+		connections = new TreeMap<>();
+		floor = 0;
+		File file = new File(directory, CHECKPOINT_FILE_NAME);
+		if (!file.exists()) {
+			System.err.println("Text log has no checkpoint, logging the whole database");
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line = in.readLine();
+			if (line == null || !line.startsWith(CHECKPOINT_HEADER))
+				throw new IOException("Invalid text log checkpoint");
+			floor = Integer.parseInt(line.substring(CHECKPOINT_HEADER.length()));
+			while ((line = in.readLine()) != null) {
+				// Connection ID, last sequence number, finished flag, nickname or "*", then the profile name (which can have spaces)
+				String[] parts = line.split(" ", 5);
+				if (parts.length < 4)
+					throw new IOException("Invalid text log checkpoint");
+				ConnectionState state = new ConnectionState();
+				state.lastSequence = Integer.parseInt(parts[1]);
+				state.finished = parts[2].equals("1");
+				state.nickname = parts[3].equals("*") ? null : parts[3];
+				state.profile = parts.length == 5 ? parts[4] : null;
+				connections.put(Integer.parseInt(parts[0]), state);
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid text log checkpoint");
+		} finally {
+			in.close();
+		}
+	}
+	
+	
+	// Raises the floor past the finished connections, then replaces the checkpoint file.
+	private void writeCheckpoint() throws IOException {
+		int newFloor = floor;
+		for (Map.Entry<Integer,ConnectionState> entry : connections.entrySet()) {
+			if (!entry.getValue().finished)
+				break;
+			newFloor = entry.getKey() + 1;
+		}
+		connections.headMap(newFloor).clear();
+		floor = newFloor;
+		
+		StringBuilder sb = new StringBuilder(CHECKPOINT_HEADER).append(floor).append('\n');
+		for (Map.Entry<Integer,ConnectionState> entry : connections.entrySet()) {
+			ConnectionState state = entry.getValue();
+			sb.append(entry.getKey()).append(' ').append(state.lastSequence).append(' ').append(state.finished ? 1 : 0)
+				.append(' ').append(state.nickname != null ? state.nickname : "*");
+			if (state.profile != null)
+				sb.append(' ').append(state.profile);
+			sb.append('\n');
+		}
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory " + directory);
+		File temp = new File(directory, CHECKPOINT_FILE_NAME + ".tmp");
+		Files.write(temp.toPath(), Utils.toUtf8(sb.toString()));
+		Files.move(temp.toPath(), new File(directory, CHECKPOINT_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	
+	/*---- Static functions ----*/
+	
+	// Returns {party, text} for the given line of the given event type (1 for received, 2 for sent), or null if the line
+	// isn't logged. The party is a channel, or the other user of a private conversation. The own nickname can be null.
+	static String[] formatLine(int type, RawIrcLine line, String ownNick) {
+		int params = line.getParameterCount();
+		if (params < 1)
+			return null;
+		String nick;
+		if (type == Event.Type.RECEIVE.ordinal()) {
+			if (!line.hasPrefix())
+				return null;
+			nick = getNickname(line);
+		} else
+			nick = ownNick != null ? ownNick : "?";
+		String target = line.getParameterString(0);
+		boolean isChannel = isChannelName(target);
+		String party = isChannel || type == Event.Type.SEND.ordinal() ? target : nick;
+		
+		if (line.commandEquals("PRIVMSG") || line.commandEquals("NOTICE")) {
+			if (params < 2 || !isChannel && type == Event.Type.RECEIVE.ordinal() && !hasUserPart(line))
+				return null;  // Malformed, or a notice from a server
+			String text = line.getParameterString(params - 1);
+			if (text.startsWith("\u0001")) {
+				if (!line.commandEquals("PRIVMSG") || !text.startsWith("\u0001ACTION "))
+					return null;  // Other CTCP requests and replies
+				int end = text.endsWith("\u0001") ? text.length() - 1 : text.length();
+				return new String[]{party, "* " + nick + " " + text.substring(8, Math.max(end, 8))};
+			}
+			if (line.commandEquals("PRIVMSG"))
+				return new String[]{party, "<" + nick + "> " + text};
+			else
+				return new String[]{party, "-" + nick + "- " + text};
+		}
+		if (type != Event.Type.RECEIVE.ordinal() || !isChannel)
+			return null;
+		
+		if (line.commandEquals("JOIN"))
+			return new String[]{target, "*** " + nick + " has joined"};
+		else if (line.commandEquals("PART"))
+			return new String[]{target, "*** " + nick + " has left" + (params >= 2 ? " (" + line.getParameterString(1) + ")" : "")};
+		else if (line.commandEquals("KICK") && params >= 2)
+			return new String[]{target, "*** " + line.getParameterString(1) + " was kicked by " + nick + (params >= 3 ? " (" + line.getParameterString(2) + ")" : "")};
+		else if (line.commandEquals("TOPIC") && params >= 2)
+			return new String[]{target, "*** " + nick + " changed the topic to: " + line.getParameterString(1)};
+		else if (line.commandEquals("MODE") && params >= 2) {
+			StringBuilder sb = new StringBuilder("*** ").append(nick).append(" sets mode:");
+			for (int i = 1; i < params; i++)
+				sb.append(' ').append(line.getParameterString(i));
+			return new String[]{target, sb.toString()};
+		} else
+			return null;
+	}
+	
+	
+	// Returns the nickname part of the line's prefix. The line must have a prefix.
+	private static String getNickname(RawIrcLine line) {
+		String prefix = Utils.fromUtf8(Arrays.copyOfRange(line.getDataNoCopy(), line.prefixStart, line.prefixEnd));
+		int i = prefix.indexOf('!');
+		return i != -1 ? prefix.substring(0, i) : prefix;
+	}
+	
+	
+	private static boolean hasUserPart(RawIrcLine line) {
+		byte[] data = line.getDataNoCopy();
+		for (int i = line.prefixStart; i < line.prefixEnd; i++) {
+			if (data[i] == '!')
+				return true;
+		}
+		return false;
+	}
+	
+	
+	private static boolean isChannelName(String s) {
+		return s.length() >= 1 && "#&+!".indexOf(s.charAt(0)) != -1;
+	}
+	
+	
+	// Returns the given name with each character that is unsafe in a file name replaced by an underscore.
+	static String toFileName(String s) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c == 0x7F || "/\\:*?\"<>|".indexOf(c) != -1 || c == '.' && i == 0)
+				c = '_';
+			sb.append(c);
+		}
+		return sb.length() > 0 ? sb.toString() : "_";
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	private static final String CHECKPOINT_FILE_NAME = "checkpoint.txt";
+	
+	private static final String CHECKPOINT_HEADER = "mamirc-text-log-checkpoint ";
+	
+	static final int MAX_OPEN_FILES = 64;
+	
+	private static final int CATCHUP_CHUNK_SIZE = 10000;
+	
+	private static final int RETRY_DELAY = 60000;  // In milliseconds
+	
+	
+	/*---- Helper class ----*/
+	
+	private static final class ConnectionState {
+		public int lastSequence = -1;
+		public boolean finished = false;
+		public String profile = null;   // Null if unknown or not a MamIRC connection
+		public String nickname = null;  // Null if unknown
+	}
+	
+}
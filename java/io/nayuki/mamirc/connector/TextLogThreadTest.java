@@ -0,0 +1,218 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.RawIrcLine;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class TextLogThreadTest {
+	
+	@Test public void testFormatReceived() {
+		assertArrayEquals(new String[]{"#chat", "<alice> hello there"}, format(1, ":alice!a@host PRIVMSG #chat :hello there", "me"));
+		assertArrayEquals(new String[]{"alice", "<alice> hi"}, format(1, ":alice!a@host PRIVMSG me :hi", "me"));
+		assertArrayEquals(new String[]{"#chat", "* alice waves"}, format(1, ":alice!a@host PRIVMSG #chat :\u0001ACTION waves\u0001", "me"));
+		assertArrayEquals(new String[]{"#chat", "-alice- note"}, format(1, ":alice!a@host NOTICE #chat :note", "me"));
+		assertArrayEquals(new String[]{"#chat", "*** alice has joined"}, format(1, ":alice!a@host JOIN #chat", "me"));
+		assertArrayEquals(new String[]{"#chat", "*** alice has left (bye)"}, format(1, ":alice!a@host PART #chat :bye", "me"));
+		assertArrayEquals(new String[]{"#chat", "*** bob was kicked by alice (spam)"}, format(1, ":alice!a@host KICK #chat bob :spam", "me"));
+		assertArrayEquals(new String[]{"#chat", "*** alice changed the topic to: news"}, format(1, ":alice!a@host TOPIC #chat :news", "me"));
+		assertArrayEquals(new String[]{"#chat", "*** alice sets mode: +o bob"}, format(1, ":alice!a@host MODE #chat +o bob", "me"));
+	}
+	
+	
+	@Test public void testFormatSent() {
+		assertArrayEquals(new String[]{"#chat", "<me> hello"}, format(2, "PRIVMSG #chat :hello", "me"));
+		assertArrayEquals(new String[]{"bob", "<?> hi"}, format(2, "PRIVMSG bob :hi", null));
+	}
+	
+	
+	@Test public void testFormatIgnored() {
+		assertNull(format(1, ":irc.example.com NOTICE me :*** Looking up your hostname", "me"));
+		assertNull(format(1, ":alice!a@host PRIVMSG me :\u0001VERSION\u0001", "me"));
+		assertNull(format(1, ":alice!a@host QUIT :gone", "me"));
+		assertNull(format(1, ":alice!a@host NICK alicia", "me"));
+		assertNull(format(1, ":irc.example.com 001 me :Welcome", "me"));
+		assertNull(format(1, ":me!m@host MODE me +i", "me"));
+		assertNull(format(2, "JOIN #chat", "me"));
+	}
+	
+	
+	@Test public void testFileName() {
+		assertEquals("#chat", TextLogThread.toFileName("#chat"));
+		assertEquals("_.", TextLogThread.toFileName(".."));
+		assertEquals("a_b_c", TextLogThread.toFileName("a/b\\c"));
+		assertEquals("_", TextLogThread.toFileName(""));
+	}
+	
+	
+	// Logs a database without a checkpoint, then resumes from the checkpoint with both new rows and a live batch.
+	@Test public void testCheckpointResume() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-textlog").toFile();
+		try {
+			File dbFile = new File(dir, "events.sqlite");
+			File logDir = new File(dir, "logs");
+			List<Event> events = new ArrayList<>();
+			events.add(event(0, 0, Event.Type.CONNECTION, "connect irc.example.com 6667 false Net"));
+			events.add(event(0, 1, Event.Type.RECEIVE, ":irc.example.com 001 me :Welcome"));
+			events.add(event(0, 2, Event.Type.RECEIVE, ":alice!a@host PRIVMSG #chat :one"));
+			events.add(event(0, 3, Event.Type.SEND, "PRIVMSG #chat :two"));
+			writeEvents(dbFile, events);
+			
+			TextLogThread th = new TextLogThread(logDir, dbFile);
+			th.start();
+			awaitCheckpoint(logDir, "0 3 ");
+			stop(th);
+			assertEquals(Arrays.asList("<alice> one", "<me> two"), readLog(new File(logDir, "Net/#chat")));
+			
+			// Rows committed while the text log was not running
+			events.clear();
+			events.add(event(0, 4, Event.Type.RECEIVE, ":alice!a@host PRIVMSG #chat :three"));
+			events.add(event(0, 5, Event.Type.RECEIVE, ":bob!b@host JOIN #chat"));
+			writeEvents(dbFile, events);
+			th = new TextLogThread(logDir, dbFile);
+			th.start();
+			awaitCheckpoint(logDir, "0 5 ");
+			
+			// A live batch, which is also in the database like one from DatabaseLoggerThread
+			events.clear();
+			events.add(event(0, 6, Event.Type.RECEIVE, ":bob!b@host PRIVMSG #chat :four"));
+			writeEvents(dbFile, events);
+			th.postBatch(events);
+			awaitCheckpoint(logDir, "0 6 ");
+			stop(th);
+			assertEquals(Arrays.asList("<alice> one", "<me> two", "<alice> three", "*** bob has joined", "<bob> four"),
+				readLog(new File(logDir, "Net/#chat")));
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Writes to more channels than files can be open at once, so that evicted files are reopened for appending.
+	@Test public void testOpenFileLimit() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-textlog").toFile();
+		try {
+			File dbFile = new File(dir, "events.sqlite");
+			File logDir = new File(dir, "logs");
+			int channels = TextLogThread.MAX_OPEN_FILES + 6;
+			List<Event> events = new ArrayList<>();
+			events.add(event(0, 0, Event.Type.CONNECTION, "connect irc.example.com 6667 false Net"));
+			int seq = 1;
+			for (int round = 0; round < 3; round++) {
+				for (int i = 0; i < channels; i++, seq++)
+					events.add(event(0, seq, Event.Type.RECEIVE, ":alice!a@host PRIVMSG #c" + i + " :round " + round));
+			}
+			events.add(event(0, seq, Event.Type.CONNECTION, "closed"));
+			writeEvents(dbFile, events);
+			
+			TextLogThread th = new TextLogThread(logDir, dbFile);
+			th.start();
+			awaitCheckpoint(logDir, "mamirc-text-log-checkpoint 1\n");  // The floor passes the closed connection
+			stop(th);
+			for (int i = 0; i < channels; i++)
+				assertEquals(Arrays.asList("<alice> round 0", "<alice> round 1", "<alice> round 2"), readLog(new File(logDir, "Net/#c" + i)));
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	private static Event event(int conId, int seq, Event.Type type, String line) {
+		return new Event(conId, seq, 1500000000000L + seq * 1000L, type, new CleanLine(line));
+	}
+	
+	
+	private static void writeEvents(File file, List<Event> events) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.open(true);
+		try {
+			db.exec("CREATE TABLE IF NOT EXISTS events(connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, "
+				+ "type INTEGER NOT NULL, data BLOB NOT NULL, class INTEGER, command TEXT, target TEXT, PRIMARY KEY(connectionId, sequence))");
+			db.exec("BEGIN TRANSACTION");
+			SQLiteStatement st = db.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES(?,?,?,?,?)");
+			for (Event ev : events) {
+				st.bind(1, ev.connectionId);
+				st.bind(2, ev.sequence);
+				st.bind(3, ev.timestamp);
+				st.bind(4, ev.type.ordinal());
+				st.bind(5, ev.line.getDataNoCopy());
+				st.step();
+				st.reset();
+			}
+			db.exec("COMMIT TRANSACTION");
+		} finally {
+			db.dispose();
+		}
+	}
+	
+	
+	// Waits until the checkpoint file contains the given regular expression.
+	private static void awaitCheckpoint(File logDir, String regex) throws IOException, InterruptedException {
+		File file = new File(logDir, "checkpoint.txt");
+		for (int i = 0; i < 1000; i++) {
+			if (file.isFile() && Pattern.compile(regex).matcher(Utils.fromUtf8(Files.readAllBytes(file.toPath()))).find())
+				return;
+			Thread.sleep(10);
+		}
+		fail("Checkpoint not reached: " + regex);
+	}
+	
+	
+	private static void stop(TextLogThread th) throws InterruptedException {
+		th.terminate();
+		th.join(10000);
+		assertTrue(!th.isAlive());
+	}
+	
+	
+	// Returns the lines of the only log file in the given channel directory, without the time prefix.
+	private static List<String> readLog(File channelDir) throws IOException {
+		File[] files = channelDir.listFiles();
+		assertTrue(files != null && files.length == 1);
+		List<String> result = new ArrayList<>();
+		for (String line : Files.readAllLines(files[0].toPath()))
+			result.add(line.substring("[00:00:00] ".length()));
+		return result;
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+	
+	private static String[] format(int type, String line, String ownNick) {
+		return TextLogThread.formatLine(type, new RawIrcLine(Utils.toUtf8(line)), ownNick);
+	}
+	
+}
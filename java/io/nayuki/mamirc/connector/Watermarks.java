@@ -0,0 +1,156 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * The replication progress of an event store: for each connection ID, the highest sequence number such that
+ * the store has all the events of that connection up to and including it. Events are replicated in sequence
+ * order within each connection, so this fully describes what the store has. Not thread-safe.
+ * 
+ * Serialized format (big endian): int count, then count pairs of int connectionId and int sequence,
+ * then int crc32 of the pairs.
+ */
+final class Watermarks {
+	
+	/*---- Fields ----*/
+	
+	private final Map<Integer,Integer> highest;
+	
+	
+	/*---- Constructors ----*/
+	
+	// Constructs an empty set of watermarks.
+	public Watermarks() {
+		highest = new HashMap<>();
+	}
+	
+	
+	// Constructs a copy of the given watermarks.
+	public Watermarks(Watermarks other) {
+		highest = new HashMap<>(other.highest);
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns the watermark of the given connection, or -1 if no event of it is present.
+	public int get(int conId) {
+		Integer result = highest.get(conId);
+		return result != null ? result : -1;
+	}
+	
+	
+	public int size() {
+		return highest.size();
+	}
+	
+	
+	// Returns the events in the given batch that are above these watermarks, in order. Throws an exception if they
+	// don't continue the sequence of each connection without a gap. Doesn't modify this object.
+	public List<Event> newEvents(List<Event> batch) {
+		List<Event> result = new ArrayList<>();
+		Map<Integer,Integer> next = new HashMap<>();  // Only the connections touched by this batch
+		for (Event ev : batch) {
+			Integer wm = next.get(ev.connectionId);
+			if (wm == null)
+				wm = get(ev.connectionId);
+			if (ev.sequence <= wm)
+				continue;  // Duplicate
+			if (ev.sequence != wm + 1)
+				throw new IllegalArgumentException("Gap in connection " + ev.connectionId + " after sequence " + wm);
+			next.put(ev.connectionId, ev.sequence);
+			result.add(ev);
+		}
+		return result;
+	}
+	
+	
+	// Raises the watermarks over the given events, which must have been returned by newEvents().
+	// Returns the new watermarks of just the connections in the list.
+	public Watermarks advance(List<Event> events) {
+		Watermarks result = new Watermarks();
+		for (Event ev : events) {
+			highest.put(ev.connectionId, ev.sequence);
+			result.highest.put(ev.connectionId, ev.sequence);
+		}
+		return result;
+	}
+	
+	
+	// Raises each watermark to the one in the given object, if that is higher.
+	public void merge(Watermarks other) {
+		for (Map.Entry<Integer,Integer> entry : other.highest.entrySet()) {
+			if (entry.getValue() > get(entry.getKey()))
+				highest.put(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	
+	// Sets the watermark of the given connection, which must be non-negative.
+	public void set(int conId, int seq) {
+		if (seq < 0)
+			throw new IllegalArgumentException();
+		highest.put(conId, seq);
+	}
+	
+	
+	public void write(DataOutput out) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(highest.size() * 8);
+		for (Map.Entry<Integer,Integer> entry : highest.entrySet()) {
+			bb.putInt(entry.getKey());
+			bb.putInt(entry.getValue());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bb.array());
+		out.writeInt(highest.size());
+		out.write(bb.array());
+		out.writeInt((int)crc.getValue());
+	}
+	
+	
+	// Reads watermarks in the format written by write(), throwing an exception if the data is invalid.
+	public static Watermarks read(DataInput in) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > MAX_COUNT)
+			throw new IOException("Invalid watermark count");
+		byte[] b = new byte[count * 8];
+		in.readFully(b);
+		CRC32 crc = new CRC32();
+		crc.update(b);
+		if (in.readInt() != (int)crc.getValue())
+			throw new IOException("Watermark checksum mismatch");
+		
+		Watermarks result = new Watermarks();
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		for (int i = 0; i < count; i++) {
+			int conId = bb.getInt();
+			int seq = bb.getInt();
+			if (seq < 0)
+				throw new IOException("Invalid watermark");
+			result.highest.put(conId, seq);
+		}
+		return result;
+	}
+	
+	
+	private static final int MAX_COUNT = 1 << 24;
+	
+}
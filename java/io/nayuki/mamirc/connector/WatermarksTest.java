@@ -0,0 +1,81 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.connector;
+
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+
+
+public final class WatermarksTest {
+	
+	@Test public void testNewEvents() {
+		Watermarks wm = new Watermarks();
+		wm.set(3, 5);
+		List<Event> batch = Arrays.asList(event(3, 4), event(3, 5), event(7, 0), event(3, 6), event(7, 1));
+		List<Event> fresh = wm.newEvents(batch);
+		assertEquals(Arrays.asList(batch.get(2), batch.get(3), batch.get(4)), fresh);
+		assertEquals(5, wm.get(3));  // Unchanged until advanced
+		Watermarks ack = wm.advance(fresh);
+		assertEquals(6, wm.get(3));
+		assertEquals(1, wm.get(7));
+		assertEquals(2, ack.size());
+		assertEquals(-1, wm.get(8));
+	}
+	
+	
+	@Test public void testGap() {
+		Watermarks wm = new Watermarks();
+		wm.set(3, 5);
+		try {
+			wm.newEvents(Arrays.asList(event(3, 6), event(3, 8)));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {}  // Pass
+		try {
+			wm.newEvents(Arrays.asList(event(4, 1)));
+			Assert.fail();
+		} catch (IllegalArgumentException e) {}  // Pass
+	}
+	
+	
+	@Test public void testSerialization() throws IOException {
+		Watermarks wm = new Watermarks();
+		wm.set(0, 17);
+		wm.set(12345, 0);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		wm.write(new DataOutputStream(bout));
+		byte[] b = bout.toByteArray();
+		
+		Watermarks copy = Watermarks.read(new DataInputStream(new ByteArrayInputStream(b)));
+		assertEquals(2, copy.size());
+		assertEquals(17, copy.get(0));
+		assertEquals(0, copy.get(12345));
+		
+		b[6] ^= 1;  // Corrupt one pair
+		try {
+			Watermarks.read(new DataInputStream(new ByteArrayInputStream(b)));
+			Assert.fail();
+		} catch (IOException e) {}  // Pass
+	}
+	
+	
+	static Event event(int conId, int seq) {
+		return new Event(conId, seq, 1449104543985L + seq, Event.Type.RECEIVE, new CleanLine("PING :" + seq));
+	}
+	
+}
@@ -2,11 +2,12 @@ package io.nayuki.mamirc.processor;
 
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import io.nayuki.mamirc.processor.Window.Flags;
 
 
-// Note: All reading/writing must be performed while holding the MamircProcessor lock.
+// Note: All reading/writing of a profile's windows must be performed while holding the MamircProcessor lock of that
+// profile's partition (or its global write lock). The outer map is concurrent so that partitions can add profiles.
 final class AllWindows {
 	
 	/*---- Base functionality ----*/
@@ -20,7 +21,7 @@ final class AllWindows {
 		if (master == null)
 			throw new NullPointerException();
 		this.master = master;
-		windows = new TreeMap<>();
+		windows = new ConcurrentSkipListMap<>();
 	}
 	
 	
@@ -64,7 +65,7 @@ final class AllWindows {
 	}
 	
 	
-	private static long divideAndFloor(long x, long y) {
+	static long divideAndFloor(long x, long y) {
 		long z = x / y;
 		if (((x >= 0) ^ (y >= 0)) && z * y != x)
 			z--;
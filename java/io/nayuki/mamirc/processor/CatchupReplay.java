@@ -0,0 +1,146 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.Event;
+
+
+/* 
+ * Replays the archived events of the connections that are active when the processor attaches to a connector.
+ * The connections are grouped by profile, and the groups are replayed concurrently on a few threads, which
+ * suits the processor's partitioning of state by profile. Within a group, connections are replayed one at a time
+ * in ascending ID order, and each connection's events in sequence order. Because every window belongs to one
+ * profile, each window receives its lines in the same order as when replaying all connections sequentially
+ * in ascending ID order; only the IDs of the updates for web clients interleave differently.
+ */
+final class CatchupReplay {
+	
+	/*---- Main method ----*/
+	
+	// Passes the archived events of the connections in endSequences (keys) from the source to the sink, using up to the
+	// given number of threads. Each connection's events start at its sequence number in startSequences (or 0 if absent)
+	// and end before its number in endSequences. The sink must be thread-safe if more than one thread is used.
+	// If reading or delivering fails, the remaining work is cancelled and the first exception is thrown.
+	public static void replay(final Map<Integer,Integer> startSequences, final Map<Integer,Integer> endSequences,
+			final Source source, final Sink sink, int numThreads) throws SQLiteException {
+		if (startSequences == null || endSequences == null || source == null || sink == null)
+			throw new NullPointerException();
+		if (numThreads <= 0)
+			throw new IllegalArgumentException();
+		
+		List<List<Integer>> groups = groupByProfile(endSequences.keySet(), source);
+		if (numThreads == 1 || groups.size() <= 1) {
+			for (List<Integer> group : groups)
+				replayGroup(group, startSequences, endSequences, source, sink);
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, groups.size()));
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (final List<Integer> group : groups) {
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() throws SQLiteException {
+						replayGroup(group, startSequences, endSequences, source, sink);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof SQLiteException)
+						throw (SQLiteException)cause;
+					else if (cause instanceof RuntimeException)
+						throw (RuntimeException)cause;
+					else if (cause instanceof Error)
+						throw (Error)cause;
+					else
+						throw new RuntimeException(cause);
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted during catch-up", e);
+				}
+			}
+		} finally {
+			executor.shutdownNow();  // Cancels the remaining groups if one failed
+		}
+	}
+	
+	
+	// Returns lists of connection IDs, where each list is one profile's connections in ascending order.
+	// The lists are in order of profile name, followed by each connection of unknown profile on its own.
+	static List<List<Integer>> groupByProfile(Collection<Integer> conIds, Source source) throws SQLiteException {
+		Map<Integer,String> profiles = source.readProfiles(conIds);
+		Map<String,List<Integer>> byProfile = new TreeMap<>();
+		List<List<Integer>> result = new ArrayList<>();
+		List<List<Integer>> unknown = new ArrayList<>();
+		for (int conId : new TreeSet<>(conIds)) {
+			String profile = profiles.get(conId);
+			if (profile == null) {
+				List<Integer> group = new ArrayList<>();
+				group.add(conId);
+				unknown.add(group);
+			} else {
+				if (!byProfile.containsKey(profile))
+					byProfile.put(profile, new ArrayList<Integer>());
+				byProfile.get(profile).add(conId);
+			}
+		}
+		result.addAll(byProfile.values());
+		result.addAll(unknown);
+		return result;
+	}
+	
+	
+	private static void replayGroup(List<Integer> group, Map<Integer,Integer> startSequences,
+			Map<Integer,Integer> endSequences, Source source, Sink sink) throws SQLiteException {
+		for (int conId : group) {
+			Integer start = startSequences.get(conId);
+			source.readEvents(conId, start != null ? start : 0, endSequences.get(conId), sink);
+		}
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// Reads archived events, e.g. from the Connector's database. The methods can be called from different threads.
+	public interface Source {
+		// Returns the profile name (the metadata of the "connect" event) of each given connection where it is known.
+		public Map<Integer,String> readProfiles(Collection<Integer> conIds) throws SQLiteException;
+		
+		// Passes the events of the given connection with startSeq <= sequence < endSeq to the sink in sequence order.
+		public void readEvents(int conId, int startSeq, int endSeq, Sink sink) throws SQLiteException;
+	}
+	
+	
+	public interface Sink {
+		public void deliver(Event ev);
+	}
+	
+	
+	
+	// Not instantiable.
+	private CatchupReplay() {}
+	
+}
@@ -0,0 +1,184 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import org.junit.Test;
+
+
+public final class CatchupReplayTest {
+	
+	@Test public void testGroupByProfile() throws SQLiteException {
+		StubSource src = new StubSource();
+		src.add(7, "net-b", 0);
+		src.add(3, "net-a", 0);
+		src.add(5, "net-b", 0);
+		src.add(9, null, 0);
+		src.add(4, "net-a", 0);
+		src.add(1, null, 0);
+		List<List<Integer>> groups = CatchupReplay.groupByProfile(src.events.keySet(), src);
+		assertEquals(Arrays.asList(Arrays.asList(3, 4), Arrays.asList(5, 7), Arrays.asList(1), Arrays.asList(9)), groups);
+	}
+	
+	
+	// Replays connections of several profiles (two of them with two connections) on several threads,
+	// and checks that every window gets the same lines in the same order as a sequential replay.
+	@Test public void testSameAsSequential() throws SQLiteException {
+		Random rand = new Random(42);
+		StubSource src = new StubSource();
+		String[] profiles = {"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "alpha", "delta"};
+		Map<Integer,Integer> seqs = new HashMap<>();
+		for (int i = 0; i < profiles.length; i++) {
+			int conId = 10 + i * 3;
+			src.add(conId, profiles[i], 3000 + rand.nextInt(2000));
+			seqs.put(conId, src.events.get(conId).size());
+		}
+		
+		// Reference: one connection at a time in ascending ID order
+		StubProcessor sequential = new StubProcessor();
+		for (int conId : new TreeSet<>(seqs.keySet()))
+			src.readEvents(conId, 0, seqs.get(conId), sequential);
+		
+		for (int threads : new int[]{1, 2, 4, 8}) {
+			StubProcessor parallel = new StubProcessor();
+			CatchupReplay.replay(new HashMap<Integer,Integer>(), seqs, src, parallel, threads);
+			assertEquals(sequential.windows, parallel.windows);
+		}
+	}
+	
+	
+	@Test public void testSequenceLimits() throws SQLiteException {
+		StubSource src = new StubSource();
+		src.add(1, "net", 10);
+		src.add(2, "other", 10);
+		Map<Integer,Integer> starts = new HashMap<>();
+		starts.put(2, 4);
+		Map<Integer,Integer> ends = new HashMap<>();
+		ends.put(1, 6);
+		ends.put(2, 8);
+		final List<Integer> seqs2 = new ArrayList<>();
+		StubProcessor proc = new StubProcessor() {
+			public void deliver(Event ev) {
+				super.deliver(ev);
+				if (ev.connectionId == 2) {
+					synchronized(seqs2) {
+						seqs2.add(ev.sequence);
+					}
+				}
+			}
+		};
+		CatchupReplay.replay(starts, ends, src, proc, 4);
+		assertEquals(6, proc.windows.get("net").size());  // Sequences 0 (the connect event) to 5
+		assertEquals(Arrays.asList(4, 5, 6, 7), seqs2);
+	}
+	
+	
+	@Test public void testExceptionPropagated() throws SQLiteException {
+		StubSource src = new StubSource();
+		src.add(1, "a", 100);
+		src.add(2, "b", 100);
+		Map<Integer,Integer> seqs = new HashMap<>();
+		seqs.put(1, 101);
+		seqs.put(2, 101);
+		try {
+			CatchupReplay.replay(new HashMap<Integer,Integer>(), seqs, src, new CatchupReplay.Sink() {
+				public void deliver(Event ev) {
+					if (ev.connectionId == 2 && ev.sequence == 50)
+						throw new IllegalStateException();
+				}
+			}, 2);
+			fail();
+		} catch (IllegalStateException e) {}  // Pass
+	}
+	
+	
+	
+	/*---- Helper classes ----*/
+	
+	private static final class StubSource implements CatchupReplay.Source {
+		
+		public final Map<Integer,List<Event>> events = new TreeMap<>();
+		
+		
+		// Adds a connection with a connect event (unless the profile is null) and the given number of messages.
+		public void add(int conId, String profile, int numMessages) {
+			List<Event> list = new ArrayList<>();
+			if (profile != null)
+				list.add(new Event(conId, 0, 1000, Event.Type.CONNECTION, new CleanLine("connect irc.example.com 6667 nossl " + profile)));
+			for (int i = 0; i < numMessages; i++) {
+				int seq = list.size();
+				String line = ":user" + (seq % 7) + "!u@h PRIVMSG #chan" + (seq % 3) + " :message " + conId + " " + seq;
+				list.add(new Event(conId, seq, 1000 + seq * 17 % 5000, Event.Type.RECEIVE, new CleanLine(line)));
+			}
+			events.put(conId, list);
+		}
+		
+		
+		public Map<Integer,String> readProfiles(Collection<Integer> conIds) {
+			Map<Integer,String> result = new HashMap<>();
+			for (int conId : conIds) {
+				List<Event> list = events.get(conId);
+				if (!list.isEmpty() && list.get(0).type == Event.Type.CONNECTION)
+					result.put(conId, list.get(0).line.getString().split(" ", 5)[4]);
+			}
+			return result;
+		}
+		
+		
+		public void readEvents(int conId, int startSeq, int endSeq, CatchupReplay.Sink sink) {
+			for (Event ev : events.get(conId)) {
+				if (startSeq <= ev.sequence && ev.sequence < endSeq)
+					sink.deliver(ev);
+			}
+		}
+		
+	}
+	
+	
+	// Mimics the processor: state is per profile, and each profile's lines are appended under that profile's lock.
+	private static class StubProcessor implements CatchupReplay.Sink {
+		
+		public final Map<String,List<String>> windows = new TreeMap<>();
+		private final Map<Integer,String> connectionProfiles = new HashMap<>();
+		
+		
+		public void deliver(Event ev) {
+			String line = ev.line.getString();
+			List<String> win;
+			synchronized(this) {
+				if (ev.type == Event.Type.CONNECTION)
+					connectionProfiles.put(ev.connectionId, line.split(" ", 5)[4]);
+				String profile = connectionProfiles.get(ev.connectionId);
+				if (profile == null)
+					return;
+				if (!windows.containsKey(profile))
+					windows.put(profile, new ArrayList<String>());
+				win = windows.get(profile);
+			}
+			synchronized(win) {
+				win.add(ev.timestamp + " " + line);
+			}
+		}
+		
+	}
+	
+}
@@ -10,16 +10,27 @@ package io.nayuki.mamirc.processor;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.InflaterInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteException;
 import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.ChannelStreams;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
 import io.nayuki.mamirc.common.LineReader;
 import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.SharedMemoryRing;
 import io.nayuki.mamirc.common.Utils;
 
 
@@ -28,67 +39,188 @@ import io.nayuki.mamirc.common.Utils;
  * Additional functionality:
  * - Authenticates with the connector
  * - Parses the list of current active connections
- * - Reads database to catch up on all past events in the active connections
+ * - Reads database to catch up on all past events in the active connections, replaying several profiles concurrently
  * - Creates and terminates a writer thread for the socket
+ * As one shard of a ConnectorShards, it passes events and its writer to the shard set instead of the processor,
+ * and it reconnects with increasing delays whenever its connector is unreachable, unless the shard was disabled.
  */
 final class ConnectorReaderThread extends Thread {
 	
 	/*---- Fields ----*/
 	
-	private final MamircProcessor master;
+	private final MamircProcessor master;  // Null if this is a shard
+	private final ConnectorShards shards;  // Null if this is the only connector
+	private final int shardIndex;
 	private final BackendConfiguration configuration;
-	private Socket socket;
+	private volatile ChannelStreams socket;
 	private OutputWriterThread writer;
+	private SharedMemoryRing ring;  // Non-null if events arrive through a shared memory ring instead of the socket
+	private volatile boolean terminateRequested;
 	
 	
-	/*---- Constructor ----*/
+	/*---- Constructors ----*/
 	
 	public ConnectorReaderThread(MamircProcessor master, BackendConfiguration config) {
 		super("ConnectorReaderThread");
 		if (master == null || config == null)
 			throw new NullPointerException();
 		this.master = master;
+		shards = null;
+		shardIndex = -1;
 		configuration = config;
 		socket = null;
 		writer = null;
+		ring = null;
+		terminateRequested = false;
+	}
+	
+	
+	public ConnectorReaderThread(ConnectorShards shards, int index, BackendConfiguration config) {
+		super("ConnectorReaderThread-" + index);
+		if (shards == null || config == null)
+			throw new NullPointerException();
+		master = null;
+		this.shards = shards;
+		shardIndex = index;
+		configuration = config;
+		socket = null;
+		writer = null;
+		ring = null;
+		terminateRequested = false;
 	}
 	
 	
 	/*---- Methods ----*/
 	
 	public void run() {
+		if (shards == null) {
+			try {
+				attachAndProcess();
+			} finally {
+				master.terminate();
+			}
+			return;
+		}
+		
+		// As a shard, keep reattaching until terminated
+		int delay = SHARD_RETRY_MIN_DELAY;
+		while (!terminateRequested) {
+			try {
+				attachAndProcess();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if (shards.shardLost(shardIndex))
+				delay = SHARD_RETRY_MIN_DELAY;
+			if (terminateRequested || shards.isDisabled(shardIndex))
+				break;
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+			delay = Math.min(delay * 2, SHARD_RETRY_MAX_DELAY);
+		}
+	}
+	
+	
+	// Connects to the connector, catches up, and processes real-time events until the link ends.
+	private void attachAndProcess() {
 		try {
 			// Connect to connector, read and process archived events
 			LineReader reader = init();
 			
 			// Process real-time events
 			while (true) {
-				String line = readStringLine(reader);
-				if (line == null)
+				byte[] b;
+				if (ring == null) {
+					b = reader.readLine();
+					if (b == LineReader.BLANK_EOF)
+						b = null;
+				} else
+					b = ring.read();
+				if (b == null)
 					break;
-				String[] parts = line.split(" ", 5);
+				if (configuration.processorLinkParsed) {
+					handleParsedFrame(b);
+					continue;
+				}
+				String[] parts = Utils.fromUtf8(b).split(" ", 5);
 				Event ev = new Event(
 					Integer.parseInt(parts[0]),
 					Integer.parseInt(parts[1]),
 					Long.parseLong(parts[2]),
 					Event.Type.fromOrdinal(Integer.parseInt(parts[3])),
 					new CleanLine(parts[4]));
-				master.processEvent(ev, true);
+				deliver(ev, null, true);
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (SQLiteException e) {
 			e.printStackTrace();
 		} finally {  // Clean up
-			if (writer != null)
+			if (writer != null) {
 				writer.terminate();
+				if (shards != null && shards.isDisabled(shardIndex)) {
+					try {
+						writer.join(1000);  // Let the "disconnect" lines for the shard's connections go out
+					} catch (InterruptedException e) {}
+				}
+			}
 			if (socket != null) {
 				try {
 					socket.close();
 				} catch (IOException e) {}
 			}
-			master.terminate();
+			if (ring != null)
+				ring.abandon();
+			writer = null;
+			socket = null;
+			ring = null;
+		}
+	}
+	
+	
+	// Handles a real-time event frame that has the offsets of the IRC line's parts before the data, so that
+	// the IrcLine is built here without scanning the line, rather than by the processor while holding its lock.
+	private void handleParsedFrame(byte[] b) {
+		String[] fields = new String[5];  // Connection ID, sequence, timestamp, type, offsets
+		int start = 0;
+		for (int i = 0; i < fields.length; i++) {
+			int end = start;
+			while (b[end] != ' ')
+				end++;
+			fields[i] = new String(b, start, end - start, StandardCharsets.US_ASCII);
+			start = end + 1;
+		}
+		byte[] data = Arrays.copyOfRange(b, start, b.length);
+		Event ev = new Event(
+			Integer.parseInt(fields[0]),
+			Integer.parseInt(fields[1]),
+			Long.parseLong(fields[2]),
+			Event.Type.fromOrdinal(Integer.parseInt(fields[3])),
+			new CleanLine(data, false));
+		
+		IrcLine msg = null;
+		if (!fields[4].equals("-")) {
+			String[] parts = fields[4].split(",");
+			int[] bounds = new int[parts.length];
+			for (int i = 0; i < bounds.length; i++)
+				bounds[i] = Integer.parseInt(parts[i]);
+			try {
+				msg = new IrcLine(data, bounds);
+			} catch (IrcSyntaxException e) {}  // The processor parses the line itself and reports any error
 		}
+		deliver(ev, msg, true);
+	}
+	
+	
+	// The IrcLine of the event can be null, in which case the processor parses the line.
+	private void deliver(Event ev, IrcLine msg, boolean realtime) {
+		if (shards == null)
+			master.processEvent(ev, msg, realtime);
+		else
+			shards.deliverEvent(shardIndex, ev, msg, realtime);
 	}
 	
 	
@@ -96,15 +228,26 @@ final class ConnectorReaderThread extends Thread {
 		// Connect and authenticate
 		if (socket != null)
 			throw new IllegalStateException();
-		socket = new Socket("localhost", configuration.connectorServerPort);
-		writer = new OutputWriterThread(socket.getOutputStream(), new byte[]{'\n'});
-		master.attachConnectorWriter(writer);
+		if (configuration.connectorSocketPath != null)
+			socket = new ChannelStreams(SocketChannel.open(UnixDomainSocketAddress.of(configuration.connectorSocketPath.toPath())));
+		else
+			socket = new ChannelStreams(new Socket("localhost", configuration.connectorServerPort));
+		writer = new OutputWriterThread(socket.output, new byte[]{'\n'});
+		if (shards == null)
+			master.attachConnectorWriter(writer);
 		writer.start();
 		writer.postWrite(new CleanLine(configuration.getConnectorPassword(), false));
-		writer.postWrite(new CleanLine("attach"));
+		// With compression, every line from the connector (including the connection list) is in one zlib stream.
+		// With a ring, the connection list arrives on the socket, and the events arrive through the ring.
+		// With parsed frames, each event also carries the offsets of its IRC line's parts.
+		boolean useRing = configuration.processorLinkRingFile != null;
+		boolean useDeflate = !useRing && configuration.processorLinkDeflate;
+		writer.postWrite(new CleanLine((useRing ? "attach ring" : useDeflate ? "attach deflate" : "attach")
+			+ (configuration.processorLinkParsed ? " parsed" : "")));
 		
 		// Read first line
-		LineReader reader = new LineReader(socket.getInputStream());
+		LineReader reader = new LineReader(useDeflate ?
+			new InflaterInputStream(socket.input) : socket.input);
 		String line = readStringLine(reader);
 		if (line == null)
 			throw new RuntimeException("Authentication failure");
@@ -123,33 +266,153 @@ final class ConnectorReaderThread extends Thread {
 		line = readStringLine(reader);
 		if (!line.equals("live-events"))
 			throw new RuntimeException("Invalid data format");
+		if (useRing)
+			openRing(reader);
+		// A shard that attaches after the initial catch-up drops its old connections instead of catching up on them
+		if (shards != null && !shards.attachShard(shardIndex, writer, connectionSequences.keySet()))
+			return reader;
 		
-		// Read archived events from database and process them
-		SQLiteConnection database = new SQLiteConnection(configuration.connectorDatabaseFile);
-		try {
-			database.open(false);
-			SQLiteStatement query = database.prepare("SELECT sequence, timestamp, type, data FROM events WHERE connectionId=? AND sequence<? ORDER BY sequence ASC");
-			for (int conId : connectionSequences.keySet()) {
-				int nextSeq = connectionSequences.get(conId);
+		// If the processor restored a snapshot, only the events after it are read. Connections in the snapshot that have
+		// since ended are read to their end, so that the processor sees them close.
+		Map<Integer,Integer> startSequences = shards == null ? master.getSnapshotSequences() : new HashMap<Integer,Integer>();
+		Map<Integer,Integer> endSequences = new HashMap<>(connectionSequences);
+		for (int conId : startSequences.keySet()) {
+			if (!endSequences.containsKey(conId))
+				endSequences.put(conId, Integer.MAX_VALUE);
+		}
+		
+		// Read archived events from database and process them, several profiles at once
+		int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), CATCHUP_MAX_THREADS);
+		CatchupReplay.replay(startSequences, endSequences, new DatabaseSource(), new CatchupReplay.Sink() {
+			public void deliver(Event ev) {
+				ConnectorReaderThread.this.deliver(ev, null, false);  // Non-real-time
+			}
+		}, numThreads);
+		
+		// Fire off queued actions just before starting real-time processing
+		if (shards == null) {
+			master.removeInactiveSessions(connectionSequences.keySet());
+			master.finishCatchup();
+		} else
+			shards.finishCatchup(shardIndex);  // Waits for the other shards
+		return reader;
+	}
+	
+	
+	// Opens the ring, which the connector has created before sending "live-events". Nothing more is expected on
+	// the socket, so a separate thread reads it only to detect when the connector goes away, and then stops the ring.
+	private void openRing(final LineReader socketReader) throws IOException {
+		final SharedMemoryRing ring = SharedMemoryRing.open(configuration.processorLinkRingFile);
+		this.ring = ring;
+		Thread watchdog = new Thread("ConnectorReaderThread.watchdog") {
+			public void run() {
+				try {
+					while (readStringLine(socketReader) != null);
+				} catch (IOException e) {}
+				ring.abandon();
+			}
+		};
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+	
+	
+	private static final int CATCHUP_CHUNK_SIZE = 1000;
+	
+	private static final int CATCHUP_MAX_THREADS = 8;
+	
+	// Delays in milliseconds between attempts to reattach a shard
+	private static final int SHARD_RETRY_MIN_DELAY = 10000;
+	private static final int SHARD_RETRY_MAX_DELAY = 300000;
+	
+	// Selects the events that the processor acts on, based on the command column filled in by the Connector.
+	// Rows whose command is not known yet (logged by an older Connector and not yet backfilled) are always selected.
+	private static final String CATCHUP_FILTER = "(type=" + Event.Type.CONNECTION.ordinal() + " OR command IS NULL"
+		+ " OR (type=" + Event.Type.RECEIVE.ordinal() + " AND (command IN " + toSqlList(MamircProcessor.HANDLED_RECEIVE_COMMANDS) + " OR command GLOB '[0-9][0-9][0-9]'))"
+		+ " OR (type=" + Event.Type.SEND.ordinal() + " AND command IN " + toSqlList(MamircProcessor.HANDLED_SEND_COMMANDS) + "))";
+	
+	
+	// Reads archived events from the connector's database. Each call opens its own database connection,
+	// because a connection can only be used by the thread that opened it.
+	private final class DatabaseSource implements CatchupReplay.Source {
+		
+		public Map<Integer,String> readProfiles(Collection<Integer> conIds) throws SQLiteException {
+			Map<Integer,String> result = new HashMap<>();
+			SQLiteConnection database = new SQLiteConnection(configuration.connectorDatabaseFile);
+			try {
+				database.open(false);
+				SQLiteStatement query = database.prepare("SELECT data FROM events WHERE connectionId=? AND type=" + Event.Type.CONNECTION.ordinal() + " ORDER BY sequence ASC LIMIT 1");
+				for (int conId : conIds) {
+					query.bind(1, conId);
+					if (query.step()) {
+						List<byte[]> datas = new ArrayList<>();
+						datas.add(Utils.columnBytes(query, 0));
+						PayloadStore.resolveAll(database, datas);
+						String line = Utils.fromUtf8(datas.get(0));
+						if (line.startsWith("connect "))
+							result.put(conId, line.split(" ", 5)[4]);
+					}
+					query.reset();
+				}
+			} finally {
+				database.dispose();  // Automatically disposes its associated statements
+			}
+			return result;
+		}
+		
+		
+		public void readEvents(int conId, int startSeq, int endSeq, CatchupReplay.Sink sink) throws SQLiteException {
+			SQLiteConnection database = new SQLiteConnection(configuration.connectorDatabaseFile);
+			try {
+				database.open(false);
+				SQLiteStatement query = database.prepare("SELECT sequence, timestamp, type, data FROM events WHERE connectionId=? AND sequence>=? AND sequence<? AND " + CATCHUP_FILTER + " ORDER BY sequence ASC");
 				query.bind(1, conId);
-				query.bind(2, nextSeq);
-				while (query.step()) {
-					Event ev = new Event(conId, query.columnInt(0), query.columnLong(1), Event.Type.fromOrdinal(query.columnInt(2)), new CleanLine(query.columnBlob(3), false));
-					master.processEvent(ev, false);  // Non-real-time
+				query.bind(2, startSeq);
+				query.bind(3, endSeq);
+				boolean more = true;
+				while (more) {
+					// Read a chunk of rows, and resolve any payload references in the chunk together
+					List<long[]> heads = new ArrayList<>();  // Each is {sequence, timestamp, type}
+					List<byte[]> datas = new ArrayList<>();
+					while (datas.size() < CATCHUP_CHUNK_SIZE && (more = query.step())) {
+						heads.add(new long[]{query.columnInt(0), query.columnLong(1), query.columnInt(2)});
+						datas.add(Utils.columnBytes(query, 3));
+					}
+					PayloadStore.resolveAll(database, datas);
+					for (int i = 0; i < datas.size(); i++) {
+						long[] head = heads.get(i);
+						if (head[2] != Event.Type.CONNECTION.ordinal() && datas.get(i).length == 0)
+							continue;  // Blank line, or protocol chatter whose data was dropped by the Connector
+						sink.deliver(new Event(conId, (int)head[0], head[1], Event.Type.fromOrdinal((int)head[2]), new CleanLine(datas.get(i), false)));
+					}
 				}
-				query.reset();
+			} finally {
+				database.dispose();
 			}
-		} finally {
-			database.dispose();  // Automatically disposes its associated statements
 		}
 		
-		master.finishCatchup();  // Fire off queued actions just before starting real-time processing
-		return reader;
+	}
+	
+	
+	// Returns the given strings as an SQL list of literals, like "('A','B')". The strings must not contain quotes.
+	private static String toSqlList(String[] items) {
+		StringBuilder sb = new StringBuilder("(");
+		for (String s : items) {
+			if (s.indexOf('\'') != -1)
+				throw new IllegalArgumentException();
+			sb.append(sb.length() > 1 ? "," : "").append('\'').append(s).append('\'');
+		}
+		return sb.append(")").toString();
 	}
 	
 	
 	public void terminate() throws IOException {
-		socket.close();
+		terminateRequested = true;
+		ChannelStreams sock = socket;
+		if (shards != null)
+			interrupt();  // In case it is waiting to reattach
+		if (sock != null)
+			sock.close();
 	}
 	
 	
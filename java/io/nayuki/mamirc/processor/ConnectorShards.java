@@ -0,0 +1,439 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * Attaches the processor to several connectors at once, each running a subset of the IRC connections. To the processor
+ * this looks like a single connector: the events of all shards are merged, and a global connection ID holds the shard
+ * number in its top bits and the connector's own connection ID in its low 24 bits. Each shard has its own reader thread,
+ * so the events of each connection stay in order. Lines that the processor writes are routed by parsing them: "connect"
+ * goes to the owner of the profile, "send" and "disconnect" go to the shard of the connection, with the ID translated.
+ * 
+ * The owner of a profile is chosen among the attached shards by rendezvous hashing, so that attaching or losing a shard
+ * only moves the profiles that it gains or loses. When a shard is lost, its connections are reported to the processor
+ * as closed, so the processor reconnects them through the remaining shards. When a shard attaches after the initial
+ * catch-up, it drops the connections it still has, and the connections whose profiles it now owns are moved to it.
+ * A "connect" that a lost shard had not acted on yet is sent again to the new owner of the profile.
+ * 
+ * A shard whose connector hands out a connection ID that doesn't fit in 24 bits is disabled for good: its connections
+ * are disconnected and reported as closed, and its reader stops reattaching, because the IDs only ever grow.
+ */
+final class ConnectorShards {
+	
+	/*---- Fields ----*/
+	
+	private final MamircProcessor master;
+	private final List<Shard> shards;
+	private final List<ConnectorReaderThread> readers;
+	private final OutputWriterThread writer;  // Given to the processor; its output is parsed and routed
+	private final Timer timer;
+	
+	private final Map<String,String> pendingConnects;  // Profile name -> "connect" line, waiting for any shard to attach
+	private int initialPending;  // Number of shards whose first attachment attempt has not finished
+	private boolean initialPhaseOver;  // Whether the processor's finishCatchup() has been called
+	private final Lock lock;
+	private final Condition condInitialPhaseOver;
+	
+	
+	/*---- Constructor ----*/
+	
+	// Each configuration describes one connector, and its position in the list is its shard number.
+	public ConnectorShards(MamircProcessor master, List<BackendConfiguration> configs) {
+		if (master == null || configs == null)
+			throw new NullPointerException();
+		if (configs.isEmpty() || configs.size() > MAX_SHARDS)
+			throw new IllegalArgumentException("Invalid number of connector shards");
+		this.master = master;
+		shards = new ArrayList<>();
+		readers = new ArrayList<>();
+		for (int i = 0; i < configs.size(); i++) {
+			shards.add(new Shard());
+			readers.add(new ConnectorReaderThread(this, i, configs.get(i)));
+		}
+		pendingConnects = new LinkedHashMap<>();
+		initialPending = configs.size();
+		initialPhaseOver = false;
+		lock = new ReentrantLock();
+		condInitialPhaseOver = lock.newCondition();
+		timer = new Timer("ConnectorShards.timer");
+		writer = new OutputWriterThread(new RoutingStream(), new byte[]{'\n'});
+		master.attachConnectorWriter(writer);
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	public void start() {
+		writer.start();
+		for (ConnectorReaderThread reader : readers)
+			reader.start();
+	}
+	
+	
+	public void terminate() throws IOException {
+		for (ConnectorReaderThread reader : readers)
+			reader.terminate();
+		writer.terminate();
+		timer.cancel();
+	}
+	
+	
+	// Called by the given shard's reader after it has authenticated and read the list of active connections.
+	// Returns true if the shard should catch up on those connections and then call finishCatchup(), or false if
+	// the shard attached after the initial catch-up, in which case its old connections are dropped.
+	boolean attachShard(int index, OutputWriterThread shardWriter, Set<Integer> activeConnections) {
+		lock.lock();
+		try {
+			Shard sh = shards.get(index);
+			for (int conId : activeConnections) {
+				if (conId < 0 || conId > MAX_LOCAL_ID)
+					disable(index, shardWriter, activeConnections, conId);
+			}
+			if (!sh.initialAttemptDone) {
+				sh.writer = shardWriter;
+				return true;
+			}
+			while (!initialPhaseOver)
+				condInitialPhaseOver.awaitUninterruptibly();
+			sh.writer = shardWriter;
+			for (int conId : activeConnections) {
+				sh.ignored.add(conId);
+				shardWriter.postWrite("disconnect " + conId);
+			}
+			System.err.println("Connector shard " + index + " attached");
+			rebalance();
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Called by the given shard's reader after catching up during the initial attachment. Blocks until every
+	// shard has caught up or failed, so that the processor sees real-time events only after finishCatchup().
+	void finishCatchup(int index) {
+		boolean isLast;
+		lock.lock();
+		try {
+			shards.get(index).initialAttemptDone = true;
+			initialPending--;
+			isLast = initialPending == 0;
+			if (!isLast) {
+				while (!initialPhaseOver)
+					condInitialPhaseOver.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (isLast)
+			endInitialPhase();
+	}
+	
+	
+	// Called by the given shard's reader after its link ends or fails to be set up. Reports the shard's
+	// connections to the processor as closed. Returns whether the shard had been attached.
+	boolean shardLost(int index) {
+		List<Event> closures = new ArrayList<>();
+		boolean wasAttached;
+		boolean isLast = false;
+		lock.lock();
+		try {
+			Shard sh = shards.get(index);
+			wasAttached = sh.writer != null;
+			sh.writer = null;
+			long now = System.currentTimeMillis();
+			for (Map.Entry<Integer,Integer> entry : sh.nextSequences.entrySet()) {
+				closures.add(new Event(toGlobalId(index, entry.getKey()), entry.getValue(),
+					now, Event.Type.CONNECTION, new CleanLine("closed")));
+			}
+			sh.profiles.clear();
+			sh.nextSequences.clear();
+			sh.ignored.clear();
+			sh.moving.clear();
+			pendingConnects.putAll(sh.sentConnects);
+			sh.sentConnects.clear();
+			if (!sh.initialAttemptDone) {
+				sh.initialAttemptDone = true;
+				initialPending--;
+				isLast = initialPending == 0;
+			} else if (initialPhaseOver)
+				rebalance();  // Resends the connects that the lost shard didn't act on
+		} finally {
+			lock.unlock();
+		}
+		
+		if (wasAttached)
+			System.err.println("Connector shard " + index + " lost, closing its " + closures.size() + " connections");
+		for (Event ev : closures)
+			master.processEvent(ev, true);
+		if (isLast)
+			endInitialPhase();
+		return wasAttached;
+	}
+	
+	
+	// Called by the given shard's reader for each event, with the connector's own connection ID.
+	// The IrcLine can be null, in which case the processor parses the line.
+	void deliverEvent(int index, Event ev, IrcLine msg, boolean realtime) {
+		int conId = ev.connectionId;
+		lock.lock();
+		try {
+			Shard sh = shards.get(index);
+			if (conId < 0 || conId > MAX_LOCAL_ID)
+				disable(index, sh.writer, sh.nextSequences.keySet(), conId);
+			String line = ev.type == Event.Type.CONNECTION ? ev.line.getString() : null;
+			if (sh.ignored.contains(conId)) {
+				if ("closed".equals(line))
+					sh.ignored.remove(conId);
+				return;
+			}
+			if (line != null && line.startsWith("connect ")) {
+				String profile = line.split(" ", 5)[4];
+				sh.profiles.put(conId, profile);
+				sh.sentConnects.remove(profile);
+			}
+			if ("closed".equals(line)) {
+				sh.profiles.remove(conId);
+				sh.nextSequences.remove(conId);
+				sh.moving.remove(conId);
+			} else
+				sh.nextSequences.put(conId, ev.sequence + 1);
+		} finally {
+			lock.unlock();
+		}
+		master.processEvent(new Event(toGlobalId(index, conId), ev.sequence, ev.timestamp, ev.type, ev.line), msg, realtime);
+	}
+	
+	
+	// Returns whether the given shard was disabled because its connection IDs no longer fit.
+	boolean isDisabled(int index) {
+		lock.lock();
+		try {
+			return shards.get(index).disabled;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Disables the given shard because of the given connection ID, asks its connector to disconnect the given
+	// connections and that one, and throws an exception to end the shard's link. Must be called while holding the lock.
+	private void disable(int index, OutputWriterThread shardWriter, Set<Integer> conIds, int badConId) {
+		shards.get(index).disabled = true;
+		for (int conId : conIds)
+			shardWriter.postWrite("disconnect " + conId);
+		shardWriter.postWrite("disconnect " + badConId);
+		throw new IllegalStateException("Connector shard " + index + " disabled, because its connection ID " + badConId
+			+ " is too large for sharding; restart its Connector with a new database to use it again");
+	}
+	
+	
+	private void endInitialPhase() {
+		master.finishCatchup();
+		lock.lock();
+		try {
+			initialPhaseOver = true;
+			condInitialPhaseOver.signalAll();
+			rebalance();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Moves every connection whose profile is now owned by another shard, by quitting it so that the processor
+	// reconnects it, and sends the connections that were waiting for a shard. Must be called while holding the lock.
+	private void rebalance() {
+		List<Integer> attached = getAttachedShards();
+		if (attached.isEmpty())
+			return;
+		for (int i : attached) {
+			final Shard sh = shards.get(i);
+			for (Map.Entry<Integer,String> entry : sh.profiles.entrySet()) {
+				final int conId = entry.getKey();
+				if (ownerOf(entry.getValue(), attached) == i || !sh.moving.add(conId))
+					continue;
+				final OutputWriterThread shardWriter = sh.writer;
+				shardWriter.postWrite("send " + conId + " QUIT :Moving to another connector");
+				timer.schedule(new TimerTask() {
+					public void run() {
+						lock.lock();
+						try {
+							// Close the connection forcefully if the server hasn't done so already
+							if (sh.writer == shardWriter && sh.profiles.containsKey(conId))
+								shardWriter.postWrite("disconnect " + conId);
+						} finally {
+							lock.unlock();
+						}
+					}
+				}, 1000);
+			}
+		}
+		for (Map.Entry<String,String> entry : pendingConnects.entrySet())
+			sendConnect(ownerOf(entry.getKey(), attached), entry.getKey(), entry.getValue());
+		pendingConnects.clear();
+	}
+	
+	
+	// Handles one line written by the processor. Called only by the writer thread.
+	private void routeLine(String line) {
+		lock.lock();
+		try {
+			if (line.startsWith("connect ")) {
+				String profile = line.split(" ", 5)[4];
+				List<Integer> attached = getAttachedShards();
+				if (attached.isEmpty()) {
+					System.err.println("No connector shard attached, deferring connection for profile " + profile);
+					pendingConnects.put(profile, line);
+				} else
+					sendConnect(ownerOf(profile, attached), profile, line);
+				
+			} else if (line.startsWith("send ") || line.startsWith("send-bulk ") || line.startsWith("disconnect ")) {
+				String[] parts = line.split(" ", 3);
+				int id = Integer.parseInt(parts[1]);
+				Shard sh = shards.get(id >>> SHARD_SHIFT);
+				StringBuilder sb = new StringBuilder(parts[0]).append(' ').append(id & MAX_LOCAL_ID);
+				if (parts.length == 3)
+					sb.append(' ').append(parts[2]);
+				if (sh.writer != null)  // Otherwise the connection was already reported as closed
+					sh.writer.postWrite(sb.toString());
+				
+			} else {
+				for (int i : getAttachedShards())
+					shards.get(i).writer.postWrite(line);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	
+	// Sends the given "connect" line to the given attached shard, and remembers it until the connection appears.
+	// Must be called while holding the lock.
+	private void sendConnect(int index, String profile, String line) {
+		Shard sh = shards.get(index);
+		sh.writer.postWrite(line);
+		sh.sentConnects.put(profile, line);
+	}
+	
+	
+	// Must be called while holding the lock.
+	private List<Integer> getAttachedShards() {
+		List<Integer> result = new ArrayList<>();
+		for (int i = 0; i < shards.size(); i++) {
+			if (shards.get(i).writer != null)
+				result.add(i);
+		}
+		return result;
+	}
+	
+	
+	/*---- Static functions ----*/
+	
+	static int toGlobalId(int shard, int conId) {
+		if (shard < 0 || shard >= MAX_SHARDS || conId < 0 || conId > MAX_LOCAL_ID)
+			throw new IllegalArgumentException();
+		return shard << SHARD_SHIFT | conId;
+	}
+	
+	
+	// Returns the shard among the given ones that owns the given profile, by rendezvous (highest random weight) hashing.
+	// The list must not be empty. The result depends only on the profile name and the set of shards, not their order.
+	static int ownerOf(String profile, List<Integer> candidates) {
+		if (candidates.isEmpty())
+			throw new IllegalArgumentException();
+		long hash = 0xCBF29CE484222325L;  // FNV-1a
+		for (byte b : Utils.toUtf8(profile)) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001B3L;
+		}
+		int best = -1;
+		long bestWeight = 0;
+		for (int shard : candidates) {
+			long weight = mix(hash + (shard + 1) * 0x9E3779B97F4A7C15L);
+			if (best == -1 || Long.compareUnsigned(weight, bestWeight) > 0 || weight == bestWeight && shard < best) {
+				best = shard;
+				bestWeight = weight;
+			}
+		}
+		return best;
+	}
+	
+	
+	// The SplitMix64 finalizer.
+	private static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
+	}
+	
+	
+	private static final int SHARD_SHIFT = 24;
+	static final int MAX_LOCAL_ID = (1 << SHARD_SHIFT) - 1;
+	static final int MAX_SHARDS = 127;  // Keeps global IDs positive
+	
+	
+	
+	/*---- Nested classes ----*/
+	
+	// The state of one shard. Accessed only while holding the lock.
+	private static final class Shard {
+		public OutputWriterThread writer = null;  // Null while not attached
+		public boolean initialAttemptDone = false;
+		public boolean disabled = false;  // Set when a connection ID is too large; never cleared
+		public final Map<Integer,String> profiles = new HashMap<>();  // Connection ID -> profile name
+		public final Map<Integer,Integer> nextSequences = new HashMap<>();  // Connection ID -> next sequence number
+		public final Set<Integer> ignored = new HashSet<>();  // Old connections being dropped after a late attachment
+		public final Set<Integer> moving = new HashSet<>();  // Connections that were asked to quit by a rebalance
+		public final Map<String,String> sentConnects = new HashMap<>();  // Profile name -> "connect" line not yet acted on
+	}
+	
+	
+	
+	// Receives the processor's outgoing lines from the writer thread, and routes each complete line.
+	private final class RoutingStream extends OutputStream {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		
+		public void write(int b) {
+			if (b == '\n') {
+				routeLine(Utils.fromUtf8(buffer.toByteArray()));
+				buffer.reset();
+			} else
+				buffer.write(b);
+		}
+		
+		public void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++)
+				write(b[i]);
+		}
+	}
+	
+}
@@ -0,0 +1,378 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.ChannelStreams;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+import io.nayuki.mamirc.connector.MamircConnector;
+
+
+public final class ConnectorShardsTest {
+	
+	@Test public void testGlobalId() {
+		assertEquals(5, ConnectorShards.toGlobalId(0, 5));
+		assertEquals((3 << 24) | 7, ConnectorShards.toGlobalId(3, 7));
+		assertTrue(ConnectorShards.toGlobalId(ConnectorShards.MAX_SHARDS - 1, ConnectorShards.MAX_LOCAL_ID) > 0);
+		try {
+			ConnectorShards.toGlobalId(0, ConnectorShards.MAX_LOCAL_ID + 1);
+			fail();
+		} catch (IllegalArgumentException e) {}  // Pass
+	}
+	
+	
+	@Test public void testOwnerIndependentOfOrder() {
+		for (int i = 0; i < 100; i++) {
+			String profile = "Network" + i;
+			assertEquals(
+				ConnectorShards.ownerOf(profile, Arrays.asList(0, 1, 2, 3)),
+				ConnectorShards.ownerOf(profile, Arrays.asList(3, 1, 0, 2)));
+		}
+	}
+	
+	
+	// Adding a shard must only move profiles to the new shard, and should give it a fair share.
+	@Test public void testAddShard() {
+		List<Integer> before = Arrays.asList(0, 1, 2);
+		List<Integer> after = Arrays.asList(0, 1, 2, 3);
+		int moved = 0;
+		int count = 4000;
+		for (int i = 0; i < count; i++) {
+			String profile = "Network" + i;
+			int oldOwner = ConnectorShards.ownerOf(profile, before);
+			int newOwner = ConnectorShards.ownerOf(profile, after);
+			if (newOwner != oldOwner) {
+				assertEquals(3, newOwner);
+				moved++;
+			}
+		}
+		assertTrue(moved > count / 4 * 0.8 && moved < count / 4 * 1.2);
+	}
+	
+	
+	
+	// Two real connectors: every profile connects through its owner, and when one connector goes away, its profiles
+	// are reconnected through the other. The history of a profile is then read from both shards' databases.
+	@Test public void testRealConnectors() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-shards").toFile();
+		FakeIrcServer irc = new FakeIrcServer();
+		MamircProcessor proc = null;
+		try {
+			File[] shardFiles = {writeShardConfig(dir, 0), writeShardConfig(dir, 1)};
+			for (File f : shardFiles)
+				new MamircConnector(new BackendConfiguration(f));
+			List<String> profiles = Arrays.asList("net0", "net1", "net2", "net3", "net4", "net5");
+			Set<String> owned1 = new TreeSet<>();
+			for (String profile : profiles) {
+				if (ConnectorShards.ownerOf(profile, Arrays.asList(0, 1)) == 1)
+					owned1.add(profile);
+			}
+			assertTrue(0 < owned1.size() && owned1.size() < profiles.size());
+			
+			proc = startProcessor(dir, shardFiles, profiles, irc.getPort());
+			awaitGreetings(proc, profiles, new TreeSet<String>());
+			
+			// Shard 1 goes away, so its profiles come back through shard 0
+			stopConnector(dir, 1);
+			awaitGreetings(proc, profiles, owned1);
+			assertEquals(profiles.size(), irc.openCount.get());
+			stopConnector(dir, 0);
+			
+			assertEquals(owned1, readConnectProfiles(new File(dir, "shard1.sqlite")));
+			assertEquals(new TreeSet<>(profiles), readConnectProfiles(new File(dir, "shard0.sqlite")));
+			for (String profile : profiles) {
+				Map<String,Object> hist = proc.getHistory(profile, "bob", 0, 0, 10);
+				assertEquals("database", hist.get("source"));
+				assertEquals(owned1.contains(profile) ? 2 : 1, ((List<?>)hist.get("lines")).size());
+			}
+		} finally {
+			if (proc != null)
+				proc.terminate();
+			irc.close();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// A connector whose next connection ID doesn't fit in 24 bits is disabled without reattaching, the connection that
+	// it made is disconnected, and the profile is connected through the other shard instead.
+	@Test public void testConnectionIdOverflow() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-shards").toFile();
+		FakeIrcServer irc = new FakeIrcServer();
+		MamircProcessor proc = null;
+		try {
+			File[] shardFiles = {writeShardConfig(dir, 0), writeShardConfig(dir, 1)};
+			// Let connector 1 create its database, then make its next connection ID too large
+			new MamircConnector(new BackendConfiguration(shardFiles[1]));
+			stopConnector(dir, 1);
+			SQLiteConnection db = new SQLiteConnection(new File(dir, "shard1.sqlite"));
+			db.open(false);
+			try {
+				db.exec("INSERT INTO events(connectionId, sequence, timestamp, type, data) VALUES("
+					+ ConnectorShards.MAX_LOCAL_ID + ", 0, 0, " + Event.Type.CONNECTION.ordinal() + ", CAST('disconnect' AS BLOB))");
+			} finally {
+				db.dispose();
+			}
+			for (File f : shardFiles)
+				new MamircConnector(new BackendConfiguration(f));
+			
+			List<String> profiles = new ArrayList<>();
+			for (int i = 0; profiles.size() < 3; i++) {
+				if (ConnectorShards.ownerOf("net" + i, Arrays.asList(0, 1)) == (profiles.isEmpty() ? 1 : 0))
+					profiles.add("net" + i);
+			}
+			proc = startProcessor(dir, shardFiles, profiles, irc.getPort());
+			awaitGreetings(proc, profiles, new TreeSet<String>());
+			for (int i = 0; i < 100 && (irc.openCount.get() > profiles.size() || isThreadAlive("ConnectorReaderThread-1")); i++)
+				Thread.sleep(100);
+			assertEquals(profiles.size(), irc.openCount.get());
+			assertFalse(isThreadAlive("ConnectorReaderThread-1"));
+			stopConnector(dir, 0);
+			stopConnector(dir, 1);
+		} finally {
+			if (proc != null)
+				proc.terminate();
+			irc.close();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	
+	/*---- Helper definitions ----*/
+	
+	private static File writeShardConfig(File dir, int index) throws IOException {
+		File file = new File(dir, "shard" + index + ".json");
+		writeUtf8(file, "{\"data-type\": \"mamirc-backend-config\", \"connector-server-port\": 1, "
+			+ "\"connector-socket-path\": \"" + new File(dir, "shard" + index + ".sock").getPath() + "\", "
+			+ "\"connector-password\": \"pw" + index + "\", "
+			+ "\"connector-database-file\": \"" + new File(dir, "shard" + index + ".sqlite").getPath() + "\", "
+			+ "\"web-server-port\": 1, \"web-ui-password\": \"x\"}");
+		return file;
+	}
+	
+	
+	private static MamircProcessor startProcessor(File dir, File[] shardFiles, List<String> profiles, int ircPort) throws IOException {
+		File backendFile = new File(dir, "processor.json");
+		writeUtf8(backendFile, "{\"data-type\": \"mamirc-backend-config\", \"connector-server-port\": 1, "
+			+ "\"connector-password\": \"unused\", "
+			+ "\"connector-database-file\": \"" + new File(dir, "unused.sqlite").getPath() + "\", "
+			+ "\"processor-connector-shards\": [\"" + shardFiles[0].getPath() + "\", \"" + shardFiles[1].getPath() + "\"], "
+			+ "\"web-server-port\": 0, \"web-ui-password\": \"x\"}");
+		File userFile = new File(dir, "user.json");
+		StringBuilder sb = new StringBuilder("{\"data-type\": \"mamirc-user-config\", \"date-boundary-offset-seconds\": 0, \"network-profiles\": {");
+		for (int i = 0; i < profiles.size(); i++) {
+			sb.append(i > 0 ? ", " : "").append("\"").append(profiles.get(i)).append("\": {\"connect\": true, ")
+				.append("\"servers\": [{\"hostname\": \"localhost\", \"port\": ").append(ircPort).append(", \"ssl\": false}], ")
+				.append("\"nicknames\": [\"Nick\"], \"username\": \"u\", \"realname\": \"R\", \"channels\": []}");
+		}
+		writeUtf8(userFile, sb.append("}}").toString());
+		return new MamircProcessor(new BackendConfiguration(backendFile), userFile);
+	}
+	
+	
+	// Waits until every given profile is connected and its window with "bob" has one greeting, or two for the profiles
+	// that were reconnected.
+	private static void awaitGreetings(MamircProcessor proc, List<String> profiles, Set<String> reconnected) throws InterruptedException {
+		Set<String> done = null;
+		for (int i = 0; i < 300; i++) {
+			Map<String,Object> state = proc.getState(100);
+			done = new TreeSet<>();
+			for (Object obj : (List<?>)state.get("windows")) {
+				List<?> win = (List<?>)obj;
+				int greetings = 0;
+				for (Object line : (List<?>)((Map<?,?>)win.get(2)).get("lines")) {
+					if (((List<?>)line).contains("hello"))
+						greetings++;
+				}
+				if (win.get(1).equals("bob") && greetings == (reconnected.contains(win.get(0)) ? 2 : 1) && ((Map<?,?>)state.get("connections")).containsKey(win.get(0)))
+					done.add((String)win.get(0));
+			}
+			if (done.equals(new TreeSet<>(profiles)))
+				return;
+			Thread.sleep(100);
+		}
+		fail("Connected profiles: " + done);
+	}
+	
+	
+	// Shuts down the given connector by attaching to it (which detaches the processor) and sending "terminate",
+	// and waits until its database has recorded the end of every connection.
+	private static void stopConnector(File dir, int index) throws IOException, SQLiteException, InterruptedException {
+		File socketPath = new File(dir, "shard" + index + ".sock");
+		ChannelStreams sock = new ChannelStreams(SocketChannel.open(UnixDomainSocketAddress.of(socketPath.toPath())));
+		try {
+			sock.output.write(Utils.toUtf8("pw" + index + "\nattach\nterminate\n"));
+			while (sock.input.read() != -1);
+		} catch (IOException e) {
+		} finally {
+			sock.close();
+		}
+		for (int i = 0; i < 100 && socketPath.exists(); i++)
+			Thread.sleep(50);
+		assertFalse(socketPath.exists());
+		
+		SQLiteConnection db = new SQLiteConnection(new File(dir, "shard" + index + ".sqlite"));
+		db.open(false);
+		db.setBusyTimeout(10000);
+		try {
+			SQLiteStatement st = db.prepare("SELECT (SELECT count(*) FROM events WHERE CAST(data AS TEXT) LIKE 'connect %'), "
+				+ "(SELECT count(*) FROM events WHERE CAST(data AS TEXT)='closed')");
+			for (int i = 0; i < 100; i++) {
+				st.step();
+				boolean done = st.columnInt(0) == st.columnInt(1);
+				st.reset();
+				if (done)
+					return;
+				Thread.sleep(100);
+			}
+			fail("Connector " + index + " did not finish");
+		} finally {
+			db.dispose();
+		}
+	}
+	
+	
+	// Returns the profile names of the connections in the given connector database.
+	private static Set<String> readConnectProfiles(File file) throws SQLiteException {
+		Set<String> result = new TreeSet<>();
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.open(false);
+		try {
+			SQLiteStatement st = db.prepare("SELECT data FROM events WHERE sequence=0 AND type=" + Event.Type.CONNECTION.ordinal());
+			while (st.step()) {
+				String line = Utils.fromUtf8(st.columnBlob(0));
+				if (line.startsWith("connect "))
+					result.add(line.split(" ", 5)[4]);
+			}
+		} finally {
+			db.dispose();
+		}
+		return result;
+	}
+	
+	
+	// Accepts any number of clients, greets each one with a private message from "bob" after it registers,
+	// and counts the clients that are connected.
+	private static final class FakeIrcServer extends Thread {
+		
+		private final ServerSocket server;
+		public final AtomicInteger openCount = new AtomicInteger();
+		
+		
+		public FakeIrcServer() throws IOException {
+			server = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+			setDaemon(true);
+			start();
+		}
+		
+		
+		public int getPort() {
+			return server.getLocalPort();
+		}
+		
+		
+		public void run() {
+			try {
+				while (true) {
+					final Socket sock = server.accept();
+					openCount.incrementAndGet();
+					Thread th = new Thread() {
+						public void run() {
+							try {
+								BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+								OutputStream out = sock.getOutputStream();
+								String nick = "*";
+								while (true) {
+									String line = in.readLine();
+									if (line == null)
+										break;
+									if (line.startsWith("NICK "))
+										nick = line.substring(5).replace(":", "");
+									else if (line.startsWith("USER "))
+										out.write(Utils.toUtf8(":irc.test 001 " + nick + " :Welcome\r\n:bob!b@host PRIVMSG " + nick + " :hello\r\n"));
+								}
+							} catch (IOException e) {
+							} finally {
+								openCount.decrementAndGet();
+								try {
+									sock.close();
+								} catch (IOException e) {}
+							}
+						}
+					};
+					th.setDaemon(true);
+					th.start();
+				}
+			} catch (IOException e) {}
+		}
+		
+		
+		public void close() throws IOException {
+			server.close();
+		}
+		
+	}
+	
+	
+	private static boolean isThreadAlive(String name) {
+		for (Thread th : Thread.getAllStackTraces().keySet()) {
+			if (th.getName().equals(name) && th.isAlive())
+				return true;
+		}
+		return false;
+	}
+	
+	
+	private static void writeUtf8(File file, String s) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(Utils.toUtf8(s));
+		}
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+}
@@ -0,0 +1,303 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.PayloadStore;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * Reads window lines around a point in time directly from the Connector's database, for history that
+ * is no longer (or never was) held in memory. Each event is decoded on its own, without replaying the
+ * session state, so only message-like lines are produced: PRIVMSG, NOTICE, JOIN, PART, KICK, TOPIC,
+ * and MODE. For outgoing lines, the nickname is the one the connection registered with.
+ * With connector shards, there is one reader per shard database, and readLines(List,...) merges their results.
+ * Each scan reads a bounded number of rows, so a window whose lines are sparse can yield fewer lines than exist;
+ * the result says so.
+ * Thread-safe; each call opens its own read-only database connection.
+ */
+final class HistoryReader {
+	
+	/*---- Fields ----*/
+	
+	private final File databaseFile;
+	
+	// Caches of per-connection facts that never change once known; accessed while synchronized on this object
+	private final Map<Integer,String> connectionProfiles;   // Profile name, or null if not a MamIRC connection
+	private final Map<Integer,String> connectionNicknames;  // Nickname from the welcome reply; absent until there is one
+	
+	
+	/*---- Constructor ----*/
+	
+	public HistoryReader(File databaseFile) {
+		if (databaseFile == null)
+			throw new NullPointerException();
+		this.databaseFile = databaseFile;
+		connectionProfiles = new HashMap<>();
+		connectionNicknames = new HashMap<>();
+	}
+	
+	
+	/*---- Methods ----*/
+	
+	// Returns up to 'before' lines strictly before the given time and up to 'after' lines at or after it,
+	// in chronological order, for the given window. Each line is a list of {null, flags, timestamp in seconds,
+	// payload...}, where the null stands for the window sequence number. The time is in milliseconds.
+	public Result readLines(String profile, String party, long time, int before, int after) throws SQLiteException {
+		return readLines(Collections.singletonList(this), profile, party, time, before, after);
+	}
+	
+	
+	// Reads lines like the method above from each of the given readers' databases, and merges them by time. This is for
+	// connector shards, where a profile's connections could have been on any shard over time.
+	public static Result readLines(List<HistoryReader> readers, String profile, String party, long time, int before, int after) throws SQLiteException {
+		List<List<Object>> earlier = new ArrayList<>();  // Newest first
+		List<List<Object>> later = new ArrayList<>();  // Oldest first
+		boolean truncated = false;
+		for (HistoryReader reader : readers) {
+			SQLiteConnection database = new SQLiteConnection(reader.databaseFile);
+			try {
+				database.openReadonly();
+				database.setBusyTimeout(10000);
+				// A truncated scan of one database could have missed lines closer in time than another database's
+				truncated |= reader.scan(database, profile, party, time, before, false, earlier);
+				truncated |= reader.scan(database, profile, party, time, after, true, later);
+			} finally {
+				database.dispose();  // Automatically disposes its associated statements
+			}
+		}
+		if (readers.size() > 1) {
+			// Stable sorts, so the lines of each database stay in their order within the same second
+			Collections.sort(earlier, Collections.reverseOrder(BY_TIMESTAMP));
+			Collections.sort(later, BY_TIMESTAMP);
+			earlier = earlier.subList(0, Math.min(before, earlier.size()));
+			later = later.subList(0, Math.min(after, later.size()));
+		}
+		List<List<Object>> lines = new ArrayList<>(earlier);
+		Collections.reverse(lines);
+		lines.addAll(later);
+		return new Result(lines, truncated);
+	}
+	
+	
+	// Appends up to 'limit' lines of the window to the given list, scanning from the given time in the given direction.
+	// Returns true if the scan stopped at MAX_SCANNED_ROWS with fewer lines than the limit and more rows left to read.
+	private boolean scan(SQLiteConnection database, String profile, String party, long time, int limit, boolean forward, List<List<Object>> result) throws SQLiteException {
+		if (limit <= 0)
+			return false;
+		int found = 0;
+		boolean isChannel = isChannelName(party);
+		String sql = "SELECT connectionId, timestamp, type, data FROM events WHERE "
+			+ (forward ? "timestamp>=?" : "timestamp<?")
+			+ " AND type IN (" + Event.Type.RECEIVE.ordinal() + "," + Event.Type.SEND.ordinal() + ")"
+			+ (isChannel ? " AND command IN ('PRIVMSG','NOTICE','JOIN','PART','KICK','TOPIC','MODE') AND target=? COLLATE NOCASE"
+				: " AND command IN ('PRIVMSG','NOTICE')")  // Private messages can't be found by target alone
+			+ " ORDER BY timestamp " + (forward ? "ASC" : "DESC");
+		SQLiteStatement query = database.prepare(sql);
+		query.bind(1, time);
+		if (isChannel)
+			query.bind(2, party);
+		
+		int scanned = 0;
+		boolean more = true;
+		while (more && found < limit && scanned < MAX_SCANNED_ROWS) {
+			// Read a chunk of rows, and resolve any payload references in the chunk together
+			List<long[]> heads = new ArrayList<>();  // Each is {connectionId, timestamp, type}
+			List<byte[]> datas = new ArrayList<>();
+			while (datas.size() < CHUNK_SIZE && (more = query.step())) {
+				heads.add(new long[]{query.columnInt(0), query.columnLong(1), query.columnInt(2)});
+				datas.add(Utils.columnBytes(query, 3));
+			}
+			scanned += datas.size();
+			PayloadStore.resolveAll(database, datas);
+			
+			for (int i = 0; i < datas.size() && found < limit; i++) {
+				long[] head = heads.get(i);
+				int conId = (int)head[0];
+				if (datas.get(i).length == 0 || !profile.equals(getProfile(database, conId)))
+					continue;
+				try {
+					IrcLine msg = new IrcLine(datas.get(i));
+					List<Object> line = decode(msg, head[2] == Event.Type.SEND.ordinal(), getNickname(database, conId), party, head[1]);
+					if (line != null) {
+						result.add(line);
+						found++;
+					}
+				} catch (IrcSyntaxException e) {}  // Skip
+			}
+		}
+		return more && found < limit;
+	}
+	
+	
+	// Returns the window line for the given IRC line if it belongs to the given party's window, otherwise null.
+	private static List<Object> decode(IrcLine msg, boolean outgoing, String myNick, String party, long timestamp) {
+		int flags;
+		String msgParty;
+		Object[] payload;
+		switch (msg.command.toUpperCase()) {
+			case "PRIVMSG":
+			case "NOTICE": {
+				String who = outgoing ? myNick : msg.prefixName;
+				msgParty = msg.getParameter(0);
+				if (!outgoing && !isChannelName(msgParty))  // A private message to me
+					msgParty = who;
+				flags = (msg.command.equalsIgnoreCase("PRIVMSG") ? Window.Flags.PRIVMSG : Window.Flags.NOTICE).value;
+				if (outgoing)
+					flags |= Window.Flags.OUTGOING.value;
+				payload = new Object[]{who, msg.getParameter(1)};
+				break;
+			}
+			case "JOIN":
+				msgParty = msg.getParameter(0);
+				flags = Window.Flags.JOIN.value;
+				payload = new Object[]{msg.prefixName};
+				break;
+			case "PART":
+				msgParty = msg.getParameter(0);
+				flags = Window.Flags.PART.value;
+				payload = new Object[]{msg.prefixName};
+				break;
+			case "KICK":
+				msgParty = msg.getParameter(0);
+				flags = Window.Flags.KICK.value;
+				payload = new Object[]{msg.getParameter(1), msg.prefixName, msg.getParameter(2)};
+				break;
+			case "TOPIC":
+				msgParty = msg.getParameter(0);
+				flags = Window.Flags.TOPIC.value;
+				payload = new Object[]{msg.prefixName, msg.getParameter(1)};
+				break;
+			case "MODE": {
+				msgParty = msg.getParameter(0);
+				String text = "";
+				for (int i = 1; i < msg.parameters.size(); i++) {
+					if (text.length() > 0)
+						text += " ";
+					text += msg.getParameter(i);
+				}
+				flags = Window.Flags.MODE.value;
+				payload = new Object[]{msg.prefixName, text};
+				break;
+			}
+			default:
+				return null;
+		}
+		if (outgoing && !msg.command.equalsIgnoreCase("PRIVMSG") && !msg.command.equalsIgnoreCase("NOTICE"))
+			return null;  // Sent JOIN, MODE, etc. are echoed by the server, so only the received copy is shown
+		if (msgParty == null || !msgParty.equalsIgnoreCase(party))
+			return null;
+		
+		List<Object> result = new ArrayList<>();
+		result.add(null);
+		result.add(flags);
+		result.add(AllWindows.divideAndFloor(timestamp, 1000));
+		Collections.addAll(result, payload);
+		return result;
+	}
+	
+	
+	// Returns the profile name of the given connection, or null if unknown.
+	private synchronized String getProfile(SQLiteConnection database, int conId) throws SQLiteException {
+		if (!connectionProfiles.containsKey(conId)) {
+			String profile = null;
+			String line = readFirstLine(database, "SELECT data FROM events WHERE connectionId=? AND sequence=0", conId);
+			if (line != null) {
+				String[] parts = line.split(" ", 5);
+				if (parts.length == 5 && parts[0].equals("connect"))
+					profile = parts[4];
+			}
+			connectionProfiles.put(conId, profile);
+		}
+		return connectionProfiles.get(conId);
+	}
+	
+	
+	// Returns the nickname that the given connection registered with, or "" if unknown. An unknown nickname isn't cached,
+	// because the connection may still be registering.
+	private synchronized String getNickname(SQLiteConnection database, int conId) throws SQLiteException {
+		String nick = connectionNicknames.get(conId);
+		if (nick == null) {
+			String line = readFirstLine(database, "SELECT data FROM events WHERE connectionId=? AND type=" + Event.Type.RECEIVE.ordinal() + " AND command='001' LIMIT 1", conId);
+			if (line == null)
+				return "";
+			try {
+				nick = new IrcLine(line).getParameter(0);
+			} catch (IrcSyntaxException e) {
+				return "";
+			}
+			connectionNicknames.put(conId, nick);
+		}
+		return nick;
+	}
+	
+	
+	// Runs the given query with the given connection ID, and returns the data of the first row decoded as UTF-8, or null if there is no row.
+	private static String readFirstLine(SQLiteConnection database, String sql, int conId) throws SQLiteException {
+		SQLiteStatement query = database.prepare(sql);
+		try {
+			query.bind(1, conId);
+			if (!query.step())
+				return null;
+			List<byte[]> datas = new ArrayList<>();
+			datas.add(Utils.columnBytes(query, 0));
+			PayloadStore.resolveAll(database, datas);
+			return Utils.fromUtf8(datas.get(0));
+		} finally {
+			query.dispose();
+		}
+	}
+	
+	
+	// Orders window lines by their timestamp in seconds.
+	private static final Comparator<List<Object>> BY_TIMESTAMP = new Comparator<List<Object>>() {
+		public int compare(List<Object> x, List<Object> y) {
+			return Long.compare((Long)x.get(2), (Long)y.get(2));
+		}
+	};
+	
+	
+	private static boolean isChannelName(String party) {
+		return party.length() > 0 && (party.charAt(0) == '#' || party.charAt(0) == '&');
+	}
+	
+	
+	/*---- Helper class ----*/
+	
+	// The lines read by readLines(), and whether the window might have more lines within the requested counts.
+	public static final class Result {
+		public final List<List<Object>> lines;
+		public final boolean truncated;
+		
+		public Result(List<List<Object>> lines, boolean truncated) {
+			this.lines = lines;
+			this.truncated = truncated;
+		}
+	}
+	
+	
+	/*---- Constants ----*/
+	
+	private static final int CHUNK_SIZE = 200;
+	
+	// Bounds the work per request when the window's lines are sparse
+	static final int MAX_SCANNED_ROWS = 100000;
+	
+}
@@ -0,0 +1,143 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class HistoryReaderTest {
+	
+	// A window line that is hidden behind more than MAX_SCANNED_ROWS rows of another profile is not found,
+	// and the result says that the search was cut short, also when merged with another database.
+	@Test public void testTruncated() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-history").toFile();
+		try {
+			File file = new File(dir, "events.sqlite");
+			SQLiteConnection db = open(file);
+			try {
+				db.exec("BEGIN TRANSACTION");
+				insert(db, 0, 0, 0, Event.Type.CONNECTION, "connect irc.example.net 6667 nossl mine");
+				insert(db, 0, 1, 1000, Event.Type.RECEIVE, ":bob!b@host PRIVMSG #chan :hello");
+				insert(db, 1, 0, 0, Event.Type.CONNECTION, "connect irc.example.net 6667 nossl other");
+				for (int i = 0; i <= HistoryReader.MAX_SCANNED_ROWS; i++)
+					insert(db, 1, i + 1, 2000 + i, Event.Type.RECEIVE, ":carol!c@host PRIVMSG #chan :noise " + i);
+				db.exec("COMMIT TRANSACTION");
+			} finally {
+				db.dispose();
+			}
+			
+			HistoryReader reader = new HistoryReader(file);
+			long end = 2000 + HistoryReader.MAX_SCANNED_ROWS + 1;
+			HistoryReader.Result res = reader.readLines("mine", "#chan", end, 1, 0);
+			assertTrue(res.truncated);
+			assertEquals(0, res.lines.size());
+			
+			File empty = new File(dir, "empty.sqlite");
+			open(empty).dispose();
+			res = HistoryReader.readLines(Arrays.asList(new HistoryReader(empty), reader), "mine", "#chan", end, 1, 0);
+			assertTrue(res.truncated);
+			
+			// Enough lines are found before the limit, or the rows run out
+			res = reader.readLines("mine", "#chan", 1000, 0, 1);
+			assertFalse(res.truncated);
+			assertEquals(Arrays.<Object>asList(null, Window.Flags.PRIVMSG.value, 1L, "bob", "hello"), res.lines.get(0));
+			res = reader.readLines("other", "#chan", 3000, 5, 0);
+			assertFalse(res.truncated);
+			assertEquals(5, res.lines.size());
+			assertFalse(reader.readLines("mine", "#chan", 1000, 10, 0).truncated);
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// The nickname of a connection that hasn't registered yet is not remembered, so it is found once registration completes.
+	@Test public void testNicknameAfterRegistration() throws IOException, SQLiteException {
+		File dir = Files.createTempDirectory("mamirc-history").toFile();
+		try {
+			File file = new File(dir, "events.sqlite");
+			SQLiteConnection db = open(file);
+			try {
+				insert(db, 0, 0, 0, Event.Type.CONNECTION, "connect irc.example.net 6667 nossl mine");
+				insert(db, 0, 1, 1000, Event.Type.SEND, "PRIVMSG #chan :early");
+			} finally {
+				db.dispose();
+			}
+			HistoryReader reader = new HistoryReader(file);
+			assertEquals("", reader.readLines("mine", "#chan", 0, 0, 10).lines.get(0).get(3));
+			
+			db = open(file);
+			try {
+				insert(db, 0, 2, 2000, Event.Type.RECEIVE, ":irc.example.net 001 alice :Welcome");
+			} finally {
+				db.dispose();
+			}
+			assertEquals("alice", reader.readLines("mine", "#chan", 0, 0, 10).lines.get(0).get(3));
+		} finally {
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Opens the given database, creating the events table with the Connector's columns if needed.
+	private static SQLiteConnection open(File file) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.open(true);
+		db.exec("CREATE TABLE IF NOT EXISTS events(connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, "
+			+ "type INTEGER NOT NULL, data BLOB NOT NULL, class INTEGER, command TEXT, target TEXT, PRIMARY KEY(connectionId, sequence))");
+		return db;
+	}
+	
+	
+	// Inserts one event with the command and target columns filled in like the Connector does.
+	private static void insert(SQLiteConnection db, int conId, int seq, long timestamp, Event.Type type, String line) throws SQLiteException {
+		SQLiteStatement st = db.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data, command, target) VALUES(?,?,?,?,?,?,?)", true);
+		try {
+			st.bind(1, conId);
+			st.bind(2, seq);
+			st.bind(3, timestamp);
+			st.bind(4, type.ordinal());
+			st.bind(5, Utils.toUtf8(line));
+			if (type == Event.Type.CONNECTION) {
+				st.bindNull(6);
+				st.bindNull(7);
+			} else {
+				IrcLine msg = new IrcLine(line);
+				st.bind(6, msg.command);
+				st.bind(7, msg.getParameter(0));
+			}
+			st.step();
+		} finally {
+			st.dispose();
+		}
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+}
@@ -8,11 +8,11 @@
 
 package io.nayuki.mamirc.processor;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import io.nayuki.mamirc.common.RawIrcLine;
+import io.nayuki.mamirc.common.Utils;
 
 
 /*
@@ -23,6 +23,8 @@ import java.util.regex.Pattern;
  *   :Oldname NICK Newname
  *   :nickname!username@hostname PRIVMSG #channel :Hello!
  *   :optionalPrefix COMMAND noSpaceParam anotherparam :Trailing parameter with spaces allowed
+ * The line is kept as UTF-8 bytes along with the offsets of its parts, and each parameter is decoded
+ * into a string only when it is first accessed.
  */
 final class IrcLine {
 	
@@ -34,64 +36,91 @@ final class IrcLine {
 	public final String command;           // Not null
 	public final List<String> parameters;  // Not null; immutable, length at least 0, elements not null.
 	
+	private final byte[] data;           // UTF-8 line, not modified by anyone
+	private final int[] bounds;          // Offsets of the parts, as described in the constructor
+	private final String[] paramsCache;  // Decoded parameters, each null until first accessed
 	
-	/*---- Constructor ----*/
+	
+	/*---- Constructors ----*/
 	
 	// Parses the given raw string line into parts. Throws an exception on syntax error.
 	public IrcLine(String line) {
-		// Parse prefix and command
-		Matcher m = PREFIX_COMMAND_REGEX.matcher(line);
-		if (!m.matches())
-			throw new IrcSyntaxException("Syntax error in prefix or command");
-		if (m.start(1) != -1) {
-			String prefix = line.substring(m.start(1) + 1, m.end(1) - 1);
-			int i = prefix.indexOf('@');
-			if (i == -1) {
-				prefixName = prefix;
-				prefixUsername = null;
-				prefixHostname = null;
-			} else {
-				int j = prefix.lastIndexOf('!', i);
-				if (j == -1) {
-					prefixName = prefix.substring(0, i);
-					prefixUsername = null;
-				} else {
-					prefixName = prefix.substring(0, j);
-					prefixUsername = prefix.substring(j + 1, i);
-				}
-				prefixHostname = prefix.substring(i + 1);
-			}
-		} else {
-			prefixName = null;
-			prefixHostname = null;
-			prefixUsername = null;
+		this(Utils.toUtf8(line));
+	}
+	
+	
+	// Parses the given UTF-8 line (which is not copied and must not be modified) into parts.
+	// Throws an exception on syntax error.
+	public IrcLine(byte[] line) {
+		this(line, scan(line));
+	}
+	
+	
+	// Builds the parts from the given UTF-8 line and the byte offsets of its parts, as found by the Connector's RawIrcLine:
+	// {prefix start, prefix end, command start, command end, then the start and end of each parameter}, where the prefix
+	// offsets are -1 if there is no prefix. This only decodes substrings, without scanning the line. The offsets are checked
+	// for being in order and in bounds, and IrcSyntaxException is thrown if they are not.
+	// The line is not copied and must not be modified.
+	public IrcLine(byte[] line, int[] bounds) {
+		if (bounds.length < 4 || bounds.length % 2 != 0)
+			throw new IrcSyntaxException("Invalid part offsets");
+		int prev = 0;
+		for (int i = bounds[0] == -1 && bounds[1] == -1 ? 2 : 0; i < bounds.length; i++) {
+			if (bounds[i] < prev || bounds[i] > line.length)
+				throw new IrcSyntaxException("Invalid part offsets");
+			prev = bounds[i];
 		}
-		command = m.group(2);
-		
-		// Parse any number of parameters
-		String rest = m.group(3);
-		List<String> params = new ArrayList<>();
-		while (rest.length() > 0) {
-			int i = 0;
-			while (i < rest.length() && rest.charAt(i) == ' ')
-				i++;
-			if (i == 0)
-				throw new AssertionError();
-			
-			if (i == rest.length())
-				break;
-			else if (rest.charAt(i) == ':') {
-				params.add(rest.substring(i + 1));
-				break;
-			} else {
-				int j = rest.indexOf(' ', i);
-				if (j == -1)
-					j = rest.length();
-				params.add(rest.substring(i, j));
-				rest = rest.substring(j);
-			}
+		String[] prefix = splitPrefix(bounds[0] != -1 ? decode(line, bounds[0], bounds[1]) : null);
+		prefixName = prefix[0];
+		prefixUsername = prefix[1];
+		prefixHostname = prefix[2];
+		command = decode(line, bounds[2], bounds[3]);
+		data = line;
+		this.bounds = bounds;
+		paramsCache = new String[bounds.length / 2 - 2];
+		parameters = new ParameterList();
+	}
+	
+	
+	// Returns the offsets of the parts of the given line in the format of the constructor above, scanning the bytes
+	// once with the same parser that the Connector uses. Throws IrcSyntaxException if the line has no command.
+	private static int[] scan(byte[] line) {
+		RawIrcLine raw;
+		try {
+			raw = new RawIrcLine(line);
+		} catch (IllegalArgumentException e) {
+			throw new IrcSyntaxException(e.getMessage());
+		}
+		int[] result = new int[4 + raw.getParameterCount() * 2];
+		result[0] = raw.prefixStart;
+		result[1] = raw.prefixEnd;
+		result[2] = raw.commandStart;
+		result[3] = raw.commandEnd;
+		for (int i = 0; i < raw.getParameterCount(); i++) {
+			result[i * 2 + 4] = raw.getParameterStart(i);
+			result[i * 2 + 5] = raw.getParameterEnd(i);
 		}
-		parameters = Collections.unmodifiableList(params);
+		return result;
+	}
+	
+	
+	// Returns {name, username, hostname} from the given prefix (without the colon), where each can be null.
+	private static String[] splitPrefix(String prefix) {
+		if (prefix == null)
+			return new String[3];
+		int i = prefix.indexOf('@');
+		if (i == -1)
+			return new String[]{prefix, null, null};
+		int j = prefix.lastIndexOf('!', i);
+		if (j == -1)
+			return new String[]{prefix.substring(0, i), null, prefix.substring(i + 1)};
+		else
+			return new String[]{prefix.substring(0, j), prefix.substring(j + 1, i), prefix.substring(i + 1)};
+	}
+	
+	
+	private static String decode(byte[] b, int start, int end) {
+		return new String(b, start, end - start, StandardCharsets.UTF_8);
 	}
 	
 	
@@ -110,8 +139,26 @@ final class IrcLine {
 	}
 	
 	
-	/*---- Constants ----*/
+	/*---- Helper class ----*/
 	
-	private static final Pattern PREFIX_COMMAND_REGEX = Pattern.compile("(:[^ ]+ +)?([^ :]*)(.*)", Pattern.DOTALL);
+	// An unmodifiable view of the parameters that decodes each one on first access. Concurrent readers
+	// might decode a parameter twice, which is harmless because the strings are equal and immutable.
+	private final class ParameterList extends AbstractList<String> {
+		
+		public String get(int index) {
+			String result = paramsCache[index];  // Throws IndexOutOfBoundsException
+			if (result == null) {
+				result = decode(data, bounds[index * 2 + 4], bounds[index * 2 + 5]);
+				paramsCache[index] = result;
+			}
+			return result;
+		}
+		
+		
+		public int size() {
+			return paramsCache.length;
+		}
+		
+	}
 	
 }
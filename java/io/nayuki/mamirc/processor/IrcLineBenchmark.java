@@ -0,0 +1,151 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import io.nayuki.mamirc.common.Utils;
+
+
+/* 
+ * A stand-alone microbenchmark of IrcLine parsing, run by hand when changing the parser. It generates a corpus with the
+ * mix of lines of a busy channel session (mostly PRIVMSG, some JOIN/PART/QUIT/NICK/MODE, PING, and long NAMES replies),
+ * warms up, then reports the time per line for parsing the UTF-8 bytes and reading the parameters the processor reads.
+ * Each round measures the current IrcLine and, as the baseline, the earlier parser that decoded the whole line to a
+ * string and matched it with a regular expression (kept below as RegexIrcLine).
+ * Usage: java io/nayuki/mamirc/processor/IrcLineBenchmark [NumLines]
+ */
+final class IrcLineBenchmark {
+	
+	public static void main(String[] args) {
+		int numLines = args.length >= 1 ? Integer.parseInt(args[0]) : 100000;
+		List<byte[]> corpus = makeCorpus(numLines, new Random(1));
+		
+		for (int round = 0; round < 10; round++) {
+			long start = System.nanoTime();
+			long baseChecksum = 0;
+			for (byte[] line : corpus) {
+				RegexIrcLine msg = new RegexIrcLine(Utils.fromUtf8(line));
+				baseChecksum += msg.command.length();
+				if (msg.parameters.size() > 0)
+					baseChecksum += msg.parameters.get(0).length();
+			}
+			long baseElapsed = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			long checksum = 0;
+			for (byte[] line : corpus) {
+				IrcLine msg = new IrcLine(line);
+				checksum += msg.command.length();
+				if (msg.parameters.size() > 0)
+					checksum += msg.parameters.get(0).length();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (checksum != baseChecksum)
+				throw new AssertionError("Parsers disagree");
+			System.err.printf("Round %d: regex %.1f ns/line, one-pass %.1f ns/line (checksum %d)%n", round,
+				(double)baseElapsed / corpus.size(), (double)elapsed / corpus.size(), checksum);
+		}
+	}
+	
+	
+	static List<byte[]> makeCorpus(int numLines, Random rand) {
+		String[] nicks = new String[200];
+		for (int i = 0; i < nicks.length; i++)
+			nicks[i] = "user" + i + (i % 7 == 0 ? "_\u00E9" : "");
+		String[] words = {"the", "build", "is", "green", "again", "anyone", "seen", "this", "error", "?", "thanks", ":)", "caf\u00E9", "https://example.com/issue/1234"};
+		
+		List<byte[]> result = new ArrayList<>();
+		while (result.size() < numLines) {
+			String nick = nicks[rand.nextInt(nicks.length)];
+			String prefix = ":" + nick + "!~" + nick + "@host-" + rand.nextInt(1000) + ".example.net ";
+			String chan = "#channel" + rand.nextInt(5);
+			int kind = rand.nextInt(100);
+			String line;
+			if (kind < 80) {
+				StringBuilder sb = new StringBuilder(prefix).append("PRIVMSG ").append(chan).append(" :");
+				for (int i = 1 + rand.nextInt(20); i > 0; i--)
+					sb.append(words[rand.nextInt(words.length)]).append(i > 1 ? " " : "");
+				line = sb.toString();
+			} else if (kind < 85)
+				line = prefix + "JOIN " + chan;
+			else if (kind < 89)
+				line = prefix + "PART " + chan + " :Leaving";
+			else if (kind < 92)
+				line = prefix + "QUIT :Ping timeout: 240 seconds";
+			else if (kind < 94)
+				line = prefix + "NICK " + nick + "_";
+			else if (kind < 96)
+				line = prefix + "MODE " + chan + " +ov " + nicks[rand.nextInt(nicks.length)] + " " + nicks[rand.nextInt(nicks.length)];
+			else if (kind < 99)
+				line = "PING :irc.example.net";
+			else {
+				StringBuilder sb = new StringBuilder(":irc.example.net 353 me = ").append(chan).append(" :");
+				for (int i = 0; i < 60; i++)
+					sb.append(i > 0 ? " " : "").append(rand.nextInt(4) == 0 ? "@" : "").append(nicks[rand.nextInt(nicks.length)]);
+				line = sb.toString();
+			}
+			result.add(Utils.toUtf8(line));
+		}
+		return result;
+	}
+	
+	
+	// The string-based parser that IrcLine used before it scanned the UTF-8 bytes, for comparison. It reads the prefix
+	// and command with a regular expression, then cuts off one parameter at a time from the rest of the line.
+	private static final class RegexIrcLine {
+		
+		public final String prefix;            // Can be null
+		public final String command;           // Not null
+		public final List<String> parameters;  // Not null
+		
+		
+		public RegexIrcLine(String line) {
+			Matcher m = PREFIX_COMMAND_REGEX.matcher(line);
+			if (!m.matches())
+				throw new IrcSyntaxException("Syntax error in prefix or command");
+			prefix = m.start(1) != -1 ? line.substring(m.start(1) + 1, m.end(1) - 1) : null;
+			command = m.group(2);
+			
+			String rest = m.group(3);
+			List<String> params = new ArrayList<>();
+			while (rest.length() > 0) {
+				int i = 0;
+				while (i < rest.length() && rest.charAt(i) == ' ')
+					i++;
+				if (i == rest.length())
+					break;
+				else if (rest.charAt(i) == ':') {
+					params.add(rest.substring(i + 1));
+					break;
+				} else {
+					int j = rest.indexOf(' ', i);
+					if (j == -1)
+						j = rest.length();
+					params.add(rest.substring(i, j));
+					rest = rest.substring(j);
+				}
+			}
+			parameters = Collections.unmodifiableList(params);
+		}
+		
+		
+		private static final Pattern PREFIX_COMMAND_REGEX = Pattern.compile("(:[^ ]+ +)?([^ :]*)(.*)", Pattern.DOTALL);
+		
+	}
+	
+	
+	// Not instantiable.
+	private IrcLineBenchmark() {}
+	
+}
@@ -10,8 +10,10 @@ package io.nayuki.mamirc.processor;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import java.util.Arrays;
 import org.junit.Assert;
 import org.junit.Test;
+import io.nayuki.mamirc.common.Utils;
 
 
 public final class IrcLineTest {
@@ -99,6 +101,104 @@ public final class IrcLineTest {
 	}
 	
 	
+	@Test public void testCommandSyntaxErrors() {
+		String[] cases = {
+			"",
+			"   ",
+			"FOO:bar",
+			": PING",
+			":prefix :trailing",
+		};
+		for (String line : cases) {
+			try {
+				new IrcLine(line);
+				Assert.fail();
+			} catch (IrcSyntaxException e) {}  // Pass
+		}
+	}
+	
+	
+	@Test public void testExtraSpaces() {
+		IrcLine l = new IrcLine(":prefix   FOO   a  b   :  c d  ");
+		assertEquals("prefix", l.prefixName);
+		assertEquals("FOO", l.command);
+		assertEquals(Arrays.asList("a", "b", "  c d  "), l.parameters);
+		assertEquals(0, new IrcLine("FOO   ").parameters.size());
+		assertEquals(Arrays.asList(""), new IrcLine("FOO :").parameters);
+	}
+	
+	
+	@Test public void testManyParams() {
+		StringBuilder sb = new StringBuilder("MODE");
+		for (int i = 0; i < 1000; i++)
+			sb.append(" p").append(i);
+		IrcLine l = new IrcLine(sb.toString());
+		assertEquals(1000, l.parameters.size());
+		assertEquals("p999", l.parameters.get(999));
+		assertEquals("p0", l.getParameter(0));
+	}
+	
+	
+	@Test public void testParametersUnmodifiable() {
+		IrcLine l = new IrcLine("FOO a b");
+		try {
+			l.parameters.set(0, "x");
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {}  // Pass
+		try {
+			l.parameters.get(2);
+			Assert.fail();
+		} catch (IndexOutOfBoundsException e) {}  // Pass
+		assertEquals("a", l.parameters.get(0));
+	}
+	
+	
+	// Parsing the UTF-8 bytes must give the same parts as parsing the string.
+	@Test public void testFromBytes() {
+		String line = ":N\u00EFck!~u@h\u00F4st PRIVMSG #caf\u00E9 :\u00BFQu\u00E9 tal? \uD83D\uDE00";
+		IrcLine l = new IrcLine(Utils.toUtf8(line));
+		assertEquals("N\u00EFck", l.prefixName);
+		assertEquals("~u", l.prefixUsername);
+		assertEquals("h\u00F4st", l.prefixHostname);
+		assertEquals("PRIVMSG", l.command);
+		assertEquals(Arrays.asList("#caf\u00E9", "\u00BFQu\u00E9 tal? \uD83D\uDE00"), l.parameters);
+		checkSameParts(line, new int[]{1, 15, 16, 23, 24, 30, 32, 48});
+	}
+	
+	
+	// The constructor from offsets must give the same parts as parsing the string.
+	@Test public void testFromOffsets() {
+		checkSameParts(":Alice!Carol@Bob PRIVMSG #chan :Hello, world", new int[]{1, 16, 17, 24, 25, 30, 32, 44});
+		checkSameParts("JOIN #chan", new int[]{-1, -1, 0, 4, 5, 10});
+		checkSameParts(":server 001 me :Welcome \u00E9", new int[]{1, 7, 8, 11, 12, 14, 16, 26});
+		checkSameParts(":Alice@Bob PING", new int[]{1, 10, 11, 15});
+		
+		int[][] badCases = {
+			{-1, -1, 0},
+			{-1, -1, 5, 4},
+			{-1, -1, 0, 4, 5, 99},
+			{1, -1, 0, 4},
+		};
+		for (int[] bounds : badCases) {
+			try {
+				new IrcLine(Utils.toUtf8("JOIN #chan"), bounds);
+				Assert.fail();
+			} catch (IrcSyntaxException e) {}  // Pass
+		}
+	}
+	
+	
+	private static void checkSameParts(String line, int[] bounds) {
+		IrcLine expect = new IrcLine(line);
+		IrcLine actual = new IrcLine(Utils.toUtf8(line), bounds);
+		assertEquals(expect.prefixName, actual.prefixName);
+		assertEquals(expect.prefixUsername, actual.prefixUsername);
+		assertEquals(expect.prefixHostname, actual.prefixHostname);
+		assertEquals(expect.command, actual.command);
+		assertEquals(expect.parameters, actual.parameters);
+	}
+	
+	
 	@Test public void testParsePrefix1() {
 		IrcLine l = new IrcLine(":Alice PING");
 		assertEquals("Alice", l.prefixName);
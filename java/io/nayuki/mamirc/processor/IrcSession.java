@@ -9,6 +9,8 @@
 package io.nayuki.mamirc.processor;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Queue;
@@ -18,6 +20,7 @@ import java.util.TimerTask;
 import java.util.TreeSet;
 import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
+import io.nayuki.json.Json;
 import io.nayuki.mamirc.common.OutputWriterThread;
 
 
@@ -53,6 +56,10 @@ final class IrcSession {
 	// Not null, size at least 0. The string argument is case-insensitive but case-preserving.
 	private Map<String,ChannelState> currentChannels;
 	
+	// One past the sequence number of the last event of this connection that was processed.
+	// Saved in state snapshots, so that the events after it can be replayed.
+	private int nextEventSequence;
+	
 	/* Outgoing message line throttling */
 	
 	// Must be positive.
@@ -83,11 +90,42 @@ final class IrcSession {
 		currentNickname = null;
 		nickflagDetector = null;
 		currentChannels = new CaseInsensitiveTreeMap<>();
+		nextEventSequence = 0;
 		numBurstLines = maxBurstLines;
 		queuedLines = new ArrayDeque<>();
 	}
 	
 	
+	// Restores a session from the given JSON object, which was made by toJsonObject(). Throttling starts afresh.
+	public IrcSession(UserConfiguration.IrcNetwork profile, Object data) {
+		this(profile);
+		Map<String,Object> map = Json.getMap(data);
+		registrationState = RegState.valueOf(Json.getString(data, "registration-state"));
+		if (map.get("rejected-nicknames") == null)
+			rejectedNicknames = null;
+		else {
+			for (Object name : Json.getList(data, "rejected-nicknames"))
+				rejectedNicknames.add((String)name);
+		}
+		sentNickservPassword = Json.getBoolean(data, "sent-nickserv-password");
+		if (map.get("current-nickname") != null)
+			setNickname(Json.getString(data, "current-nickname"));
+		for (Map.Entry<String,Object> entry : Json.getMap(data, "channels").entrySet()) {
+			Object chanData = entry.getValue();
+			ChannelState chan = new ChannelState();
+			for (Object name : Json.getList(chanData, "members"))
+				chan.members.add((String)name);
+			chan.processingNamesReply = Json.getBoolean(chanData, "processing-names-reply");
+			chan.topic = (String)Json.getMap(chanData).get("topic");
+			currentChannels.put(entry.getKey(), chan);
+		}
+		nextEventSequence = Json.getInt(data, "next-event-sequence");
+		if ((registrationState == RegState.REGISTERED) != (rejectedNicknames == null)
+				|| registrationState == RegState.REGISTERED && currentNickname == null)
+			throw new IllegalArgumentException("Invalid session state");
+	}
+	
+	
 	
 	/*---- Getter methods ----*/
 	
@@ -129,6 +167,35 @@ final class IrcSession {
 	}
 	
 	
+	public int getNextEventSequence() {
+		return nextEventSequence;
+	}
+	
+	
+	// Returns a new JSON object of the session state, without the throttling state. Must be called while
+	// holding the lock that guards this session, but the result can be used without holding it.
+	public Map<String,Object> toJsonObject() {
+		Map<String,Object> result = new HashMap<>();
+		result.put("profile", profile.name);
+		result.put("registration-state", registrationState.name());
+		result.put("rejected-nicknames", rejectedNicknames != null ? new ArrayList<>(rejectedNicknames) : null);
+		result.put("sent-nickserv-password", sentNickservPassword);
+		result.put("current-nickname", currentNickname);
+		Map<String,Object> channels = new HashMap<>();
+		for (Map.Entry<String,ChannelState> entry : currentChannels.entrySet()) {
+			ChannelState chan = entry.getValue();
+			Map<String,Object> outChan = new HashMap<>();
+			outChan.put("members", new ArrayList<>(chan.members));
+			outChan.put("processing-names-reply", chan.processingNamesReply);
+			outChan.put("topic", chan.topic);
+			channels.put(entry.getKey(), outChan);
+		}
+		result.put("channels", channels);
+		result.put("next-event-sequence", nextEventSequence);
+		return result;
+	}
+	
+	
 	/*---- Setter/mutation methods ----*/
 	
 	// New state must be non-null, must advance over the previous state,
@@ -159,6 +226,12 @@ final class IrcSession {
 	}
 	
 	
+	// Called after each event of this connection is processed.
+	public void setNextEventSequence(int seq) {
+		nextEventSequence = seq;
+	}
+	
+	
 	// The state can only change from false to true, and is idempotent thereafter.
 	public void setSentNickservPassword() {
 		sentNickservPassword = true;
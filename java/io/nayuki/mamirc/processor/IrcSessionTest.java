@@ -0,0 +1,84 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Arrays;
+import java.util.TreeSet;
+import io.nayuki.json.Json;
+import io.nayuki.mamirc.processor.IrcSession.RegState;
+import io.nayuki.mamirc.processor.UserConfiguration.IrcNetwork;
+import org.junit.Test;
+
+
+public final class IrcSessionTest {
+	
+	@Test public void testJsonRegistering() {
+		IrcSession s = new IrcSession(PROFILE);
+		s.setRegistrationState(RegState.OPENED);
+		s.setNickname("alice");
+		s.moveNicknameToRejected();
+		s.setNickname("alice_");
+		s.setNextEventSequence(5);
+		
+		IrcSession t = roundTrip(s);
+		assertEquals(RegState.OPENED, t.getRegistrationState());
+		assertTrue(t.isNicknameRejected("alice"));
+		assertFalse(t.isNicknameRejected("alice_"));
+		assertEquals("alice_", t.getCurrentNickname());
+		assertEquals(5, t.getNextEventSequence());
+	}
+	
+	
+	@Test public void testJsonRegistered() {
+		IrcSession s = new IrcSession(PROFILE);
+		s.setRegistrationState(RegState.OPENED);
+		s.setNickname("alice");
+		s.setRegistrationState(RegState.REGISTERED);
+		s.setSentNickservPassword();
+		IrcSession.ChannelState chan = new IrcSession.ChannelState();
+		chan.members.add("alice");
+		chan.members.add("bob");
+		chan.topic = "Hello";
+		s.getCurrentChannels().put("#Test", chan);
+		s.getCurrentChannels().put("#empty", new IrcSession.ChannelState());
+		s.setNextEventSequence(1234);
+		
+		IrcSession t = roundTrip(s);
+		assertEquals(RegState.REGISTERED, t.getRegistrationState());
+		assertEquals("alice", t.getCurrentNickname());
+		assertTrue(t.getNickflagDetector().matcher("hi Alice!").find());
+		assertTrue(t.getSentNickservPassword());
+		assertEquals(2, t.getCurrentChannels().size());
+		IrcSession.ChannelState c = t.getCurrentChannels().get("#test");  // Case-insensitive
+		assertEquals(new TreeSet<>(Arrays.asList("alice", "bob")), c.members);
+		assertEquals("Hello", c.topic);
+		assertNull(t.getCurrentChannels().get("#EMPTY").topic);
+		assertEquals(1234, t.getNextEventSequence());
+		try {
+			t.isNicknameRejected("x");
+			fail();
+		} catch (IllegalStateException e) {}  // Pass
+	}
+	
+	
+	private static IrcSession roundTrip(IrcSession s) {
+		return new IrcSession(PROFILE, Json.parse(Json.serialize(s.toJsonObject())));
+	}
+	
+	
+	private static final IrcNetwork PROFILE = new IrcNetwork("Example", true,
+		Arrays.asList(new IrcNetwork.Server("irc.example.com", 6697, true)), Arrays.asList("alice", "alice_"),
+		"alice", "Alice", null, new TreeSet<String>());
+	
+}
@@ -9,9 +9,16 @@
 package io.nayuki.mamirc.processor;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -21,24 +28,38 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import com.almworks.sqlite4java.SQLiteException;
+import io.nayuki.json.Json;
 import io.nayuki.mamirc.common.CleanLine;
 import io.nayuki.mamirc.common.BackendConfiguration;
 import io.nayuki.mamirc.common.Event;
 import io.nayuki.mamirc.common.OutputWriterThread;
+import io.nayuki.mamirc.common.Utils;
 import io.nayuki.mamirc.processor.IrcSession.RegState;
 import io.nayuki.mamirc.processor.UserConfiguration.IrcNetwork;
 
 
 /* 
  * The MamIRC processor main program class. The main thread creates a new MamircProcessor object, launches a handful
- * of worker threads, and returns. Thereafter, the MamircProcessor object holds the global state of the application,
- * always accessed from any one of the worker threads while the thread holds the lock.
+ * of worker threads, and returns. Thereafter, the MamircProcessor object holds the global state of the application.
+ * 
+ * The state is partitioned by network profile name. The IRC sessions, windows, and reconnection state of a profile
+ * are only accessed while holding that profile's lock and the read side of the global lock, so that a flood of
+ * events on one network doesn't delay the others. The rare operations that span all profiles (the full state for
+ * the web UI, changing the profiles, finishing catch-up, terminating) hold the write side of the global lock
+ * instead. Updates for web clients go to an UpdateLog, which the partitions append to without a common lock.
  */
 public final class MamircProcessor {
 	
@@ -61,24 +82,30 @@ public final class MamircProcessor {
 	
 	// Current workers
 	private ConnectorReaderThread reader;
+	private ConnectorShards shards;  // Null unless attached to several connectors
 	private OutputWriterThread writer;
 	private MessageHttpServer server;
 	private Timer timer;
 	
-	// Mutable current state
+	// Mutable current state; each entry belongs to the partition of its profile
 	private final Map<Integer,IrcSession> ircSessions;
 	private AllWindows windows;
-	private List<String> initialWindow;  // Either null or {String profile, String party}
-	private final List<Object[]> recentUpdates;  // Payload is {int id, List<Object> update}
-	private int nextUpdateId;
+	private volatile List<String> initialWindow;  // Either null or {String profile, String party}
+	private final UpdateLog updates;
 	private final Map<IrcNetwork,int[]> connectionAttemptState;  // Payload is {next server index, delay in milliseconds}
-	private boolean isTerminating;
-	private UserConfiguration userConfiguration;
+	private volatile boolean isTerminating;
+	private UserConfiguration userConfiguration;  // Replaced only while holding the global write lock
 	private final File userConfigurationFile;
+	private final List<HistoryReader> historyReaders;  // One per connector database; thread-safe, so usable without holding the lock
+	
+	// State snapshots
+	private final File snapshotFile;  // Null if snapshots are disabled
+	private Map<Integer,Integer> snapshotSequences;  // Unmodifiable; connection ID to next sequence, for restored sessions
+	private Timer snapshotTimer;  // Null until catch-up is finished
 	
 	// Concurrency
-	private final Lock lock;
-	private final Condition condNewUpdates;
+	private final ReadWriteLock globalLock;
+	private final ConcurrentMap<String,Lock> profileLocks;  // Keyed by profile name, created on demand
 	private final Condition condTerminate;
 	
 	
@@ -90,24 +117,40 @@ public final class MamircProcessor {
 			throw new NullPointerException();
 		
 		userConfigurationFile = userConfigFile;
+		historyReaders = new ArrayList<>();
+		if (backendConfig.processorConnectorShards.isEmpty())
+			historyReaders.add(new HistoryReader(backendConfig.connectorDatabaseFile));
 		userConfiguration = new UserConfiguration(userConfigFile);
-		ircSessions = new HashMap<>();
+		ircSessions = new ConcurrentHashMap<>();
 		windows = new AllWindows(this);
 		initialWindow = null;
-		recentUpdates = new ArrayList<>();
-		nextUpdateId = 0;
-		connectionAttemptState = new HashMap<>();
+		snapshotFile = backendConfig.processorConnectorShards.isEmpty() ? backendConfig.processorSnapshotFile : null;
+		snapshotTimer = null;
+		updates = new UpdateLog(10000);  // A new epoch, even if the state is restored from a snapshot
+		restoreSnapshot();
+		connectionAttemptState = new ConcurrentHashMap<>();
 		isTerminating = false;
-		lock = new ReentrantLock();
-		condNewUpdates = lock.newCondition();
-		condTerminate = lock.newCondition();
+		globalLock = new ReentrantReadWriteLock();
+		profileLocks = new ConcurrentHashMap<>();
+		condTerminate = globalLock.writeLock().newCondition();
 		
-		lock.lock();
+		globalLock.writeLock().lock();
 		try {  // Do these things in mutex so another thread cannot call terminate() before initialization is complete
 			// Initialize connection to Connector
 			writer = null;
-			reader = new ConnectorReaderThread(this, backendConfig);
-			reader.start();
+			if (backendConfig.processorConnectorShards.isEmpty()) {
+				reader = new ConnectorReaderThread(this, backendConfig);
+				reader.start();
+			} else {
+				List<BackendConfiguration> shardConfigs = new ArrayList<>();
+				for (File file : backendConfig.processorConnectorShards) {
+					BackendConfiguration config = new BackendConfiguration(file);
+					shardConfigs.add(config);
+					historyReaders.add(new HistoryReader(config.connectorDatabaseFile));
+				}
+				shards = new ConnectorShards(this, shardConfigs);
+				shards.start();
+			}
 			// Initialize HTTP server
 			server = new MessageHttpServer(this, backendConfig.webServerPort, backendConfig.webUiPassword);
 			// Initialize asynchronous event executor
@@ -117,21 +160,22 @@ public final class MamircProcessor {
 			terminate();
 			return;
 		} finally {
-			lock.unlock();
+			globalLock.writeLock().unlock();
 		}
 		
 		// Refresh all channel names on all connections once a day
 		timer.schedule(new TimerTask() {
 			public void run() {
-				lock.lock();
-				try {
-					for (Map.Entry<Integer,IrcSession> entry : ircSessions.entrySet()) {
-						int conId = entry.getKey();
-						for (String chan : entry.getValue().getCurrentChannels().keySet())
+				for (Map.Entry<Integer,IrcSession> entry : ircSessions.entrySet()) {
+					int conId = entry.getKey();
+					IrcSession state = entry.getValue();
+					Lock lock = lockProfile(state.profile.name);
+					try {
+						for (String chan : state.getCurrentChannels().keySet())
 							sendIrcLine(conId, "NAMES", chan);
+					} finally {
+						unlockProfile(lock);
 					}
-				} finally {
-					lock.unlock();
 				}
 			}
 		}, 86400000, 86400000);
@@ -139,22 +183,62 @@ public final class MamircProcessor {
 	
 	
 	
+	/*---- Locking ----*/
+	
+	// Acquires the read side of the global lock and then the lock of the given profile's partition, and returns
+	// the latter. The caller must pass it to unlockProfile() afterward. A thread must not hold two profile locks.
+	private Lock lockProfile(String profile) {
+		globalLock.readLock().lock();
+		Lock result = profileLocks.get(profile);
+		if (result == null) {
+			profileLocks.putIfAbsent(profile, new ReentrantLock());
+			result = profileLocks.get(profile);
+		}
+		result.lock();
+		return result;
+	}
+	
+	
+	private void unlockProfile(Lock lock) {
+		lock.unlock();
+		globalLock.readLock().unlock();
+	}
+	
+	
+	
 	/*---- Methods for manipulating global state ----*/
 	
 	public void processEvent(Event ev, boolean realtime) {
+		processEvent(ev, null, realtime);
+	}
+	
+	
+	// The given IrcLine is the already parsed line of the event, or null to parse it here.
+	void processEvent(Event ev, IrcLine msg, boolean realtime) {
 		if (ev == null)
 			throw new NullPointerException();
-		lock.lock();
+		
+		// Find the partition; events of one connection arrive in order from one thread, so the session can't change here
+		String profile;
+		IrcSession session = ircSessions.get(ev.connectionId);
+		if (session != null)
+			profile = session.profile.name;
+		else if (ev.type == Event.Type.CONNECTION && ev.line.getString().startsWith("connect "))
+			profile = ev.line.getString().split(" ", 5)[4];
+		else
+			return;  // Event of a connection that is unknown or already closed
+		
+		Lock lock = lockProfile(profile);
 		try {
 			switch (ev.type) {
 				case CONNECTION:
 					processConnection(ev, realtime);
 					break;
 				case RECEIVE:
-					processReceive(ev, realtime);
+					processReceive(ev, msg != null ? msg : new IrcLine(ev.line.getDataNoCopy()), realtime);
 					break;
 				case SEND:
-					processSend(ev, realtime);
+					processSend(ev, msg != null ? msg : new IrcLine(ev.line.getDataNoCopy()), realtime);
 					break;
 				default:
 					throw new AssertionError();
@@ -162,7 +246,10 @@ public final class MamircProcessor {
 		} catch (IrcSyntaxException e) {
 			e.printStackTrace();
 		} finally {
-			lock.unlock();
+			IrcSession state = ircSessions.get(ev.connectionId);
+			if (state != null)
+				state.setNextEventSequence(ev.sequence + 1);
+			unlockProfile(lock);
 		}
 	}
 	
@@ -185,7 +272,7 @@ public final class MamircProcessor {
 			state.setRegistrationState(RegState.OPENED);
 			if (realtime)
 				sendIrcLine(conId, "NICK", state.profile.nicknames.get(0));
-			addUpdate("CONNECTED", state.profile.name);
+			updates.add("CONNECTED", state.profile.name);
 			windows.addConnectedLine(state.profile.name, ev.timestamp, line.split(" ", 2)[1]);
 			
 		} else if (line.equals("disconnect")) {
@@ -198,19 +285,25 @@ public final class MamircProcessor {
 				windows.addDisconnectedLine(state.profile.name, "", ev.timestamp);
 				ircSessions.remove(conId);
 				IrcNetwork profile = userConfiguration.ircNetworks.get(state.profile.name);
-				if (profile != null && profile.connect)
+				if (realtime && profile != null && profile.connect)  // When catching up, finishCatchup() reconnects instead
 					tryConnect(profile);
 			}
 		}
 	}
 	
 	
+	// The non-numeric commands that processReceive() and processSend() act on; all other lines (besides numeric replies
+	// received) are ignored. ConnectorReaderThread uses these to skip other lines in SQL when catching up on past events.
+	// These must be kept in sync with the switch statements.
+	static final String[] HANDLED_RECEIVE_COMMANDS = {"NICK", "JOIN", "NOTICE", "PART", "KICK", "MODE", "PRIVMSG", "QUIT", "TOPIC"};
+	static final String[] HANDLED_SEND_COMMANDS = {"NICK", "USER", "NOTICE", "PRIVMSG"};
+	
+	
 	// Must only be called by processEvent().
-	private void processReceive(Event ev, boolean realtime) {
+	private void processReceive(Event ev, IrcLine msg, boolean realtime) {
 		int conId = ev.connectionId;
 		IrcSession state = ircSessions.get(conId);  // Not null
 		IrcNetwork profile = state.profile;
-		IrcLine msg = new IrcLine(ev.line.getString());
 		Map<String,IrcSession.ChannelState> curchans = state.getCurrentChannels();
 		switch (msg.command.toUpperCase()) {
 			
@@ -219,7 +312,7 @@ public final class MamircProcessor {
 				String toname = msg.getParameter(0);
 				if (fromname.equals(state.getCurrentNickname())) {
 					state.setNickname(toname);
-					addUpdate("MYNICK", state.profile.name, toname);
+					updates.add("MYNICK", state.profile.name, toname);
 				}
 				for (Map.Entry<String,IrcSession.ChannelState> entry : curchans.entrySet()) {
 					Set<String> members = entry.getValue().members;
@@ -236,7 +329,7 @@ public final class MamircProcessor {
 				String chan = msg.getParameter(0);
 				if (who.equals(state.getCurrentNickname()) && !curchans.containsKey(chan)) {
 					curchans.put(chan, new IrcSession.ChannelState());
-					addUpdate("JOINED", state.profile.name, chan);
+					updates.add("JOINED", state.profile.name, chan);
 				}
 				if (curchans.containsKey(chan) && curchans.get(chan).members.add(who))
 					windows.addJoinLine(profile.name, msg.getParameter(0), ev.timestamp, who);
@@ -259,7 +352,7 @@ public final class MamircProcessor {
 					windows.addPartLine(profile.name, chan, ev.timestamp, who);
 				if (who.equals(state.getCurrentNickname())) {
 					curchans.remove(chan);
-					addUpdate("PARTED", state.profile.name, chan);
+					updates.add("PARTED", state.profile.name, chan);
 				}
 				break;
 			}
@@ -279,7 +372,7 @@ public final class MamircProcessor {
 					}
 					if (mekicked) {  // Save this part for last
 						windows.addKickLine(profile.name, chan, ev.timestamp, state.getCurrentNickname(), msg.prefixName, reason);
-						addUpdate("KICKED", state.profile.name, chan, msg.prefixName, reason);
+						updates.add("KICKED", state.profile.name, chan, msg.prefixName, reason);
 						curchans.remove(chan);
 					}
 				}
@@ -321,7 +414,7 @@ public final class MamircProcessor {
 							windows.addQuitLine(profile.name, entry.getKey(), ev.timestamp, who, msg.getParameter(0));
 					}
 				} else {
-					addUpdate("QUITTED", state.profile.name);
+					updates.add("QUITTED", state.profile.name);
 				}
 				break;
 			}
@@ -374,7 +467,7 @@ public final class MamircProcessor {
 							sendIrcLine(conId, "PRIVMSG", "NickServ", "IDENTIFY " + profile.nickservPassword);
 						joinChannelsByProfile(conId);
 					}
-					addUpdate("MYNICK", profile.name, state.getCurrentNickname());
+					updates.add("MYNICK", profile.name, state.getCurrentNickname());
 					connectionAttemptState.remove(state.profile);
 				}
 				break;
@@ -462,11 +555,10 @@ public final class MamircProcessor {
 	
 	
 	// Must only be called by processEvent().
-	private void processSend(Event ev, boolean realtime) {
+	private void processSend(Event ev, IrcLine msg, boolean realtime) {
 		int conId = ev.connectionId;
 		IrcSession state = ircSessions.get(conId);  // Not null
 		IrcNetwork profile = state.profile;
-		IrcLine msg = new IrcLine(ev.line.getString());
 		switch (msg.command.toUpperCase()) {
 			
 			case "NICK": {
@@ -511,9 +603,9 @@ public final class MamircProcessor {
 	}
 	
 	
-	// Must only be called from ConnectorReaderThread, and only called once.
+	// Must only be called from ConnectorReaderThread or ConnectorShards, and only called once.
 	public void finishCatchup() {
-		lock.lock();
+		globalLock.writeLock().lock();
 		try {
 			Set<IrcNetwork> activeProfiles = new HashSet<>();
 			for (int conId : ircSessions.keySet()) {
@@ -565,14 +657,30 @@ public final class MamircProcessor {
 				if (net.connect && !activeProfiles.contains(net))
 					tryConnect(net);
 			}
+			
+			// Save the state periodically, now that it is complete
+			if (snapshotFile != null && !isTerminating) {
+				snapshotTimer = new Timer("MamircProcessor.snapshot");
+				snapshotTimer.schedule(new TimerTask() {
+					public void run() {
+						try {
+							saveSnapshot();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL);
+			}
 		} finally {
-			lock.unlock();
+			globalLock.writeLock().unlock();
 		}
 	}
 	
 	
-	// Must be called from one of the locking methods above.
+	// Must be called while holding the lock of the profile's partition or the global write lock.
 	private void tryConnect(final IrcNetwork net) {
+		if (isTerminating)
+			return;  // The timer is cancelled, e.g. a connector shard reported its connections closed during termination
 		int delay;
 		if (!connectionAttemptState.containsKey(net)) {
 			connectionAttemptState.put(net, new int[]{0, 1000});
@@ -582,7 +690,7 @@ public final class MamircProcessor {
 		
 		timer.schedule(new TimerTask() {
 			public void run() {
-				lock.lock();
+				Lock lock = lockProfile(net.name);
 				try {
 					if (isTerminating)
 						return;
@@ -605,14 +713,14 @@ public final class MamircProcessor {
 							attemptState[1] *= 2;
 					}
 				} finally {
-					lock.unlock();
+					unlockProfile(lock);
 				}
 			}
 		}, delay);
 	}
 	
 	
-	// Must be called from one of the locking methods.
+	// Thread-safe, because the writer is.
 	private void sendIrcLine(int conId, String cmd, String... params) {
 		StringBuilder sb = new StringBuilder("send ").append(conId).append(' ').append(cmd);
 		for (int i = 0; i < params.length; i++) {
@@ -625,7 +733,7 @@ public final class MamircProcessor {
 	}
 	
 	
-	// Must be called from one of the locking methods.
+	// Must be called while holding the lock of the connection's partition or the global write lock.
 	private void joinChannelsByProfile(int conId) {
 		IrcSession state = ircSessions.get(conId);
 		IrcNetwork profile = state.profile;
@@ -638,7 +746,7 @@ public final class MamircProcessor {
 	}
 	
 	
-	// Must be called from one of the locking methods.
+	// Thread-safe, because the writer and the session map are.
 	private void sendDisconnect(final int conId, boolean sendQuit) {
 		if (!sendQuit)
 			writer.postWrite("disconnect " + conId);
@@ -648,71 +756,52 @@ public final class MamircProcessor {
 			sendIrcLine(conId, "QUIT", "MamIRC, the headless IRC client");
 			timer.schedule(new TimerTask() {
 				public void run() {
-					lock.lock();
-					try {
-						if (ircSessions.containsKey(conId))
-							sendDisconnect(conId, false);
-					} finally {
-						lock.unlock();
-					}
+					if (ircSessions.containsKey(conId))
+						sendDisconnect(conId, false);
 				}
 			}, 1000);
 		}
 	}
 	
 	
-	// Must only be called from ConnectorReaderThread, and only called once.
+	// Must only be called from ConnectorReaderThread or ConnectorShards, and only called once.
 	public void attachConnectorWriter(OutputWriterThread writer) {
-		lock.lock();
+		globalLock.writeLock().lock();
 		try {
 			if (this.writer != null)
 				throw new IllegalStateException();
 			this.writer = writer;
 		} finally {
-			lock.unlock();
+			globalLock.writeLock().unlock();
 		}
 	}
 	
 	
 	public void terminate() {
-		lock.lock();
+		globalLock.writeLock().lock();
 		try {
 			if (reader != null)
 				reader.terminate();
+			if (shards != null)
+				shards.terminate();
 			if (server != null)
 				server.terminate();
 			if (timer != null)
 				timer.cancel();
+			if (snapshotTimer != null)
+				snapshotTimer.cancel();  // A snapshot being written is finished
 			isTerminating = true;
 			condTerminate.signalAll();
-			condNewUpdates.signalAll();
+			updates.wakeWaiters();
 		} catch (IOException e) {
 			e.printStackTrace();
 		} finally {
-			lock.unlock();
+			globalLock.writeLock().unlock();
 		}
 	}
 	
 	
-	// Must be called from one of the locking methods.
-	private void addUpdate(Object... update) {
-		if (update == null)
-			throw new NullPointerException();
-		
-		// Store the update
-		recentUpdates.add(new Object[]{nextUpdateId, Arrays.asList(update)});
-		nextUpdateId++;
-		
-		// Clean up the list if it gets too big
-		if (recentUpdates.size() > 10000)
-			recentUpdates.subList(0, recentUpdates.size() / 2).clear();
-		
-		// Unblock any currently waiting server threads
-		condNewUpdates.signalAll();
-	}
-	
-	
-	// Must be called in a locked context, and only be called by AllWindows.
+	// Must be called while holding the lock of the profile's partition, and only be called by AllWindows.
 	public void addWindowUpdate(String profile, String party, int sequence, int flags, long timestamp, Object... payload) {
 		Object[] temp = new Object[6 + payload.length];
 		temp[0] = "APPEND";
@@ -722,7 +811,143 @@ public final class MamircProcessor {
 		temp[4] = flags;
 		temp[5] = timestamp;
 		System.arraycopy(payload, 0, temp, 6, payload.length);
-		addUpdate(temp);
+		updates.add(temp);
+	}
+	
+	
+	
+	/*---- State snapshots ----*/
+	
+	// In milliseconds.
+	private static final int SNAPSHOT_INTERVAL = 300000;
+	
+	private static final String SNAPSHOT_DATA_TYPE = "mamirc-processor-snapshot";
+	
+	
+	// Returns the next sequence number of each connection restored from the snapshot. The events before it are already
+	// reflected in the state. Must only be called from ConnectorReaderThread.
+	public Map<Integer,Integer> getSnapshotSequences() {
+		return snapshotSequences;
+	}
+	
+	
+	// Removes sessions whose connections are no longer active, which can only be sessions restored from a snapshot
+	// whose closing events are missing. Must only be called from ConnectorReaderThread, just before finishCatchup().
+	public void removeInactiveSessions(Collection<Integer> activeConIds) {
+		globalLock.writeLock().lock();
+		try {
+			long now = System.currentTimeMillis();
+			for (int conId : new ArrayList<>(ircSessions.keySet())) {
+				if (activeConIds.contains(conId))
+					continue;
+				IrcSession state = ircSessions.remove(conId);
+				for (String chan : state.getCurrentChannels().keySet())
+					windows.addDisconnectedLine(state.profile.name, chan, now);
+				windows.addDisconnectedLine(state.profile.name, "", now);
+			}
+		} finally {
+			globalLock.writeLock().unlock();
+		}
+	}
+	
+	
+	// Loads the sessions, windows, and initial window from the snapshot file if there is one.
+	// If the file can't be read, the state is left empty. Only called by the constructor.
+	private void restoreSnapshot() {
+		snapshotSequences = Collections.emptyMap();
+		if (snapshotFile == null || !snapshotFile.isFile())
+			return;
+		try {
+			Object data;
+			InputStream in = new InflaterInputStream(new FileInputStream(snapshotFile));
+			try {
+				data = Json.parse(Utils.fromUtf8(in.readAllBytes()));
+			} finally {
+				in.close();
+			}
+			if (!Json.getString(data, "data-type").equals(SNAPSHOT_DATA_TYPE))
+				throw new IllegalArgumentException("Invalid snapshot file type");
+			
+			// Read everything before changing any state, in case the data is invalid
+			Map<Integer,IrcSession> sessions = new HashMap<>();
+			for (Object item : Json.getList(data, "connections")) {
+				IrcNetwork profile = userConfiguration.ircNetworks.get(Json.getString(item, "profile"));
+				if (profile != null)  // Otherwise the connection is caught up from its start, like without a snapshot
+					sessions.put(Json.getInt(item, "connection-id"), new IrcSession(profile, item));
+			}
+			Map<String,Map<String,Window>> wins = new HashMap<>();
+			for (Object item : Json.getList(data, "windows")) {
+				String profile = Json.getString(item, 0);
+				if (!wins.containsKey(profile))
+					wins.put(profile, new CaseInsensitiveTreeMap<Window>());
+				wins.get(profile).put(Json.getString(item, 1), new Window(Json.getObject(item, 2)));
+			}
+			Map<Integer,Integer> sequences = new HashMap<>();
+			for (Map.Entry<Integer,IrcSession> entry : sessions.entrySet())
+				sequences.put(entry.getKey(), entry.getValue().getNextEventSequence());
+			ircSessions.putAll(sessions);
+			windows.windows.putAll(wins);
+			if (Json.getMap(data).get("initial-window") != null)
+				initialWindow = Arrays.asList(Json.getString(data, "initial-window", 0), Json.getString(data, "initial-window", 1));
+			snapshotSequences = Collections.unmodifiableMap(sequences);
+			System.err.println("Restored snapshot with " + sessions.size() + " connections and " + wins.size() + " profiles of windows");
+			return;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		System.err.println("Ignoring unreadable snapshot file " + snapshotFile);
+	}
+	
+	
+	// Writes the current state to the snapshot file. Runs on the snapshot timer thread. Each profile's lock is held in
+	// turn, only to copy that profile's sessions and its windows' lists of (immutable) lines; converting to JSON,
+	// compressing, and writing are done without holding any processor lock, so event processing continues meanwhile.
+	void saveSnapshot() throws IOException {
+		List<Object> outConnections = new ArrayList<>();
+		List<Object[]> windowCopies = new ArrayList<>();  // Each is {String profile, String party, Window copy}
+		Set<String> profiles = new TreeSet<>(windows.windows.keySet());
+		for (IrcSession state : ircSessions.values())
+			profiles.add(state.profile.name);
+		for (String profile : profiles) {
+			Lock lock = lockProfile(profile);
+			try {
+				for (Map.Entry<Integer,IrcSession> entry : ircSessions.entrySet()) {
+					if (entry.getValue().profile.name.equals(profile)) {
+						Map<String,Object> outCon = entry.getValue().toJsonObject();
+						outCon.put("connection-id", entry.getKey());
+						outConnections.add(outCon);
+					}
+				}
+				Map<String,Window> profileWindows = windows.windows.get(profile);
+				if (profileWindows != null) {
+					for (Map.Entry<String,Window> entry : profileWindows.entrySet())
+						windowCopies.add(new Object[]{profile, entry.getKey(), entry.getValue().copy()});
+				}
+			} finally {
+				unlockProfile(lock);
+			}
+		}
+		
+		List<Object> outWindows = new ArrayList<>();
+		for (Object[] item : windowCopies)
+			outWindows.add(Arrays.asList(item[0], item[1], ((Window)item[2]).toJsonObject()));
+		Map<String,Object> data = new HashMap<>();
+		data.put("data-type", SNAPSHOT_DATA_TYPE);
+		data.put("initial-window", initialWindow);
+		data.put("connections", outConnections);
+		data.put("windows", outWindows);
+		
+		// Write to a temporary file and then replace the old snapshot, so that a crash leaves a whole snapshot
+		File temp = new File(snapshotFile.getPath() + ".tmp");
+		OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp));
+		try {
+			out.write(Utils.toUtf8(Json.serialize(data)));
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 	}
 	
 	
@@ -731,8 +956,9 @@ public final class MamircProcessor {
 	
 	// The methods below should only be called from MessageHttpServer.
 	
+	// Holds the global write lock, so that the state and the update ID are consistent across all profiles.
 	public Map<String,Object> getState(int maxMsgPerWin) {
-		lock.lock();
+		globalLock.writeLock().lock();
 		try {
 			Map<String,Object> result = new HashMap<>();
 			
@@ -790,7 +1016,8 @@ public final class MamircProcessor {
 			result.put("windows", outWindows);
 			
 			// Miscellaneous
-			result.put("nextUpdateId", nextUpdateId);
+			result.put("updateEpoch", updates.getEpoch());
+			result.put("nextUpdateId", updates.getNextId());
 			Map<String,Integer> flagConst = new HashMap<>();
 			for (Window.Flags flag : Window.Flags.values())
 				flagConst.put(flag.name(), flag.value);
@@ -799,51 +1026,83 @@ public final class MamircProcessor {
 			result.put("userConfiguration", userConfiguration.toJsonObject());
 			return result;
 		} finally {
-			lock.unlock();
+			globalLock.writeLock().unlock();
 		}
 	}
 	
 	
-	// Returns a JSON object containing updates with id >= startId (the list might be empty),
-	// or null to indicate that the request is invalid and the client must request the full state.
-	@SuppressWarnings("unchecked")
-	public Map<String,Object> getUpdates(int startId, int maxWait) {
-		if (maxWait < 0)
+	// Returns a JSON object with up to 'before' lines of the given window strictly before the given time (in milliseconds)
+	// and up to 'after' lines at or after it. The lines come from memory if the window still holds lines that old,
+	// otherwise they are read from the database; in that case the sequence numbers are null. If memory holds fewer
+	// than 'before' lines before the time, the older ones are read from the database to make up the difference.
+	public Map<String,Object> getHistory(String profile, String party, long time, int before, int after) throws SQLiteException {
+		if (profile == null || party == null)
+			throw new NullPointerException();
+		if (before < 0 || after < 0)
 			throw new IllegalArgumentException();
-		lock.lock();
+		Map<String,Object> result = new HashMap<>();
+		List<List<Object>> outLines = new ArrayList<>();
+		int missing;
+		long firstTime = 0;  // Of the oldest line in memory, in milliseconds
+		Lock lock = lockProfile(profile);
 		try {
-			if (startId < 0 || startId > nextUpdateId)
-				return null;
-			
-			int i = recentUpdates.size();
-			while (i >= 1 && (Integer)recentUpdates.get(i - 1)[0] >= startId)
-				i--;
-			
-			if (i == recentUpdates.size() && maxWait > 0) {  // Result currently empty, wait for more
-				try {
-					condNewUpdates.await(maxWait, TimeUnit.MILLISECONDS);
-				} catch (InterruptedException e) {}
-				return getUpdates(startId, 0);
-			} else if (nextUpdateId == 0 || i > 0) {  // Valid result to return, possibly empty
-				Map<String,Object> result = new HashMap<>();
-				List<List<Object>> updates = new ArrayList<>();
-				while (i < recentUpdates.size()) {
-					updates.add((List<Object>)recentUpdates.get(i)[1]);
-					i++;
+			long seconds = AllWindows.divideAndFloor(time, 1000);
+			Map<String,Window> profileWindows = windows.windows.get(profile);
+			Window win = profileWindows != null ? profileWindows.get(party) : null;
+			if (win == null || win.lines.isEmpty() || win.lines.get(0).timestamp > seconds)
+				missing = -1;
+			else {
+				// The window in memory is current, so it holds every line after the time
+				int index = win.indexOfTimestamp(seconds);
+				for (Window.Line line : win.lines.subList(Math.max(index - before, 0), Math.min(index + after, win.lines.size()))) {
+					List<Object> lst = new ArrayList<>();
+					lst.add(line.sequence);
+					lst.add(line.flags);
+					lst.add(line.timestamp);  // Absolute, not delta encoded
+					Collections.addAll(lst, line.payload);
+					outLines.add(lst);
 				}
-				result.put("updates", updates);
-				result.put("nextUpdateId", nextUpdateId);
-				return result;
-			} else  // No overlap
-				return null;  // Tell the client to resynchronize
+				missing = Math.max(before - index, 0);
+				firstTime = win.lines.get(0).timestamp * 1000;
+			}
 		} finally {
-			lock.unlock();
+			unlockProfile(lock);
 		}
+		
+		// Read the database without holding the lock, because it can take a while
+		if (missing == -1) {
+			HistoryReader.Result lines = HistoryReader.readLines(historyReaders, profile, party, time, before, after);
+			result.put("lines", lines.lines);
+			result.put("source", "database");
+			result.put("truncated", lines.truncated);
+		} else if (missing > 0) {
+			// Memory lines have whole-second timestamps, so older lines within the first line's second can't be told apart
+			// from it and are skipped rather than duplicated
+			HistoryReader.Result lines = HistoryReader.readLines(historyReaders, profile, party, firstTime, missing, 0);
+			List<List<Object>> merged = new ArrayList<>(lines.lines);
+			merged.addAll(outLines);
+			result.put("lines", merged);
+			result.put("source", lines.lines.isEmpty() ? "memory" : "mixed");
+			result.put("truncated", lines.truncated);
+		} else {
+			result.put("lines", outLines);
+			result.put("source", "memory");
+			result.put("truncated", false);
+		}
+		return result;
+	}
+	
+	
+	// Returns a JSON object containing updates with id >= startId (the list might be empty),
+	// or null to indicate that the request is invalid and the client must request the full state.
+	// Doesn't take any processor lock, so a busy profile doesn't delay long-polling clients.
+	public Map<String,Object> getUpdates(int epoch, int startId, int maxWait) {
+		return updates.getUpdates(epoch, startId, maxWait);
 	}
 	
 	
 	public Map<String,Object> getProfiles() {
-		lock.lock();
+		globalLock.readLock().lock();
 		try {
 			Map<String,Object> result = new HashMap<>();
 			for (Entry<String,IrcNetwork> entry : userConfiguration.ircNetworks.entrySet()) {
@@ -868,13 +1127,13 @@ public final class MamircProcessor {
 			}
 			return result;
 		} finally {
-			lock.unlock();
+			globalLock.readLock().unlock();
 		}
 	}
 	
 	
 	public void setProfiles(Map<String,IrcNetwork> newProfiles) throws IOException {
-		lock.lock();
+		globalLock.writeLock().lock();
 		try {
 			userConfiguration.ircNetworks = newProfiles;
 			userConfiguration.writeToFile(userConfigurationFile);
@@ -904,13 +1163,15 @@ public final class MamircProcessor {
 					tryConnect(profile);
 			}
 		} finally {
-			lock.unlock();
+			globalLock.writeLock().unlock();
 		}
 	}
 	
 	
-	public boolean sendLine(String profile, String line) {
-		lock.lock();
+	// Sends the given line on the profile's connection. Bulk lines (e.g. the lines of a paste) are queued
+	// by the connector behind other messages. Returns false if the profile has no connection.
+	public boolean sendLine(String profile, String line, boolean bulk) {
+		Lock lock = lockProfile(profile);
 		try {
 			IrcSession session = null;
 			int conId = -1;
@@ -923,75 +1184,70 @@ public final class MamircProcessor {
 			}
 			if (session == null)
 				return false;
-			session.handleThrottledSendLine("send " + conId + " " + line, timer, lock, writer);
+			session.handleThrottledSendLine((bulk ? "send-bulk " : "send ") + conId + " " + line, timer, lock, writer);
 			return true;
 		} finally {
-			lock.unlock();
+			unlockProfile(lock);
 		}
 	}
 	
 	
 	public void markRead(String profile, String party, int sequence) {
-		lock.lock();
+		Lock lock = lockProfile(profile);
 		try {
 			windows.windows.get(profile).get(party).markedReadUntil = sequence;
-			addUpdate("MARKREAD", profile, party, sequence);
+			updates.add("MARKREAD", profile, party, sequence);
 		} finally {
-			lock.unlock();
+			unlockProfile(lock);
 		}
 	}
 	
 	
 	public void clearLines(String profile, String party, int sequence) {
-		lock.lock();
+		Lock lock = lockProfile(profile);
 		try {
 			windows.getWindow(profile, party).clearUntil(sequence);
-			addUpdate("CLEARLINES", profile, party, sequence);
+			updates.add("CLEARLINES", profile, party, sequence);
 		} finally {
-			lock.unlock();
+			unlockProfile(lock);
 		}
 	}
 	
 	
 	public void openWindow(String profile, String party) {
-		lock.lock();
+		Lock lock = lockProfile(profile);
 		try {
 			if (windows.openWindow(profile, party))
-				addUpdate("OPENWIN", profile, party);
+				updates.add("OPENWIN", profile, party);
 		} finally {
-			lock.unlock();
+			unlockProfile(lock);
 		}
 	}
 	
 	
 	public void closeWindow(String profile, String party) {
-		lock.lock();
+		Lock lock = lockProfile(profile);
 		try {
 			if (windows.closeWindow(profile, party))
-				addUpdate("CLOSEWIN", profile, party);
+				updates.add("CLOSEWIN", profile, party);
 		} finally {
-			lock.unlock();
+			unlockProfile(lock);
 		}
 	}
 	
 	
 	public void setInitialWindow(String profile, String party) {
-		lock.lock();
-		try {
-			initialWindow = Arrays.asList(profile, party);
-		} finally {
-			lock.unlock();
-		}
+		initialWindow = Arrays.asList(profile, party);
+	}
+	
+	
+	public int getUpdateEpoch() {
+		return updates.getEpoch();
 	}
 	
 	
 	public int getNextUpdateId() {
-		lock.lock();
-		try {
-			return nextUpdateId;
-		} finally {
-			lock.unlock();
-		}
+		return updates.getNextId();
 	}
 	
 }
@@ -0,0 +1,591 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import io.nayuki.mamirc.common.BackendConfiguration;
+import io.nayuki.mamirc.common.CleanLine;
+import io.nayuki.mamirc.common.Event;
+import io.nayuki.mamirc.common.Utils;
+
+
+public final class MamircProcessorTest {
+	
+	/*---- Snapshots ----*/
+	
+	// A processor that restores a snapshot and catches up on the later events must end up in the same state as the
+	// processor that took the snapshot and then processed those events itself. Between the snapshot and the restart,
+	// one connection continues, one is closed, one ends without a "closed" event (as if the Connector had crashed),
+	// and one is opened.
+	@Test public void testSnapshotRestore() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-processor").toFile();
+		MamircProcessor original = null;
+		MamircProcessor restored = null;
+		FakeConnector conn1 = null;
+		FakeConnector conn2 = null;
+		try {
+			Scenario sc = new Scenario();
+			sc.before();
+			int[] activeBefore = {1, 2, 3};
+			List<Event> before = sc.take();
+			sc.after();
+			int[] activeAfter = {1, 4};
+			List<Event> after = sc.take();
+			
+			File database = new File(dir, "events.sqlite");
+			writeEvents(database, before);
+			File snapshot = new File(dir, "snapshot.dat");
+			
+			// Catch up on the events before the snapshot, and save it
+			conn1 = new FakeConnector(sc.nextSequences(before, activeBefore));
+			original = startProcessor(dir, database, conn1, snapshot);
+			original.saveSnapshot();
+			
+			// The original processor keeps going as if it had not been stopped
+			for (Event ev : after)
+				original.processEvent(ev, false);
+			original.removeInactiveSessions(toList(activeAfter));
+			
+			// A new processor restores the snapshot and catches up on the rest from the database
+			writeEvents(database, after);
+			List<Event> all = new ArrayList<>(before);
+			all.addAll(after);
+			conn2 = new FakeConnector(sc.nextSequences(all, activeAfter));
+			restored = startProcessor(dir, database, conn2, snapshot);
+			
+			Map<String,Object> expect = normalizeState(original.getState(10000));
+			Map<String,Object> actual = normalizeState(restored.getState(10000));
+			assertEquals(expect, actual);
+			assertEquals(new TreeMap<String,Object>() {{
+				put("alpha", null);
+				put("delta", null);
+			}}.keySet(), ((Map<?,?>)actual.get("connections")).keySet());
+			
+			// Clients of the original processor must reload the full state instead of polling the restored one
+			int oldEpoch = original.getUpdateEpoch();
+			assertNotEquals(oldEpoch, restored.getUpdateEpoch());
+			assertNull(restored.getUpdates(oldEpoch, 0, 0));
+			assertNotNull(restored.getUpdates(restored.getUpdateEpoch(), 0, 0));
+		} finally {
+			if (original != null)
+				original.terminate();
+			if (restored != null)
+				restored.terminate();
+			if (conn1 != null)
+				conn1.close();
+			if (conn2 != null)
+				conn2.close();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// An unreadable snapshot is ignored, so the processor starts from an empty state and replays everything.
+	@Test public void testCorruptSnapshot() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-processor").toFile();
+		MamircProcessor proc = null;
+		FakeConnector conn = null;
+		try {
+			Scenario sc = new Scenario();
+			sc.before();
+			List<Event> events = sc.take();
+			File database = new File(dir, "events.sqlite");
+			writeEvents(database, events);
+			File snapshot = new File(dir, "snapshot.dat");
+			try (OutputStream out = new FileOutputStream(snapshot)) {
+				out.write(new byte[]{'x', 'y', 'z'});
+			}
+			conn = new FakeConnector(sc.nextSequences(events, new int[]{1, 2, 3}));
+			proc = startProcessor(dir, database, conn, snapshot);
+			Map<?,?> connections = (Map<?,?>)normalizeState(proc.getState(10000)).get("connections");
+			assertEquals(3, connections.size());
+			assertFalse(connections.containsKey("delta"));
+		} finally {
+			if (proc != null)
+				proc.terminate();
+			if (conn != null)
+				conn.close();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	/*---- Catch-up ----*/
+	
+	// Replaying the same connections into real processors with one thread and with several threads
+	// must give the same windows and sessions, and the same sequence of updates for each profile.
+	@Test public void testParallelCatchup() throws IOException, SQLiteException, InterruptedException {
+		Scenario sc = new Scenario();
+		sc.before();
+		sc.after();
+		final List<Event> events = sc.take();
+		Map<Integer,Integer> endSequences = new HashMap<>();
+		for (Event ev : events)
+			endSequences.put(ev.connectionId, ev.sequence + 1);
+		CatchupReplay.Source source = new CatchupReplay.Source() {
+			public Map<Integer,String> readProfiles(Collection<Integer> conIds) {
+				Map<Integer,String> result = new HashMap<>();
+				for (Event ev : events) {
+					if (ev.sequence == 0 && conIds.contains(ev.connectionId))
+						result.put(ev.connectionId, ev.line.getString().split(" ", 5)[4]);
+				}
+				return result;
+			}
+			
+			public void readEvents(int conId, int startSeq, int endSeq, CatchupReplay.Sink sink) {
+				for (Event ev : events) {
+					if (ev.connectionId == conId && startSeq <= ev.sequence && ev.sequence < endSeq)
+						sink.deliver(ev);
+				}
+			}
+		};
+		
+		Map<String,Object> expectState = null;
+		Map<Object,List<Object>> expectUpdates = null;
+		for (int threads : new int[]{1, 4}) {
+			File dir = Files.createTempDirectory("mamirc-processor").toFile();
+			MamircProcessor proc = null;
+			FakeConnector conn = null;
+			try {
+				// Start a processor with nothing to catch up on, and then feed it the connections
+				File database = new File(dir, "events.sqlite");
+				writeEvents(database, new ArrayList<Event>());
+				conn = new FakeConnector(new ArrayList<String>());
+				proc = startProcessor(dir, database, conn, null);
+				int startId = (Integer)proc.getState(0).get("nextUpdateId");
+				final MamircProcessor sink = proc;
+				CatchupReplay.replay(new HashMap<Integer,Integer>(), endSequences, source, new CatchupReplay.Sink() {
+					public void deliver(Event ev) {
+						sink.processEvent(ev, false);
+					}
+				}, threads);
+				
+				Map<String,Object> state = normalizeState(proc.getState(10000));
+				Map<Object,List<Object>> updates = new TreeMap<>();
+				for (Object obj : (List<?>)proc.getUpdates(proc.getUpdateEpoch(), startId, 0).get("updates")) {
+					List<?> update = (List<?>)obj;
+					if (!updates.containsKey(update.get(1)))
+						updates.put(update.get(1), new ArrayList<Object>());
+					updates.get(update.get(1)).add(update);
+				}
+				if (expectState == null) {
+					assertEquals(3, ((Map<?,?>)state.get("connections")).size());  // Beta was closed
+					assertEquals(4, updates.size());
+					expectState = state;
+					expectUpdates = updates;
+				} else {
+					assertEquals(expectState, state);
+					assertEquals(expectUpdates, updates);
+				}
+			} finally {
+				if (proc != null)
+					proc.terminate();
+				if (conn != null)
+					conn.close();
+				deleteAll(dir);
+			}
+		}
+	}
+	
+	
+	/*---- History ----*/
+	
+	// After the oldest lines of a window are cleared from memory, a history request that reaches back past them gets
+	// the rest from the database, older lines first, instead of a short answer.
+	@Test public void testHistoryBeyondMemory() throws IOException, SQLiteException, InterruptedException {
+		File dir = Files.createTempDirectory("mamirc-processor").toFile();
+		MamircProcessor proc = null;
+		FakeConnector conn = null;
+		try {
+			Scenario sc = new Scenario();
+			sc.before();
+			List<Event> events = sc.take();
+			File database = new File(dir, "events.sqlite");
+			writeEvents(database, events, true);
+			conn = new FakeConnector(sc.nextSequences(events, new int[]{1, 2, 3}));
+			proc = startProcessor(dir, database, conn, null);
+			long time = 0;
+			for (Event ev : events) {
+				if (ev.line.getString().endsWith(":message 20 for Alice"))
+					time = ev.timestamp;
+			}
+			
+			Map<String,Object> hist = proc.getHistory("alpha", "#one", time, 5, 2);
+			assertEquals("memory", hist.get("source"));
+			assertEquals(false, hist.get("truncated"));
+			List<?> lines = (List<?>)hist.get("lines");
+			assertEquals(Arrays.asList(15, 16, 17, 18, 19, 20, 21), messageNumbers(lines));
+			proc.clearLines("alpha", "#one", (Integer)((List<?>)lines.get(0)).get(0));  // Keep message 15 onward
+			
+			hist = proc.getHistory("alpha", "#one", time, 10, 2);
+			assertEquals("mixed", hist.get("source"));
+			assertEquals(false, hist.get("truncated"));
+			lines = (List<?>)hist.get("lines");
+			assertEquals(Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21), messageNumbers(lines));
+			for (int i = 0; i < lines.size(); i++)
+				assertEquals(i < 5, ((List<?>)lines.get(i)).get(0) == null);
+			
+			hist = proc.getHistory("alpha", "#one", time, 5, 0);
+			assertEquals("memory", hist.get("source"));
+			assertEquals(5, ((List<?>)hist.get("lines")).size());
+		} finally {
+			if (proc != null)
+				proc.terminate();
+			if (conn != null)
+				conn.close();
+			deleteAll(dir);
+		}
+	}
+	
+	
+	// Returns the number in each "message N for Alice" line of the given history lines.
+	private static List<Integer> messageNumbers(List<?> lines) {
+		List<Integer> result = new ArrayList<>();
+		for (Object line : lines) {
+			String text = (String)((List<?>)line).get(4);
+			result.add(Integer.parseInt(text.split(" ")[1]));
+		}
+		return result;
+	}
+	
+	
+	
+	/*---- Test scenario ----*/
+	
+	// Generates the events of several connections with realistic IRC traffic, interleaved by time.
+	private static final class Scenario {
+		
+		private List<Event> events = new ArrayList<>();
+		private Map<Integer,Integer> nextSeq = new HashMap<>();
+		private long time = 1500000000000L;
+		
+		
+		// Connection 0 (alpha) ends, then connection 1 (alpha) starts; connections 2 (beta) and 3 (gamma) are also open.
+		public void before() {
+			register(0, "alpha", "Alice", "#one");
+			receive(0, ":Bob!b@host PRIVMSG #one :hello from the first connection");
+			connection(0, "disconnect");
+			connection(0, "closed");
+			
+			register(1, "alpha", "Alice", "#one");
+			receive(1, ":irc.alpha.net 332 Alice #one :Topic of one");
+			register(2, "beta", "Bea", "#two");
+			register(3, "gamma", "Gus", "#three");
+			for (int i = 0; i < 30; i++) {
+				receive(1, ":Bob!b@host PRIVMSG #one :message " + i + " for Alice");
+				receive(2, ":Carl!c@host PRIVMSG #two :chatter " + i);
+				if (i % 5 == 0)
+					send(3, "PRIVMSG #three :reply " + i);
+				if (i % 7 == 0)
+					receive(2, ":Carl!c@host PRIVMSG Bea :private " + i);
+			}
+			receive(1, ":Dan!d@host JOIN #one");
+			receive(1, ":Bob!b@host NICK Bobby");
+			receive(3, ":Eve!e@host NOTICE #three :notice");
+			receive(3, ":irc.gamma.net 372 Gus :- message of the day");
+		}
+		
+		
+		// Connection 1 continues, 2 is closed, 3 just stops, and 4 (delta) is opened.
+		public void after() {
+			receive(1, ":Dan!d@host PART #one :bye");
+			receive(1, ":Bobby!b@host TOPIC #one :New topic");
+			receive(1, ":Bobby!b@host MODE #one +o Alice");
+			receive(1, ":Alice!a@host NICK Alicia");
+			send(1, "PRIVMSG #one :now I am Alicia");
+			receive(2, ":Carl!c@host QUIT :gone");
+			receive(2, ":Carl2!c@host JOIN #two");
+			connection(2, "disconnect");
+			connection(2, "closed");
+			receive(3, ":Eve!e@host PRIVMSG #three :last words");
+			register(4, "delta", "Dora", "#four");
+			for (int i = 0; i < 10; i++) {
+				receive(4, ":Fay!f@host PRIVMSG #four :delta " + i);
+				receive(1, ":Bobby!b@host PRIVMSG #one :later " + i);
+			}
+			receive(1, ":Bobby!b@host KICK #one Dan2 :not here");
+		}
+		
+		
+		// Returns and forgets the events generated so far.
+		public List<Event> take() {
+			List<Event> result = events;
+			events = new ArrayList<>();
+			return result;
+		}
+		
+		
+		// Returns the lines that a Connector sends to list the given active connections after the given events.
+		public List<String> nextSequences(List<Event> events, int[] conIds) {
+			Map<Integer,Integer> next = new HashMap<>();
+			for (Event ev : events)
+				next.put(ev.connectionId, ev.sequence + 1);
+			List<String> result = new ArrayList<>();
+			for (int conId : conIds)
+				result.add(conId + " " + next.get(conId));
+			return result;
+		}
+		
+		
+		private void register(int conId, String profile, String nick, String chan) {
+			String server = "irc." + profile + ".net";
+			connection(conId, "connect " + server + " 6667 nossl " + profile);
+			connection(conId, "opened 192.0.2." + (conId + 1));
+			send(conId, "NICK " + nick);
+			send(conId, "USER " + nick.toLowerCase() + " 0 * :" + nick);
+			receive(conId, ":" + server + " 001 " + nick + " :Welcome to " + profile);
+			receive(conId, ":" + server + " 005 " + nick + " CHANTYPES=# :are supported");
+			receive(conId, ":" + nick + "!" + nick.toLowerCase() + "@host JOIN " + chan);
+			receive(conId, ":" + server + " 353 " + nick + " = " + chan + " :" + nick + " @Bob +Carl Dan2 Eve Fay");
+			receive(conId, ":" + server + " 366 " + nick + " " + chan + " :End of /NAMES list.");
+		}
+		
+		
+		private void connection(int conId, String line) {
+			add(conId, Event.Type.CONNECTION, line);
+		}
+		
+		
+		private void receive(int conId, String line) {
+			add(conId, Event.Type.RECEIVE, line);
+		}
+		
+		
+		private void send(int conId, String line) {
+			add(conId, Event.Type.SEND, line);
+		}
+		
+		
+		private void add(int conId, Event.Type type, String line) {
+			Integer seq = nextSeq.get(conId);
+			if (seq == null)
+				seq = 0;
+			nextSeq.put(conId, seq + 1);
+			time += 1000;
+			events.add(new Event(conId, seq, time, type, new CleanLine(line)));
+		}
+		
+	}
+	
+	
+	/*---- Helper definitions ----*/
+	
+	// Starts a processor that attaches to the given fake connector, and waits until it has caught up.
+	private static MamircProcessor startProcessor(File dir, File database, FakeConnector connector, File snapshot) throws IOException, InterruptedException {
+		File backendFile = new File(dir, "backend.json");
+		writeUtf8(backendFile, "{\"data-type\": \"mamirc-backend-config\", "
+			+ "\"connector-server-port\": " + connector.getPort() + ", \"connector-password\": \"pw\", "
+			+ "\"connector-database-file\": \"" + database.getPath() + "\", "
+			+ (snapshot != null ? "\"processor-snapshot-file\": \"" + snapshot.getPath() + "\", " : "")
+			+ "\"web-server-port\": 0, \"web-ui-password\": \"x\"}");
+		File userFile = new File(dir, "user.json");
+		StringBuilder sb = new StringBuilder("{\"data-type\": \"mamirc-user-config\", \"date-boundary-offset-seconds\": 0, \"network-profiles\": {");
+		for (String profile : new String[]{"alpha", "beta", "gamma", "delta", "idle"}) {
+			sb.append("\"").append(profile).append("\": {\"connect\": ").append(profile.equals("idle"))
+				.append(", \"servers\": [{\"hostname\": \"irc.").append(profile).append(".net\", \"port\": 6667, \"ssl\": false}], ")
+				.append("\"nicknames\": [\"Nick\"], \"username\": \"u\", \"realname\": \"R\", \"channels\": []}")
+				.append(profile.equals("idle") ? "" : ", ");
+		}
+		writeUtf8(userFile, sb.append("}}").toString());
+		
+		MamircProcessor result = new MamircProcessor(new BackendConfiguration(backendFile), userFile);
+		// After catching up, the processor connects the profiles that should be connected but aren't
+		assertEquals("connect irc.idle.net 6667 false idle", connector.awaitLine("connect "));
+		return result;
+	}
+	
+	
+	// Returns the given result of getState() with the parts that legitimately differ between processors removed:
+	// the update IDs, the order of windows, and the times of lines added at the moment of catching up.
+	private static Map<String,Object> normalizeState(Map<String,Object> state) {
+		Map<String,Object> result = new TreeMap<>();
+		result.put("connections", new TreeMap<>((Map<?,?>)state.get("connections")));
+		result.put("initialWindow", state.get("initialWindow"));
+		Map<String,Object> windows = new TreeMap<>();
+		for (Object item : (List<?>)state.get("windows")) {
+			List<?> win = (List<?>)item;
+			Map<?,?> winState = (Map<?,?>)win.get(2);
+			List<List<Object>> lines = new ArrayList<>();
+			long time = 0;
+			for (Object obj : (List<?>)winState.get("lines")) {
+				List<Object> line = new ArrayList<>((List<?>)obj);
+				time += ((Number)line.get(2)).longValue();  // Undo the delta encoding
+				line.set(2, time < 1600000000000L ? time : -1);  // Lines stamped with the current time
+				lines.add(line);
+			}
+			windows.put(win.get(0) + "\n" + win.get(1), Arrays.asList(lines, winState.get("markedReadUntil")));
+		}
+		result.put("windows", windows);
+		return result;
+	}
+	
+	
+	// Plays the Connector's side of the processor link: it lists the given active connections, sends no live events,
+	// and collects the lines that the processor sends.
+	private static final class FakeConnector extends Thread {
+		
+		private final ServerSocket server;
+		private final List<String> activeConnections;
+		private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+		private volatile Socket socket;
+		
+		
+		public FakeConnector(List<String> activeConnections) throws IOException {
+			server = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+			this.activeConnections = activeConnections;
+			start();
+		}
+		
+		
+		public int getPort() {
+			return server.getLocalPort();
+		}
+		
+		
+		public void run() {
+			try {
+				socket = server.accept();
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				if (!in.readLine().equals("pw") || !in.readLine().equals("attach"))
+					throw new IllegalStateException();
+				StringBuilder sb = new StringBuilder("active-connections\n");
+				for (String s : activeConnections)
+					sb.append(s).append("\n");
+				sb.append("end-list\nlive-events\n");
+				socket.getOutputStream().write(Utils.toUtf8(sb.toString()));
+				while (true) {
+					String line = in.readLine();
+					if (line == null)
+						break;
+					received.add(line);
+				}
+			} catch (IOException e) {}
+		}
+		
+		
+		// Returns the next line from the processor that starts with the given prefix, skipping other lines.
+		public String awaitLine(String prefix) throws InterruptedException {
+			while (true) {
+				String line = received.poll(30, TimeUnit.SECONDS);
+				if (line == null || line.startsWith(prefix))
+					return line;
+			}
+		}
+		
+		
+		public void close() throws IOException {
+			server.close();
+			if (socket != null)
+				socket.close();
+		}
+		
+	}
+	
+	
+	// Appends the given events to the events table of the given database, creating it if needed,
+	// like a Connector of an older version that didn't fill in the command column.
+	private static void writeEvents(File file, List<Event> events) throws SQLiteException {
+		writeEvents(file, events, false);
+	}
+	
+	
+	// Appends the given events like the method above, optionally filling in the command and target columns
+	// like the current Connector.
+	private static void writeEvents(File file, List<Event> events, boolean withCommands) throws SQLiteException {
+		SQLiteConnection db = new SQLiteConnection(file);
+		db.open(true);
+		try {
+			db.exec("CREATE TABLE IF NOT EXISTS events(connectionId INTEGER, sequence INTEGER, timestamp INTEGER NOT NULL, "
+				+ "type INTEGER NOT NULL, data BLOB NOT NULL, class INTEGER, command TEXT, target TEXT, PRIMARY KEY(connectionId, sequence))");
+			db.exec("BEGIN TRANSACTION");
+			SQLiteStatement st = db.prepare("INSERT INTO events(connectionId, sequence, timestamp, type, data, command, target) VALUES(?,?,?,?,?,?,?)");
+			for (Event ev : events) {
+				st.bind(1, ev.connectionId);
+				st.bind(2, ev.sequence);
+				st.bind(3, ev.timestamp);
+				st.bind(4, ev.type.ordinal());
+				st.bind(5, ev.line.getDataNoCopy());
+				if (!withCommands) {
+					st.bindNull(6);
+					st.bindNull(7);
+				} else if (ev.type == Event.Type.CONNECTION) {
+					st.bind(6, "");
+					st.bindNull(7);
+				} else {
+					IrcLine msg = new IrcLine(ev.line.getDataNoCopy());
+					st.bind(6, msg.command.toUpperCase());
+					if (msg.parameters.isEmpty())
+						st.bindNull(7);
+					else
+						st.bind(7, msg.getParameter(0));
+				}
+				st.step();
+				st.reset();
+			}
+			db.exec("COMMIT TRANSACTION");
+		} finally {
+			db.dispose();
+		}
+	}
+	
+	
+	private static List<Integer> toList(int[] arr) {
+		List<Integer> result = new ArrayList<>();
+		for (int x : arr)
+			result.add(x);
+		return result;
+	}
+	
+	
+	private static void writeUtf8(File file, String s) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(Utils.toUtf8(s));
+		}
+	}
+	
+	
+	private static void deleteAll(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				deleteAll(f);
+		}
+		dir.delete();
+	}
+	
+}
@@ -27,6 +27,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.zip.DeflaterOutputStream;
+import com.almworks.sqlite4java.SQLiteException;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -150,18 +151,36 @@ final class MessageHttpServer {
 					
 					case "/get-updates.json": {
 						// Get or wait for new data
+						int epoch = Json.getInt(reqData, "updateEpoch");
 						int startId = Json.getInt(reqData, "nextUpdateId");
 						int maxWait = Json.getInt(reqData, "maxWait");
 						maxWait = Math.max(Math.min(maxWait, 300000), 1);
-						Map<String,Object> data = master.getUpdates(startId, maxWait);
+						Map<String,Object> data = master.getUpdates(epoch, startId, maxWait);
 						writeJsonResponse(data, he);
 						break;
 					}
 					
+					case "/get-history.json": {
+						String profile = Json.getString(reqData, "profile");
+						String party = Json.getString(reqData, "party");
+						long time = ((Number)Json.getObject(reqData, "time")).longValue();  // Unix milliseconds
+						int before = Math.max(Math.min(Json.getInt(reqData, "before"), MAX_HISTORY_LINES), 0);
+						int after = Math.max(Math.min(Json.getInt(reqData, "after"), MAX_HISTORY_LINES), 0);
+						try {
+							writeJsonResponse(master.getHistory(profile, party, time, before, after), he);
+						} catch (SQLiteException e) {
+							e.printStackTrace();
+							writeJsonResponse("Database error", he);
+						}
+						break;
+					}
+					
 					case "/do-actions.json": {
 						String result;
 						if (!equalsTimingSafe(Json.getString(reqData, "csrfToken"), csrfToken)) {
 							result = "CSRF check failed";
+						} else if (Json.getInt(reqData, "updateEpoch") != master.getUpdateEpoch()) {
+							result = "Processor was restarted";
 						} else if (Json.getInt(reqData, "nextUpdateId") > master.getNextUpdateId()) {
 							result = "Invalid future update ID";
 						} else if (Json.getInt(reqData, "nextUpdateId") < master.getNextUpdateId() - 10) {
@@ -177,9 +196,10 @@ final class MessageHttpServer {
 									String profile = Json.getString(tuple, 1);
 									String party = Json.getString(tuple, 2);
 									switch (command) {
-										case "send-line": {
+										case "send-line":
+										case "send-bulk-line": {
 											// Tuple index 2 is actually the payload line (e.g. "PRIVMSG #foo :Hello, world!")
-											if (!master.sendLine(profile, party))
+											if (!master.sendLine(profile, party, command.equals("send-bulk-line")))
 												result = "Profile not found";
 											break;
 										}
@@ -222,6 +242,7 @@ final class MessageHttpServer {
 		server.createContext("/get-state.json", apiHandler);
 		server.createContext("/get-time.json", apiHandler);
 		server.createContext("/get-updates.json", apiHandler);
+		server.createContext("/get-history.json", apiHandler);
 		server.createContext("/do-actions.json", apiHandler);
 		
 		// Start the server
@@ -440,4 +461,7 @@ final class MessageHttpServer {
 	
 	private static final int MAX_REQUEST_BODY_LEN = 10000;
 	
+	// Bounds each side of a history request
+	private static final int MAX_HISTORY_LINES = 1000;
+	
 }
@@ -0,0 +1,171 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/* 
+ * The log of recent updates that web clients poll for, shared by all profile partitions of the processor. Adding an
+ * update takes a unique ID from an atomic counter and stores the update in a ring of slots, so threads working on
+ * different profiles never wait for each other. An update becomes visible once every update with a smaller ID is
+ * also stored; readers stop at the first ID that has been taken but not stored yet. The lock in this class is only
+ * used by long-polling readers to sleep, and an adder takes it only when a reader is waiting. Each log has a random
+ * epoch number that readers must present, so that a client of an earlier processor instance (whose IDs also started
+ * at 0) is told to request the full state instead of getting unrelated updates. Thread-safe.
+ */
+final class UpdateLog {
+	
+	/*---- Fields ----*/
+	
+	private final AtomicReferenceArray<Entry> slots;  // Update with ID i is in slot i % length
+	private final int epoch;  // Distinguishes this log from the logs of other processor instances
+	private final AtomicInteger nextId;  // One past the last ID taken so far
+	
+	private final Lock waitLock;
+	private final Condition condNewUpdates;
+	private final AtomicInteger numWaiting;
+	
+	
+	
+	/*---- Constructor ----*/
+	
+	// Keeps at least the given number of most recent updates, and has a new random epoch.
+	public UpdateLog(int capacity) {
+		this(capacity, new SecureRandom().nextInt() & Integer.MAX_VALUE);
+	}
+	
+	
+	// Keeps at least the given number of most recent updates, and has the given epoch.
+	public UpdateLog(int capacity, int epoch) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException();
+		slots = new AtomicReferenceArray<>(capacity);
+		this.epoch = epoch;
+		nextId = new AtomicInteger(0);
+		waitLock = new ReentrantLock();
+		condNewUpdates = waitLock.newCondition();
+		numWaiting = new AtomicInteger(0);
+	}
+	
+	
+	
+	/*---- Methods ----*/
+	
+	// Stores the given update under the next ID and wakes any waiting readers. Doesn't block on other adders.
+	public void add(Object... update) {
+		if (update == null)
+			throw new NullPointerException();
+		int id = nextId.getAndIncrement();
+		Entry entry = new Entry(id, Arrays.asList(update));
+		int index = id % slots.length();
+		while (true) {
+			Entry old = slots.get(index);
+			if (old != null && old.id > id)
+				break;  // This adder was so slow that a newer update already took the slot
+			if (slots.compareAndSet(index, old, entry))
+				break;
+		}
+		if (numWaiting.get() > 0)
+			wakeWaiters();
+	}
+	
+	
+	// Returns the epoch that readers of this log must present.
+	public int getEpoch() {
+		return epoch;
+	}
+	
+	
+	// Returns the ID that the next update will get. When no update is being added concurrently (e.g. while
+	// holding the processor's global write lock), every update with a smaller ID is visible to readers.
+	public int getNextId() {
+		return nextId.get();
+	}
+	
+	
+	// Returns a JSON object containing the visible updates with id >= startId (the list might be empty) and the ID to
+	// poll from next, or null to indicate that the request is invalid (including a different epoch) and the client must
+	// request the full state. If there are no updates yet, this waits up to maxWait milliseconds for one.
+	public Map<String,Object> getUpdates(int epoch, int startId, int maxWait) {
+		if (maxWait < 0)
+			throw new IllegalArgumentException();
+		if (epoch != this.epoch || startId < 0 || startId > nextId.get())
+			return null;
+		
+		List<List<Object>> updates = new ArrayList<>();
+		int i;
+		for (i = startId; ; i++) {
+			Entry entry = slots.get(i % slots.length());
+			if (entry == null || entry.id < i)
+				break;  // Not stored yet
+			else if (entry.id > i)
+				return null;  // Overwritten, so the client must resynchronize
+			updates.add(entry.update);
+		}
+		
+		if (updates.isEmpty() && maxWait > 0) {  // Result currently empty, wait for more
+			waitLock.lock();
+			numWaiting.incrementAndGet();
+			try {
+				// Check again after announcing the wait, so that an update stored in the meantime isn't missed
+				Entry entry = slots.get(startId % slots.length());
+				if (entry == null || entry.id < startId)
+					condNewUpdates.await(maxWait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+			} finally {
+				numWaiting.decrementAndGet();
+				waitLock.unlock();
+			}
+			return getUpdates(epoch, startId, 0);
+		}
+		
+		Map<String,Object> result = new HashMap<>();
+		result.put("updates", updates);
+		result.put("nextUpdateId", i);
+		return result;
+	}
+	
+	
+	// Unblocks all readers that are currently waiting, e.g. when the processor is terminating.
+	public void wakeWaiters() {
+		waitLock.lock();
+		try {
+			condNewUpdates.signalAll();
+		} finally {
+			waitLock.unlock();
+		}
+	}
+	
+	
+	
+	/*---- Helper class ----*/
+	
+	private static final class Entry {
+		public final int id;
+		public final List<Object> update;
+		
+		public Entry(int id, List<Object> update) {
+			this.id = id;
+			this.update = update;
+		}
+	}
+	
+}
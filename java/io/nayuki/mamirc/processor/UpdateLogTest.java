@@ -0,0 +1,112 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+
+public final class UpdateLogTest {
+	
+	@Test public void testGetUpdates() {
+		UpdateLog log = new UpdateLog(4);
+		assertEquals(0, log.getNextId());
+		checkUpdates(log.getUpdates(log.getEpoch(), 0, 0), 0);
+		assertNull(log.getUpdates(log.getEpoch(), 1, 0));
+		
+		log.add("A", 0);
+		log.add("B", 1);
+		assertEquals(2, log.getNextId());
+		checkUpdates(log.getUpdates(log.getEpoch(), 0, 0), 2, Arrays.<Object>asList("A", 0), Arrays.<Object>asList("B", 1));
+		checkUpdates(log.getUpdates(log.getEpoch(), 1, 0), 2, Arrays.<Object>asList("B", 1));
+		checkUpdates(log.getUpdates(log.getEpoch(), 2, 0), 2);
+	}
+	
+	
+	@Test public void testOverwritten() {
+		UpdateLog log = new UpdateLog(4);
+		for (int i = 0; i < 6; i++)
+			log.add("X", i);
+		assertNull(log.getUpdates(log.getEpoch(), 0, 0));
+		assertNull(log.getUpdates(log.getEpoch(), 1, 0));
+		checkUpdates(log.getUpdates(log.getEpoch(), 2, 0), 6, Arrays.<Object>asList("X", 2), Arrays.<Object>asList("X", 3),
+			Arrays.<Object>asList("X", 4), Arrays.<Object>asList("X", 5));
+		checkUpdates(log.getUpdates(log.getEpoch(), 5, 0), 6, Arrays.<Object>asList("X", 5));
+	}
+	
+	
+	// A log of another processor instance has a different epoch, so its clients must request the full state.
+	@Test public void testEpoch() {
+		UpdateLog log = new UpdateLog(4, 100);
+		assertEquals(100, log.getEpoch());
+		log.add("Z");
+		assertNull(log.getUpdates(99, 0, 0));
+		assertNull(log.getUpdates(99, 1, 0));
+		checkUpdates(log.getUpdates(100, 0, 0), 1, Arrays.<Object>asList("Z"));
+		assertTrue(new UpdateLog(4).getEpoch() >= 0);
+	}
+	
+	
+	@Test public void testConcurrentAdders() throws InterruptedException {
+		final UpdateLog log = new UpdateLog(100000);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 10000; j++)
+						log.add(index, j);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread th : threads)
+			th.join();
+		
+		Map<String,Object> result = log.getUpdates(log.getEpoch(), 0, 0);
+		assertEquals(40000, result.get("nextUpdateId"));
+		int[] nextPerThread = new int[threads.length];
+		for (Object obj : (List<?>)result.get("updates")) {
+			List<?> update = (List<?>)obj;
+			int index = (Integer)update.get(0);
+			assertEquals(nextPerThread[index], update.get(1));  // Each thread's updates stay in order
+			nextPerThread[index]++;
+		}
+	}
+	
+	
+	@Test public void testWaitWoken() throws InterruptedException {
+		final UpdateLog log = new UpdateLog(4);
+		Thread th = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {}
+				log.add("Y");
+			}
+		};
+		th.start();
+		long start = System.currentTimeMillis();
+		checkUpdates(log.getUpdates(log.getEpoch(), 0, 10000), 1, Arrays.<Object>asList("Y"));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		th.join();
+	}
+	
+	
+	private static void checkUpdates(Map<String,Object> result, int nextId, List<?>... expect) {
+		assertEquals(nextId, result.get("nextUpdateId"));
+		assertEquals(Arrays.asList(expect), result.get("updates"));
+	}
+	
+}
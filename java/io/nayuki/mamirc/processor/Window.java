@@ -9,7 +9,11 @@
 package io.nayuki.mamirc.processor;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import io.nayuki.json.Json;
 
 
 final class Window {
@@ -27,6 +31,18 @@ final class Window {
 	}
 	
 	
+	// Restores a window from the given JSON object, which was made by toJsonObject().
+	public Window(Object data) {
+		this();
+		for (Object item : Json.getList(data, "lines")) {
+			List<Object> row = Json.getList(item);
+			lines.add(new Line(Json.getInt(row, 0), Json.getInt(row, 1), ((Number)row.get(2)).longValue(), row.subList(3, row.size()).toArray()));
+		}
+		nextSequence = Json.getInt(data, "next-sequence");
+		markedReadUntil = Json.getInt(data, "marked-read-until");
+	}
+	
+	
 	
 	// Timestamp is in seconds instead of milliseconds.
 	public void addLine(int flags, long timestamp, Object... payload) {
@@ -35,6 +51,51 @@ final class Window {
 	}
 	
 	
+	// Returns the index of the first line whose timestamp (in seconds) is at least the given value, or lines.size() if there is none.
+	// Uses binary search, because lines are appended in time order (apart from rare small clock adjustments).
+	public int indexOfTimestamp(long timestamp) {
+		int low = 0;
+		int high = lines.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (lines.get(mid).timestamp < timestamp)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+	
+	
+	// Returns a copy of this window that is not affected by later changes to it. Lines are immutable, so they are shared.
+	public Window copy() {
+		Window result = new Window();
+		result.lines = new ArrayList<>(lines);
+		result.nextSequence = nextSequence;
+		result.markedReadUntil = markedReadUntil;
+		return result;
+	}
+	
+	
+	// Returns a new JSON object of this window's contents, for a state snapshot.
+	public Map<String,Object> toJsonObject() {
+		List<List<Object>> outLines = new ArrayList<>();
+		for (Line line : lines) {
+			List<Object> row = new ArrayList<>();
+			row.add(line.sequence);
+			row.add(line.flags);
+			row.add(line.timestamp);
+			Collections.addAll(row, line.payload);
+			outLines.add(row);
+		}
+		Map<String,Object> result = new HashMap<>();
+		result.put("lines", outLines);
+		result.put("next-sequence", nextSequence);
+		result.put("marked-read-until", markedReadUntil);
+		return result;
+	}
+	
+	
 	// Deletes all lines with sequence numbers strictly less than the given number.
 	public void clearUntil(int sequence) {
 		int i;
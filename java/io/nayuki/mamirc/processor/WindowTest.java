@@ -0,0 +1,50 @@
+/* 
+ * MamIRC
+ * Copyright (c) Project Nayuki
+ * 
+ * https://www.nayuki.io/page/mamirc-the-headless-irc-client
+ * https://github.com/nayuki/MamIRC
+ */
+
+package io.nayuki.mamirc.processor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import io.nayuki.json.Json;
+import org.junit.Test;
+
+
+public final class WindowTest {
+	
+	@Test public void testCopy() {
+		Window w = new Window();
+		w.addLine(Window.Flags.JOIN.value, 100, "bob");
+		Window c = w.copy();
+		w.addLine(Window.Flags.PART.value, 101, "bob");
+		w.markedReadUntil = 2;
+		assertEquals(1, c.lines.size());
+		assertEquals(1, c.nextSequence);
+		assertEquals(0, c.markedReadUntil);
+	}
+	
+	
+	@Test public void testJson() {
+		Window w = new Window();
+		w.addLine(Window.Flags.CONNECTING.value, 1449447299L, "irc.example.com", 6697, true);
+		w.addLine(Window.Flags.PRIVMSG.value | Window.Flags.NICKFLAG.value, 1449447300L, "bob", "hi alice");
+		w.addLine(Window.Flags.NAMES.value, 1449447301L, "alice", "bob", "carol");
+		w.clearUntil(1);
+		
+		Window v = new Window(Json.parse(Json.serialize(w.toJsonObject())));
+		assertEquals(3, v.nextSequence);
+		assertEquals(1, v.markedReadUntil);
+		assertEquals(2, v.lines.size());
+		Window.Line line = v.lines.get(0);
+		assertEquals(1, line.sequence);
+		assertEquals(Window.Flags.PRIVMSG.value | Window.Flags.NICKFLAG.value, line.flags);
+		assertEquals(1449447300L, line.timestamp);
+		assertArrayEquals(new Object[]{"bob", "hi alice"}, line.payload);
+		assertArrayEquals(new Object[]{"alice", "bob", "carol"}, v.lines.get(1).payload);
+	}
+	
+}
@@ -1229,7 +1229,7 @@ const inputBoxModule = new function() {
 			return false;
 		}
 		lines.forEach(function(line) {
-			actions.push(["send-line", profile, "PRIVMSG " + party + " :" + line]);
+			actions.push(["send-bulk-line", profile, "PRIVMSG " + party + " :" + line]);
 		});
 		networkModule.sendAction(actions, onerror);
 		self.clearText(false);
@@ -1576,6 +1576,8 @@ const networkModule = new function() {
 	const self = this;
 	// Type integer/null. At least 0.
 	var nextUpdateId = null;
+	// Type integer/null. Identifies the Processor instance that nextUpdateId belongs to.
+	var updateEpoch = null;
 	// Type integer. This value, in milliseconds, changes during execution depending on successful/failed requests.
 	var retryTimeout = 1000;
 	// Type string/null.
@@ -1618,7 +1620,7 @@ const networkModule = new function() {
 				onerror("Connection timeout");
 			};
 		}
-		var reqData = {"payload":payload, "csrfToken":csrfToken, "nextUpdateId":nextUpdateId};
+		var reqData = {"payload":payload, "csrfToken":csrfToken, "updateEpoch":updateEpoch, "nextUpdateId":nextUpdateId};
 		doJsonXhr("do-actions.json", reqData, 5000, newOnload, newOnerror, newOntimeout);
 	};
 	
@@ -1648,6 +1650,7 @@ const networkModule = new function() {
 	function getState() {
 		var onload = function(xhr, data) {
 			if (typeof data != "string") {  // Good data
+				updateEpoch = data.updateEpoch;
 				nextUpdateId = data.nextUpdateId;
 				csrfToken = data.csrfToken;
 				userConfiguration = data.userConfiguration;
@@ -1683,7 +1686,7 @@ const networkModule = new function() {
 				retryTimeout *= 2;
 		};
 		var maxWait = 60000;
-		doJsonXhr("get-updates.json", {"nextUpdateId":nextUpdateId, "maxWait":maxWait},
+		doJsonXhr("get-updates.json", {"updateEpoch":updateEpoch, "nextUpdateId":nextUpdateId, "maxWait":maxWait},
 			maxWait + 20000, onload, retry, retry);
 	}
 	